@@ -24,21 +24,33 @@
 package htsjdk.samtools;
 
 
+import htsjdk.samtools.filter.SamRecordPredicate;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
 import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CoordMath;
+import htsjdk.samtools.util.DaemonThreadFactory;
+import htsjdk.samtools.util.InflatedBlockCache;
+import htsjdk.samtools.util.RuntimeEOFException;
 import htsjdk.samtools.util.StringLineReader;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class for reading and querying BAM files.
@@ -61,7 +73,7 @@ class BAMFileReader extends SamReader.ReaderImplementation {
     private BAMIndex mIndex = null;
     private long mFirstRecordPointer = 0;
     // If non-null, there is an unclosed iterator extant.
-    private CloseableIterator<SAMRecord> mCurrentIterator = null;
+    private CloseableIterator<?> mCurrentIterator = null;
 
     // If true, all SAMRecords are fully decoded as they are read.
     private boolean eagerDecode;
@@ -72,11 +84,40 @@ class BAMFileReader extends SamReader.ReaderImplementation {
     // For creating BAMRecords
     private SAMRecordFactory samRecordFactory;
 
+    // If > 0, iterators decode batches of records on this many threads from a shared pool.
+    private int mDecoderThreads = Defaults.DECODER_THREADS;
+
+    // If > 0, indexed queries read and inflate up to this many bytes of the chunks ahead of the caller in the background.
+    private int mQueryPrefetchBytes = Defaults.QUERY_PREFETCH_BYTES;
+
+    // Records are read into batches of about this many bytes for decoding in the background.
+    private static final int DECODE_BATCH_BYTES = 1024 * 1024;
+
+    // Raw record iterators read records into buffers of this many bytes, each shared by the records read into it.
+    private static final int RAW_RECORD_BUFFER_BYTES = 256 * 1024;
+
+    // If true, records decoded on the iterating thread are views of shared buffers (see BAMRecord.detachBinaryData()).
+    private boolean mShareRecordBuffers = false;
+
+    // If non-null, iterators skip the records that this rejects, without decoding them.
+    private SamRecordPredicate mRecordPredicate = null;
+
+    /**
+     * When sharing record buffers, an iterator releases each record once it has read this many more records.
+     */
+    static final int SHARED_RECORD_WINDOW = 1000;
+
     /**
      * Use the caching index reader implementation rather than the disk-hit-per-file model.
      */
     private boolean mEnableIndexCaching = false;
 
+    // If true, and the index is a file, use CompactBAMFileIndex
+    private boolean mEnableCompactIndex = false;
+
+    // Index content shared with other readers, used when index caching is enabled
+    private BAMIndexContentCache mIndexCache = null;
+
     /**
      * Use the traditional memory-mapped implementation for BAM file indexes rather than regular I/O.
      */
@@ -210,6 +251,30 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         this.mEnableIndexCaching = enabled;
     }
 
+    /**
+     * If true, and the index is a file, uses the compact, memory-mapped index reader, which takes precedence over
+     * index caching.
+     * @see CompactBAMFileIndex
+     */
+    void enableCompactIndex(final boolean enabled) {
+        if (mIndex != null) {
+            throw new SAMException("Unable to turn on compact index; index file has already been loaded.");
+        }
+        this.mEnableCompactIndex = enabled;
+    }
+
+    /**
+     * Sets a cache of parsed index content, possibly shared with other readers, to be used when index caching is
+     * enabled and the index is a file.
+     * @param cache null to cache index content only within this reader.
+     */
+    void setIndexCache(final BAMIndexContentCache cache) {
+        if (mIndex != null) {
+            throw new SAMException("Unable to set index cache; index file has already been loaded.");
+        }
+        this.mIndexCache = cache;
+    }
+
     /**
      * If false, disable the use of memory mapping for accessing index files (default behavior is to use memory mapping).
      * This is slower but more scalable when accessing large numbers of BAM files sequentially.
@@ -226,6 +291,76 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         this.mCompressedInputStream.setCheckCrcs(enabled);
     }
 
+    /**
+     * Sets the number of inflater threads, which is also the number of BGZF blocks read ahead of the iterating thread.
+     * @param threads 0 to inflate each block on the iterating thread.
+     * @see BlockCompressedInputStream#setInflaterThreads(int)
+     */
+    void setInflaterThreads(final int threads) {
+        this.mCompressedInputStream.setInflaterThreads(threads);
+    }
+
+    /**
+     * Sets a cache of inflated BGZF blocks, possibly shared with other readers, to be consulted by indexed queries.
+     * @param cache null to disable caching.
+     * @see BlockCompressedInputStream#setBlockCache(InflatedBlockCache)
+     */
+    void setBlockCache(final InflatedBlockCache cache) {
+        this.mCompressedInputStream.setBlockCache(cache);
+    }
+
+    /**
+     * Sets the number of batches of records that iterators decode in the background, ahead of the caller, on a pool
+     * shared by all readers that has as many threads as the largest number given to any of them.  Decoding includes creating the record with the SAMRecordFactory, which must therefore be thread-safe,
+     * validation, and eager decoding if enabled.  Records are still returned in file order.  Note that if the file
+     * is not seekable, records that have been read ahead are lost when an iterator is closed.
+     * @param threads 0 to decode each record on the iterating thread.
+     */
+    void setDecoderThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid number of decoder threads: " + threads);
+        }
+        this.mDecoderThreads = threads;
+    }
+
+    /**
+     * Sets the number of bytes of inflated blocks that indexed queries may read in the background from the chunks they
+     * are yet to reach, including those of later intervals of multi-interval queries.
+     * @param bytes 0 to read each chunk only when it is reached.
+     * @see BlockCompressedInputStream#prefetch(long[], long)
+     */
+    void setQueryPrefetchBytes(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid number of query prefetch bytes: " + bytes);
+        }
+        this.mQueryPrefetchBytes = bytes;
+    }
+
+    /**
+     * Determines whether records decoded on the iterating thread are views of buffers shared with neighbouring records,
+     * rather than having copies of their variable-length data.  A record is released once its iterator has read
+     * SHARED_RECORD_WINDOW more records, or is closed, and is only copied if it is still reachable when its buffer is
+     * reused (see BAMRecord.detachBinaryData()).  Records decoded in the background (see setDecoderThreads()) always have their own copies.
+     */
+    void setShareRecordBuffers(final boolean share) {
+        this.mShareRecordBuffers = share;
+    }
+
+    /**
+     * Sets a predicate that records must satisfy to be returned by iterators created afterwards, including raw ones.
+     * The predicate is evaluated on each record as it is read, before it is decoded, validated or made into a
+     * SAMRecord.  Iterators that already exist keep the predicate they were created with.
+     * @param predicate null to return all records.
+     */
+    void setRecordPredicate(final SamRecordPredicate predicate) {
+        this.mRecordPredicate = predicate;
+    }
+
+    /** @return the predicate that records must satisfy to be returned by new iterators, or null if there is none. */
+    SamRecordPredicate getRecordPredicate() {
+        return mRecordPredicate;
+    }
+
     @Override void setSAMRecordFactory(final SAMRecordFactory factory) { this.samRecordFactory = factory; }
 
     @Override
@@ -248,8 +383,10 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         if(!hasIndex())
             throw new SAMException("No index is available for this BAM file.");
         if(mIndex == null) {
-            if (mIndexFile != null)
-                mIndex = mEnableIndexCaching ? new CachingBAMFileIndex(mIndexFile, getFileHeader().getSequenceDictionary(), mEnableIndexMemoryMapping)
+            if (mIndexFile != null && mEnableCompactIndex)
+                mIndex = new CompactBAMFileIndex(mIndexFile);
+            else if (mIndexFile != null)
+                mIndex = mEnableIndexCaching ? new CachingBAMFileIndex(mIndexFile, getFileHeader().getSequenceDictionary(), mEnableIndexMemoryMapping, mIndexCache)
                                              : new DiskBasedBAMFileIndex(mIndexFile, getFileHeader().getSequenceDictionary(), mEnableIndexMemoryMapping);
             else
                 mIndex = mEnableIndexCaching ? new CachingBAMFileIndex(mIndexStream, getFileHeader().getSequenceDictionary())
@@ -296,6 +433,22 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * done in that situation.
      */
     public CloseableIterator<SAMRecord> getIterator() {
+        return getIterator(false);
+    }
+
+    /**
+     * Like getIterator(), but rather than creating a new record for each record in the file, the iterator overwrites
+     * and returns the same few records over and over.  A record returned by next() may only be used until the
+     * following call to next(), unless it is cloned.  Records are decoded on the iterating thread, whatever the
+     * number of decoder threads, and do not share record buffers.  They have no file source, and unless the
+     * validation stringency is SILENT, each is validated, which decodes the whole record.
+     */
+    @Override
+    CloseableIterator<SAMRecord> getIteratorReusingRecords() {
+        return getIterator(true);
+    }
+
+    private CloseableIterator<SAMRecord> getIterator(final boolean reuseRecords) {
         if (mStream == null) {
             throw new IllegalStateException("File reader is closed");
         }
@@ -309,8 +462,9 @@ class BAMFileReader extends SamReader.ReaderImplementation {
                 throw new RuntimeException(exc.getMessage(), exc);
             }
         }
-        mCurrentIterator = new BAMFileIterator();
-        return mCurrentIterator;
+        final CloseableIterator<SAMRecord> iterator = new BAMFileIterator(true, reuseRecords);
+        mCurrentIterator = iterator;
+        return iterator;
     }
 
     @Override
@@ -326,8 +480,47 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         }
 
         // Create an iterator over the given chunk boundaries.
-        mCurrentIterator = new BAMFileIndexIterator(((BAMFileSpan)chunks).toCoordinateArray());
-        return mCurrentIterator;
+        final CloseableIterator<SAMRecord> iterator = new BAMFileIndexIterator(((BAMFileSpan)chunks).toCoordinateArray());
+        mCurrentIterator = iterator;
+        return iterator;
+    }
+
+    /**
+     * Prepare to iterate through the records in file order as BAMRawRecords, without decoding them.  Records are
+     * neither validated nor given a file source.  As with getIterator(), only one iterator may be open at a time,
+     * and if the file is not seekable, iteration begins where the last iterator left off.
+     */
+    @Override
+    CloseableIterator<BAMRawRecord> getRawIterator() {
+        if (mStream == null) {
+            throw new IllegalStateException("File reader is closed");
+        }
+        if (mCurrentIterator != null) {
+            throw new IllegalStateException("Iteration in progress");
+        }
+        if (mIsSeekable) {
+            try {
+                mCompressedInputStream.seek(mFirstRecordPointer);
+            } catch (final IOException exc) {
+                throw new RuntimeException(exc.getMessage(), exc);
+            }
+        }
+        final BAMRawRecordIterator iterator = new BAMRawRecordIterator(null, null);
+        mCurrentIterator = iterator;
+        return iterator;
+    }
+
+    /**
+     * Like query(), but returns the matching records as BAMRawRecords, as getRawIterator() does.
+     */
+    @Override
+    CloseableIterator<BAMRawRecord> queryRaw(final QueryInterval[] intervals, final boolean contained) {
+        assertQueryable();
+        final long[] filePointers = getFilePointersOverlapping(intervals);
+        final BAMRawRecordIterator iterator = new BAMRawRecordIterator(filePointers == null ? new long[0] : filePointers,
+                new BAMQueryMultipleIntervalsIteratorFilter(intervals, contained));
+        mCurrentIterator = iterator;
+        return iterator;
     }
 
     /**
@@ -362,23 +555,17 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * @return Iterator for the matching SAMRecords
      */
     CloseableIterator<SAMRecord> query(final String sequence, final int start, final int end, final boolean contained) {
-        if (mStream == null) {
-            throw new IllegalStateException("File reader is closed");
-        }
-        if (mCurrentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
-        }
-        if (!mIsSeekable) {
-            throw new UnsupportedOperationException("Cannot query stream-based BAM file");
-        }
+        assertQueryable();
         final int referenceIndex = mFileHeader.getSequenceIndex(sequence);
+        final CloseableIterator<SAMRecord> iterator;
         if (referenceIndex == -1) {
-            mCurrentIterator = new EmptyBamIterator();
+            iterator = new EmptyBamIterator();
         } else {
             final QueryInterval[] queryIntervals = {new QueryInterval(referenceIndex, start, end)};
-            mCurrentIterator = createIndexIterator(queryIntervals, contained);
+            iterator = createIndexIterator(queryIntervals, contained);
         }
-        return mCurrentIterator;
+        mCurrentIterator = iterator;
+        return iterator;
     }
 
     /**
@@ -400,17 +587,10 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * @see QueryInterval#optimizeIntervals(QueryInterval[])
      */
     public CloseableIterator<SAMRecord> query(final QueryInterval[] intervals, final boolean contained) {
-        if (mStream == null) {
-            throw new IllegalStateException("File reader is closed");
-        }
-        if (mCurrentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
-        }
-        if (!mIsSeekable) {
-            throw new UnsupportedOperationException("Cannot query stream-based BAM file");
-        }
-        mCurrentIterator = createIndexIterator(intervals, contained);
-        return mCurrentIterator;
+        assertQueryable();
+        final CloseableIterator<SAMRecord> iterator = createIndexIterator(intervals, contained);
+        mCurrentIterator = iterator;
+        return iterator;
     }
 
     /**
@@ -430,22 +610,16 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * @return Iterator for the matching SAMRecords.
      */
     public CloseableIterator<SAMRecord> queryAlignmentStart(final String sequence, final int start) {
-        if (mStream == null) {
-            throw new IllegalStateException("File reader is closed");
-        }
-        if (mCurrentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
-        }
-        if (!mIsSeekable) {
-            throw new UnsupportedOperationException("Cannot query stream-based BAM file");
-        }
+        assertQueryable();
         final int referenceIndex = mFileHeader.getSequenceIndex(sequence);
+        final CloseableIterator<SAMRecord> iterator;
         if (referenceIndex == -1) {
-            mCurrentIterator = new EmptyBamIterator();
+            iterator = new EmptyBamIterator();
         } else {
-            mCurrentIterator = createStartingAtIndexIterator(referenceIndex, start);
+            iterator = createStartingAtIndexIterator(referenceIndex, start);
         }
-        return mCurrentIterator;
+        mCurrentIterator = iterator;
+        return iterator;
     }
 
     /**
@@ -456,15 +630,7 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * @return Iterator for the matching SAMRecords.
      */
     public CloseableIterator<SAMRecord> queryUnmapped() {
-        if (mStream == null) {
-            throw new IllegalStateException("File reader is closed");
-        }
-        if (mCurrentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
-        }
-        if (!mIsSeekable) {
-            throw new UnsupportedOperationException("Cannot query stream-based BAM file");
-        }
+        assertQueryable();
         try {
             final long startOfLastLinearBin = getIndex().getStartOfLastLinearBin();
             if (startOfLastLinearBin != -1) {
@@ -473,8 +639,9 @@ class BAMFileReader extends SamReader.ReaderImplementation {
                 // No mapped reads in file, just start at the first read in file.
                 mCompressedInputStream.seek(mFirstRecordPointer);
             }
-            mCurrentIterator = new BAMFileIndexUnmappedIterator();
-            return mCurrentIterator;
+            final CloseableIterator<SAMRecord> iterator = new BAMFileIndexUnmappedIterator();
+            mCurrentIterator = iterator;
+            return iterator;
         } catch (final IOException e) {
             throw new RuntimeException("IOException seeking to unmapped reads", e);
         }
@@ -553,7 +720,7 @@ class BAMFileReader extends SamReader.ReaderImplementation {
     /**
      * Encapsulates the restriction that only one iterator may be open at a time.
      */
-    private abstract class AbstractBamIterator implements CloseableIterator<SAMRecord> {
+    private abstract class AbstractBamIterator<T> implements CloseableIterator<T> {
 
         private boolean isClosed = false;
 
@@ -577,7 +744,7 @@ class BAMFileReader extends SamReader.ReaderImplementation {
 
     }
 
-    private class EmptyBamIterator extends AbstractBamIterator {
+    private class EmptyBamIterator extends AbstractBamIterator<SAMRecord> {
         @Override
         public boolean hasNext() {
             return false;
@@ -595,10 +762,29 @@ class BAMFileReader extends SamReader.ReaderImplementation {
      * Iterator for non-indexed sequential iteration through all SAMRecords in file.
      * Starting point of iteration is wherever current file position is when the iterator is constructed.
      */
-    private class BAMFileIterator extends AbstractBamIterator {
+    private class BAMFileIterator extends AbstractBamIterator<SAMRecord> {
         private SAMRecord mNextRecord = null;
         private final BAMRecordCodec bamRecordCodec;
         private long samRecordIndex = 0; // Records at what position (counted in records) we are at in the file
+        // Records that don't satisfy this, if it is non-null, are skipped without being decoded.
+        private final SamRecordPredicate mPredicate = mRecordPredicate;
+
+        // State for decoding in the background.  Raw records are read on the iterating thread, in batches which
+        // are decoded on the decoder pool and consumed in order.
+        private final int decoderThreads;
+        private final Deque<Future<DecodedRecordBatch>> mPendingBatches = new ArrayDeque<Future<DecodedRecordBatch>>();
+        private DecodedRecordBatch mCurrentBatch = null;
+        private int mCurrentBatchIndex = 0;
+        private boolean mRawEof = false;
+
+        // If sharing record buffers, the records read since the oldest one that has not yet been released.
+        private final Deque<SAMRecord> mSharedRecordWindow;
+
+        // If reusing records, the records that are decoded into in turn.  There are three because, while the next
+        // record is being read ahead, the one being returned and the one before it (which AssertingIterator compares
+        // it to) must be left alone.
+        private final BAMRecord[] mReusableRecords;
+        private int mReusableRecordIndex = 0;
 
         BAMFileIterator() {
             this(true);
@@ -608,9 +794,25 @@ class BAMFileReader extends SamReader.ReaderImplementation {
          * @param advance Trick to enable subclass to do more setup before advancing
          */
         BAMFileIterator(final boolean advance) {
+            this(advance, false);
+        }
+
+        /**
+         * @param advance Trick to enable subclass to do more setup before advancing
+         * @param reuseRecords If true, decode into the same few records over and over rather than creating new ones.
+         */
+        BAMFileIterator(final boolean advance, final boolean reuseRecords) {
+            this.decoderThreads = reuseRecords ? 0 : mDecoderThreads;
+            this.mReusableRecords = reuseRecords ? new BAMRecord[3] : null;
             this.bamRecordCodec = new BAMRecordCodec(getFileHeader(), samRecordFactory);
             this.bamRecordCodec.setInputStream(BAMFileReader.this.mStream.getInputStream(),
                     BAMFileReader.this.mStream.getInputFileName());
+            if (mShareRecordBuffers && decoderThreads == 0 && !reuseRecords) {
+                this.bamRecordCodec.setShareRecordBuffers(true);
+                this.mSharedRecordWindow = new ArrayDeque<SAMRecord>();
+            } else {
+                this.mSharedRecordWindow = null;
+            }
 
             if (advance) {
                 advance();
@@ -630,6 +832,16 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         }
 
         void advance() {
+            if (mSharedRecordWindow != null && mNextRecord != null) {
+                mSharedRecordWindow.add(mNextRecord);
+                if (mSharedRecordWindow.size() > SHARED_RECORD_WINDOW) {
+                    bamRecordCodec.releaseRecord(mSharedRecordWindow.poll());
+                }
+            }
+            if (decoderThreads > 0) {
+                advanceDecoded();
+                return;
+            }
             try {
                 mNextRecord = getNextRecord();
 
@@ -652,15 +864,162 @@ class BAMFileReader extends SamReader.ReaderImplementation {
             }
         }
 
+        /**
+         * Takes the next record from the decoded batches.  The record has already been validated and eagerly decoded
+         * as necessary, but validation errors are only reported now, so that they are reported in order.  Errors
+         * that occurred while reading or decoding are only thrown once the records preceding them have been returned.
+         */
+        private void advanceDecoded() {
+            while (mCurrentBatch == null || mCurrentBatchIndex == mCurrentBatch.count) {
+                if (mCurrentBatch != null && mCurrentBatch.error != null) {
+                    final RuntimeException error = mCurrentBatch.error;
+                    mCurrentBatch.error = null;
+                    throw error;
+                }
+                fillDecodingQueue();
+                final Future<DecodedRecordBatch> pending = mPendingBatches.poll();
+                if (pending == null) {
+                    mCurrentBatch = null;
+                    mNextRecord = null;
+                    return;
+                }
+                try {
+                    mCurrentBatch = pending.get();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException("Interrupted waiting for records to be decoded", e);
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+                mCurrentBatchIndex = 0;
+                // Keep the pipeline full while the caller consumes this batch.
+                fillDecodingQueue();
+            }
+            final int i = mCurrentBatchIndex++;
+            mNextRecord = mCurrentBatch.records[i];
+            mCurrentBatch.records[i] = null;
+            ++this.samRecordIndex;
+            if (mCurrentBatch.validationErrors[i] != null) {
+                SAMUtils.processValidationErrors(mCurrentBatch.validationErrors[i],
+                        this.samRecordIndex, BAMFileReader.this.getValidationStringency());
+            }
+            if (mCurrentBatch.recordErrors[i] != null) {
+                throw mCurrentBatch.recordErrors[i];
+            }
+        }
+
+        /**
+         * Reads batches of raw records and submits them for decoding until either decoderThreads batches are
+         * pending or there are no more records.
+         */
+        private void fillDecodingQueue() {
+            while (mPendingBatches.size() < decoderThreads && !mRawEof) {
+                final RawRecordBatch batch = new RawRecordBatch();
+                try {
+                    while (batch.size < DECODE_BATCH_BYTES) {
+                        if (!positionForNextRecord()) {
+                            mRawEof = true;
+                            break;
+                        }
+                        final long startCoordinate = mCompressedInputStream.getFilePointer();
+                        final int recordLength;
+                        try {
+                            recordLength = mStream.readInt();
+                        } catch (final RuntimeEOFException e) {
+                            mRawEof = true;
+                            break;
+                        }
+                        if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
+                            throw new SAMFormatException("Invalid record length: " + recordLength);
+                        }
+                        batch.add(recordLength, mStream, startCoordinate);
+                        if (mPredicate != null && !mPredicate.matches(batch.getLastRecord())) {
+                            batch.removeLast();
+                            continue;
+                        }
+                        batch.stopPointers[batch.count - 1] = mCompressedInputStream.getFilePointer();
+                    }
+                } catch (final IOException e) {
+                    batch.error = new RuntimeException(e.getMessage(), e);
+                    mRawEof = true;
+                } catch (final RuntimeException e) {
+                    batch.error = e;
+                    mRawEof = true;
+                }
+                if (batch.count == 0 && batch.error == null) {
+                    return;
+                }
+                mPendingBatches.add(getDecoderService(decoderThreads).submit(new DecodeRecordBatchTask(batch, getFileHeader(),
+                        samRecordFactory, mStream.getInputFileName(), mReader, mValidationStringency, eagerDecode)));
+            }
+        }
+
+        @Override
+        public void close() {
+            while (!mPendingBatches.isEmpty()) {
+                mPendingBatches.poll().cancel(false);
+            }
+            mCurrentBatch = null;
+            if (mSharedRecordWindow != null) {
+                while (!mSharedRecordWindow.isEmpty()) {
+                    bamRecordCodec.releaseRecord(mSharedRecordWindow.poll());
+                }
+                if (mNextRecord != null) {
+                    bamRecordCodec.releaseRecord(mNextRecord);
+                }
+                bamRecordCodec.setShareRecordBuffers(false);
+            }
+            super.close();
+        }
+
+        /**
+         * Positions the input stream at the next record to be read, if necessary.
+         * @return false if there are no more records to be read.
+         */
+        boolean positionForNextRecord() throws IOException {
+            return true;
+        }
+
         /**
          * Read the next record from the input stream.
          */
         SAMRecord getNextRecord() throws IOException {
-            final long startCoordinate = mCompressedInputStream.getFilePointer();
-            final SAMRecord next = bamRecordCodec.decode();
+            if (!positionForNextRecord()) {
+                return null;
+            }
+            long startCoordinate = mCompressedInputStream.getFilePointer();
+            if (mPredicate != null) {
+                while (true) {
+                    final BAMRawRecord raw = bamRecordCodec.readRawRecord();
+                    if (raw == null) {
+                        return null;
+                    }
+                    if (mPredicate.matches(raw)) {
+                        break;
+                    }
+                    bamRecordCodec.skipRawRecord();
+                    if (!positionForNextRecord()) {
+                        return null;
+                    }
+                    startCoordinate = mCompressedInputStream.getFilePointer();
+                }
+            }
+            final SAMRecord next;
+            if (mReusableRecords != null) {
+                mReusableRecordIndex = (mReusableRecordIndex + 1) % mReusableRecords.length;
+                next = bamRecordCodec.decode(mReusableRecords[mReusableRecordIndex]);
+                if (next != null) {
+                    mReusableRecords[mReusableRecordIndex] = (BAMRecord) next;
+                }
+            } else {
+                next = bamRecordCodec.decode();
+            }
             final long stopCoordinate = mCompressedInputStream.getFilePointer();
 
-            if(mReader != null && next != null)
+            // Reused records are not given a file source, which would have to be allocated for each record
+            if(mReader != null && next != null && mReusableRecords == null)
                 next.setFileSource(new SAMFileSource(mReader,new BAMFileSpan(new Chunk(startCoordinate,stopCoordinate))));
 
             return next;
@@ -719,29 +1078,105 @@ class BAMFileReader extends SamReader.ReaderImplementation {
     private CloseableIterator<SAMRecord> createIndexIterator(final QueryInterval[] intervals,
                                                              final boolean contained) {
 
-        assertIntervalsOptimized(intervals);
+        // Create an iterator over the chunk boundaries of the required data.
+        final BAMFileIndexIterator iterator = new BAMFileIndexIterator(getFilePointersOverlapping(intervals));
 
-        // Hit the index to determine the chunk boundaries for the required data.
+        // Add some preprocessing filters for edge-case reads that don't fit into this
+        // query type.
+        return new BAMQueryFilteringIterator(iterator, new BAMQueryMultipleIntervalsIteratorFilter(intervals, contained));
+    }
+
+    /**
+     * Hits the index to determine the chunk boundaries of the data overlapping the intervals.
+     * @return the chunk boundaries, or null if there are no intervals.
+     */
+    private long[] getFilePointersOverlapping(final QueryInterval[] intervals) {
+        assertIntervalsOptimized(intervals);
+        if (intervals.length == 0) {
+            return null;
+        }
         final BAMFileSpan[] inputSpans = new BAMFileSpan[intervals.length];
         final BAMIndex fileIndex = getIndex();
         for (int i = 0; i < intervals.length; ++i) {
             final QueryInterval interval = intervals[i];
-            final BAMFileSpan span = fileIndex.getSpanOverlapping(interval.referenceIndex, interval.start, interval.end);
-            inputSpans[i] = span;
-        }
-        final long[] filePointers;
-        if (inputSpans.length > 0) {
-            filePointers = BAMFileSpan.merge(inputSpans).toCoordinateArray();
-        } else {
-            filePointers = null;
+            inputSpans[i] = fileIndex.getSpanOverlapping(interval.referenceIndex, interval.start, interval.end);
         }
+        return BAMFileSpan.merge(inputSpans).toCoordinateArray();
+    }
 
-        // Create an iterator over the above chunk boundaries.
-        final BAMFileIndexIterator iterator = new BAMFileIndexIterator(filePointers);
+    /**
+     * @throws IllegalStateException if the reader is closed or an iterator is open
+     * @throws UnsupportedOperationException if the file cannot be queried because it is not seekable
+     */
+    private void assertQueryable() {
+        if (mStream == null) {
+            throw new IllegalStateException("File reader is closed");
+        }
+        if (mCurrentIterator != null) {
+            throw new IllegalStateException("Iteration in progress");
+        }
+        if (!mIsSeekable) {
+            throw new UnsupportedOperationException("Cannot query stream-based BAM file");
+        }
+    }
 
-        // Add some preprocessing filters for edge-case reads that don't fit into this
-        // query type.
-        return new BAMQueryFilteringIterator(iterator, new BAMQueryMultipleIntervalsIteratorFilter(intervals, contained));
+    /**
+     * Counts the records that an overlapping query of the intervals would return, looking at each record in the
+     * index chunks as a BAMRawRecord rather than decoding SAMRecords.
+     * @see BAMRegionStatistics#countRecordsOverlapping(SamReader, QueryInterval[])
+     */
+    long countRecordsOverlapping(final QueryInterval[] intervals) {
+        assertQueryable();
+        final long[] filePointers = getFilePointersOverlapping(intervals);
+        if (filePointers == null) {
+            return 0;
+        }
+        final BAMQueryMultipleIntervalsIteratorFilter filter = new BAMQueryMultipleIntervalsIteratorFilter(intervals, false);
+        final BAMRawRecord record = new BAMRawRecord();
+        byte[] buffer = new byte[1024];
+        long count = 0;
+        try {
+            for (int i = 0; i < filePointers.length; i += 2) {
+                mCompressedInputStream.seek(filePointers[i]);
+                while (BlockCompressedFilePointerUtil.compare(mCompressedInputStream.getFilePointer(), filePointers[i + 1]) < 0) {
+                    final int recordLength;
+                    try {
+                        recordLength = mStream.readInt();
+                    } catch (final RuntimeEOFException e) {
+                        return count;
+                    }
+                    if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
+                        throw new SAMFormatException("Invalid record length: " + recordLength);
+                    }
+                    if (4 + recordLength > buffer.length) {
+                        buffer = new byte[Math.max(4 + recordLength, 2 * buffer.length)];
+                    }
+                    buffer[0] = (byte) recordLength;
+                    buffer[1] = (byte) (recordLength >> 8);
+                    buffer[2] = (byte) (recordLength >> 16);
+                    buffer[3] = (byte) (recordLength >> 24);
+                    mStream.readBytes(buffer, 4, recordLength);
+                    record.reset(buffer, 0, 4 + recordLength);
+                    if (mRecordPredicate != null && !mRecordPredicate.matches(record)) {
+                        continue;
+                    }
+                    switch (filter.compareToFilter(record)) {
+                        case MATCHES_FILTER:
+                            ++count;
+                            break;
+                        case STOP_ITERATION:
+                            return count;
+                        case CONTINUE_ITERATION:
+                            break;
+                        default:
+                            throw new SAMException("Unexpected return from compareToFilter");
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("IOException seeking to count records", e);
+        }
+        return count;
     }
 
     /**
@@ -760,31 +1195,163 @@ class BAMFileReader extends SamReader.ReaderImplementation {
         BAMFileIndexIterator(final long[] filePointers) {
             super(false);  // delay advance() until after construction
             mFilePointers = filePointers;
+            if (mQueryPrefetchBytes > 0 && filePointers != null) {
+                mCompressedInputStream.prefetch(filePointers, mQueryPrefetchBytes);
+            }
             advance();
         }
 
-        SAMRecord getNextRecord()
+        @Override
+        public void close() {
+            mCompressedInputStream.stopPrefetching();
+            super.close();
+        }
+
+        @Override
+        boolean positionForNextRecord()
             throws IOException {
             // Advance to next file block if necessary
             while (mCompressedInputStream.getFilePointer() >= mFilePointerLimit) {
                 if (mFilePointers == null ||
                         mFilePointerIndex >= mFilePointers.length) {
-                    return null;
+                    return false;
+                }
+                final long startOffset = mFilePointers[mFilePointerIndex++];
+                final long endOffset = mFilePointers[mFilePointerIndex++];
+                mCompressedInputStream.seek(startOffset);
+                mFilePointerLimit = endOffset;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Iterates over records as BAMRawRecords, either sequentially from the current position of the stream or through
+     * the given chunks, keeping only those that match the filter, if there is one.  Records are read into buffers
+     * that each hold many of them.  A full buffer is replaced rather than reused, because the records in it may
+     * still be in use, but the space of records that the filter rejects is reused.
+     */
+    private class BAMRawRecordIterator extends AbstractBamIterator<BAMRawRecord> {
+        private final long[] mFilePointers;
+        private int mFilePointerIndex = 0;
+        private long mFilePointerLimit = -1;
+        private final BAMQueryMultipleIntervalsIteratorFilter mFilter;
+        private byte[] mBuffer = new byte[RAW_RECORD_BUFFER_BYTES];
+        private int mBufferUsed = 0;
+        private BAMRawRecord mNextRecord;
+        private final BAMRawRecord mRecordView = new BAMRawRecord();
+        private final SamRecordPredicate mPredicate = mRecordPredicate;
+
+        /**
+         * @param filePointers chunk boundaries to read records from, or null to read sequentially.
+         * @param filter       filter that records must match, or null to return all of them.
+         */
+        BAMRawRecordIterator(final long[] filePointers, final BAMQueryMultipleIntervalsIteratorFilter filter) {
+            mFilePointers = filePointers;
+            mFilter = filter;
+            if (mQueryPrefetchBytes > 0 && filePointers != null && filePointers.length > 0) {
+                mCompressedInputStream.prefetch(filePointers, mQueryPrefetchBytes);
+            }
+            mNextRecord = readNextRecord();
+        }
+
+        @Override
+        public boolean hasNext() {
+            assertOpen();
+            return mNextRecord != null;
+        }
+
+        @Override
+        public BAMRawRecord next() {
+            assertOpen();
+            if (mNextRecord == null) {
+                throw new NoSuchElementException("BAMRawRecordIterator: no next element available");
+            }
+            final BAMRawRecord result = mNextRecord;
+            mNextRecord = readNextRecord();
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (mFilePointers != null) {
+                mCompressedInputStream.stopPrefetching();
+            }
+            super.close();
+        }
+
+        private BAMRawRecord readNextRecord() {
+            try {
+                while (true) {
+                    if (mFilePointers != null && !positionForNextRecord()) {
+                        return null;
+                    }
+                    final int recordLength;
+                    try {
+                        recordLength = mStream.readInt();
+                    } catch (final RuntimeEOFException e) {
+                        return null;
+                    }
+                    if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
+                        throw new SAMFormatException("Invalid record length: " + recordLength);
+                    }
+                    if (mBufferUsed + 4 + recordLength > mBuffer.length) {
+                        mBuffer = new byte[Math.max(RAW_RECORD_BUFFER_BYTES, 4 + recordLength)];
+                        mBufferUsed = 0;
+                    }
+                    mBuffer[mBufferUsed] = (byte) recordLength;
+                    mBuffer[mBufferUsed + 1] = (byte) (recordLength >> 8);
+                    mBuffer[mBufferUsed + 2] = (byte) (recordLength >> 16);
+                    mBuffer[mBufferUsed + 3] = (byte) (recordLength >> 24);
+                    mStream.readBytes(mBuffer, mBufferUsed + 4, recordLength);
+                    if (mPredicate != null) {
+                        // Leaves the record's space to be reused if it is rejected
+                        mRecordView.reset(mBuffer, mBufferUsed, 4 + recordLength);
+                        if (!mPredicate.matches(mRecordView)) {
+                            continue;
+                        }
+                    }
+                    final BAMRawRecord record = new BAMRawRecord(mBuffer, mBufferUsed, 4 + recordLength);
+                    if (mFilter == null) {
+                        mBufferUsed += 4 + recordLength;
+                        return record;
+                    }
+                    switch (mFilter.compareToFilter(record)) {
+                        case MATCHES_FILTER:
+                            mBufferUsed += 4 + recordLength;
+                            return record;
+                        case STOP_ITERATION:
+                            return null;
+                        case CONTINUE_ITERATION:
+                            break;
+                        default:
+                            throw new SAMException("Unexpected return from compareToFilter");
+                    }
+                }
+            } catch (final IOException exc) {
+                throw new RuntimeException(exc.getMessage(), exc);
+            }
+        }
+
+        /** As BAMFileIndexIterator.positionForNextRecord(). */
+        private boolean positionForNextRecord() throws IOException {
+            while (mCompressedInputStream.getFilePointer() >= mFilePointerLimit) {
+                if (mFilePointerIndex >= mFilePointers.length) {
+                    return false;
                 }
                 final long startOffset = mFilePointers[mFilePointerIndex++];
                 final long endOffset = mFilePointers[mFilePointerIndex++];
                 mCompressedInputStream.seek(startOffset);
                 mFilePointerLimit = endOffset;
             }
-            // Pull next record from stream
-            return super.getNextRecord();
+            return true;
         }
     }
 
     /**
      * Pull SAMRecords from a coordinate-sorted iterator, and filter out any that do not match the filter.
      */
-    public class BAMQueryFilteringIterator extends AbstractBamIterator {
+    public class BAMQueryFilteringIterator extends AbstractBamIterator<SAMRecord> {
         /**
          * The wrapped iterator.
          */
@@ -889,6 +1456,147 @@ class BAMFileReader extends SamReader.ReaderImplementation {
 
     }
 
+    /**
+     * Records read by the iterating thread but not yet decoded.  The records are stored with their length prefixes,
+     * exactly as they appear in the file, along with the virtual file pointers of their starts and ends.
+     */
+    private static class RawRecordBatch {
+        byte[] data = new byte[DECODE_BATCH_BYTES + BAMFileConstants.FIXED_BLOCK_SIZE];
+        int size = 0;
+        long[] startPointers = new long[1024];
+        long[] stopPointers = new long[1024];
+        int count = 0;
+        // If set, thrown once the records in this batch have been returned.
+        RuntimeException error = null;
+        private int lastRecordStart = 0;
+        private final BAMRawRecord lastRecord = new BAMRawRecord();
+
+        void add(final int recordLength, final BinaryCodec stream, final long startPointer) {
+            if (size + 4 + recordLength > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + 4 + recordLength));
+            }
+            if (count == startPointers.length) {
+                startPointers = Arrays.copyOf(startPointers, count * 2);
+                stopPointers = Arrays.copyOf(stopPointers, count * 2);
+            }
+            data[size] = (byte) recordLength;
+            data[size + 1] = (byte) (recordLength >> 8);
+            data[size + 2] = (byte) (recordLength >> 16);
+            data[size + 3] = (byte) (recordLength >> 24);
+            stream.readBytes(data, size + 4, recordLength);
+            size += 4 + recordLength;
+            startPointers[count++] = startPointer;
+            lastRecordStart = size - 4 - recordLength;
+        }
+
+        /** @return a view of the record last added, which is only valid until the next is added. */
+        BAMRawRecord getLastRecord() {
+            lastRecord.reset(data, lastRecordStart, size - lastRecordStart);
+            return lastRecord;
+        }
+
+        /** Removes the record last added. */
+        void removeLast() {
+            size = lastRecordStart;
+            --count;
+        }
+    }
+
+    /**
+     * Records decoded from a RawRecordBatch, the validation errors found in each if validation is enabled, and any
+     * exception thrown while validating or eagerly decoding each.
+     */
+    private static class DecodedRecordBatch {
+        final SAMRecord[] records;
+        final List<SAMValidationError>[] validationErrors;
+        final RuntimeException[] recordErrors;
+        int count = 0;
+        RuntimeException error;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        DecodedRecordBatch(final int capacity, final RuntimeException error) {
+            this.records = new SAMRecord[capacity];
+            this.validationErrors = new List[capacity];
+            this.recordErrors = new RuntimeException[capacity];
+            this.error = error;
+        }
+    }
+
+    /** Does the work done by BAMFileIterator.advance() for each record in a batch, on a decoder pool thread. */
+    private static class DecodeRecordBatchTask implements Callable<DecodedRecordBatch> {
+        private final RawRecordBatch batch;
+        private final SAMFileHeader header;
+        private final SAMRecordFactory factory;
+        private final String inputFileName;
+        private final SamReader reader;
+        private final ValidationStringency validationStringency;
+        private final boolean eagerDecode;
+
+        DecodeRecordBatchTask(final RawRecordBatch batch, final SAMFileHeader header, final SAMRecordFactory factory,
+                              final String inputFileName, final SamReader reader,
+                              final ValidationStringency validationStringency, final boolean eagerDecode) {
+            this.batch = batch;
+            this.header = header;
+            this.factory = factory;
+            this.inputFileName = inputFileName;
+            this.reader = reader;
+            this.validationStringency = validationStringency;
+            this.eagerDecode = eagerDecode;
+        }
+
+        @Override
+        public DecodedRecordBatch call() {
+            final DecodedRecordBatch decoded = new DecodedRecordBatch(batch.count, batch.error);
+            final BAMRecordCodec codec = new BAMRecordCodec(header, factory);
+            codec.setInputStream(new ByteArrayInputStream(batch.data, 0, batch.size), inputFileName);
+            try {
+                for (int i = 0; i < batch.count; ++i) {
+                    final SAMRecord record = codec.decode();
+                    if (reader != null) {
+                        record.setFileSource(new SAMFileSource(reader,
+                                new BAMFileSpan(new Chunk(batch.startPointers[i], batch.stopPointers[i]))));
+                    }
+                    // Because some decoding is done lazily, the record needs to remember the validation stringency.
+                    record.setValidationStringency(validationStringency);
+                    try {
+                        if (validationStringency != ValidationStringency.SILENT) {
+                            decoded.validationErrors[i] = record.isValid(validationStringency == ValidationStringency.STRICT);
+                        }
+                        if (eagerDecode) {
+                            record.eagerDecode();
+                        }
+                    } catch (final RuntimeException e) {
+                        // As on the iterating thread, the record is still returned before this is thrown.
+                        decoded.recordErrors[i] = e;
+                    }
+                    decoded.records[i] = record;
+                    decoded.count = i + 1;
+                }
+            } catch (final RuntimeException e) {
+                // The rest of the batch can't be decoded, so report this after the records that were decoded
+                // successfully, in place of any read error.
+                decoded.error = e;
+            }
+            return decoded;
+        }
+    }
+
+    private static ExecutorService decoderService = null;
+
+    /**
+     * The pool is shared by all readers, and has as many threads as the largest number of decoder threads that any
+     * iterator has been given, so that many readers decoding at once do not each add their own threads.  Each
+     * iterator bounds the number of its batches waiting to be decoded by its number of decoder threads.
+     */
+    private static synchronized ExecutorService getDecoderService(final int threads) {
+        if (decoderService == null) {
+            decoderService = DaemonThreadFactory.newFixedDaemonThreadPool("BAMFileReader decoder ", threads);
+        } else {
+            DaemonThreadFactory.ensurePoolSize(decoderService, threads);
+        }
+        return decoderService;
+    }
+
     private class BAMFileIndexUnmappedIterator extends BAMFileIterator  {
         private BAMFileIndexUnmappedIterator() {
             while (this.hasNext() && peek().getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
@@ -914,8 +1622,31 @@ class BAMFileReader extends SamReader.ReaderImplementation {
 
         @Override
         public FilteringIteratorState compareToFilter(final SAMRecord record) {
+            final int alignmentEnd;
+            if (record.getReadUnmappedFlag() && record.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START) {
+                // Unmapped read with coordinate of mate.
+                alignmentEnd = record.getAlignmentStart();
+            } else {
+                alignmentEnd = record.getAlignmentEnd();
+            }
+            return compareToFilter(record.getReferenceIndex(), record.getAlignmentStart(), alignmentEnd);
+        }
+
+        /** As compareToFilter(SAMRecord), for a record with the given position. */
+        FilteringIteratorState compareToFilter(final BAMRawRecord record) {
+            final int alignmentEnd;
+            if (record.getReadUnmappedFlag() && record.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START) {
+                alignmentEnd = record.getAlignmentStart();
+            } else {
+                alignmentEnd = record.getAlignmentEnd();
+            }
+            return compareToFilter(record.getReferenceIndex(), record.getAlignmentStart(), alignmentEnd);
+        }
+
+        private FilteringIteratorState compareToFilter(final int referenceIndex, final int alignmentStart, final int alignmentEnd) {
             while (intervalIndex < intervals.length) {
-                final IntervalComparison comparison = compareIntervalToRecord(intervals[intervalIndex], record);
+                final IntervalComparison comparison =
+                        compareIntervalToRecord(intervals[intervalIndex], referenceIndex, alignmentStart, alignmentEnd);
                 switch (comparison) {
                     // Interval is before SAMRecord.  Try next interval;
                     case BEFORE: ++intervalIndex; break;
@@ -932,22 +1663,16 @@ class BAMFileReader extends SamReader.ReaderImplementation {
             return FilteringIteratorState.STOP_ITERATION;
         }
 
-        private IntervalComparison compareIntervalToRecord(final QueryInterval interval, final SAMRecord record) {
+        private IntervalComparison compareIntervalToRecord(final QueryInterval interval, final int referenceIndex,
+                                                           final int alignmentStart, final int alignmentEnd) {
             // interval.end <= 0 implies the end of the reference sequence.
             final int intervalEnd = (interval.end <= 0? Integer.MAX_VALUE: interval.end);
-            final int alignmentEnd;
-            if (record.getReadUnmappedFlag() && record.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START) {
-                // Unmapped read with coordinate of mate.
-                alignmentEnd = record.getAlignmentStart();
-            } else {
-                alignmentEnd = record.getAlignmentEnd();
-            }
 
-            if (interval.referenceIndex < record.getReferenceIndex()) return IntervalComparison.BEFORE;
-            else if (interval.referenceIndex > record.getReferenceIndex()) return IntervalComparison.AFTER;
-            else if (intervalEnd < record.getAlignmentStart()) return IntervalComparison.BEFORE;
+            if (interval.referenceIndex < referenceIndex) return IntervalComparison.BEFORE;
+            else if (interval.referenceIndex > referenceIndex) return IntervalComparison.AFTER;
+            else if (intervalEnd < alignmentStart) return IntervalComparison.BEFORE;
             else if (alignmentEnd < interval.start) return IntervalComparison.AFTER;
-            else if (CoordMath.encloses(interval.start, intervalEnd, record.getAlignmentStart(), alignmentEnd)) {
+            else if (CoordMath.encloses(interval.start, intervalEnd, alignmentStart, alignmentEnd)) {
                 return IntervalComparison.CONTAINED;
             } else return IntervalComparison.OVERLAPPING;
         }
@@ -25,14 +25,23 @@ package htsjdk.samtools;
 
 import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.DaemonThreadFactory;
 import htsjdk.samtools.util.RuntimeIOException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Concrete implementation of SAMFileWriter for writing gzipped BAM files.
@@ -43,6 +52,18 @@ class BAMFileWriter extends SAMFileWriterImpl {
     private BAMRecordCodec bamRecordCodec = null;
     private final BlockCompressedOutputStream blockCompressedOutputStream;
     private BAMIndexer bamIndexer = null;
+    private ReadNameIndexer readNameIndexer = null;
+    // When blocks are compressed in the background, records are held here until the virtual file offsets
+    // of their start and end are known, and are then passed to the indexers in the order they were written.
+    private final Deque<PendingIndexRecord> pendingIndexRecords = new ArrayDeque<PendingIndexRecord>();
+
+    // Number of records in each batch encoded in the background.
+    private static final int ENCODE_BATCH_SIZE = 1024;
+    private int encoderThreads = Defaults.ENCODER_THREADS;
+    // Records waiting to fill a batch, and batches submitted for encoding, which are written in this order.
+    private SAMRecord[] unencodedRecords = null;
+    private int numUnencodedRecords = 0;
+    private final Deque<Future<EncodedRecordBatch>> pendingBatches = new ArrayDeque<Future<EncodedRecordBatch>>();
 
     protected BAMFileWriter(final File path) {
         blockCompressedOutputStream = new BlockCompressedOutputStream(path);
@@ -75,6 +96,29 @@ class BAMFileWriter extends SAMFileWriterImpl {
         }
     }
 
+    /**
+     * Sets the number of batches of records that may be encoded in the background.  If zero, each record is encoded
+     * and written on the calling thread as it is added.  Otherwise copies of the records are held until a batch of
+     * them has been encoded.  Records are still written in the order they were added, and BAM and read name indexes
+     * are built as usual.
+     * @param threads number of batches to encode concurrently on the shared encoder pool; 0 disables it.
+     */
+    void setEncoderThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid number of encoder threads: " + threads);
+        }
+        writeEncodedBatches(0);
+        this.encoderThreads = threads;
+    }
+
+    /**
+     * Sets the number of BGZF blocks that may be compressed in the background.
+     * @see BlockCompressedOutputStream#setDeflaterThreads(int)
+     */
+    void setDeflaterThreads(final int threads) {
+        blockCompressedOutputStream.setDeflaterThreads(threads);
+    }
+
     /** @return absolute path, or null if arg is null.  */
     private String getPathString(final File path){
         return (path != null) ? path.getAbsolutePath() : null;
@@ -92,6 +136,19 @@ class BAMFileWriter extends SAMFileWriterImpl {
         bamIndexer = createBamIndex(getFilename());
     }
 
+    // Allow enabling the read name index construction
+    // only enabled by factory method before anything is written.  Unlike the BAM index, any sort order is allowed.
+    void enableReadNameIndexConstruction(final File tmpDir) {
+        if (getFilename() == null) {
+            throw new SAMException("Not creating read name index since we don't have an output file name");
+        }
+        final File indexFile = ReadNameIndex.getDefaultIndexFile(new File(getFilename()));
+        if (indexFile.exists() && !indexFile.canWrite()) {
+            throw new SAMException("Not creating read name index since unable to write index file " + indexFile);
+        }
+        readNameIndexer = new ReadNameIndexer(indexFile, ReadNameIndexer.DEFAULT_MAX_RECORDS_IN_RAM, tmpDir);
+    }
+
     private BAMIndexer createBamIndex(final String path) {
         try {
             final String indexFileBase = path.endsWith(BamFileIoUtils.BAM_FILE_EXTENSION) ?
@@ -110,37 +167,231 @@ class BAMFileWriter extends SAMFileWriterImpl {
 
     protected void writeAlignment(final SAMRecord alignment) {
         prepareToWriteAlignments();
+        if (encoderThreads > 0) {
+            addToEncodingBatch(alignment);
+        } else {
+            writeEncodedAlignment(alignment, null, 0, 0);
+        }
+    }
 
+    @Override
+    protected boolean canWriteRawAlignments() {
+        return true;
+    }
+
+    /**
+     * Appends the record's bytes as they are, noting its file offsets for the indexers as writeAlignment() does.
+     * Records still waiting to be encoded in the background are written first.
+     */
+    @Override
+    protected void writeRawAlignment(final BAMRawRecord alignment) {
+        if (alignment.getReferenceIndex() >= getFileHeader().getSequenceDictionary().size() ||
+                alignment.getMateReferenceIndex() >= getFileHeader().getSequenceDictionary().size()) {
+            throw new IllegalArgumentException("Reference index of " + alignment +
+                    " is not in the sequence dictionary of " + getFilename());
+        }
+        submitEncodingBatch();
+        writeEncodedBatches(0);
+        final boolean indexing = bamIndexer != null || readNameIndexer != null;
+        if (indexing && blockCompressedOutputStream.getDeflaterThreads() > 0) {
+            final long startOffset = blockCompressedOutputStream.getUnresolvedFilePointer();
+            outputBinaryCodec.writeBytes(alignment.getData(), alignment.getOffset(), alignment.getLength());
+            final long stopOffset = blockCompressedOutputStream.getUnresolvedFilePointer();
+            pendingIndexRecords.add(new PendingIndexRecord(alignment, readNameIndexer != null, startOffset, stopOffset));
+            indexResolvedAlignments();
+        } else if (indexing) {
+            final long startOffset = blockCompressedOutputStream.getFilePointer();
+            outputBinaryCodec.writeBytes(alignment.getData(), alignment.getOffset(), alignment.getLength());
+            final long stopOffset = blockCompressedOutputStream.getFilePointer();
+            indexRawAlignment(alignment, startOffset, stopOffset);
+        } else {
+            outputBinaryCodec.writeBytes(alignment.getData(), alignment.getOffset(), alignment.getLength());
+        }
+    }
+
+    /**
+     * Writes a record, noting its file offsets for the indexers.
+     * @param encoded the record already encoded by an EncodeRecordBatchTask, or null to encode it here
+     */
+    private void writeEncodedAlignment(final SAMRecord alignment, final byte[] encoded, final int offset, final int length) {
+        final boolean indexing = bamIndexer != null || readNameIndexer != null;
+        if (indexing && blockCompressedOutputStream.getDeflaterThreads() > 0) {
+            // Don't wait for blocks being compressed in the background to learn the file offsets.
+            final long startOffset = blockCompressedOutputStream.getUnresolvedFilePointer();
+            encode(alignment, encoded, offset, length);
+            final long stopOffset = blockCompressedOutputStream.getUnresolvedFilePointer();
+            pendingIndexRecords.add(new PendingIndexRecord(alignment, readNameIndexer != null, startOffset, stopOffset));
+            indexResolvedAlignments();
+        } else if (indexing) {
+            final long startOffset = blockCompressedOutputStream.getFilePointer();
+            encode(alignment, encoded, offset, length);
+            final long stopOffset = blockCompressedOutputStream.getFilePointer();
+            indexAlignment(alignment, startOffset, stopOffset);
+        } else {
+            encode(alignment, encoded, offset, length);
+        }
+    }
+
+    private void encode(final SAMRecord alignment, final byte[] encoded, final int offset, final int length) {
+        if (encoded == null) {
+            bamRecordCodec.encode(alignment);
+        } else {
+            outputBinaryCodec.writeBytes(encoded, offset, length);
+        }
+    }
+
+    /**
+     * Adds a record to the current batch, submitting the batch for encoding once it is full.
+     */
+    private void addToEncodingBatch(final SAMRecord alignment) {
+        if (unencodedRecords == null) {
+            unencodedRecords = new SAMRecord[ENCODE_BATCH_SIZE];
+        }
+        // The caller may reuse or modify the record once it has been added, and the reader that created it may
+        // recycle its data, before it is encoded.  Cloning a BAMRecord also detaches it from shared buffers.
+        try {
+            unencodedRecords[numUnencodedRecords++] = (SAMRecord) alignment.clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new SAMException("Cannot copy record to encode it in the background: " + alignment, e);
+        }
+        if (numUnencodedRecords == unencodedRecords.length) {
+            submitEncodingBatch();
+        }
+    }
+
+    /**
+     * Submits the current batch for encoding, first writing the oldest pending batches if encoderThreads of them
+     * are already pending.
+     */
+    private void submitEncodingBatch() {
+        if (numUnencodedRecords == 0) {
+            return;
+        }
+        writeEncodedBatches(encoderThreads - 1);
+        pendingBatches.add(getEncoderService(encoderThreads).submit(new EncodeRecordBatchTask(unencodedRecords,
+                numUnencodedRecords, getFileHeader(), getFilename())));
+        unencodedRecords = null;
+        numUnencodedRecords = 0;
+    }
+
+    /**
+     * Waits for and writes the oldest pending batches until no more than maxPending remain.
+     */
+    private void writeEncodedBatches(final int maxPending) {
+        while (pendingBatches.size() > Math.max(maxPending, 0)) {
+            final EncodedRecordBatch batch;
+            try {
+                batch = pendingBatches.poll().get();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException("Interrupted waiting for records to be encoded", e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+            int start = 0;
+            for (int i = 0; i < batch.records.length; ++i) {
+                writeEncodedAlignment(batch.records[i], batch.data, start, batch.ends[i] - start);
+                start = batch.ends[i];
+            }
+        }
+    }
+
+    protected void writeHeader(final String textHeader) {
+        writeHeader(outputBinaryCodec, getFileHeader(), textHeader);
+    }
+
+    /**
+     * Passes a written record, with its virtual file offsets, to whichever indexers are enabled.
+     */
+    private void indexAlignment(final SAMRecord alignment, final long startOffset, final long stopOffset) {
         if (bamIndexer != null) {
             try {
-                final long startOffset = blockCompressedOutputStream.getFilePointer();
-                bamRecordCodec.encode(alignment);
-                final long stopOffset = blockCompressedOutputStream.getFilePointer();
                 // set the alignment's SourceInfo and then prepare its index information
                 alignment.setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(startOffset, stopOffset))));
                 bamIndexer.processAlignment(alignment);
             } catch (Exception e) {
                 bamIndexer = null;
+                pendingIndexRecords.clear();
                 throw new SAMException("Exception when processing alignment for BAM index " + alignment, e);
             }
-        } else {
-            bamRecordCodec.encode(alignment);
+        }
+        if (readNameIndexer != null) {
+            readNameIndexer.addRecord(alignment.getReadName(), startOffset);
         }
     }
 
-    protected void writeHeader(final String textHeader) {
-        writeHeader(outputBinaryCodec, getFileHeader(), textHeader);
+    /**
+     * As indexAlignment(), for a record written by writeRawAlignment().
+     */
+    private void indexRawAlignment(final BAMRawRecord alignment, final long startOffset, final long stopOffset) {
+        if (bamIndexer != null) {
+            try {
+                bamIndexer.processAlignment(alignment, new Chunk(startOffset, stopOffset));
+            } catch (Exception e) {
+                bamIndexer = null;
+                pendingIndexRecords.clear();
+                throw new SAMException("Exception when processing alignment for BAM index " + alignment, e);
+            }
+        }
+        if (readNameIndexer != null) {
+            readNameIndexer.addRecord(alignment.getReadName(), startOffset);
+        }
+    }
+
+    /**
+     * Passes to the indexers all pending records whose virtual file offsets can now be resolved.
+     */
+    private void indexResolvedAlignments() {
+        while ((bamIndexer != null || readNameIndexer != null) && !pendingIndexRecords.isEmpty()) {
+            final PendingIndexRecord pending = pendingIndexRecords.peek();
+            final long startOffset = blockCompressedOutputStream.resolveFilePointer(pending.unresolvedStartOffset);
+            final long stopOffset = blockCompressedOutputStream.resolveFilePointer(pending.unresolvedStopOffset);
+            if (startOffset == -1 || stopOffset == -1) {
+                return;
+            }
+            pendingIndexRecords.poll();
+            indexPendingAlignment(pending, startOffset, stopOffset);
+        }
+    }
+
+    /**
+     * As indexAlignment(), for a record whose index fields were copied when it was written.
+     */
+    private void indexPendingAlignment(final PendingIndexRecord alignment, final long startOffset, final long stopOffset) {
+        if (bamIndexer != null) {
+            try {
+                bamIndexer.processAlignment(alignment.referenceIndex, alignment.alignmentStart, alignment.alignmentEnd,
+                        alignment.indexingBin, alignment.unmapped, new Chunk(startOffset, stopOffset), alignment);
+            } catch (Exception e) {
+                bamIndexer = null;
+                pendingIndexRecords.clear();
+                throw new SAMException("Exception when processing alignment for BAM index " + alignment, e);
+            }
+        }
+        if (readNameIndexer != null) {
+            readNameIndexer.addRecord(alignment.readName, startOffset);
+        }
     }
 
     protected void finish() {
+        // Write the records still waiting to be encoded
+        submitEncodingBatch();
+        writeEncodedBatches(0);
         outputBinaryCodec.close();
             try {
+                // All blocks have been written, so every pending record can now be indexed.
+                indexResolvedAlignments();
                 if (bamIndexer != null) {
                     bamIndexer.finish();
                 }
             } catch (Exception e) {
                 throw new SAMException("Exception writing BAM index file", e);
             }
+            if (readNameIndexer != null) {
+                readNameIndexer.finish();
+            }
     }
 
     /** @return absolute path, or null if this writer does not correspond to a file.  */
@@ -190,4 +441,114 @@ class BAMFileWriter extends SAMFileWriterImpl {
             throw new RuntimeIOException(ioe);
         }
     }
+
+    /**
+     * Records and their encoded form, in which record i ends at ends[i] and starts where the previous one ends.
+     */
+    private static class EncodedRecordBatch {
+        final SAMRecord[] records;
+        final byte[] data;
+        final int[] ends;
+
+        EncodedRecordBatch(final SAMRecord[] records, final byte[] data, final int[] ends) {
+            this.records = records;
+            this.data = data;
+            this.ends = ends;
+        }
+    }
+
+    /** Does the work of bamRecordCodec.encode() for each record in a batch, on an encoder pool thread. */
+    private static class EncodeRecordBatchTask implements Callable<EncodedRecordBatch> {
+        private final SAMRecord[] records;
+        private final SAMFileHeader header;
+        private final String filename;
+
+        EncodeRecordBatchTask(final SAMRecord[] records, final int count, final SAMFileHeader header, final String filename) {
+            this.records = (count == records.length) ? records : Arrays.copyOf(records, count);
+            this.header = header;
+            this.filename = filename;
+        }
+
+        @Override
+        public EncodedRecordBatch call() {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream(records.length * 512);
+            final BAMRecordCodec codec = new BAMRecordCodec(header);
+            codec.setOutputStream(stream, filename);
+            final int[] ends = new int[records.length];
+            for (int i = 0; i < records.length; ++i) {
+                codec.encode(records[i]);
+                ends[i] = stream.size();
+            }
+            return new EncodedRecordBatch(records, stream.toByteArray(), ends);
+        }
+    }
+
+    private static ExecutorService encoderService = null;
+
+    /**
+     * The pool is shared by all writers, and has as many threads as the largest number of encoder threads that any
+     * writer has been given, so that many writers encoding at once do not each add their own threads.  Each writer
+     * bounds the number of its batches waiting to be encoded by its number of encoder threads.
+     */
+    private static synchronized ExecutorService getEncoderService(final int threads) {
+        if (encoderService == null) {
+            encoderService = DaemonThreadFactory.newFixedDaemonThreadPool("BAMFileWriter encoder ", threads);
+        } else {
+            DaemonThreadFactory.ensurePoolSize(encoderService, threads);
+        }
+        return encoderService;
+    }
+
+    /**
+     * The fields that the indexers need of a record that has been written but not yet indexed, with file offsets from
+     * BlockCompressedOutputStream.getUnresolvedFilePointer().  They are copied when the record is written, because
+     * the caller may reuse or modify the record once it has been added.
+     */
+    private static class PendingIndexRecord {
+        final int referenceIndex;
+        final int alignmentStart;
+        final int alignmentEnd;
+        final int indexingBin;
+        final boolean unmapped;
+        // Null unless a read name index is being written
+        final String readName;
+        final long unresolvedStartOffset;
+        final long unresolvedStopOffset;
+
+        PendingIndexRecord(final SAMRecord alignment, final boolean withReadName, final long unresolvedStartOffset,
+                           final long unresolvedStopOffset) {
+            this.referenceIndex = alignment.getReferenceIndex();
+            this.alignmentStart = alignment.getAlignmentStart();
+            this.unmapped = alignment.getReadUnmappedFlag();
+            this.readName = withReadName ? alignment.getReadName() : null;
+            if (alignmentStart == SAMRecord.NO_ALIGNMENT_START) {
+                // Not indexed, only counted
+                this.alignmentEnd = SAMRecord.NO_ALIGNMENT_START;
+                this.indexingBin = 0;
+            } else {
+                this.alignmentEnd = alignment.getAlignmentEnd();
+                final Integer bin = alignment.getIndexingBin();
+                this.indexingBin = bin == null ? alignment.computeIndexingBin() : bin;
+            }
+            this.unresolvedStartOffset = unresolvedStartOffset;
+            this.unresolvedStopOffset = unresolvedStopOffset;
+        }
+
+        PendingIndexRecord(final BAMRawRecord alignment, final boolean withReadName, final long unresolvedStartOffset,
+                           final long unresolvedStopOffset) {
+            this.referenceIndex = alignment.getReferenceIndex();
+            this.alignmentStart = alignment.getAlignmentStart();
+            this.alignmentEnd = alignment.getAlignmentEnd();
+            this.indexingBin = alignment.getIndexingBin();
+            this.unmapped = alignment.getReadUnmappedFlag();
+            this.readName = withReadName ? alignment.getReadName() : null;
+            this.unresolvedStartOffset = unresolvedStartOffset;
+            this.unresolvedStopOffset = unresolvedStopOffset;
+        }
+
+        @Override
+        public String toString() {
+            return readName != null ? readName : "record at " + referenceIndex + ":" + alignmentStart;
+        }
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory-bounded, least-recently-used cache of parsed BAM index content, one entry per reference sequence of each
+ * index file.  A single cache may be shared by any number of readers, on any number of threads, so that readers
+ * opened for a single query don't each re-parse the same references from the index file.
+ *
+ * Index files are identified by canonical path, modification time and length, so an index that is rewritten
+ * is parsed again rather than served from the cache.  The cached content is shared, and must never be modified.
+ *
+ * @see SamReaderFactory#indexCache(BAMIndexContentCache)
+ */
+public class BAMIndexContentCache {
+    /** Approximate per-entry overhead of the map, key and content objects, counted against the size limit. */
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+    /** Approximate size of a Bin and its chunk list, not counting the chunks. */
+    private static final int BIN_BYTES = 64;
+    private static final int CHUNK_BYTES = 40;
+
+    private static BAMIndexContentCache sharedCache = null;
+
+    /**
+     * @return The process-wide cache, of {@link Defaults#INDEX_CACHE_BYTES}, or null if that is 0.  This is the
+     * default for {@link SamReaderFactory#indexCache(BAMIndexContentCache)}.
+     */
+    public static synchronized BAMIndexContentCache getSharedCache() {
+        if (sharedCache == null && Defaults.INDEX_CACHE_BYTES > 0) {
+            sharedCache = new BAMIndexContentCache(Defaults.INDEX_CACHE_BYTES);
+        }
+        return sharedCache;
+    }
+
+    private final long maxBytes;
+    private long sizeInBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // Access-ordered, so that iteration starts with the least recently used reference
+    private final LinkedHashMap<Key, Entry> contents = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes the approximate maximum total size of the index content held by the cache.
+     */
+    public BAMIndexContentCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the identity of the given index file, as used by get() and put().
+     */
+    static IndexFileId getIndexFileId(final File indexFile) {
+        String path;
+        try {
+            path = indexFile.getCanonicalPath();
+        } catch (final IOException e) {
+            path = indexFile.getAbsolutePath();
+        }
+        return new IndexFileId(path, indexFile.lastModified(), indexFile.length());
+    }
+
+    /**
+     * @return the cached content for the given reference of the given index file, or null if it is not cached.
+     */
+    synchronized BAMIndexContent get(final IndexFileId indexFile, final int referenceIndex) {
+        final Entry entry = contents.get(new Key(indexFile, referenceIndex));
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.content;
+    }
+
+    /**
+     * Adds the content of one reference to the cache, evicting the least recently used content if necessary.
+     * The caller must not modify the content afterwards.
+     */
+    synchronized void put(final IndexFileId indexFile, final int referenceIndex, final BAMIndexContent content) {
+        final long entrySize = entrySize(content);
+        if (entrySize > maxBytes) {
+            return;
+        }
+        final Entry previous = contents.put(new Key(indexFile, referenceIndex), new Entry(content, entrySize));
+        if (previous != null) {
+            sizeInBytes -= previous.sizeInBytes;
+        }
+        sizeInBytes += entrySize;
+        final Iterator<Entry> it = contents.values().iterator();
+        while (sizeInBytes > maxBytes) {
+            sizeInBytes -= it.next().sizeInBytes;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    private static long entrySize(final BAMIndexContent content) {
+        final BinningIndexContent.BinList bins = content.getBins();
+        long size = ENTRY_OVERHEAD_BYTES + 4L * (bins.maxBinNumber + 1);
+        for (final Bin bin : bins) {
+            size += BIN_BYTES;
+            if (bin.getChunkList() != null) {
+                size += CHUNK_BYTES * bin.getChunkList().size();
+            }
+        }
+        if (content.getLinearIndex() != null) {
+            size += 8L * content.getLinearIndex().size();
+        }
+        return size;
+    }
+
+    /** Removes all content from the cache.  Statistics are not reset. */
+    public synchronized void clear() {
+        contents.clear();
+        sizeInBytes = 0;
+    }
+
+    public long getMaxBytes() { return maxBytes; }
+
+    public synchronized long getSizeInBytes() { return sizeInBytes; }
+
+    /** @return number of references, across all index files, whose content is cached. */
+    public synchronized int getNumEntries() { return contents.size(); }
+
+    /** @return number of lookups that found the reference's content. */
+    public synchronized long getHits() { return hits; }
+
+    /** @return number of lookups that did not find the reference's content, which was then parsed from the file. */
+    public synchronized long getMisses() { return misses; }
+
+    /** @return number of references' content removed to stay within the size limit. */
+    public synchronized long getEvictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BAMIndexContentCache: %d references, %d of %d bytes, %d hits, %d misses, %d evictions",
+                contents.size(), sizeInBytes, maxBytes, hits, misses, evictions);
+    }
+
+    /** Identifies one version of an index file. */
+    static class IndexFileId {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+
+        IndexFileId(final String path, final long lastModified, final long length) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof IndexFileId)) return false;
+            final IndexFileId that = (IndexFileId) o;
+            return lastModified == that.lastModified && length == that.length && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            return result;
+        }
+    }
+
+    private static class Key {
+        private final IndexFileId indexFile;
+        private final int referenceIndex;
+
+        Key(final IndexFileId indexFile, final int referenceIndex) {
+            this.indexFile = indexFile;
+            this.referenceIndex = referenceIndex;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return referenceIndex == that.referenceIndex && indexFile.equals(that.indexFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * indexFile.hashCode() + referenceIndex;
+        }
+    }
+
+    private static class Entry {
+        private final BAMIndexContent content;
+        private final long sizeInBytes;
+
+        Entry(final BAMIndexContent content, final long sizeInBytes) {
+            this.content = content;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+}
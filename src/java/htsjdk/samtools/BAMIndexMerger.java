@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the indexes of coordinate sorted BAM files into an index for the file made by concatenating their BGZF
+ * blocks, as BamFileIoUtils.gatherWithBlockCopying() does, without decoding any records.  The virtual file pointers
+ * in each input index are translated to the concatenated file with an OffsetMap describing where the input's blocks
+ * were copied to.  Bins and linear index entries are combined in the same way that BAMIndexer would combine them
+ * when indexing the concatenated file, so the merged index is normally the same as one made by BAMIndexer.  Where the
+ * inputs' indexes cannot tell the two apart, a linear index entry may be smaller than BAMIndexer would make it, which
+ * only means that a query may start reading a little earlier than it needs to.
+ *
+ * Inputs must be added in the order in which they were concatenated.
+ */
+class BAMIndexMerger {
+    private int numReferences = -1;
+    private ReferenceContent[] references;
+    private long noCoordinateRecords = 0;
+
+    /**
+     * Where the blocks of one BAM file were copied to in a concatenated file.  All blocks are copied verbatim,
+     * except that the rest of the block at the start of the copied data, after the header, may have been written
+     * out as a new block of its own.
+     */
+    static class OffsetMap {
+        private final File input;
+        private final long firstBlockAddress;
+        private final int firstBlockOffset;
+        private final long firstBlockOutputLength;
+        private final long copiedBlocksAddress;
+        private final long outputStart;
+        private final long outputEnd;
+        private long endOfData = -1;
+
+        /**
+         * @param input                  The BAM file that was copied.
+         * @param firstBlockAddress      Address in the input of the block whose remainder, from firstBlockOffset on,
+         *                               was rewritten as a new block; or -1 if the input was copied verbatim.
+         * @param firstBlockOffset       Offset in that block of the first byte that was rewritten.
+         * @param firstBlockOutputLength Length of the rewritten block in the output.
+         * @param copiedBlocksAddress    Address in the input of the first block copied verbatim.
+         * @param outputStart            Address in the output at which the copied data starts.
+         * @param outputEnd              Address in the output just past the copied data.
+         */
+        OffsetMap(final File input, final long firstBlockAddress, final int firstBlockOffset, final long firstBlockOutputLength,
+                  final long copiedBlocksAddress, final long outputStart, final long outputEnd) {
+            this.input = input;
+            this.firstBlockAddress = firstBlockAddress;
+            this.firstBlockOffset = firstBlockOffset;
+            this.firstBlockOutputLength = firstBlockOutputLength;
+            this.copiedBlocksAddress = copiedBlocksAddress;
+            this.outputStart = outputStart;
+            this.outputEnd = outputEnd;
+        }
+
+        /** @return the address in the output just past the copied data, where the next input is copied to. */
+        long getOutputEnd() {
+            return outputEnd;
+        }
+
+        /**
+         * Notes the virtual file pointer in the input at the end of its last block of records, if the given pointer
+         * is that one.  A BAMFileWriter leaves the end of the last record pointing at the end of its block, whereas
+         * a reader, and so BAMIndexer, points it at the start of the next block, which in the output is the start
+         * of the next input.
+         */
+        void checkEndOfData(final long virtualFilePointer) {
+            final int blockOffset = BlockCompressedFilePointerUtil.getBlockOffset(virtualFilePointer);
+            if (blockOffset == 0) {
+                return;
+            }
+            final BlockCompressedInputStream in;
+            try {
+                in = new BlockCompressedInputStream(input);
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+            try {
+                in.seek(BlockCompressedFilePointerUtil.makeFilePointer(BlockCompressedFilePointerUtil.getBlockAddress(virtualFilePointer), 0));
+                if (in.available() == blockOffset && in.skip(blockOffset) == blockOffset && in.read() == -1) {
+                    endOfData = virtualFilePointer;
+                }
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            } finally {
+                CloserUtil.close(in);
+            }
+        }
+
+        /** @return the virtual file pointer in the output of the given virtual file pointer in the input. */
+        long translate(final long virtualFilePointer) {
+            if (virtualFilePointer == endOfData) {
+                return BlockCompressedFilePointerUtil.makeFilePointer(outputEnd, 0);
+            }
+            final long blockAddress = BlockCompressedFilePointerUtil.getBlockAddress(virtualFilePointer);
+            final int blockOffset = BlockCompressedFilePointerUtil.getBlockOffset(virtualFilePointer);
+            if (blockAddress == firstBlockAddress && blockOffset >= firstBlockOffset) {
+                return BlockCompressedFilePointerUtil.makeFilePointer(outputStart, blockOffset - firstBlockOffset);
+            }
+            if (blockAddress >= copiedBlocksAddress) {
+                return BlockCompressedFilePointerUtil.makeFilePointer(
+                        blockAddress - copiedBlocksAddress + outputStart + firstBlockOutputLength, blockOffset);
+            }
+            throw new SAMException("Virtual file pointer " + BlockCompressedFilePointerUtil.asString(virtualFilePointer) +
+                    " is not in the copied part of the BAM file");
+        }
+    }
+
+    /** Merged content of one reference. */
+    private static class ReferenceContent {
+        private final List<Bin> bins = new ArrayList<Bin>();
+        private Bin[] binArray = new Bin[0];
+        private long[] linearIndex = new long[0];
+        private long firstOffset = -1;
+        private long lastOffset = 0;
+        private int alignedRecords = 0;
+        private int unalignedRecords = 0;
+    }
+
+    /**
+     * Adds the index of the next BAM file in the concatenated file.
+     *
+     * @param indexFile The index of the BAM file.
+     * @param offsets   Where the blocks of the BAM file were copied to.
+     */
+    void addIndex(final File indexFile, final OffsetMap offsets) {
+        final CachingBAMFileIndex index = new CachingBAMFileIndex(indexFile, null);
+        try {
+            if (references == null) {
+                numReferences = index.getNumberOfReferences();
+                references = new ReferenceContent[numReferences];
+            } else if (index.getNumberOfReferences() != numReferences) {
+                throw new SAMException("Index " + indexFile + " has " + index.getNumberOfReferences() +
+                        " references rather than " + numReferences);
+            }
+            final BAMIndexContent[] contents = new BAMIndexContent[numReferences];
+            long lastChunkEnd = 0;
+            for (int i = 0; i < numReferences; ++i) {
+                contents[i] = index.getQueryResults(i);
+                if (contents[i] != null) {
+                    for (final Chunk chunk : contents[i].getAllChunks()) {
+                        lastChunkEnd = Math.max(lastChunkEnd, chunk.getChunkEnd());
+                    }
+                }
+            }
+            offsets.checkEndOfData(lastChunkEnd);
+            for (int i = 0; i < numReferences; ++i) {
+                if (contents[i] != null) {
+                    addContent(i, contents[i], offsets);
+                }
+            }
+            final Long noCoordinateCount = index.getNoCoordinateCount();
+            if (noCoordinateCount != null) {
+                noCoordinateRecords += noCoordinateCount;
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private void addContent(final int referenceIndex, final BAMIndexContent content, final OffsetMap offsets) {
+        ReferenceContent reference = references[referenceIndex];
+        if (reference == null) {
+            reference = new ReferenceContent();
+            references[referenceIndex] = reference;
+        }
+
+        for (final Bin bin : content.getBins()) {
+            final int binNumber = bin.getBinNumber();
+            if (binNumber >= reference.binArray.length) {
+                reference.binArray = Arrays.copyOf(reference.binArray, Math.max(binNumber + 1, content.getBins().maxBinNumber + 1));
+            }
+            Bin mergedBin = reference.binArray[binNumber];
+            for (final Chunk chunk : bin.getChunkList()) {
+                final Chunk newChunk = new Chunk(offsets.translate(chunk.getChunkStart()), offsets.translate(chunk.getChunkEnd()));
+                if (mergedBin == null) {
+                    mergedBin = new Bin(referenceIndex, binNumber);
+                    reference.binArray[binNumber] = mergedBin;
+                    reference.bins.add(mergedBin);
+                    mergedBin.addInitialChunk(newChunk);
+                } else {
+                    // Coalesce chunks in the same or adjacent blocks, as BinningIndexBuilder does
+                    final Chunk lastChunk = mergedBin.getLastChunk();
+                    if (BlockCompressedFilePointerUtil.areInSameOrAdjacentBlocks(lastChunk.getChunkEnd(), newChunk.getChunkStart())) {
+                        lastChunk.setChunkEnd(newChunk.getChunkEnd());
+                    } else {
+                        mergedBin.getChunkList().add(newChunk);
+                        mergedBin.setLastChunk(newChunk);
+                    }
+                }
+            }
+        }
+
+        // Earlier inputs come first in the concatenated file, so the first non-zero entry for a window is the smallest.
+        // An entry that repeats the one before it may only have been filled in from the preceding window, in which
+        // case the merged preceding window, which may be an earlier input's, is used instead.  That is never greater
+        // than the entry, so is safe even if the entry was a real one.
+        final LinearIndex linearIndex = content.getLinearIndex();
+        if (linearIndex != null) {
+            final long[] entries = linearIndex.getIndexEntries();
+            final int indexStart = linearIndex.getIndexStart();
+            if (indexStart + entries.length > reference.linearIndex.length) {
+                reference.linearIndex = Arrays.copyOf(reference.linearIndex, indexStart + entries.length);
+            }
+            long previousMerged = 0;
+            for (int i = 0; i < indexStart; ++i) {
+                if (reference.linearIndex[i] != 0) {
+                    previousMerged = reference.linearIndex[i];
+                }
+            }
+            for (int i = 0; i < entries.length; ++i) {
+                if (entries[i] != 0 && reference.linearIndex[indexStart + i] == 0) {
+                    final long translated = offsets.translate(entries[i]);
+                    final boolean mayBeFilledIn = i > 0 && entries[i] == entries[i - 1];
+                    reference.linearIndex[indexStart + i] = (mayBeFilledIn && previousMerged != 0) ?
+                            Math.min(previousMerged, translated) : translated;
+                }
+                if (reference.linearIndex[indexStart + i] != 0) {
+                    previousMerged = reference.linearIndex[indexStart + i];
+                }
+            }
+        }
+
+        final BAMIndexMetaData metaData = content.getMetaData();
+        if (metaData != null && metaData.getFirstOffset() != -1) {
+            if (reference.firstOffset == -1) {
+                reference.firstOffset = offsets.translate(metaData.getFirstOffset());
+            }
+            reference.lastOffset = offsets.translate(metaData.getLastOffset());
+            reference.alignedRecords += metaData.getAlignedRecordCount();
+            reference.unalignedRecords += metaData.getUnalignedRecordCount();
+        }
+    }
+
+    /** Writes the merged index.  At least one index must have been added. */
+    void writeIndex(final File output) {
+        if (references == null) {
+            throw new IllegalStateException("No indexes have been added");
+        }
+        final BinaryBAMIndexWriter writer = new BinaryBAMIndexWriter(numReferences, output);
+        for (int i = 0; i < numReferences; ++i) {
+            writer.writeReference(getContent(i));
+        }
+        writer.writeNoCoordinateRecordCount(noCoordinateRecords);
+        writer.close();
+    }
+
+    private BAMIndexContent getContent(final int referenceIndex) {
+        final ReferenceContent reference = references[referenceIndex];
+        if (reference == null || reference.bins.isEmpty()) {
+            return null;
+        }
+        // Windows between inputs are filled in with the preceding entry, as BinningIndexBuilder does
+        long lastNonZeroOffset = 0;
+        for (int i = 0; i < reference.linearIndex.length; ++i) {
+            if (reference.linearIndex[i] == 0) {
+                reference.linearIndex[i] = lastNonZeroOffset;
+            } else {
+                lastNonZeroOffset = reference.linearIndex[i];
+            }
+        }
+        final List<Chunk> metaDataChunks = new ArrayList<Chunk>(2);
+        if (reference.firstOffset != -1) {
+            metaDataChunks.add(new Chunk(reference.firstOffset, reference.lastOffset));
+            metaDataChunks.add(new Chunk(reference.alignedRecords, reference.unalignedRecords));
+        }
+        return new BAMIndexContent(referenceIndex, reference.binArray, reference.bins.size(),
+                new BAMIndexMetaData(metaDataChunks), new LinearIndex(referenceIndex, 0, reference.linearIndex));
+    }
+}
@@ -129,11 +129,18 @@ public class BAMIndexMetaData {
         if (rec.getFileSource() == null) {
             throw new SAMException("BAM cannot be indexed without setting a fileSource for record " + rec);
         }
-        final Chunk newChunk = ((BAMFileSpan) rec.getFileSource().getFilePointer()).getSingleChunk();
+        recordMetaData(((BAMFileSpan) rec.getFileSource().getFilePointer()).getSingleChunk(), rec.getReadUnmappedFlag());
+    }
+
+    /**
+     * As recordMetaData(SAMRecord), for a record with an alignment start, given its file offsets and whether it is
+     * unmapped.
+     */
+    void recordMetaData(final Chunk newChunk, final boolean unmapped) {
         final long start = newChunk.getChunkStart();
         final long end = newChunk.getChunkEnd();
 
-        if (rec.getReadUnmappedFlag()) {
+        if (unmapped) {
             unAlignedRecords++;
         } else {
             alignedRecords++;
@@ -93,6 +93,35 @@ public class BAMIndexer {
         }
     }
 
+    /**
+     * As processAlignment(SAMRecord), for a record in its BAM form.
+     *
+     * @param rec   The BAM record
+     * @param chunk Virtual file offsets of the start and end of the record
+     */
+    void processAlignment(final BAMRawRecord rec, final Chunk chunk) {
+        processAlignment(rec.getReferenceIndex(), rec.getAlignmentStart(), rec.getAlignmentEnd(), rec.getIndexingBin(),
+                rec.getReadUnmappedFlag(), chunk, rec);
+    }
+
+    /**
+     * As processAlignment(SAMRecord), for a record given by the fields that the index needs.
+     *
+     * @param chunk Virtual file offsets of the start and end of the record
+     * @param rec   The record, for error messages
+     */
+    void processAlignment(final int reference, final int alignmentStart, final int alignmentEnd, final int indexingBin,
+                          final boolean unmapped, final Chunk chunk, final Object rec) {
+        try {
+            if (reference != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && reference != currentReference) {
+                advanceToReference(reference);
+            }
+            indexBuilder.processAlignment(reference, alignmentStart, alignmentEnd, indexingBin, unmapped, chunk, rec);
+        } catch (final Exception e) {
+            throw new SAMException("Exception creating BAM index for record " + rec, e);
+        }
+    }
+
     /**
      * After all the alignment records have been processed, finish is called.
      * Writes any final information and closes the output file.
@@ -185,14 +214,7 @@ public class BAMIndexer {
                 return; // do nothing for records without coordinates, but count them
             }
 
-            // various checks
-            final int reference = rec.getReferenceIndex();
-            if (reference != currentReference) {
-                throw new SAMException("Unexpected reference " + reference +
-                        " when constructing index for " + currentReference + " for record " + rec);
-            }
-
-            binningIndexBuilder.processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
+            processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
                 @Override
                 public int getStart() {
                     return rec.getAlignmentStart();
@@ -218,10 +240,54 @@ public class BAMIndexer {
                     }
                     return ((BAMFileSpan) source.getFilePointer()).getSingleChunk();
                 }
-            });
+            }, rec.getReferenceIndex(), rec);
 
         }
 
+        /**
+         * As processAlignment(SAMRecord), for a record given by its fields and file offsets.
+         *
+         * @param rec The record, for error messages.
+         */
+        void processAlignment(final int reference, final int alignmentStart, final int alignmentEnd, final int indexingBin,
+                              final boolean unmapped, final Chunk chunk, final Object rec) {
+            if (alignmentStart == SAMRecord.NO_ALIGNMENT_START) {
+                indexStats.incrementNoCoordinateRecordCount();
+                return;
+            }
+            indexStats.recordMetaData(chunk, unmapped);
+
+            processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
+                @Override
+                public int getStart() {
+                    return alignmentStart;
+                }
+
+                @Override
+                public int getEnd() {
+                    return alignmentEnd;
+                }
+
+                @Override
+                public Integer getIndexingBin() {
+                    return indexingBin;
+                }
+
+                @Override
+                public Chunk getChunk() {
+                    return chunk;
+                }
+            }, reference, rec);
+        }
+
+        private void processFeature(final BinningIndexBuilder.FeatureToBeIndexed feature, final int reference, final Object rec) {
+            if (reference != currentReference) {
+                throw new SAMException("Unexpected reference " + reference +
+                        " when constructing index for " + currentReference + " for record " + rec);
+            }
+            binningIndexBuilder.processFeature(feature);
+        }
+
         /**
          * Creates the BAMIndexContent for this reference.
          * Requires all alignments of the reference have already been processed.
@@ -283,12 +349,18 @@ public class BAMIndexer {
 
         int totalRecords = 0;
 
-        // create and write the content
-        for (SAMRecord rec : reader) {
-            if (++totalRecords % 1000000 == 0) {
-                if (null != log) log.info(totalRecords + " reads processed ...");
+        // create and write the content, indexing every record even if the reader was opened with a record predicate
+        final SAMRecordIterator iterator = SamReader.PrimitiveSamReaderToSamReaderAdapter.iterateAllRecords(reader);
+        try {
+            while (iterator.hasNext()) {
+                SAMRecord rec = iterator.next();
+                if (++totalRecords % 1000000 == 0) {
+                    if (null != log) log.info(totalRecords + " reads processed ...");
+                }
+                indexer.processAlignment(rec);
             }
-            indexer.processAlignment(rec);
+        } finally {
+            iterator.close();
         }
         indexer.finish();
     }
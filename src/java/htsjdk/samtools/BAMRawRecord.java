@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.StringUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A BAM record in its on-disk form, as a slice of a byte array, for tools that only select, reorder or copy records
+ * and so need not build SAMRecords.  The fixed-length fields are read straight from the bytes, and the read name,
+ * alignment end and single tags are found without decoding anything else.  Raw records can be written back to a BAM
+ * file as they are with SAMFileWriterImpl.addRawAlignment().
+ *
+ * The slice includes the record's length prefix, so is exactly what appears in the file.  Raw records read by
+ * BAMFileReader are slices of buffers shared with the records around them, which are never reused, so a record
+ * stays valid for as long as it is kept, but keeps the whole buffer in memory; copy() it to keep only the record.
+ *
+ * Reference indices refer to the sequence dictionary of the file the record came from.
+ *
+ * @see SamRecordAccess#rawIterator(SamReader)
+ */
+public class BAMRawRecord {
+    // Offsets of the fixed-length fields, counting the length prefix
+    private static final int REFERENCE_INDEX_OFFSET = 4;
+    private static final int ALIGNMENT_START_OFFSET = 8;
+    private static final int READ_NAME_LENGTH_OFFSET = 12;
+    private static final int MAPPING_QUALITY_OFFSET = 13;
+    private static final int INDEXING_BIN_OFFSET = 14;
+    private static final int CIGAR_LENGTH_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 18;
+    private static final int READ_LENGTH_OFFSET = 20;
+    private static final int MATE_REFERENCE_INDEX_OFFSET = 24;
+    private static final int MATE_ALIGNMENT_START_OFFSET = 28;
+    private static final int INSERT_SIZE_OFFSET = 32;
+    private static final int READ_NAME_OFFSET = 4 + BAMFileConstants.FIXED_BLOCK_SIZE;
+
+    // Flag bit of an unmapped read, as in SAMRecord
+    private static final int READ_UNMAPPED_FLAG = 0x4;
+
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    /**
+     * @param data   Array holding the record.
+     * @param offset Where in data the record's length prefix starts.
+     * @param length Length of the record, including its 4-byte length prefix.
+     */
+    public BAMRawRecord(final byte[] data, final int offset, final int length) {
+        reset(data, offset, length);
+    }
+
+    /** Creates a view to be pointed at records with reset(). */
+    BAMRawRecord() {
+    }
+
+    /**
+     * Points this record at another slice, so that a reader can look at records one by one without creating an
+     * object for each.
+     */
+    void reset(final byte[] data, final int offset, final int length) {
+        if (length < READ_NAME_OFFSET || offset < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid BAM record slice: offset " + offset + ", length " + length);
+        }
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        if (getInt(0) != length - 4) {
+            throw new SAMFormatException("BAM record length " + getInt(0) + " does not match its slice length " + length);
+        }
+    }
+
+    /** @return the array holding the record.  The record's bytes must not be modified. */
+    public byte[] getData() { return data; }
+
+    /** @return where in getData() the record starts. */
+    public int getOffset() { return offset; }
+
+    /** @return length of the record, including its 4-byte length prefix. */
+    public int getLength() { return length; }
+
+    public int getReferenceIndex() { return getInt(REFERENCE_INDEX_OFFSET); }
+
+    /** @return 1-based alignment start, or SAMRecord.NO_ALIGNMENT_START. */
+    public int getAlignmentStart() { return getInt(ALIGNMENT_START_OFFSET) + 1; }
+
+    /** @return length of the read name, not counting its null terminator. */
+    public int getReadNameLength() { return (data[offset + READ_NAME_LENGTH_OFFSET] & 0xff) - 1; }
+
+    public int getMappingQuality() { return data[offset + MAPPING_QUALITY_OFFSET] & 0xff; }
+
+    public int getIndexingBin() { return getUShort(INDEXING_BIN_OFFSET); }
+
+    /** @return number of CIGAR operations. */
+    public int getCigarLength() { return getUShort(CIGAR_LENGTH_OFFSET); }
+
+    public int getFlags() { return getUShort(FLAGS_OFFSET); }
+
+    public boolean getReadUnmappedFlag() { return (getFlags() & READ_UNMAPPED_FLAG) != 0; }
+
+    public int getReadLength() { return getInt(READ_LENGTH_OFFSET); }
+
+    public int getMateReferenceIndex() { return getInt(MATE_REFERENCE_INDEX_OFFSET); }
+
+    /** @return 1-based mate alignment start, or SAMRecord.NO_ALIGNMENT_START. */
+    public int getMateAlignmentStart() { return getInt(MATE_ALIGNMENT_START_OFFSET) + 1; }
+
+    public int getInferredInsertSize() { return getInt(INSERT_SIZE_OFFSET); }
+
+    public String getReadName() {
+        return StringUtil.bytesToString(data, offset + READ_NAME_OFFSET, getReadNameLength());
+    }
+
+    /**
+     * @return 1-based inclusive alignment end, worked out from the CIGAR as SAMRecord.getAlignmentEnd() does, or
+     * SAMRecord.NO_ALIGNMENT_START if the read is unmapped.
+     */
+    public int getAlignmentEnd() {
+        if (getReadUnmappedFlag()) {
+            return SAMRecord.NO_ALIGNMENT_START;
+        }
+        final int cigarOffset = READ_NAME_OFFSET + getReadNameLength() + 1;
+        final int numCigarOps = getCigarLength();
+        int referenceLength = 0;
+        for (int i = 0; i < numCigarOps; ++i) {
+            final int cigarOp = getInt(cigarOffset + 4 * i);
+            if (CigarOperator.binaryToEnum(cigarOp & 0xf).consumesReferenceBases()) {
+                referenceLength += cigarOp >>> 4;
+            }
+        }
+        return getAlignmentStart() + referenceLength - 1;
+    }
+
+    /**
+     * @param tag Two-character tag name.
+     * @return the value of the tag, as SAMRecord.getAttribute() would return it, or null if the record does not
+     * have it.  Only this tag is decoded.
+     */
+    public Object getAttribute(final String tag) {
+        final int tagsOffset = getTagsOffset();
+        return BinaryTagCodec.readTag(data, offset + tagsOffset, length - tagsOffset,
+                SAMTagUtil.getSingleton().makeBinaryTag(tag), ValidationStringency.DEFAULT_STRINGENCY);
+    }
+
+    /**
+     * @param tag   Two-character tag name.
+     * @param value Value to compare the tag's value to.
+     * @return true if the record has the tag with a String value equal to the given one.  The value is compared
+     * where it is, without decoding or creating anything.
+     */
+    public boolean attributeEquals(final String tag, final String value) {
+        final int tagsOffset = getTagsOffset();
+        final int typeOffset = BinaryTagCodec.findTag(data, offset + tagsOffset, length - tagsOffset,
+                SAMTagUtil.getSingleton().makeBinaryTag(tag));
+        if (typeOffset < 0 || data[typeOffset] != 'Z') {
+            return false;
+        }
+        final int valueOffset = typeOffset + 1;
+        final int valueLength = value.length();
+        if (valueOffset + valueLength >= offset + length || data[valueOffset + valueLength] != 0) {
+            return false;
+        }
+        for (int i = 0; i < valueLength; ++i) {
+            if (data[valueOffset + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return where the tags start, counting the length prefix. */
+    private int getTagsOffset() {
+        final int readLength = getReadLength();
+        return READ_NAME_OFFSET + getReadNameLength() + 1 + 4 * getCigarLength() + (readLength + 1) / 2 + readLength;
+    }
+
+    /** @return a raw record with its own copy of this record's bytes. */
+    public BAMRawRecord copy() {
+        return new BAMRawRecord(Arrays.copyOfRange(data, offset, offset + length), 0, length);
+    }
+
+    /**
+     * Decodes the record.
+     * @param header Header of the file the record came from, to which its reference indices refer.
+     */
+    public SAMRecord toSAMRecord(final SAMFileHeader header) {
+        final BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(new ByteArrayInputStream(data, offset, length));
+        return codec.decode();
+    }
+
+    @Override
+    public String toString() {
+        return getReadName() + " " + getReferenceIndex() + ":" + getAlignmentStart();
+    }
+
+    private int getInt(final int fieldOffset) {
+        final int i = offset + fieldOffset;
+        return (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+    }
+
+    private int getUShort(final int fieldOffset) {
+        final int i = offset + fieldOffset;
+        return (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8);
+    }
+
+    /**
+     * Encodes the records of a SAMRecord iterator as raw records, for readers that do not read BAM.  Each record is
+     * given an array of its own.
+     */
+    static class EncodingIterator implements CloseableIterator<BAMRawRecord> {
+        private final CloseableIterator<SAMRecord> iterator;
+        private final BAMRecordCodec codec;
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
+
+        EncodingIterator(final CloseableIterator<SAMRecord> iterator, final SAMFileHeader header) {
+            this.iterator = iterator;
+            this.codec = new BAMRecordCodec(header);
+            this.codec.setOutputStream(stream);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public BAMRawRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("EncodingIterator: no next element available");
+            }
+            stream.reset();
+            codec.encode(iterator.next());
+            final byte[] bytes = stream.toByteArray();
+            return new BAMRawRecord(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported: remove");
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+}
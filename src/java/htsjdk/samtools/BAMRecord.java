@@ -23,15 +23,25 @@
  */
 package htsjdk.samtools;
 
+import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.StringUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 
 /**
  * Wrapper class for binary BAM records.
  * Delays unpacking all data binary until requested.
+ *
+ * The variable-length binary data may be a view of a slice of a SharedRecordBuffer rather than an array of its own.
+ * Such a record copies its slice when it is modified, when detachBinaryData() is called, or when the buffer is about
+ * to be refilled while the record is still reachable (see SamReaderFactory.Option.SHARE_RECORD_BUFFERS).
+ *
+ * A record may also be reused, i.e. overwritten with the contents of the next record read by a record-reusing
+ * iterator (see SamRecordAccess.iteratorReusingRecords()), in which case it keeps its variable-length data
+ * array and Cigar for the next record.  clone() gives a copy that is unaffected by reuse.
  */
 public class BAMRecord extends SAMRecord {
     /**
@@ -40,18 +50,34 @@ public class BAMRecord extends SAMRecord {
     private static final int READ_NAME_OFFSET = 0;
 
     /**
-     * Variable-length part of BAMRecord.  Lazily decoded.
+     * Variable-length part of BAMRecord.  Lazily decoded.  This is the slice of length mRestOfBinaryDataLength
+     * starting at mRestOfBinaryDataOffset, which is only non-zero if the array belongs to mSharedBuffer or was
+     * supplied with setBinaryData().
      */
     private byte[] mRestOfBinaryData = null;
+    private int mRestOfBinaryDataOffset = 0;
+    private int mRestOfBinaryDataLength = 0;
+
+    // If non-null, mRestOfBinaryData belongs to this buffer.  mHoldsSharedBuffer is true until this record's
+    // reference to the buffer has been released.
+    private SharedRecordBuffer mSharedBuffer = null;
+    private boolean mHoldsSharedBuffer = false;
+
+    // True if mRestOfBinaryData was allocated by reserveBinaryData(), and will be overwritten when this record is
+    // reused, in which case it may be longer than mRestOfBinaryDataLength.
+    private boolean mOwnsReusableData = false;
+
+    // If this record is reused, the Cigar that the CIGAR of each record is decoded into.
+    private Cigar mReusableCigar = null;
 
     // Various lengths are stored, because they are in the fixed-length part of the BAMRecord, and it is
     // more efficient to remember them than decode the element they store the length of.
     // The length becomes invalid if the element is changed with a set() method.
     private int mReadLength = 0;
     private boolean mReadLengthValid = true;
-    private final short mReadNameLength;
+    private short mReadNameLength;
     private boolean mReadNameLengthValid = true;
-    private final int mCigarLength;
+    private int mCigarLength;
     private boolean mCigarLengthValid = true;
 
     // Whether or not the getter needs to decode the corresponding element.
@@ -79,6 +105,77 @@ public class BAMRecord extends SAMRecord {
                         final int insertSize,
                         final byte[] restOfData) {
         super(header);
+        mRestOfBinaryData = restOfData;
+        mRestOfBinaryDataLength = restOfData == null ? 0 : restOfData.length;
+        initializeFixedFields(referenceID, coordinate, readNameLength, mappingQuality, indexingBin, cigarLen, flags,
+                readLen, mateReferenceID, mateCoordinate, insertSize);
+    }
+
+    /**
+     * Overwrites this record with the fixed-length fields of another record, discarding all of its other state, so
+     * that it can be reused rather than creating a new record.  The variable-length data must then be read into the
+     * array returned by reserveBinaryData() (or supplied with setSharedBinaryData()).
+     */
+    void reinitialize(final int referenceID,
+                      final int coordinate,
+                      final short readNameLength,
+                      final short mappingQuality,
+                      final int indexingBin,
+                      final int cigarLen,
+                      final int flags,
+                      final int readLen,
+                      final int mateReferenceID,
+                      final int mateCoordinate,
+                      final int insertSize) {
+        releaseSharedBuffer();
+        mSharedBuffer = null;
+        if (!mOwnsReusableData) {
+            mRestOfBinaryData = null;
+        }
+        mRestOfBinaryDataOffset = 0;
+        mRestOfBinaryDataLength = 0;
+        if (mReusableCigar == null) {
+            mReusableCigar = new Cigar();
+        }
+        setAttributes(null);
+        setFileSource(null);
+        mReadLengthValid = true;
+        mReadNameLengthValid = true;
+        mCigarLengthValid = true;
+        mAttributesDecoded = false;
+        mCigarDecoded = false;
+        initializeFixedFields(referenceID, coordinate, readNameLength, mappingQuality, indexingBin, cigarLen, flags,
+                readLen, mateReferenceID, mateCoordinate, insertSize);
+    }
+
+    /**
+     * Gives this record an array of its own of at least the given length, reusing the one it already has if possible,
+     * to hold its variable-length data.
+     * @return the array, into which the caller must read the data, starting at offset 0.
+     */
+    byte[] reserveBinaryData(final int length) {
+        if (!mOwnsReusableData || mRestOfBinaryData == null || mRestOfBinaryData.length < length) {
+            releaseSharedBuffer();
+            mSharedBuffer = null;
+            mRestOfBinaryData = new byte[length];
+            mOwnsReusableData = true;
+        }
+        mRestOfBinaryDataOffset = 0;
+        mRestOfBinaryDataLength = length;
+        return mRestOfBinaryData;
+    }
+
+    private void initializeFixedFields(final int referenceID,
+                                       final int coordinate,
+                                       final short readNameLength,
+                                       final short mappingQuality,
+                                       final int indexingBin,
+                                       final int cigarLen,
+                                       final int flags,
+                                       final int readLen,
+                                       final int mateReferenceID,
+                                       final int mateCoordinate,
+                                       final int insertSize) {
         setReferenceIndex(referenceID);
         setAlignmentStart(coordinate);
         mReadNameLength = readNameLength;
@@ -89,7 +186,6 @@ public class BAMRecord extends SAMRecord {
         setMateReferenceIndex(mateReferenceID);
         setMateAlignmentStart(mateCoordinate);
         setInferredInsertSize(insertSize);
-        mRestOfBinaryData = restOfData;
 
         // Set these to null in order to mark them as being candidates for lazy initialization.
         // If this is not done, they will have non-null defaults.
@@ -115,7 +211,119 @@ public class BAMRecord extends SAMRecord {
         getBaseQualities();
         getBinaryAttributes();
         super.eagerDecode();
+        releaseSharedBuffer();
         mRestOfBinaryData = null;
+        mSharedBuffer = null;
+        mOwnsReusableData = false;
+    }
+
+    /**
+     * Gives this record a slice of an array as its variable-length data, without copying it.  The record takes
+     * ownership of the array, which must not be modified afterwards.
+     */
+    void setBinaryData(final byte[] data, final int offset, final int length) {
+        releaseSharedBuffer();
+        mSharedBuffer = null;
+        mOwnsReusableData = false;
+        mRestOfBinaryData = data;
+        mRestOfBinaryDataOffset = offset;
+        mRestOfBinaryDataLength = length;
+    }
+
+    /**
+     * Makes this record a view of a slice of a shared buffer, rather than of an array of its own, and retains the buffer.
+     */
+    void setSharedBinaryData(final SharedRecordBuffer buffer, final int offset, final int length) {
+        releaseSharedBuffer();
+        mOwnsReusableData = false;
+        buffer.retain();
+        buffer.addView(this);
+        mSharedBuffer = buffer;
+        mHoldsSharedBuffer = true;
+        mRestOfBinaryData = buffer.getData();
+        mRestOfBinaryDataOffset = offset;
+        mRestOfBinaryDataLength = length;
+    }
+
+    /**
+     * Releases this record's reference to its shared buffer, if it has one.  The record remains usable: if it is still
+     * reachable when the buffer is about to be refilled, it is given a copy of its slice (see detachBinaryData()).
+     */
+    void releaseSharedBuffer() {
+        if (mHoldsSharedBuffer) {
+            mHoldsSharedBuffer = false;
+            mSharedBuffer.release();
+        }
+    }
+
+    /**
+     * If this record is a view of a shared buffer, copies its own slice out of the buffer, so that the record no longer
+     * depends on the buffer.  Records that are modified or cloned are detached automatically, as are records that are
+     * still reachable when their buffer is refilled, so this need only be called before handing a record to another
+     * thread.  Likewise gives a reused record a copy of its data that will not be
+     * overwritten when it is next reused, and trims the array of a record whose data is a slice of a larger one.
+     * It has no effect on any other record.
+     */
+    public void detachBinaryData() {
+        if (mSharedBuffer == null && !mOwnsReusableData && (mRestOfBinaryData == null ||
+                (mRestOfBinaryDataOffset == 0 && mRestOfBinaryDataLength == mRestOfBinaryData.length))) {
+            return;
+        }
+        if (mRestOfBinaryData != null) {
+            mRestOfBinaryData = Arrays.copyOfRange(mRestOfBinaryData, mRestOfBinaryDataOffset,
+                    mRestOfBinaryDataOffset + mRestOfBinaryDataLength);
+        }
+        mRestOfBinaryDataOffset = 0;
+        releaseSharedBuffer();
+        mSharedBuffer = null;
+        mOwnsReusableData = false;
+    }
+
+    /**
+     * Detaches this record (see detachBinaryData()) if it is still a view of the given buffer, which is about to be
+     * refilled.
+     */
+    void detachBinaryData(final SharedRecordBuffer buffer) {
+        if (mSharedBuffer == buffer) {
+            detachBinaryData();
+        }
+    }
+
+    /**
+     * @return true if this record is a view of a shared buffer (see detachBinaryData()).
+     */
+    public boolean isSharedBufferView() {
+        return mSharedBuffer != null;
+    }
+
+    /**
+     * Writes the variable-length binary data, if valid, without copying it.
+     * @return false if there is no valid binary data to write.
+     */
+    boolean writeVariableBinaryRepresentation(final BinaryCodec binaryCodec) {
+        if (mBinaryDataStale || mRestOfBinaryData == null) {
+            return false;
+        }
+        binaryCodec.writeBytes(mRestOfBinaryData, mRestOfBinaryDataOffset, mRestOfBinaryDataLength);
+        return true;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        final BAMRecord newRecord = (BAMRecord) super.clone();
+        if (newRecord.mSharedBuffer != null || newRecord.mOwnsReusableData) {
+            // The clone holds no reference to the shared buffer, and must not see this record being reused,
+            // so it needs its own copy.
+            newRecord.mHoldsSharedBuffer = false;
+            newRecord.detachBinaryData();
+        }
+        if (newRecord.mReusableCigar != null) {
+            if (newRecord.mCigarDecoded && newRecord.getCigar() == mReusableCigar) {
+                newRecord.initializeCigar(new Cigar(mReusableCigar.getCigarElements()));
+            }
+            newRecord.mReusableCigar = null;
+        }
+        return newRecord;
     }
 
     /**
@@ -129,6 +337,8 @@ public class BAMRecord extends SAMRecord {
         if (mBinaryDataStale) {
             return null;
         }
+        // The caller may keep the array, so it can't be a shared buffer
+        detachBinaryData();
         // This may have been set to null by eagerDecode()
         return mRestOfBinaryData;
     }
@@ -145,11 +355,12 @@ public class BAMRecord extends SAMRecord {
             return -1;
         }
         final int tagsOffset = readNameSize() + cigarSize() + basesSize() + qualsSize();
-        return mRestOfBinaryData.length - tagsOffset;
+        return mRestOfBinaryDataLength - tagsOffset;
     }
 
     @Override
     public void setReadName(final String value) {
+        detachBinaryData();
         super.setReadName(value);
         mBinaryDataStale = true;
         mReadNameLengthValid = false;
@@ -157,6 +368,7 @@ public class BAMRecord extends SAMRecord {
 
     @Override
     public void setCigar(final Cigar cigar) {
+        detachBinaryData();
         super.setCigar(cigar);
         mBinaryDataStale = true;
         mCigarLengthValid = false;
@@ -165,6 +377,7 @@ public class BAMRecord extends SAMRecord {
 
     @Override
     public void setCigarString(final String value) {
+        detachBinaryData();
         super.setCigarString(value);
         mBinaryDataStale = true;
         mCigarLengthValid = false;
@@ -173,6 +386,7 @@ public class BAMRecord extends SAMRecord {
 
     @Override
     public void setReadBases(final byte[] value) {
+        detachBinaryData();
         super.setReadBases(value);
         mBinaryDataStale = true;
         mReadLengthValid = false;
@@ -180,6 +394,7 @@ public class BAMRecord extends SAMRecord {
 
     @Override
     public void setBaseQualities(final byte[] value) {
+        detachBinaryData();
         super.setBaseQualities(value);
         mBinaryDataStale = true;
     }
@@ -188,6 +403,7 @@ public class BAMRecord extends SAMRecord {
     protected void setAttribute(final short tag, final Object value, final boolean isUnsignedArray) {
         // populate all the attributes from the binary block before overwriting one
         getBinaryAttributes();
+        detachBinaryData();
         super.setAttribute(tag, value, isUnsignedArray);
         mBinaryDataStale = true;
     }
@@ -197,6 +413,7 @@ public class BAMRecord extends SAMRecord {
      */
     @Override
     public void clearAttributes() {
+        detachBinaryData();
         mAttributesDecoded = true;
         mBinaryDataStale = true;
         super.clearAttributes();
@@ -238,9 +455,14 @@ public class BAMRecord extends SAMRecord {
     public Cigar getCigar() {
         if (mRestOfBinaryData != null && !mCigarDecoded) {
             final int cigarOffset = readNameSize();
-            final ByteBuffer byteBuffer  = ByteBuffer.wrap(mRestOfBinaryData, cigarOffset, cigarSize());
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            super.initializeCigar(BinaryCigarCodec.decode(byteBuffer));
+            if (mReusableCigar != null) {
+                BinaryCigarCodec.decode(mRestOfBinaryData, mRestOfBinaryDataOffset + cigarOffset, mCigarLength, mReusableCigar);
+                super.initializeCigar(mReusableCigar);
+            } else {
+                final ByteBuffer byteBuffer  = ByteBuffer.wrap(mRestOfBinaryData, mRestOfBinaryDataOffset + cigarOffset, cigarSize());
+                byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                super.initializeCigar(BinaryCigarCodec.decode(byteBuffer));
+            }
             mCigarDecoded = true;
             if (getValidationStringency() != ValidationStringency.SILENT && !this.getReadUnmappedFlag()) {
                 // Don't know line number, and don't want to force read name to be decoded.
@@ -282,9 +504,23 @@ public class BAMRecord extends SAMRecord {
         return ret;
     }
 
+    /**
+     * Until the attributes have been decoded, which happens when any of them is modified or they are all requested,
+     * the requested tag is looked up in the binary block without decoding the others.  The value of such a lookup is
+     * a new object each time, which is only safe because scalar and String values are immutable.  An array value
+     * may be modified by the caller, so finding one decodes all of the attributes, as before, and every lookup of it
+     * returns the same array, which keeps any changes made to it.
+     */
     @Override
     public Object getAttribute(final short tag) {
         if (!mAttributesDecoded) {
+            final int tagsOffset = readNameSize() + cigarSize() + basesSize() + qualsSize();
+            final int tagsSize = mRestOfBinaryDataLength - tagsOffset;
+            final Object value = BinaryTagCodec.readTag(mRestOfBinaryData, mRestOfBinaryDataOffset + tagsOffset, tagsSize,
+                    tag, getValidationStringency());
+            if (value == null || !value.getClass().isArray()) {
+                return value;
+            }
             decodeAttributes();
         }
         return super.getAttribute(tag);
@@ -304,8 +540,9 @@ public class BAMRecord extends SAMRecord {
         }
         mAttributesDecoded = true;
         final int tagsOffset = readNameSize() + cigarSize() + basesSize() + qualsSize();
-        final int tagsSize = mRestOfBinaryData.length - tagsOffset;
-        final SAMBinaryTagAndValue attributes = BinaryTagCodec.readTags(mRestOfBinaryData, tagsOffset, tagsSize, getValidationStringency());
+        final int tagsSize = mRestOfBinaryDataLength - tagsOffset;
+        final SAMBinaryTagAndValue attributes = BinaryTagCodec.readTags(mRestOfBinaryData,
+                mRestOfBinaryDataOffset + tagsOffset, tagsSize, getValidationStringency());
         setAttributes(attributes);
     }
 
@@ -315,7 +552,7 @@ public class BAMRecord extends SAMRecord {
         }
         final int qualsOffset = readNameSize() + cigarSize() + basesSize();
         final byte[] ret = new byte[qualsSize()];
-        System.arraycopy(mRestOfBinaryData, qualsOffset, ret, 0, qualsSize());
+        System.arraycopy(mRestOfBinaryData, mRestOfBinaryDataOffset + qualsOffset, ret, 0, qualsSize());
         if (ret.length > 0 && ret[0] == (byte) 0xFF) {
             // BAM files store missing qualities as an array of 0xFF bytes.
             // 0xFF is an illegal quality score value (it cannot be encoded in SAM)
@@ -328,7 +565,7 @@ public class BAMRecord extends SAMRecord {
 
     private String decodeReadName() {
         // Don't include terminating null
-        return StringUtil.bytesToString(mRestOfBinaryData, READ_NAME_OFFSET, mReadNameLength-1);
+        return StringUtil.bytesToString(mRestOfBinaryData, mRestOfBinaryDataOffset + READ_NAME_OFFSET, mReadNameLength-1);
     }
 
     private byte[] decodeReadBases() {
@@ -336,7 +573,7 @@ public class BAMRecord extends SAMRecord {
             return NULL_SEQUENCE;
         }
         final int basesOffset = readNameSize() + cigarSize();
-        return SAMUtils.compressedBasesToBytes(mReadLength, mRestOfBinaryData, basesOffset);
+        return SAMUtils.compressedBasesToBytes(mReadLength, mRestOfBinaryData, mRestOfBinaryDataOffset + basesOffset);
     }
 
     /* methods for computing disk size of variably-sized elements, in order to locate
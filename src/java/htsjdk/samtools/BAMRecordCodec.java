@@ -30,6 +30,8 @@ import htsjdk.samtools.util.SortingCollection;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Class for translating between in-memory and disk representation of BAMRecord.
@@ -40,6 +42,18 @@ public class BAMRecordCodec implements SortingCollection.Codec<SAMRecord> {
     private final BinaryTagCodec binaryTagCodec = new BinaryTagCodec(binaryCodec);
     private final SAMRecordFactory samRecordFactory;
 
+    // If sharing record buffers, the buffer that decoded records are currently being added to, on which this
+    // codec holds a reference, and the pool of empty buffers.
+    private boolean shareRecordBuffers = false;
+    private SharedRecordBuffer currentRecordBuffer = null;
+    private final Queue<SharedRecordBuffer> recordBufferPool = new ConcurrentLinkedQueue<SharedRecordBuffer>();
+
+    // The record read by readRawRecord(), if decode() is yet to decode it, and the buffer it was read into.  decode()
+    // may give the buffer to the record it decodes, in which case the next record is read into a new one.
+    private boolean rawRecordPending = false;
+    private byte[] rawRecordBuffer = null;
+    private final BAMRawRecord rawRecord = new BAMRawRecord();
+
     public BAMRecordCodec(final SAMFileHeader header) {
         this(header, new DefaultSAMRecordFactory());
     }
@@ -77,6 +91,31 @@ public class BAMRecordCodec implements SortingCollection.Codec<SAMRecord> {
         this.binaryCodec.setInputFileName(filename);
     }
 
+    /**
+     * Determines whether decode() gives each BAMRecord a copy of its variable-length data, or a view of a slice of
+     * a buffer shared with the records decoded before and after it.  Views avoid allocating an array per record,
+     * and the caller should release each record with releaseRecord() once it is no longer needed by the caller
+     * itself, so that the buffers can be reused.  Records that are still reachable when their buffer is reused are
+     * given copies of their own slices first.  Turning this off releases the codec's reference to its current buffer.
+     */
+    public void setShareRecordBuffers(final boolean share) {
+        this.shareRecordBuffers = share;
+        if (!share && currentRecordBuffer != null) {
+            currentRecordBuffer.release();
+            currentRecordBuffer = null;
+        }
+    }
+
+    /**
+     * Releases a record decoded while sharing record buffers, so that its buffer can be reused once all of the
+     * records in it have been released.  Has no effect on other records.
+     */
+    public void releaseRecord(final SAMRecord record) {
+        if (record instanceof BAMRecord) {
+            ((BAMRecord) record).releaseSharedBuffer();
+        }
+    }
+
     /**
      * Write object to OutputStream.
      * Reference and mate reference indices must be resolvable, which either means that these have been set into the
@@ -131,12 +170,19 @@ public class BAMRecordCodec implements SortingCollection.Codec<SAMRecord> {
         this.binaryCodec.writeInt(alignment.getMateReferenceIndex());
         this.binaryCodec.writeInt(alignment.getMateAlignmentStart() - 1);
         this.binaryCodec.writeInt(alignment.getInferredInsertSize());
-        final byte[] variableLengthBinaryBlock = alignment.getVariableBinaryRepresentation();
-        if (variableLengthBinaryBlock != null) {
-            // Don't need to encode variable-length block, because it is unchanged from
-            // when the record was read from a BAM file.
-            this.binaryCodec.writeBytes(variableLengthBinaryBlock);
+        // Don't need to encode variable-length block if it is unchanged from when the record was read from a
+        // BAM file.  BAMRecords write it themselves, because it may be a slice of a shared buffer.
+        boolean wroteVariableLengthBinaryBlock = false;
+        if (alignment instanceof BAMRecord) {
+            wroteVariableLengthBinaryBlock = ((BAMRecord) alignment).writeVariableBinaryRepresentation(this.binaryCodec);
         } else {
+            final byte[] variableLengthBinaryBlock = alignment.getVariableBinaryRepresentation();
+            if (variableLengthBinaryBlock != null) {
+                this.binaryCodec.writeBytes(variableLengthBinaryBlock);
+                wroteVariableLengthBinaryBlock = true;
+            }
+        }
+        if (!wroteVariableLengthBinaryBlock) {
             if (alignment.getReadLength() != alignment.getBaseQualities().length &&
                 alignment.getBaseQualities().length != 0) {
                 throw new RuntimeException("Mismatch between read length and quals length writing read " +
@@ -172,35 +218,172 @@ public class BAMRecordCodec implements SortingCollection.Codec<SAMRecord> {
      *         a record.
      */
     public SAMRecord decode() {
-        int recordLength = 0;
+        return decode(null);
+    }
+
+    /**
+     * Reads the next record from the input stream without decoding it, so that it can be looked at before deciding
+     * whether to decode it.  The following call to decode() decodes this record rather than reading another, unless
+     * skipRawRecord() is called first.
+     *
+     * @return a view of the record, which is only valid until the next record is read, or null if no more records.
+     */
+    BAMRawRecord readRawRecord() {
+        final int recordLength;
         try {
             recordLength = this.binaryCodec.readInt();
         }
         catch (RuntimeEOFException e) {
             return null;
         }
+        if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
+            throw new SAMFormatException("Invalid record length: " + recordLength);
+        }
+        if (rawRecordBuffer == null || 4 + recordLength > rawRecordBuffer.length) {
+            rawRecordBuffer = new byte[4 + recordLength];
+        }
+        rawRecordBuffer[0] = (byte) recordLength;
+        rawRecordBuffer[1] = (byte) (recordLength >> 8);
+        rawRecordBuffer[2] = (byte) (recordLength >> 16);
+        rawRecordBuffer[3] = (byte) (recordLength >> 24);
+        this.binaryCodec.readBytes(rawRecordBuffer, 4, recordLength);
+        rawRecord.reset(rawRecordBuffer, 0, 4 + recordLength);
+        rawRecordPending = true;
+        return rawRecord;
+    }
+
+    /** Passes over the record read by readRawRecord(), so that the next call to decode() reads another. */
+    void skipRawRecord() {
+        rawRecordPending = false;
+    }
+
+    /**
+     * Read the next record from the input stream, overwriting the given record rather than creating a new one if it
+     * is non-null.  A clone of the given record is unaffected, but the record itself, and anything obtained from it
+     * such as its Cigar, can no longer be used for its previous contents.
+     *
+     * @param reuse Record to be overwritten, or null to create a new record.
+     * @return reuse, or a new record if it is null, or null if no more records.  Should throw exception if EOF is
+     *         encountered in the middle of a record.
+     */
+    public BAMRecord decode(final BAMRecord reuse) {
+        if (rawRecordPending) {
+            rawRecordPending = false;
+            return decodeRawRecord(reuse);
+        }
+        final BinaryCodec in = this.binaryCodec;
+        int recordLength = 0;
+        try {
+            recordLength = in.readInt();
+        }
+        catch (RuntimeEOFException e) {
+            return null;
+        }
 
         if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
             throw new SAMFormatException("Invalid record length: " + recordLength);
         }
         
-        final int referenceID = this.binaryCodec.readInt();
-        final int coordinate = this.binaryCodec.readInt() + 1;
-        final short readNameLength = this.binaryCodec.readUByte();
-        final short mappingQuality = this.binaryCodec.readUByte();
-        final int bin = this.binaryCodec.readUShort();
-        final int cigarLen = this.binaryCodec.readUShort();
-        final int flags = this.binaryCodec.readUShort();
-        final int readLen = this.binaryCodec.readInt();
-        final int mateReferenceID = this.binaryCodec.readInt();
-        final int mateCoordinate = this.binaryCodec.readInt() + 1;
-        final int insertSize = this.binaryCodec.readInt();
-        final byte[] restOfRecord = new byte[recordLength - BAMFileConstants.FIXED_BLOCK_SIZE];
-        this.binaryCodec.readBytes(restOfRecord);
+        final int referenceID = in.readInt();
+        final int coordinate = in.readInt() + 1;
+        final short readNameLength = in.readUByte();
+        final short mappingQuality = in.readUByte();
+        final int bin = in.readUShort();
+        final int cigarLen = in.readUShort();
+        final int flags = in.readUShort();
+        final int readLen = in.readInt();
+        final int mateReferenceID = in.readInt();
+        final int mateCoordinate = in.readInt() + 1;
+        final int insertSize = in.readInt();
+        final int restOfRecordLength = recordLength - BAMFileConstants.FIXED_BLOCK_SIZE;
+        if (shareRecordBuffers) {
+            final int offset = reserveInCurrentRecordBuffer(restOfRecordLength);
+            in.readBytes(currentRecordBuffer.getData(), offset, restOfRecordLength);
+            final BAMRecord ret;
+            if (reuse != null) {
+                ret = reuse;
+                ret.reinitialize(referenceID, coordinate, readNameLength, mappingQuality,
+                        bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize);
+            } else {
+                ret = this.samRecordFactory.createBAMRecord(
+                        header, referenceID, coordinate, readNameLength, mappingQuality,
+                        bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize, null);
+            }
+            ret.setSharedBinaryData(currentRecordBuffer, offset, restOfRecordLength);
+            ret.setHeader(header);
+            return ret;
+        }
+        if (reuse != null) {
+            reuse.reinitialize(referenceID, coordinate, readNameLength, mappingQuality,
+                    bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize);
+            in.readBytes(reuse.reserveBinaryData(restOfRecordLength), 0, restOfRecordLength);
+            reuse.setHeader(header);
+            return reuse;
+        }
+        final byte[] restOfRecord = new byte[restOfRecordLength];
+        in.readBytes(restOfRecord);
         final BAMRecord ret = this.samRecordFactory.createBAMRecord(
                 header, referenceID, coordinate, readNameLength, mappingQuality,
                 bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize, restOfRecord);
         ret.setHeader(header); 
         return ret;
     }
+
+    /**
+     * Decodes the record read by readRawRecord() from the buffer it was read into, as decode(reuse) does.  Unless it
+     * is reused or shares buffers, the record is given the buffer itself rather than a copy of its variable-length
+     * data.
+     */
+    private BAMRecord decodeRawRecord(final BAMRecord reuse) {
+        final int referenceID = rawRecord.getReferenceIndex();
+        final int coordinate = rawRecord.getAlignmentStart();
+        final short readNameLength = (short) (rawRecord.getReadNameLength() + 1);
+        final short mappingQuality = (short) rawRecord.getMappingQuality();
+        final int bin = rawRecord.getIndexingBin();
+        final int cigarLen = rawRecord.getCigarLength();
+        final int flags = rawRecord.getFlags();
+        final int readLen = rawRecord.getReadLength();
+        final int mateReferenceID = rawRecord.getMateReferenceIndex();
+        final int mateCoordinate = rawRecord.getMateAlignmentStart();
+        final int insertSize = rawRecord.getInferredInsertSize();
+        final int restOfRecordOffset = 4 + BAMFileConstants.FIXED_BLOCK_SIZE;
+        final int restOfRecordLength = rawRecord.getLength() - restOfRecordOffset;
+        final BAMRecord ret;
+        if (reuse != null) {
+            ret = reuse;
+            ret.reinitialize(referenceID, coordinate, readNameLength, mappingQuality,
+                    bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize);
+        } else {
+            ret = this.samRecordFactory.createBAMRecord(
+                    header, referenceID, coordinate, readNameLength, mappingQuality,
+                    bin, cigarLen, flags, readLen, mateReferenceID, mateCoordinate, insertSize, null);
+        }
+        if (shareRecordBuffers) {
+            final int offset = reserveInCurrentRecordBuffer(restOfRecordLength);
+            System.arraycopy(rawRecordBuffer, restOfRecordOffset, currentRecordBuffer.getData(), offset, restOfRecordLength);
+            ret.setSharedBinaryData(currentRecordBuffer, offset, restOfRecordLength);
+        } else if (reuse != null) {
+            System.arraycopy(rawRecordBuffer, restOfRecordOffset, ret.reserveBinaryData(restOfRecordLength), 0,
+                    restOfRecordLength);
+        } else {
+            ret.setBinaryData(rawRecordBuffer, restOfRecordOffset, restOfRecordLength);
+            rawRecordBuffer = null;
+        }
+        ret.setHeader(header);
+        return ret;
+    }
+
+    /** @return the offset of a slice of the given length reserved in the current shared buffer, replacing it if full. */
+    private int reserveInCurrentRecordBuffer(final int length) {
+        int offset = currentRecordBuffer == null ? -1 : currentRecordBuffer.reserve(length);
+        if (offset < 0) {
+            if (currentRecordBuffer != null) {
+                currentRecordBuffer.release();
+            }
+            currentRecordBuffer = SharedRecordBuffer.obtain(recordBufferPool, length);
+            currentRecordBuffer.retain();
+            offset = currentRecordBuffer.reserve(length);
+        }
+        return offset;
+    }
 }
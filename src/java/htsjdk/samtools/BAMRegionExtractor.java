@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeEOFException;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copies the records of a coordinate sorted, indexed BAM file that overlap, or are contained in, a set of intervals
+ * into a new BAM file, as BamFileIoUtils.extractRegionsWithBlockCopying() does, copying most of the BGZF blocks
+ * verbatim.
+ *
+ * In a coordinate sorted file the records of an interval that start within it are contiguous, and only the records
+ * that start before it, or that may end after it, need to be looked at one by one.  The records that start before
+ * the interval are found from the index, as for a query.  The linear index entry of the window holding the end of the
+ * interval bounds those that may end after it: any record preceding that entry ends before the window starts.
+ *
+ * Matching records that are contiguous in the input, whether read one by one or not, are written together by copying
+ * the blocks between the first and last of them as they are, decompressing and recompressing only the partial blocks
+ * at either end.
+ */
+class BAMRegionExtractor {
+    private final File input;
+    private final CachingBAMFileIndex index;
+    private final BlockCompressedInputStream blockIn;
+    private final BinaryCodec recordIn;
+    private final FileInputStream fileIn;
+    private byte[] buffer = new byte[BAMFileConstants.FIXED_BLOCK_SIZE + 4];
+
+    private OutputStream out;
+    private BlockCompressedOutputStream blockOut;
+    /** Virtual file pointer in the input up to which records have been dealt with. */
+    private long extractedTo = 0;
+    /** Virtual file pointers in the input of the matching records that are yet to be written. */
+    private long pendingStart = 0;
+    private long pendingEnd = 0;
+    private long bytesCopied = 0;
+    private long bytesRecompressed = 0;
+
+    /**
+     * @param input      The BAM file to extract from.  It must be coordinate sorted and have an index.
+     * @param dictionary The sequence dictionary of the input.
+     */
+    BAMRegionExtractor(final File input, final SAMSequenceDictionary dictionary) {
+        final File indexFile = SamFiles.findIndex(input);
+        if (indexFile == null) {
+            throw new SAMException("No index found for " + input.getAbsolutePath());
+        }
+        this.input = input;
+        this.index = new CachingBAMFileIndex(indexFile, dictionary);
+        try {
+            this.blockIn = new BlockCompressedInputStream(input);
+            this.fileIn = new FileInputStream(input);
+        } catch (final IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        this.recordIn = new BinaryCodec(new DataInputStream(blockIn));
+    }
+
+    /** @return the number of bytes of BGZF blocks copied verbatim so far. */
+    long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /** @return the number of uncompressed bytes decompressed and recompressed into new blocks so far. */
+    long getBytesRecompressed() {
+        return bytesRecompressed;
+    }
+
+    /**
+     * Writes the records matching the given intervals, in the order in which they appear in the input, to the
+     * records part of a BAM file, whose header has already been written to the given stream.  Closing the stream,
+     * and writing the terminator block before that, are left to the caller.
+     *
+     * @param intervals The intervals, which must be optimized (see QueryInterval.optimizeIntervals()).
+     * @param contained Whether records must be contained in an interval, rather than just overlap one.
+     * @param out       The stream to write to.
+     */
+    void extract(final QueryInterval[] intervals, final boolean contained, final OutputStream out) {
+        this.out = out;
+        this.blockOut = new BlockCompressedOutputStream(out, null);
+        try {
+            for (final QueryInterval interval : intervals) {
+                extract(interval, contained);
+            }
+            writePending();
+            blockOut.flush();
+            // Don't close blockOut because closing underlying stream would break everything
+        } catch (final IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private void extract(final QueryInterval interval, final boolean contained) throws IOException {
+        final BAMFileSpan span = index.getSpanOverlapping(interval.referenceIndex, interval.start, interval.end);
+        if (span == null || span.isEmpty()) {
+            return;
+        }
+        final int end = interval.end <= 0 ? Integer.MAX_VALUE : interval.end;
+
+        // Records starting before the interval, any of which may overlap it
+        seek(Math.max(span.getFirstOffset(), extractedTo));
+        long recordStart = blockIn.getFilePointer();
+        while (true) {
+            final BAMRawRecord record = readRecord();
+            if (record == null || record.getReferenceIndex() != interval.referenceIndex || record.getAlignmentStart() > end) {
+                extractedTo = recordStart;
+                return;
+            }
+            if (record.getAlignmentStart() >= interval.start) {
+                break;
+            }
+            final long recordEnd = blockIn.getFilePointer();
+            if (!contained && getAlignmentEnd(record) >= interval.start) {
+                append(recordStart, recordEnd);
+            }
+            recordStart = recordEnd;
+        }
+
+        // Records that start in the interval and end before the window holding its end all match
+        final long interiorStart = recordStart;
+        seek(Math.max(interiorStart, getLinearIndexEntry(interval.referenceIndex, interval.end)));
+        recordStart = blockIn.getFilePointer();
+        append(interiorStart, recordStart);
+
+        // Records at the end of the interval, which in a contained query must be checked for ending after it
+        while (true) {
+            final BAMRawRecord record = readRecord();
+            if (record == null || record.getReferenceIndex() != interval.referenceIndex || record.getAlignmentStart() > end) {
+                extractedTo = recordStart;
+                return;
+            }
+            final long recordEnd = blockIn.getFilePointer();
+            if (!contained || getAlignmentEnd(record) <= end) {
+                append(recordStart, recordEnd);
+            }
+            recordStart = recordEnd;
+        }
+    }
+
+    /** @return the end of the record for the purposes of a query, which for a placed unmapped read is its start. */
+    private static int getAlignmentEnd(final BAMRawRecord record) {
+        return record.getReadUnmappedFlag() ? record.getAlignmentStart() : record.getAlignmentEnd();
+    }
+
+    /**
+     * @return the linear index entry of the window holding the given position, or of the last window if the position
+     * is beyond it or is 0, meaning the end of the reference; or 0 if there is none.
+     */
+    private long getLinearIndexEntry(final int referenceIndex, final int position) {
+        final BAMIndexContent content = index.getQueryResults(referenceIndex);
+        final LinearIndex linearIndex = content == null ? null : content.getLinearIndex();
+        if (linearIndex == null || linearIndex.size() == 0) {
+            return 0;
+        }
+        final int lastWindow = linearIndex.getIndexStart() + linearIndex.size() - 1;
+        final int window = position <= 0 ? lastWindow : Math.min(LinearIndex.convertToLinearIndexOffset(position), lastWindow);
+        return window < linearIndex.getIndexStart() ? 0 : linearIndex.get(window);
+    }
+
+    /**
+     * Adds the records between two virtual file pointers in the input to those to be written, writing the pending
+     * ones first if they do not immediately precede them.  The position of the input is left as it was.
+     */
+    private void append(final long from, final long to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        if (from != pendingEnd) {
+            final long position = blockIn.getFilePointer();
+            writePending();
+            seek(position);
+            pendingStart = from;
+        }
+        pendingEnd = to;
+    }
+
+    /**
+     * Writes the pending records, copying the blocks wholly between their ends verbatim.  Both ends must be virtual
+     * file pointers as returned by BlockCompressedInputStream.getFilePointer(), which never point at the end of a block.
+     */
+    private void writePending() throws IOException {
+        final long start = pendingStart;
+        final long end = pendingEnd;
+        pendingStart = pendingEnd;
+        if (start >= end) {
+            return;
+        }
+        seek(start);
+        final long endAddress = BlockCompressedFilePointerUtil.getBlockAddress(end);
+        final int endOffset = BlockCompressedFilePointerUtil.getBlockOffset(end);
+        if (BlockCompressedFilePointerUtil.getBlockAddress(start) == endAddress) {
+            recompress(endOffset - BlockCompressedFilePointerUtil.getBlockOffset(start));
+            return;
+        }
+        recompress(blockIn.available());
+        blockOut.flush();
+        final long copiedAddress = BlockCompressedFilePointerUtil.getBlockAddress(blockIn.getFilePointer());
+        fileIn.getChannel().position(copiedAddress);
+        IOUtil.transferByStream(fileIn, out, endAddress - copiedAddress);
+        bytesCopied += endAddress - copiedAddress;
+        if (endOffset > 0) {
+            blockIn.seek(BlockCompressedFilePointerUtil.makeFilePointer(endAddress, 0));
+            recompress(endOffset);
+        }
+    }
+
+    private void recompress(final int bytes) {
+        IOUtil.transferByStream(blockIn, blockOut, bytes);
+        bytesRecompressed += bytes;
+    }
+
+    /**
+     * Positions the input at a virtual file pointer, which unlike BlockCompressedInputStream.seek() may point at the
+     * end of a block other than the last, as linear index entries may.
+     */
+    private void seek(final long virtualFilePointer) throws IOException {
+        blockIn.seek(BlockCompressedFilePointerUtil.makeFilePointer(BlockCompressedFilePointerUtil.getBlockAddress(virtualFilePointer), 0));
+        final int offset = BlockCompressedFilePointerUtil.getBlockOffset(virtualFilePointer);
+        if (offset > 0 && blockIn.skip(offset) != offset) {
+            throw new SAMException("Invalid file pointer " + BlockCompressedFilePointerUtil.asString(virtualFilePointer) +
+                    " in " + input.getAbsolutePath());
+        }
+    }
+
+    /** @return the next record of the input, or null at the end of it.  The record is only valid until the next call. */
+    private BAMRawRecord readRecord() {
+        final int recordLength;
+        try {
+            recordLength = recordIn.readInt();
+        } catch (final RuntimeEOFException e) {
+            return null;
+        }
+        if (recordLength < BAMFileConstants.FIXED_BLOCK_SIZE) {
+            throw new SAMFormatException("Invalid record length: " + recordLength);
+        }
+        if (4 + recordLength > buffer.length) {
+            buffer = new byte[4 + recordLength];
+        }
+        buffer[0] = (byte) recordLength;
+        buffer[1] = (byte) (recordLength >> 8);
+        buffer[2] = (byte) (recordLength >> 16);
+        buffer[3] = (byte) (recordLength >> 24);
+        recordIn.readBytes(buffer, 4, recordLength);
+        return new BAMRawRecord(buffer, 0, 4 + recordLength);
+    }
+
+    void close() {
+        index.close();
+        CloserUtil.close(blockIn);
+        CloserUtil.close(fileIn);
+    }
+}
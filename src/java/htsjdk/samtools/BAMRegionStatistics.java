@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+
+import java.util.List;
+
+/**
+ * How much data a BAM index says a region, or a single bin, holds: the number of chunks to read, the compressed
+ * bytes they span, and an estimate of the number of records, all without reading the BAM file.
+ *
+ * @see BrowseableBAMIndex#getRegionStatistics(int, int, int)
+ * @see BrowseableBAMIndex#getBinStatistics(Bin)
+ */
+public class BAMRegionStatistics {
+    private final int referenceIndex;
+    private final int start;
+    private final int end;
+    private final int numChunks;
+    private final long compressedBytes;
+    private final long estimatedRecordCount;
+
+    BAMRegionStatistics(final int referenceIndex, final int start, final int end, final List<Chunk> chunks,
+                        final BAMIndexMetaData referenceMetaData) {
+        this.referenceIndex = referenceIndex;
+        this.start = start;
+        this.end = end;
+        this.numChunks = (chunks == null) ? 0 : chunks.size();
+        long bytes = 0;
+        if (chunks != null) {
+            for (final Chunk chunk : chunks) {
+                bytes += getCompressedBytes(chunk.getChunkStart(), chunk.getChunkEnd());
+            }
+        }
+        this.compressedBytes = bytes;
+        this.estimatedRecordCount = estimateRecordCount(referenceMetaData, numChunks, compressedBytes);
+    }
+
+    /**
+     * @return the compressed bytes from the start of the block containing start to the start of the block
+     * containing end, which is 0 for a span within a single block.
+     */
+    static long getCompressedBytes(final long start, final long end) {
+        return BlockCompressedFilePointerUtil.getBlockAddress(end) - BlockCompressedFilePointerUtil.getBlockAddress(start);
+    }
+
+    /**
+     * Scales the reference's record count, from the index metadata, by the fraction of the reference's compressed
+     * bytes that the chunks span.
+     */
+    private static long estimateRecordCount(final BAMIndexMetaData metaData, final int numChunks, final long compressedBytes) {
+        if (numChunks == 0) {
+            return 0;
+        }
+        if (metaData == null || metaData.getFirstOffset() == -1) {
+            return -1;
+        }
+        final long referenceRecords = (long) metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+        if (referenceRecords == 0) {
+            return 0;
+        }
+        final long referenceBytes = getCompressedBytes(metaData.getFirstOffset(), metaData.getLastOffset());
+        if (referenceBytes <= 0) {
+            // The whole reference is in one block, so there is no finer estimate
+            return referenceRecords;
+        }
+        final long estimate = Math.round(referenceRecords * ((double) compressedBytes / referenceBytes));
+        return Math.max(1, Math.min(referenceRecords, estimate));
+    }
+
+    public int getReferenceIndex() { return referenceIndex; }
+
+    /** @return 1-based start of the region, inclusive */
+    public int getStart() { return start; }
+
+    /** @return 1-based end of the region, inclusive, or 0 for the end of the reference */
+    public int getEnd() { return end; }
+
+    /** @return number of chunks of the BAM file that a query of the region would read */
+    public int getNumChunks() { return numChunks; }
+
+    /**
+     * @return approximate compressed size of the chunks, counted in whole blocks from the block containing the
+     * start of each chunk to the block containing its end.  Chunks within a single block count as 0.
+     */
+    public long getCompressedBytes() { return compressedBytes; }
+
+    /**
+     * @return approximate number of records in the chunks, scaled from the record counts in the index metadata for
+     * the reference, or -1 if the index has no metadata.  Records in the chunks that lie outside the region are
+     * included, so this tends to overestimate small regions.  Use
+     * {@link #countRecordsOverlapping(SamReader, QueryInterval[])} for an exact count.
+     */
+    public long getEstimatedRecordCount() { return estimatedRecordCount; }
+
+    @Override
+    public String toString() {
+        return String.format("BAMRegionStatistics: reference %d, %d-%d, %d chunks, %d compressed bytes, ~%d records",
+                referenceIndex, start, end, numChunks, compressedBytes, estimatedRecordCount);
+    }
+
+    /**
+     * Counts the records that {@link SamReader#queryOverlapping(QueryInterval[])} would return.  For an indexed
+     * BAM file, only the fixed-length fields and CIGAR of each record in the index chunks are read, and no
+     * SAMRecords are created.  Other readers fall back to iterating over the query.
+     *
+     * @param intervals intervals to count, which must be optimized (see {@link QueryInterval#optimizeIntervals(QueryInterval[])})
+     */
+    public static long countRecordsOverlapping(final SamReader reader, final QueryInterval[] intervals) {
+        if (reader instanceof SamReader.PrimitiveSamReaderToSamReaderAdapter) {
+            final SamReader.PrimitiveSamReader underlyingReader =
+                    ((SamReader.PrimitiveSamReaderToSamReaderAdapter) reader).underlyingReader();
+            if (underlyingReader instanceof BAMFileReader && underlyingReader.hasIndex()) {
+                return ((BAMFileReader) underlyingReader).countRecordsOverlapping(intervals);
+            }
+        }
+        long count = 0;
+        final SAMRecordIterator iterator = reader.queryOverlapping(intervals);
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                ++count;
+            }
+        } finally {
+            iterator.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedSplit;
+import htsjdk.samtools.util.BlockCompressedSplitPlanner;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloserUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plans record-aligned splits of a BAM file, which can then be read independently with iterator().
+ *
+ * A BAM record may start anywhere in a BGZF block, so the first record in a block is found by trying each offset in
+ * turn until one is found at which there appears to be a chain of plausible records, each of whose fixed-length
+ * fields are consistent with the sequence dictionary and with its length, and the first of which can be decoded
+ * by BAMRecordCodec.
+ */
+public class BAMSplitPlanner extends BlockCompressedSplitPlanner {
+    // Number of consecutive records that must look valid for an offset to be taken as the start of a record.
+    private static final int RECORDS_TO_CHECK = 3;
+
+    // Bytes read beyond the block being searched, in which to check the records that follow.
+    private static final int LOOKAHEAD = 3 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+    private static final int PLAUSIBLE = 0;
+    private static final int IMPLAUSIBLE = 1;
+    private static final int UNKNOWN = 2;
+
+    private final SAMFileHeader header;
+    private final long firstRecordStart;
+
+    public BAMSplitPlanner(final File bam) {
+        super(bam);
+        final SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam);
+        try {
+            if (reader.type() != SamReader.Type.BAM_TYPE) {
+                throw new IllegalArgumentException(bam + " is not a BAM file");
+            }
+            header = reader.getFileHeader();
+            firstRecordStart = ((BAMFileSpan) reader.indexing().getFilePointerSpanningReads()).toCoordinateArray()[0];
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+
+    /**
+     * Iterates over the records in the given split of the file that the reader reads.
+     */
+    public static SAMRecordIterator iterator(final SamReader reader, final BlockCompressedSplit split) {
+        return reader.indexing().iterator(new BAMFileSpan(new Chunk(split.getStart(), split.getEnd())));
+    }
+
+    @Override
+    protected long getFirstRecordStart(final BlockCompressedInputStream stream) {
+        return firstRecordStart;
+    }
+
+    @Override
+    protected long findRecordStart(final BlockCompressedInputStream stream, final long blockAddress) throws IOException {
+        stream.seek(makeFilePointer(blockAddress, 0));
+        final int blockLength = stream.available();
+        final byte[] buffer = new byte[blockLength + LOOKAHEAD];
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = stream.read(buffer, length, buffer.length - length)) > 0) {
+            length += count;
+        }
+        final boolean atEof = length < buffer.length;
+        for (int offset = 0; offset < blockLength; ++offset) {
+            if (isRecordChain(buffer, offset, length, atEof) && canDecode(buffer, offset, length)) {
+                return makeFilePointer(blockAddress, offset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if a chain of RECORDS_TO_CHECK plausible records, or as many as there are before the end of the
+     * file, starts at the given offset, or if the first record is plausible but those following it are not in
+     * the buffer.
+     */
+    private boolean isRecordChain(final byte[] buffer, final int start, final int length, final boolean atEof) {
+        int offset = start;
+        for (int i = 0; i < RECORDS_TO_CHECK; ++i) {
+            if (offset == length && atEof) {
+                return i > 0;
+            }
+            final int plausibility = checkRecord(buffer, offset, length);
+            if (plausibility == IMPLAUSIBLE) {
+                return false;
+            }
+            if (plausibility == UNKNOWN) {
+                return i > 0;
+            }
+            final long next = (long) offset + 4 + unpackInt32(buffer, offset);
+            if (next > length) {
+                return true;
+            }
+            offset = (int) next;
+        }
+        return true;
+    }
+
+    private int checkRecord(final byte[] buffer, final int offset, final int length) {
+        if (offset + 4 + BAMFileConstants.FIXED_BLOCK_SIZE > length) {
+            return UNKNOWN;
+        }
+        final int blockSize = unpackInt32(buffer, offset);
+        final int referenceIndex = unpackInt32(buffer, offset + 4);
+        final int position = unpackInt32(buffer, offset + 8);
+        final int readNameLength = buffer[offset + 12] & 0xFF;
+        final int cigarLength = unpackInt16(buffer, offset + 16);
+        final int readLength = unpackInt32(buffer, offset + 20);
+        final int mateReferenceIndex = unpackInt32(buffer, offset + 24);
+        final int matePosition = unpackInt32(buffer, offset + 28);
+        if (blockSize < BAMFileConstants.FIXED_BLOCK_SIZE || readNameLength < 1 || readLength < 0 ||
+                !isValidPosition(referenceIndex, position) || !isValidPosition(mateReferenceIndex, matePosition) ||
+                BAMFileConstants.FIXED_BLOCK_SIZE + readNameLength + 4L * cigarLength + (readLength + 1L) / 2 + readLength > blockSize) {
+            return IMPLAUSIBLE;
+        }
+        final int readNameOffset = offset + 4 + BAMFileConstants.FIXED_BLOCK_SIZE;
+        if (readNameOffset + readNameLength + 4 * cigarLength > length) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < readNameLength - 1; ++i) {
+            final byte b = buffer[readNameOffset + i];
+            if (b < '!' || b > '~') {
+                return IMPLAUSIBLE;
+            }
+        }
+        if (buffer[readNameOffset + readNameLength - 1] != 0) {
+            return IMPLAUSIBLE;
+        }
+        final int cigarOffset = readNameOffset + readNameLength;
+        for (int i = 0; i < cigarLength; ++i) {
+            if ((buffer[cigarOffset + 4 * i] & 0xF) >= CigarOperator.values().length) {
+                return IMPLAUSIBLE;
+            }
+        }
+        return PLAUSIBLE;
+    }
+
+    private boolean isValidPosition(final int referenceIndex, final int position) {
+        if (referenceIndex < -1 || referenceIndex >= header.getSequenceDictionary().size() || position < -1) {
+            return false;
+        }
+        if (referenceIndex >= 0) {
+            final int sequenceLength = header.getSequence(referenceIndex).getSequenceLength();
+            return sequenceLength <= 0 || position <= sequenceLength;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the record at the given offset, if it is entirely in the buffer, can be decoded.
+     */
+    private boolean canDecode(final byte[] buffer, final int offset, final int length) {
+        final int recordLength = 4 + unpackInt32(buffer, offset);
+        if (offset + recordLength > length) {
+            return true;
+        }
+        final BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(new ByteArrayInputStream(buffer, offset, recordLength));
+        try {
+            final SAMRecord record = codec.decode();
+            record.getCigar();
+            record.getReadBases();
+            record.getAttributes();
+            return true;
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static int unpackInt16(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) |
+                ((buffer[offset+1] & 0xFF) << 8));
+    }
+
+    private static int unpackInt32(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) |
+                ((buffer[offset+1] & 0xFF) << 8) |
+                ((buffer[offset+2] & 0xFF) << 16) |
+                ((buffer[offset+3] & 0xFF) << 24));
+    }
+}
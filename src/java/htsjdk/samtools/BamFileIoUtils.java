@@ -15,6 +15,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 public class BamFileIoUtils {
@@ -59,6 +60,47 @@ public class BamFileIoUtils {
         }
     }
 
+    /**
+     * Copy the records of a coordinate sorted, indexed BAM file that overlap, or are contained in, the given intervals to
+     * a new BAM file with the same header.  The new file has the records that a query of the input for the intervals
+     * would return.  Only the records at the ends of each interval are decoded and rewritten; the gzip blocks between
+     * them are copied directly (see BAMRegionExtractor), which for large regions is much faster than copying records.
+     *
+     * @param inputFile   The BAM file to copy records from
+     * @param intervals   The intervals to copy, which need not be optimized (see QueryInterval.optimizeIntervals())
+     * @param contained   If true, only records contained in an interval are copied, rather than all that overlap one
+     * @param outputFile  The new BAM file
+     * @param createIndex Whether or not to create an index file for the new BAM
+     * @param createMd5   Whether or not to create an MD5 file for the new BAM
+     */
+    public static void extractRegionsWithBlockCopying(final File inputFile, final QueryInterval[] intervals, final boolean contained,
+                                                      final File outputFile, final boolean createIndex, final boolean createMd5) {
+        IOUtil.assertFileIsReadable(inputFile);
+        IOUtil.assertFileIsWritable(outputFile);
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(inputFile);
+        final SAMFileHeader header = reader.getFileHeader();
+        CloserUtil.close(reader);
+        if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            throw new SAMException(inputFile.getAbsolutePath() + " is not coordinate sorted");
+        }
+
+        final BAMRegionExtractor extractor = new BAMRegionExtractor(inputFile, header.getSequenceDictionary());
+        try {
+            final OutputStream outputStream = buildOutputStream(outputFile, createMd5, createIndex);
+            BAMFileWriter.writeHeader(outputStream, header);
+            extractor.extract(QueryInterval.optimizeIntervals(intervals.clone()), contained, outputStream);
+            outputStream.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            outputStream.close();
+            LOG.info(String.format("Copied %d bytes of gzip blocks and recompressed %d bytes from %s", extractor.getBytesCopied(),
+                    extractor.getBytesRecompressed(), inputFile.getAbsolutePath()));
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException(ioe);
+        } finally {
+            extractor.close();
+        }
+    }
+
     /**
      * Copy data from a BAM file to an OutputStream by directly copying the gzip blocks
      *
@@ -68,6 +110,15 @@ public class BamFileIoUtils {
      * @param skipTerminator If true, the terminator block of the input file will not be written to the output stream
      */
     public static void blockCopyBamFile(final File inputFile, final OutputStream outputStream, final boolean skipHeader, final boolean skipTerminator) {
+        blockCopyBamFile(inputFile, outputStream, skipHeader, skipTerminator, 0);
+    }
+
+    /**
+     * As blockCopyBamFile(File, OutputStream, boolean, boolean), but also works out where the input's blocks
+     * end up in the output, given the address in the output at which the copied data starts.
+     */
+    private static BAMIndexMerger.OffsetMap blockCopyBamFile(final File inputFile, final OutputStream outputStream, final boolean skipHeader,
+                                                             final boolean skipTerminator, final long outputStart) {
         FileInputStream in = null;
         try {
             in = new FileInputStream(inputFile);
@@ -77,8 +128,13 @@ public class BamFileIoUtils {
             if (term == BlockCompressedInputStream.FileTermination.DEFECTIVE)
                 throw new SAMException(inputFile.getAbsolutePath() + " does not have a valid GZIP block at the end of the file.");
 
+            long firstBlockAddress = -1;
+            int firstBlockOffset = 0;
+            long firstBlockOutputLength = 0;
             if (skipHeader) {
                 final long vOffsetOfFirstRecord = SAMUtils.findVirtualOffsetOfFirstRecordInBam(inputFile);
+                firstBlockAddress = BlockCompressedFilePointerUtil.getBlockAddress(vOffsetOfFirstRecord);
+                firstBlockOffset = BlockCompressedFilePointerUtil.getBlockOffset(vOffsetOfFirstRecord);
                 final BlockCompressedInputStream blockIn = new BlockCompressedInputStream(inputFile);
                 blockIn.seek(vOffsetOfFirstRecord);
                 final long remainingInBlock = blockIn.available();
@@ -89,6 +145,7 @@ public class BamFileIoUtils {
                     final BlockCompressedOutputStream blockOut = new BlockCompressedOutputStream(outputStream, null);
                     IOUtil.transferByStream(blockIn, blockOut, remainingInBlock);
                     blockOut.flush();
+                    firstBlockOutputLength = BlockCompressedFilePointerUtil.getBlockAddress(blockOut.getFilePointer());
                     // Don't close blockOut because closing underlying stream would break everything
                 }
 
@@ -107,6 +164,8 @@ public class BamFileIoUtils {
             final long bytesToWrite = length - skipLast - currentPos;
 
             IOUtil.transferByStream(in, outputStream, bytesToWrite);
+            return new BAMIndexMerger.OffsetMap(inputFile, firstBlockAddress, firstBlockOffset, firstBlockOutputLength, currentPos,
+                    outputStart, outputStart + firstBlockOutputLength + bytesToWrite);
         } catch (final IOException ioe) {
             throw new RuntimeIOException(ioe);
         } finally {
@@ -119,28 +178,44 @@ public class BamFileIoUtils {
      * most of the gzip blocks. Will decompress and parse blocks up to the one containing the end of the header in each file
      * (often the first block) and re-compress any data remaining in that block into a new block in the output file. Subsequent
      * blocks (excluding a terminator block if present) are copied directly from input to output.
+     *
+     * If an index is requested and every input has an index (see SamFiles.findIndex()), the output's index is made by
+     * merging the inputs' indexes (see BAMIndexMerger), without decoding any records.  Otherwise the output is
+     * inflated and indexed as it is written.
      */
     public static void gatherWithBlockCopying(final List<File> bams, final File output, final boolean createIndex, final boolean createMd5) {
         try {
             OutputStream out = new FileOutputStream(output);
             if (createMd5) out = new Md5CalculatingOutputStream(out, new File(output.getAbsolutePath() + ".md5"));
             File indexFile = null;
+            List<File> inputIndexes = null;
             if (createIndex) {
                 indexFile = new File(output.getParentFile(), IOUtil.basename(output) + BAMIndex.BAMIndexSuffix);
-                out = new StreamInflatingIndexingOutputStream(out, indexFile);
+                inputIndexes = bams.isEmpty() ? null : findIndexes(bams);
+                if (inputIndexes == null) {
+                    out = new StreamInflatingIndexingOutputStream(out, indexFile);
+                }
             }
 
-            boolean isFirstFile = true;
-
-            for (final File f : bams) {
+            final BAMIndexMerger indexMerger = (inputIndexes != null) ? new BAMIndexMerger() : null;
+            long outputPosition = 0;
+            for (int i = 0; i < bams.size(); ++i) {
+                final File f = bams.get(i);
                 LOG.info(String.format("Block copying %s ...", f.getAbsolutePath()));
-                blockCopyBamFile(f, out, !isFirstFile, true);
-                isFirstFile = false;
+                final BAMIndexMerger.OffsetMap offsets = blockCopyBamFile(f, out, i > 0, true, outputPosition);
+                outputPosition = offsets.getOutputEnd();
+                if (indexMerger != null) {
+                    indexMerger.addIndex(inputIndexes.get(i), offsets);
+                }
             }
 
             // And lastly add the Terminator block and close up
             out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
             out.close();
+            if (indexMerger != null) {
+                LOG.info(String.format("Writing %s from the indexes of the inputs", indexFile.getAbsolutePath()));
+                indexMerger.writeIndex(indexFile);
+            }
 
             // It is possible that the modified time on the index file is ever so slightly older than the original BAM file
             // and this makes ValidateSamFile unhappy.
@@ -155,6 +230,19 @@ public class BamFileIoUtils {
         }
     }
 
+    /** @return the index of each of the given BAM files, or null if any of them does not have one. */
+    private static List<File> findIndexes(final List<File> bams) {
+        final List<File> indexes = new ArrayList<File>(bams.size());
+        for (final File bam : bams) {
+            final File index = SamFiles.findIndex(bam);
+            if (index == null) {
+                return null;
+            }
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
     private static OutputStream buildOutputStream(final File outputFile, final boolean createMd5, final boolean createIndex) throws IOException {
         OutputStream outputStream = new FileOutputStream(outputFile);
         if (createMd5) {
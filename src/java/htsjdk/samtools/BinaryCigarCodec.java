@@ -30,6 +30,18 @@ import java.nio.ByteBuffer;
  */
 class BinaryCigarCodec {
 
+    // Elements are immutable, so the short ones, which make up most CIGARs, are shared rather than created anew.
+    private static final int MAX_CACHED_ELEMENT_LENGTH = 255;
+    private static final CigarElement[][] CACHED_ELEMENTS = new CigarElement[CigarOperator.values().length][];
+    static {
+        for (int op = 0; op < CACHED_ELEMENTS.length; ++op) {
+            CACHED_ELEMENTS[op] = new CigarElement[MAX_CACHED_ELEMENT_LENGTH + 1];
+            for (int length = 0; length <= MAX_CACHED_ELEMENT_LENGTH; ++length) {
+                CACHED_ELEMENTS[op][length] = new CigarElement(length, CigarOperator.binaryToEnum(op));
+            }
+        }
+    }
+
     /**
      * Convert CIGAR from object representation to disk representation.
      * @return Array of unsigned ints, one for each element of CIGAR.
@@ -77,6 +89,22 @@ class BinaryCigarCodec {
         return ret;
     }
 
+    /**
+     * Convert CIGAR from disk representation into an existing object, replacing its elements.
+     * @param binaryCigar Array holding little-endian unsigned ints, one for each CIGAR element.
+     * @param offset Offset of the first element in binaryCigar.
+     * @param numElements Number of CIGAR elements.
+     * @param cigar Object to be cleared and filled.
+     */
+    static void decode(final byte[] binaryCigar, final int offset, final int numElements, final Cigar cigar) {
+        cigar.clear();
+        for (int i = 0, pos = offset; i < numElements; ++i, pos += 4) {
+            final int cigarette = (binaryCigar[pos] & 0xff) | (binaryCigar[pos + 1] & 0xff) << 8 |
+                    (binaryCigar[pos + 2] & 0xff) << 16 | binaryCigar[pos + 3] << 24;
+            cigar.add(binaryCigarToCigarElement(cigarette));
+        }
+    }
+
     /**
      * @param cigarette CIGAR element (operator + length) encoded as an unsigned int.
      * @return Object representation of the CIGAR element.
@@ -84,6 +112,9 @@ class BinaryCigarCodec {
     private static CigarElement binaryCigarToCigarElement(final int cigarette) {
         final int binaryOp = cigarette & 0xf;
         final int length = cigarette >> 4;
+        if (length >= 0 && length <= MAX_CACHED_ELEMENT_LENGTH && binaryOp < CACHED_ELEMENTS.length) {
+            return CACHED_ELEMENTS[binaryOp][length];
+        }
         return new CigarElement(length, CigarOperator.binaryToEnum(binaryOp));
     }
 }
@@ -305,6 +305,133 @@ class BinaryTagCodec {
         return head;
     }
 
+    /**
+     * Find a single tag in the little-endian disk representation, without decoding the others.
+     * @param binaryRep Byte buffer containing file representation of tags.
+     * @param offset Where in binaryRep tags start.
+     * @param length How many bytes in binaryRep are tag storage.
+     * @param tag Binary representation of the tag to find.
+     * @return Value of the tag in in-memory Object form, as readTags() would decode it, or null if it is not present.
+     */
+    static Object readTag(final byte[] binaryRep, final int offset, final int length, final short tag,
+                          final ValidationStringency validationStringency) {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(binaryRep, offset, length);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        while (byteBuffer.hasRemaining()) {
+            final short currentTag = byteBuffer.getShort();
+            final byte tagType = byteBuffer.get();
+            if (currentTag == tag) {
+                if (tagType != 'B') {
+                    return readSingleValue(tagType, byteBuffer, validationStringency);
+                }
+                return readArray(byteBuffer, validationStringency).value;
+            }
+            skipValue(tagType, byteBuffer);
+        }
+        return null;
+    }
+
+    /**
+     * Find a single tag in the little-endian disk representation, as readTag() does, but without decoding its value
+     * or creating any objects.
+     * @param binaryRep Byte buffer containing file representation of tags.
+     * @param offset Where in binaryRep tags start.
+     * @param length How many bytes in binaryRep are tag storage.
+     * @param tag Binary representation of the tag to find.
+     * @return Where in binaryRep the type of the tag's value is, followed by the value, or -1 if it is not present.
+     */
+    static int findTag(final byte[] binaryRep, final int offset, final int length, final short tag) {
+        final int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            final short currentTag = (short) ((binaryRep[position] & 0xff) | (binaryRep[position + 1] << 8));
+            final byte tagType = binaryRep[position + 2];
+            if (currentTag == tag) {
+                return position + 2;
+            }
+            position += 3;
+            switch (tagType) {
+                case 'Z':
+                case 'H':
+                    while (binaryRep[position++] != 0) {}
+                    break;
+                case 'A':
+                case 'c':
+                case 'C':
+                    position += 1;
+                    break;
+                case 's':
+                case 'S':
+                    position += 2;
+                    break;
+                case 'i':
+                case 'I':
+                case 'f':
+                    position += 4;
+                    break;
+                case 'B': {
+                    final byte arrayType = binaryRep[position];
+                    final int arrayLength = (binaryRep[position + 1] & 0xff) | ((binaryRep[position + 2] & 0xff) << 8) |
+                            ((binaryRep[position + 3] & 0xff) << 16) | (binaryRep[position + 4] << 24);
+                    position += 5 + arrayLength * getArrayElementSize(arrayType);
+                    break;
+                }
+                default:
+                    throw new SAMFormatException("Unrecognized tag type: " + (char)tagType);
+            }
+        }
+        return -1;
+    }
+
+    private static int getArrayElementSize(final byte arrayType) {
+        switch (Character.toLowerCase(arrayType)) {
+            case 'c':
+                return 1;
+            case 's':
+                return 2;
+            case 'i':
+            case 'f':
+                return 4;
+            default:
+                throw new SAMFormatException("Unrecognized tag array type: " + (char)arrayType);
+        }
+    }
+
+    /**
+     * Advance past a value of the specified type, including arrays, without decoding it.
+     */
+    private static void skipValue(final byte tagType, final ByteBuffer byteBuffer) {
+        switch (tagType) {
+            case 'Z':
+            case 'H':
+                while (byteBuffer.get() != 0) {}
+                break;
+            case 'A':
+            case 'c':
+            case 'C':
+                byteBuffer.position(byteBuffer.position() + 1);
+                break;
+            case 's':
+            case 'S':
+                byteBuffer.position(byteBuffer.position() + 2);
+                break;
+            case 'i':
+            case 'I':
+            case 'f':
+                byteBuffer.position(byteBuffer.position() + 4);
+                break;
+            case 'B': {
+                final byte arrayType = byteBuffer.get();
+                final int length = byteBuffer.getInt();
+                byteBuffer.position(byteBuffer.position() + length * getArrayElementSize(arrayType));
+                break;
+            }
+            default:
+                throw new SAMFormatException("Unrecognized tag type: " + (char)tagType);
+        }
+    }
+
     /**
      * Read value of specified non-array type.
      * @param tagType What type to read.
@@ -51,4 +51,20 @@ public interface BrowseableBAMIndex extends BAMIndex {
      * @return The file pointers
      */
     BAMFileSpan getSpanOverlapping(final Bin bin);    
+
+    /**
+     * Reports how much data the index says overlaps the given range, without reading the BAM file.
+     * @param referenceIndex sequence of desired SAMRecords
+     * @param startPos 1-based start of the desired interval, inclusive
+     * @param endPos 1-based end of the desired interval, inclusive, or 0 for the end of the reference
+     * @return The chunks, compressed bytes and estimated records that a query of the range would read.
+     */
+    BAMRegionStatistics getRegionStatistics(final int referenceIndex, final int startPos, final int endPos);
+
+    /**
+     * Reports how much data is in the chunks of the given bin alone, not those of the bins enclosing it.
+     * @param bin The bin to inspect.
+     * @return The chunks, compressed bytes and estimated records of the bin.
+     */
+    BAMRegionStatistics getBinStatistics(final Bin bin);
 }
@@ -47,6 +47,8 @@ public class CRAMFileReader extends SamReader.ReaderImplementation {
     private File mIndexFile;
     private boolean mEnableIndexCaching;
     private boolean mEnableIndexMemoryMapping;
+    private BAMIndexContentCache mIndexCache;
+    private boolean mEnableCompactIndex;
 
     private ValidationStringency validationStringency;
 
@@ -133,6 +135,22 @@ public class CRAMFileReader extends SamReader.ReaderImplementation {
         mEnableIndexMemoryMapping = enabled;
     }
 
+    /**
+     * If true, uses the compact, memory-mapped index reader, which takes precedence over index caching.
+     * @see CompactBAMFileIndex
+     */
+    void enableCompactIndex(final boolean enabled) {
+        mEnableCompactIndex = enabled;
+    }
+
+    /**
+     * Sets a cache of parsed index content, possibly shared with other readers, to be used when index caching is enabled.
+     * @param cache null to cache index content only within this reader.
+     */
+    void setIndexCache(final BAMIndexContentCache cache) {
+        mIndexCache = cache;
+    }
+
     @Override
     void enableCrcChecking(final boolean enabled) {
         // inapplicable to CRAM: do nothing
@@ -154,8 +172,9 @@ public class CRAMFileReader extends SamReader.ReaderImplementation {
         if (mIndex == null) {
             final SAMSequenceDictionary dictionary = getFileHeader()
                     .getSequenceDictionary();
-            mIndex = mEnableIndexCaching ? new CachingBAMFileIndex(mIndexFile,
-                    dictionary, mEnableIndexMemoryMapping)
+            if (mEnableCompactIndex) mIndex = new CompactBAMFileIndex(mIndexFile);
+            else mIndex = mEnableIndexCaching ? new CachingBAMFileIndex(mIndexFile,
+                    dictionary, mEnableIndexMemoryMapping, mIndexCache)
                     : new DiskBasedBAMFileIndex(mIndexFile, dictionary,
                     mEnableIndexMemoryMapping);
         }
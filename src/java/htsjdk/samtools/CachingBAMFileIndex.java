@@ -33,23 +33,38 @@ import java.util.WeakHashMap;
 
 /**
  * Class for reading BAM file indices, caching each contig as it's loaded and
- * dropping values when the next contig is loaded.
+ * dropping values when the next contig is loaded.  If given a {@link BAMIndexContentCache},
+ * contigs are also looked up in, and added to, that cache, which may be shared with other readers.
  */
 class CachingBAMFileIndex extends AbstractBAMFileIndex implements BrowseableBAMIndex
 {
     private Integer mLastReferenceRetrieved = null;
     private final WeakHashMap<Integer,BAMIndexContent> mQueriesByReference = new WeakHashMap<Integer,BAMIndexContent>();
+    private final BAMIndexContentCache mSharedCache;
+    private final BAMIndexContentCache.IndexFileId mIndexFileId;
 
     public CachingBAMFileIndex(final File file, final SAMSequenceDictionary dictionary) {
-        super(file, dictionary);
+        this(file, dictionary, true, null);
     }
 
     public CachingBAMFileIndex(final SeekableStream stream, final SAMSequenceDictionary dictionary) {
         super(stream, dictionary);
+        mSharedCache = null;
+        mIndexFileId = null;
     }
 
     public CachingBAMFileIndex(final File file, final SAMSequenceDictionary dictionary, final boolean useMemoryMapping) {
+        this(file, dictionary, useMemoryMapping, null);
+    }
+
+    /**
+     * @param sharedCache cache of index content shared with other readers, or null to cache only in this object.
+     */
+    public CachingBAMFileIndex(final File file, final SAMSequenceDictionary dictionary, final boolean useMemoryMapping,
+                               final BAMIndexContentCache sharedCache) {
         super(file, dictionary, useMemoryMapping);
+        mSharedCache = sharedCache;
+        mIndexFileId = (sharedCache == null) ? null : BAMIndexContentCache.getIndexFileId(file);
     }
 
     /**
@@ -132,6 +147,25 @@ class CachingBAMFileIndex extends AbstractBAMFileIndex implements BrowseableBAMI
         return new BAMFileSpan(chunkList);
     }
 
+    public BAMRegionStatistics getRegionStatistics(final int referenceIndex, final int startPos, final int endPos) {
+        final BAMIndexContent queryResults = getQueryResults(referenceIndex);
+        if(queryResults == null)
+            return new BAMRegionStatistics(referenceIndex, startPos, endPos, null, null);
+        return new BAMRegionStatistics(referenceIndex, startPos, endPos,
+                queryResults.getChunksOverlapping(startPos, endPos), queryResults.getMetaData());
+    }
+
+    public BAMRegionStatistics getBinStatistics(final Bin bin) {
+        final BAMIndexContent queryResults = getQueryResults(bin.getReferenceSequence());
+        final int start = getFirstLocusInBin(bin);
+        final int end = getLastLocusInBin(bin);
+        if(queryResults == null || !queryResults.containsBin(bin))
+            return new BAMRegionStatistics(bin.getReferenceSequence(), start, end, null,
+                    queryResults == null ? null : queryResults.getMetaData());
+        return new BAMRegionStatistics(bin.getReferenceSequence(), start, end,
+                queryResults.getBins().getBin(bin.getBinNumber()).getChunkList(), queryResults.getMetaData());
+    }
+
     /**
      * Looks up the cached BAM query results if they're still in the cache and not expired.  Otherwise,
      * retrieves the cache results from disk.
@@ -155,11 +189,23 @@ class CachingBAMFileIndex extends AbstractBAMFileIndex implements BrowseableBAMI
             return queryResults;
         }
 
+        // If not, check to see whether another reader has already loaded it.
+        if(mSharedCache != null) {
+            queryResults = mSharedCache.get(mIndexFileId, referenceIndex);
+            if(queryResults != null) {
+                mLastReferenceRetrieved = referenceIndex;
+                mQueriesByReference.put(referenceIndex,queryResults);
+                return queryResults;
+            }
+        }
+
         // If not in the cache, attempt to load it from disk.
         queryResults = query(referenceIndex,1,-1);
         if(queryResults != null) {
             mLastReferenceRetrieved = referenceIndex;
             mQueriesByReference.put(referenceIndex,queryResults);
+            if(mSharedCache != null)
+                mSharedCache.put(mIndexFileId, referenceIndex, queryResults);
             return queryResults;
         }
 
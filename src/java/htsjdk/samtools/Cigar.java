@@ -58,6 +58,13 @@ public class Cigar {
         cigarElements.add(cigarElement);
     }
 
+    /**
+     * Removes all elements, so that a Cigar owned by a reused BAMRecord can be decoded into again.
+     */
+    void clear() {
+        cigarElements.clear();
+    }
+
     public int numCigarElements() {
         return cigarElements.size();
     }
@@ -0,0 +1,400 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BAM index that memory-maps the index file and keeps the bins of each reference in packed primitive arrays,
+ * loaded the first time the reference is queried.  Unlike {@link CachingBAMFileIndex}, no Bin, Chunk or BinList
+ * objects are kept, and none are created while answering a query other than the chunks of the result, so large
+ * indexes take far less heap.  The file is always memory-mapped.
+ */
+class CompactBAMFileIndex implements BAMIndex {
+    private static final int MAX_POSITION = 0x1FFFFFFF;
+
+    private final File mFile;
+    private ByteBuffer mBuffer;
+    private final int mNumberOfReferences;
+    /** Offset in the file of each reference's bin count, plus the offset of the no-coordinate count at the end. */
+    private final int[] mReferenceOffsets;
+    private final long mStartOfLastLinearBin;
+    private final ReferenceBins[] mReferences;
+
+    CompactBAMFileIndex(final File file) {
+        mFile = file;
+        try {
+            final FileInputStream fileStream = new FileInputStream(file);
+            try {
+                final FileChannel channel = fileStream.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new SAMException("BAM index file " + file + " is too large: " + channel.size());
+                }
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                fileStream.close();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException(e.getMessage(), e);
+        }
+
+        for (int i = 0; i < BAMFileConstants.BAM_INDEX_MAGIC.length; ++i) {
+            if (mBuffer.limit() < 8 || mBuffer.get(i) != BAMFileConstants.BAM_INDEX_MAGIC[i]) {
+                throw new SAMException("Invalid file header in BAM index " + file);
+            }
+        }
+        mNumberOfReferences = mBuffer.getInt(4);
+        mReferenceOffsets = new int[mNumberOfReferences + 1];
+        mReferences = new ReferenceBins[mNumberOfReferences];
+
+        // Walk the file once, skipping over the bins, to find where each reference starts
+        int offset = 8;
+        long startOfLastLinearBin = -1;
+        for (int ref = 0; ref < mNumberOfReferences; ++ref) {
+            mReferenceOffsets[ref] = offset;
+            final int numBins = mBuffer.getInt(offset);
+            offset += 4;
+            for (int i = 0; i < numBins; ++i) {
+                final int numChunks = mBuffer.getInt(offset + 4);
+                offset += 8 + 16 * numChunks;
+            }
+            final int numLinearBins = mBuffer.getInt(offset);
+            offset += 4;
+            if (numLinearBins > 0) {
+                startOfLastLinearBin = mBuffer.getLong(offset + 8 * (numLinearBins - 1));
+            }
+            offset += 8 * numLinearBins;
+        }
+        mReferenceOffsets[mNumberOfReferences] = offset;
+        mStartOfLastLinearBin = startOfLastLinearBin;
+    }
+
+    /**
+     * The bins of one reference.  The chunks of the bin at binNumbers[i] are the pairs of chunk start and end in
+     * chunks[2 * chunkIndexes[i]] up to chunks[2 * chunkIndexes[i + 1]].
+     */
+    private static class ReferenceBins {
+        int[] binNumbers;
+        int[] chunkIndexes;
+        long[] chunks;
+        long[] linearIndex;
+        long[] metaDataChunks;
+    }
+
+    private synchronized ReferenceBins getReference(final int ref) {
+        if (mReferences[ref] == null) {
+            mReferences[ref] = loadReference(ref);
+        }
+        return mReferences[ref];
+    }
+
+    private ReferenceBins loadReference(final int ref) {
+        if (mBuffer == null) {
+            throw new SAMException("BAM index file " + mFile + " has been closed");
+        }
+        int offset = mReferenceOffsets[ref];
+        final int numBins = mBuffer.getInt(offset);
+        offset += 4;
+
+        // First pass to size the arrays
+        int numDataBins = 0;
+        int numChunks = 0;
+        int binOffset = offset;
+        for (int i = 0; i < numBins; ++i) {
+            final int binNumber = mBuffer.getInt(binOffset);
+            final int binChunks = mBuffer.getInt(binOffset + 4);
+            if (binNumber != GenomicIndexUtil.MAX_BINS) {
+                ++numDataBins;
+                numChunks += binChunks;
+            }
+            binOffset += 8 + 16 * binChunks;
+        }
+
+        final ReferenceBins bins = new ReferenceBins();
+        bins.binNumbers = new int[numDataBins];
+        bins.chunkIndexes = new int[numDataBins + 1];
+        bins.chunks = new long[2 * numChunks];
+        bins.metaDataChunks = new long[0];
+        int bin = 0;
+        int chunk = 0;
+        for (int i = 0; i < numBins; ++i) {
+            final int binNumber = mBuffer.getInt(offset);
+            final int binChunks = mBuffer.getInt(offset + 4);
+            offset += 8;
+            final long[] target;
+            final int targetStart;
+            if (binNumber == GenomicIndexUtil.MAX_BINS) {
+                bins.metaDataChunks = new long[2 * binChunks];
+                target = bins.metaDataChunks;
+                targetStart = 0;
+            } else {
+                bins.binNumbers[bin] = binNumber;
+                bins.chunkIndexes[bin] = chunk;
+                ++bin;
+                target = bins.chunks;
+                targetStart = 2 * chunk;
+                chunk += binChunks;
+            }
+            for (int c = 0; c < 2 * binChunks; ++c) {
+                target[targetStart + c] = mBuffer.getLong(offset);
+                offset += 8;
+            }
+        }
+        bins.chunkIndexes[numDataBins] = chunk;
+        sortBins(bins);
+
+        final int numLinearBins = mBuffer.getInt(offset);
+        offset += 4;
+        bins.linearIndex = new long[numLinearBins];
+        for (int i = 0; i < numLinearBins; ++i) {
+            bins.linearIndex[i] = mBuffer.getLong(offset);
+            offset += 8;
+        }
+        return bins;
+    }
+
+    /** Bins are normally written in ascending order, but the format doesn't require it, and lookups depend on it. */
+    private static void sortBins(final ReferenceBins bins) {
+        for (int i = 1; i < bins.binNumbers.length; ++i) {
+            if (bins.binNumbers[i - 1] > bins.binNumbers[i]) {
+                final int[] order = new int[bins.binNumbers.length];
+                for (int j = 0; j < order.length; ++j) order[j] = j;
+                // Insertion sort of the permutation; out-of-order indexes are rare, so this need not be fast
+                for (int j = 1; j < order.length; ++j) {
+                    final int o = order[j];
+                    int k = j - 1;
+                    while (k >= 0 && bins.binNumbers[order[k]] > bins.binNumbers[o]) {
+                        order[k + 1] = order[k];
+                        --k;
+                    }
+                    order[k + 1] = o;
+                }
+                final int[] binNumbers = new int[order.length];
+                final int[] chunkIndexes = new int[order.length + 1];
+                final long[] chunks = new long[bins.chunks.length];
+                int chunk = 0;
+                for (int j = 0; j < order.length; ++j) {
+                    binNumbers[j] = bins.binNumbers[order[j]];
+                    chunkIndexes[j] = chunk;
+                    final int from = 2 * bins.chunkIndexes[order[j]];
+                    final int length = 2 * (bins.chunkIndexes[order[j] + 1] - bins.chunkIndexes[order[j]]);
+                    System.arraycopy(bins.chunks, from, chunks, 2 * chunk, length);
+                    chunk += length / 2;
+                }
+                chunkIndexes[order.length] = chunk;
+                bins.binNumbers = binNumbers;
+                bins.chunkIndexes = chunkIndexes;
+                bins.chunks = chunks;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the file span of the records that may overlap the given range, as {@link DiskBasedBAMFileIndex} does,
+     * but without building the bins.
+     * @param startPos 1-based start of the desired interval, inclusive
+     * @param endPos 1-based end of the desired interval, inclusive, or 0 for the end of the reference
+     * @return The span, or null if there are no records in the range.
+     */
+    @Override
+    public BAMFileSpan getSpanOverlapping(final int referenceIndex, final int startPos, final int endPos) {
+        if (referenceIndex < 0 || referenceIndex >= mNumberOfReferences) {
+            return null;
+        }
+        final int start = (startPos <= 0) ? 0 : (startPos - 1) & MAX_POSITION;
+        final int end = (endPos <= 0) ? MAX_POSITION : (endPos - 1) & MAX_POSITION;
+        if (start > end) {
+            return null;
+        }
+        final ReferenceBins bins = getReference(referenceIndex);
+
+        final int linearBin = start >> LinearIndex.BAM_LIDX_SHIFT;
+        final long minimumOffset = (linearBin < bins.linearIndex.length) ? bins.linearIndex[linearBin] : 0;
+
+        // Count, then gather, the chunks of the overlapping bins that end after the minimum offset
+        int numChunks = 0;
+        for (int level = 0; level < GenomicIndexUtil.LEVEL_STARTS.length; ++level) {
+            numChunks += gatherChunks(bins, level, start, end, minimumOffset, null);
+        }
+        if (numChunks == 0) {
+            return null;
+        }
+        final long[] chunks = new long[2 * numChunks];
+        int gathered = 0;
+        for (int level = 0; level < GenomicIndexUtil.LEVEL_STARTS.length; ++level) {
+            gathered += gatherChunks(bins, level, start, end, minimumOffset, chunks, 2 * gathered);
+        }
+        sortChunks(chunks);
+
+        // Coalesce overlapping and adjacent chunks, as Chunk.optimizeChunkList() does
+        final List<Chunk> result = new ArrayList<Chunk>();
+        long chunkStart = chunks[0];
+        long chunkEnd = chunks[1];
+        for (int i = 2; i < chunks.length; i += 2) {
+            if (chunks[i] <= chunkEnd) {
+                chunkEnd = Math.max(chunkEnd, chunks[i + 1]);
+            } else {
+                result.add(new Chunk(chunkStart, chunkEnd));
+                chunkStart = chunks[i];
+                chunkEnd = chunks[i + 1];
+            }
+        }
+        result.add(new Chunk(chunkStart, chunkEnd));
+        return new BAMFileSpan(result);
+    }
+
+    private static int gatherChunks(final ReferenceBins bins, final int level, final int start, final int end,
+                                    final long minimumOffset, final long[] target) {
+        return gatherChunks(bins, level, start, end, minimumOffset, target, 0);
+    }
+
+    /**
+     * Finds the bins of one level that overlap the range and copies their chunks that end after the minimum
+     * offset into target, if it is not null.
+     * @return The number of chunks found.
+     */
+    private static int gatherChunks(final ReferenceBins bins, final int level, final int start, final int end,
+                                    final long minimumOffset, final long[] target, final int targetStart) {
+        final int shift = 29 - 3 * level;
+        final int firstBin = GenomicIndexUtil.LEVEL_STARTS[level] + (start >> shift);
+        final int lastBin = GenomicIndexUtil.LEVEL_STARTS[level] + (end >> shift);
+        int count = 0;
+        int i = lowerBound(bins.binNumbers, firstBin);
+        for (; i < bins.binNumbers.length && bins.binNumbers[i] <= lastBin; ++i) {
+            for (int c = bins.chunkIndexes[i]; c < bins.chunkIndexes[i + 1]; ++c) {
+                if (bins.chunks[2 * c + 1] > minimumOffset) {
+                    if (target != null) {
+                        target[targetStart + 2 * count] = bins.chunks[2 * c];
+                        target[targetStart + 2 * count + 1] = bins.chunks[2 * c + 1];
+                    }
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** @return the index of the first element of the sorted array that is at least the key. */
+    private static int lowerBound(final int[] sorted, final int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Sorts the pairs of chunk start and end by start, then end, with a bottom-up merge sort, because whole-reference
+     * queries on deep files can have tens of thousands of chunks.
+     */
+    static void sortChunks(final long[] chunks) {
+        final int n = chunks.length / 2;
+        long[] from = chunks;
+        long[] to = new long[chunks.length];
+        for (int width = 1; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                final int mid = Math.min(low + width, n);
+                final int high = Math.min(low + 2 * width, n);
+                int i = low;
+                int j = mid;
+                for (int k = low; k < high; ++k) {
+                    if (j >= high || (i < mid && !chunkLessThan(from, j, i))) {
+                        to[2 * k] = from[2 * i];
+                        to[2 * k + 1] = from[2 * i + 1];
+                        ++i;
+                    } else {
+                        to[2 * k] = from[2 * j];
+                        to[2 * k + 1] = from[2 * j + 1];
+                        ++j;
+                    }
+                }
+            }
+            final long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != chunks) {
+            System.arraycopy(from, 0, chunks, 0, chunks.length);
+        }
+    }
+
+    /** @return true if chunk i of the array of pairs of chunk start and end sorts before chunk j. */
+    private static boolean chunkLessThan(final long[] chunks, final int i, final int j) {
+        return chunks[2 * i] < chunks[2 * j] || (chunks[2 * i] == chunks[2 * j] && chunks[2 * i + 1] < chunks[2 * j + 1]);
+    }
+
+    @Override
+    public long getStartOfLastLinearBin() {
+        return mStartOfLastLinearBin;
+    }
+
+    @Override
+    public BAMIndexMetaData getMetaData(final int reference) {
+        if (reference < 0 || reference >= mNumberOfReferences) {
+            return null;
+        }
+        final long[] metaDataChunks = getReference(reference).metaDataChunks;
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int i = 0; i < metaDataChunks.length; i += 2) {
+            chunks.add(new Chunk(metaDataChunks[i], metaDataChunks[i + 1]));
+        }
+        return new BAMIndexMetaData(chunks);
+    }
+
+    /**
+     * @return count of records unassociated with any reference, or null if the index predates that field.
+     */
+    public Long getNoCoordinateCount() {
+        final int offset = mReferenceOffsets[mNumberOfReferences];
+        if (mBuffer == null || offset + 8 > mBuffer.limit()) {
+            return null;
+        }
+        return mBuffer.getLong(offset);
+    }
+
+    public int getNumberOfReferences() {
+        return mNumberOfReferences;
+    }
+
+    /**
+     * Releases the mapping of the file.  References already loaded can still be queried.
+     */
+    @Override
+    public synchronized void close() {
+        mBuffer = null;
+    }
+}
@@ -21,6 +21,62 @@ public class Defaults {
     /** Compresion level to be used for writing BAM and other block-compressed outputs.  Default = 5. */
     public static final int COMPRESSION_LEVEL;
 
+    /**
+     * Number of inflater threads when reading BAM and other block-compressed inputs: each reader reads this many BGZF
+     * blocks ahead and inflates them on a shared pool with at least this many threads.  Default = 0 (inflate each
+     * block on the reading thread as it is needed).
+     */
+    public static final int INFLATER_THREADS;
+
+    /**
+     * Number of BGZF blocks to compress in the background when writing BAM and other block-compressed outputs.
+     * Default = 0 (compress each block on the writing thread as it is filled).
+     */
+    public static final int DEFLATER_THREADS;
+
+    /**
+     * Number of batches of BAM records to encode in the background when writing BAM files.  Default = 0 (encode each
+     * record on the writing thread as it is added).
+     */
+    public static final int ENCODER_THREADS;
+
+    /**
+     * Number of threads on which SAM and BAM writers sort records that are not presorted, and spill and merge
+     * them in the background (see SortingCollection.setSortThreads()).  Default = 0 (sort on the writing thread).
+     */
+    public static final int SORT_THREADS;
+
+    /**
+     * Number of batches of BAM records to decode in the background, ahead of the reader.  Default = 0 (decode each
+     * record on the reading thread as it is needed).
+     */
+    public static final int DECODER_THREADS;
+
+    /**
+     * Maximum number of bytes of free 8MB chunks, each of heap and off-heap memory, that SortingCollections holding
+     * serialized records keep for reuse by other such collections while any of them is in use.  The chunks are
+     * freed when the last such collection is cleaned up.  Default = 64MB.
+     */
+    public static final long SORT_ARENA_POOL_BYTES;
+
+    /**
+     * Number of bytes of inflated BGZF blocks that indexed BAM queries may read in the background, ahead of the
+     * reader, from the chunks that the query is yet to reach.  Default = 0 (read each chunk as it is reached).
+     */
+    public static final int QUERY_PREFETCH_BYTES;
+
+    /**
+     * Maximum number of bytes of parsed BAM index content to keep in the process-wide cache shared by readers with
+     * index caching enabled (see BAMIndexContentCache).  Default = 0 (no shared cache).
+     */
+    public static final int INDEX_CACHE_BYTES;
+
+    /**
+     * Should local files be read through memory-mapped streams (see SeekableMemoryMappedFileStream) rather than
+     * RandomAccessFile?  Default = false.
+     */
+    public static final boolean USE_MEMORY_MAPPED_FILES;
+
     /** Buffer size, in bytes, used whenever reading/writing files or streams.  Default = 128k. */
     public static final int BUFFER_SIZE;
 
@@ -39,6 +95,12 @@ public class Defaults {
      */
     public static final String INTEL_DEFLATER_SHARED_LIBRARY_PATH;
 
+    /**
+     * Fully qualified name of a subclass of htsjdk.samtools.util.zip.InflaterFactory, with a public no-arg constructor,
+     * used to create the Inflaters for reading BGZF files.  Default = "" (use JDK Inflater).
+     */
+    public static final String INFLATER_FACTORY;
+
     /**
      * The reference FASTA file.  If this is not set, the file is null.  This file may be required for reading
      * writing SAM files (ex. CRAM).
@@ -64,9 +126,19 @@ public class Defaults {
         CREATE_MD5 = getBooleanProperty("create_md5", false);
         USE_ASYNC_IO = getBooleanProperty("use_async_io", false);
         COMPRESSION_LEVEL = getIntProperty("compression_level", 5);
+        INFLATER_THREADS = getIntProperty("inflater_threads", 0);
+        DEFLATER_THREADS = getIntProperty("deflater_threads", 0);
+        ENCODER_THREADS = getIntProperty("encoder_threads", 0);
+        DECODER_THREADS = getIntProperty("decoder_threads", 0);
+        SORT_THREADS = getIntProperty("sort_threads", 0);
+        SORT_ARENA_POOL_BYTES = getLongProperty("sort_arena_pool_bytes", 64L * 1024 * 1024);
+        QUERY_PREFETCH_BYTES = getIntProperty("query_prefetch_bytes", 0);
+        INDEX_CACHE_BYTES = getIntProperty("index_cache_bytes", 0);
+        USE_MEMORY_MAPPED_FILES = getBooleanProperty("use_memory_mapped_files", false);
         BUFFER_SIZE = getIntProperty("buffer_size", 1024 * 128);
         TRY_USE_INTEL_DEFLATER = getBooleanProperty("try_use_intel_deflater", true);
         INTEL_DEFLATER_SHARED_LIBRARY_PATH = getStringProperty("intel_deflater_so_path", null);
+        INFLATER_FACTORY = getStringProperty("inflater_factory", "");
         if (BUFFER_SIZE == 0) {
             NON_ZERO_BUFFER_SIZE = 1024 * 128;
         } else {
@@ -94,6 +166,12 @@ public class Defaults {
         return Integer.parseInt(value);
     }
 
+    /** Gets a long system property, prefixed with "samjdk." using the default if the property does not exist. */
+    private static long getLongProperty(final String name, final long def) {
+        final String value = getStringProperty(name, Long.toString(def));
+        return Long.parseLong(value);
+    }
+
     /** Gets a File system property, prefixed with "samdjk." using the default if the property does not exist. */
     private static File getFileProperty(final String name, final String def) {
         final String value = getStringProperty(name, def);
@@ -24,22 +24,62 @@
 package htsjdk.samtools;
 
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 
 /**
  * Provides an iterator interface for merging multiple underlying iterators into a single
  * iterable stream. The underlying iterators/files must all have the same sort order unless
  * the requested output format is unsorted, in which case any combination is valid.
+ *
+ * Records are merged through a loser (tournament) tree, so that each record costs log2(number of inputs)
+ * comparisons, and when the sort order's comparator provides sort keys (see SortingCollection.KeyedComparator)
+ * most of those comparisons are of primitive keys.  Records equal in sort order are returned in the order in
+ * which their inputs were given.  Read group, program group and sequence index translations are looked up once
+ * per input rather than once per record, and each input may be read ahead in batches (see setReadAheadRecords()).
+ *
+ * To merge more files than may be open at the same time, see mergeFiles().
  */
 public class MergingSamRecordIterator implements CloseableIterator<SAMRecord> {
-    private final PriorityQueue<ComparableSamRecordIterator> pq;
+    /** By default, records are read from each input only as they are needed. */
+    public static final int DEFAULT_READ_AHEAD_RECORDS = 1;
+
+    /** Compression level of the temporary files written by mergeFiles(), which are read back just once. */
+    private static final int TEMP_FILE_COMPRESSION_LEVEL = 1;
+
     private final SamFileHeaderMerger samHeaderMerger;
     private final Collection<SamReader> readers;
     private final SAMFileHeader.SortOrder sortOrder;
     private final SAMRecordComparator comparator;
+    private final SortingCollection.KeyedComparator<SAMRecord> keyedComparator;
+
+    /** Inputs given to the constructor, which are not read until iteration starts. */
+    private final List<MergeSource> pendingSources = new ArrayList<MergeSource>();
+
+    /** Temporary files written by mergeFiles(), which are deleted when this iterator is closed. */
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    private int readAheadRecords = DEFAULT_READ_AHEAD_RECORDS;
+
+    private MergeSource[] sources;
+
+    /** Internal nodes of the loser tree: tree[n] is the index of the source that lost the match at node n. */
+    private int[] tree;
+
+    /** Index of the source whose next record is the next to be returned. */
+    private int winner;
 
     private boolean initialized = false;
 
@@ -66,10 +106,9 @@ public class MergingSamRecordIterator implements CloseableIterator<SAMRecord> {
         this.samHeaderMerger = headerMerger;
         this.sortOrder = headerMerger.getMergedHeader().getSortOrder();
         this.comparator = getComparator();
+        this.keyedComparator = getKeyedComparator(comparator);
         this.readers = readers;
 
-        this.pq = new PriorityQueue<ComparableSamRecordIterator>(readers.size());
-
         for (final SamReader reader : readers) {
             if (!samHeaderMerger.getHeaders().contains(reader.getFileHeader()))
                 throw new SAMException("All iterators to be merged must be accounted for in the SAM header merger");
@@ -90,84 +129,252 @@ public class MergingSamRecordIterator implements CloseableIterator<SAMRecord> {
     public MergingSamRecordIterator(final SamFileHeaderMerger headerMerger, final Map<SamReader, CloseableIterator<SAMRecord>> iterators, final boolean assumeSorted) {
         this(headerMerger, iterators.keySet(), assumeSorted);
         for (final Map.Entry<SamReader, CloseableIterator<SAMRecord>> mapping : iterators.entrySet())
-            addIfNotEmpty(new ComparableSamRecordIterator(mapping.getKey(), mapping.getValue(), comparator));
-        initialized = true;
+            pendingSources.add(new MergeSource(mapping.getValue(), mapping.getKey().getFileHeader(), null));
     }
 
-    private void startIterationIfRequired() {
-        if (initialized)
-            return;
-        for (final SamReader reader : readers)
-            addIfNotEmpty(new ComparableSamRecordIterator(reader, reader.iterator(), comparator));
-        initialized = true;
+    /**
+     * Merges inputs that have already been checked against the header merger.  Inputs with a null header are files
+     * written by mergeFiles(), whose records need no translation.
+     */
+    private MergingSamRecordIterator(final SamFileHeaderMerger headerMerger, final SamReaderFactory readerFactory,
+                                     final List<MergeInput> inputs, final int readAheadRecords) {
+        this.samHeaderMerger = headerMerger;
+        this.sortOrder = headerMerger.getMergedHeader().getSortOrder();
+        this.comparator = getComparator();
+        this.keyedComparator = getKeyedComparator(comparator);
+        this.readers = Collections.emptyList();
+        setReadAheadRecords(readAheadRecords);
+        try {
+            for (final MergeInput input : inputs) {
+                final SamReader reader = readerFactory.open(input.file);
+                pendingSources.add(new MergeSource(reader.iterator(), input.header, reader));
+            }
+        } catch (final RuntimeException e) {
+            close();
+            throw e;
+        }
     }
 
     /**
-     * Close down all open iterators.
+     * Merges the given files, of which no more than maxOpenFiles are open at any time.  If there are more files
+     * than that, runs of up to maxOpenFiles consecutive files are first merged into temporary BAM files in tmpDir,
+     * translated to the merged header, each taking the place of the files it replaces, until few enough files remain
+     * to be merged by the returned iterator.  Records equal in sort order are therefore returned in the order of
+     * their files, as when merging all the files at once.  The temporary files are deleted when the returned
+     * iterator is closed.
+     *
+     * @param readerFactory     Used to open each file.  Each file is opened once to read its header, and then again
+     *                          when it is merged.
+     * @param inputs            The files to merge, which must be in the given sort order unless it is unsorted.
+     * @param sortOrder         Sort order of the merged records.
+     * @param mergeDictionaries Whether to merge the files' sequence dictionaries (see SamFileHeaderMerger).
+     * @param maxOpenFiles      Maximum number of files to have open at the same time; must be at least 2.
+     * @param readAheadRecords  Number of records to read at a time from each file (see setReadAheadRecords()).
+     * @param tmpDir            Directory in which to write temporary files.
      */
-    public void close() {
-        // Iterators not in the priority queue have already been closed; only close down the iterators that are still in the priority queue.
-        for (CloseableIterator<SAMRecord> iterator : pq)
-            iterator.close();
+    public static MergingSamRecordIterator mergeFiles(final SamReaderFactory readerFactory, final List<File> inputs,
+                                                      final SAMFileHeader.SortOrder sortOrder, final boolean mergeDictionaries,
+                                                      final int maxOpenFiles, final int readAheadRecords, final File tmpDir) {
+        if (maxOpenFiles < 2) {
+            throw new IllegalArgumentException("maxOpenFiles must be at least 2: " + maxOpenFiles);
+        }
+        final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(inputs.size());
+        List<MergeInput> pending = new ArrayList<MergeInput>(inputs.size());
+        for (final File input : inputs) {
+            final SamReader reader = readerFactory.open(input);
+            final SAMFileHeader header = reader.getFileHeader();
+            CloserUtil.close(reader);
+            if (sortOrder != SAMFileHeader.SortOrder.unsorted && header.getSortOrder() != sortOrder) {
+                throw new SAMException("File " + input + " is not compatible with sort order " + sortOrder);
+            }
+            headers.add(header);
+            pending.add(new MergeInput(input, header));
+        }
+        final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(sortOrder, headers, mergeDictionaries);
+
+        // Each intermediate merge replaces a run of consecutive inputs with one file in the run's place, so that
+        // records equal in sort order still come out in the order of their inputs, whatever maxOpenFiles is.  Each
+        // pass over the inputs merges only as many runs as are needed to leave maxOpenFiles inputs, if it can.
+        final List<File> tempFiles = new ArrayList<File>();
+        try {
+            while (pending.size() > maxOpenFiles) {
+                final List<MergeInput> merged = new ArrayList<MergeInput>();
+                int excess = pending.size() - maxOpenFiles;
+                int i = 0;
+                while (i < pending.size()) {
+                    final int groupSize = Math.min(Math.min(maxOpenFiles, excess + 1), pending.size() - i);
+                    if (groupSize < 2) {
+                        merged.add(pending.get(i++));
+                        continue;
+                    }
+                    final List<MergeInput> group = pending.subList(i, i + groupSize);
+                    final File tempFile = mergeToTempFile(headerMerger, readerFactory, group, readAheadRecords, tmpDir);
+                    tempFiles.add(tempFile);
+                    merged.add(new MergeInput(tempFile, null));
+                    for (final MergeInput input : group) {
+                        if (input.header == null) {
+                            IOUtil.deleteFiles(input.file);
+                            tempFiles.remove(input.file);
+                        }
+                    }
+                    excess -= groupSize - 1;
+                    i += groupSize;
+                }
+                pending = merged;
+            }
+            final MergingSamRecordIterator iterator =
+                    new MergingSamRecordIterator(headerMerger, readerFactory, pending, readAheadRecords);
+            iterator.tempFiles.addAll(tempFiles);
+            return iterator;
+        } catch (final RuntimeException e) {
+            IOUtil.deleteFiles(tempFiles);
+            throw e;
+        }
     }
 
-    /** Returns true if any of the underlying iterators has more records, otherwise false. */
-    public boolean hasNext() {
-        startIterationIfRequired();
-        return !this.pq.isEmpty();
+    private static File mergeToTempFile(final SamFileHeaderMerger headerMerger, final SamReaderFactory readerFactory,
+                                        final List<MergeInput> group, final int readAheadRecords, final File tmpDir) {
+        final File tempFile;
+        try {
+            tempFile = IOUtil.newTempFile("MergingSamRecordIterator.", ".bam", new File[]{tmpDir});
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not create temporary file in " + tmpDir, e);
+        }
+        final MergingSamRecordIterator iterator =
+                new MergingSamRecordIterator(headerMerger, readerFactory, group, readAheadRecords);
+        try {
+            final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(false).setCreateMd5File(false)
+                    .makeBAMWriter(headerMerger.getMergedHeader(), true, tempFile, TEMP_FILE_COMPRESSION_LEVEL);
+            while (iterator.hasNext()) {
+                writer.addAlignment(iterator.next());
+            }
+            writer.close();
+        } catch (final RuntimeException e) {
+            IOUtil.deleteFiles(tempFile);
+            throw e;
+        } finally {
+            iterator.close();
+        }
+        return tempFile;
     }
 
-    /** Returns the next record from the top most iterator during merging. */
-    public SAMRecord next() {
-        startIterationIfRequired();
+    /**
+     * Sets the number of records to read at a time from each input, which are held until they are merged.  Reading
+     * many records at a time from each input, rather than one record at a time from whichever is next, keeps reads
+     * from each file sequential when merging many files, at the cost of holding inputs * readAheadRecords records.
+     * Must be called before iteration starts.
+     */
+    public void setReadAheadRecords(final int readAheadRecords) {
+        if (readAheadRecords < 1) {
+            throw new IllegalArgumentException("readAheadRecords must be at least 1: " + readAheadRecords);
+        }
+        if (initialized) {
+            throw new IllegalStateException("setReadAheadRecords must be called before iteration starts");
+        }
+        this.readAheadRecords = readAheadRecords;
+    }
 
-        final ComparableSamRecordIterator iterator = this.pq.poll();
-        final SAMRecord record = iterator.next();
-        addIfNotEmpty(iterator);
-        record.setHeader(this.samHeaderMerger.getMergedHeader());
+    public int getReadAheadRecords() {
+        return readAheadRecords;
+    }
 
-        // Fix the read group if needs be
-        if (this.samHeaderMerger.hasReadGroupCollisions()) {
-            final String oldGroupId = (String) record.getAttribute(ReservedTagConstants.READ_GROUP_ID);
-            if (oldGroupId != null) {
-                final String newGroupId = this.samHeaderMerger.getReadGroupId(iterator.getReader().getFileHeader(), oldGroupId);
-                record.setAttribute(ReservedTagConstants.READ_GROUP_ID, newGroupId);
-            }
+    private void startIterationIfRequired() {
+        if (initialized)
+            return;
+        if (pendingSources.isEmpty()) {
+            for (final SamReader reader : readers)
+                pendingSources.add(new MergeSource(reader.iterator(), reader.getFileHeader(), null));
         }
+        sources = pendingSources.toArray(new MergeSource[pendingSources.size()]);
+        pendingSources.clear();
+        for (final MergeSource source : sources)
+            source.advance();
+        tree = new int[sources.length];
+        if (sources.length > 0)
+            winner = buildTree(1);
+        initialized = true;
+    }
 
-        // Fix the program group if needs be
-        if (this.samHeaderMerger.hasProgramGroupCollisions()) {
-            final String oldGroupId = (String) record.getAttribute(ReservedTagConstants.PROGRAM_GROUP_ID);
-            if (oldGroupId != null) {
-                final String newGroupId = this.samHeaderMerger.getProgramGroupId(iterator.getReader().getFileHeader(), oldGroupId);
-                record.setAttribute(ReservedTagConstants.PROGRAM_GROUP_ID, newGroupId);
-            }
+    /**
+     * Plays the matches below the given node of the loser tree, in which sources are leaves sources.length
+     * onwards, recording the loser at each node.
+     *
+     * @return the index of the source that wins at the given node.
+     */
+    private int buildTree(final int node) {
+        if (node >= sources.length) {
+            return node - sources.length;
         }
+        final int left = buildTree(2 * node);
+        final int right = buildTree(2 * node + 1);
+        if (precedes(right, left)) {
+            tree[node] = left;
+            return right;
+        } else {
+            tree[node] = right;
+            return left;
+        }
+    }
 
-        // Fix up the sequence indexes if needs be
-        if (this.samHeaderMerger.hasMergedSequenceDictionary()) {
-            if (record.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                record.setReferenceIndex(this.samHeaderMerger.getMergedSequenceIndex(iterator.getReader().getFileHeader(), record.getReferenceIndex()));
-            }
-
-            if (record.getReadPairedFlag() && record.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                record.setMateReferenceIndex(this.samHeaderMerger.getMergedSequenceIndex(iterator.getReader().getFileHeader(), record.getMateReferenceIndex()));
+    /** Replays the matches from the given source, which has advanced, to the root of the loser tree. */
+    private void replayFrom(final int source) {
+        int currentWinner = source;
+        for (int node = (source + sources.length) >>> 1; node > 0; node >>>= 1) {
+            if (precedes(tree[node], currentWinner)) {
+                final int loser = currentWinner;
+                currentWinner = tree[node];
+                tree[node] = loser;
             }
         }
+        winner = currentWinner;
+    }
 
-        return record;
+    /** Returns true if the next record of source a should be returned before that of source b. */
+    private boolean precedes(final int a, final int b) {
+        final MergeSource sourceA = sources[a];
+        final MergeSource sourceB = sources[b];
+        if (sourceA.head == null) return false;
+        if (sourceB.head == null) return true;
+        if (keyedComparator != null && sourceA.headKey != sourceB.headKey) {
+            return sourceA.headKey < sourceB.headKey;
+        }
+        final int cmp = comparator.compare(sourceA.head, sourceB.head);
+        return cmp < 0 || (cmp == 0 && a < b);
     }
 
     /**
-     * Adds iterator to priority queue. If the iterator has more records it is added
-     * otherwise it is closed and not added.
+     * Close down all open iterators.
      */
-    private void addIfNotEmpty(final ComparableSamRecordIterator iterator) {
-        if (iterator.hasNext()) {
-            pq.offer(iterator);
-        } else {
-            iterator.close();
+    public void close() {
+        // Sources that have been exhausted have already been closed; close down those that are still open.
+        for (final MergeSource source : pendingSources)
+            source.close();
+        if (sources != null) {
+            for (final MergeSource source : sources)
+                source.close();
         }
+        if (!tempFiles.isEmpty()) {
+            IOUtil.deleteFiles(tempFiles);
+            tempFiles.clear();
+        }
+    }
+
+    /** Returns true if any of the underlying iterators has more records, otherwise false. */
+    public boolean hasNext() {
+        startIterationIfRequired();
+        return sources.length > 0 && sources[winner].head != null;
+    }
+
+    /** Returns the next record from the top most iterator during merging. */
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("MergingSamRecordIterator is exhausted");
+        }
+        final MergeSource source = sources[winner];
+        final SAMRecord record = source.head;
+        source.advance();
+        replayFrom(winner);
+        return record;
     }
 
     /** Unsupported operation. */
@@ -201,15 +408,24 @@ public class MergingSamRecordIterator implements CloseableIterator<SAMRecord> {
         return this.sortOrder.getComparatorInstance();
     }
 
+    @SuppressWarnings("unchecked")
+    private static SortingCollection.KeyedComparator<SAMRecord> getKeyedComparator(final SAMRecordComparator comparator) {
+        if (comparator instanceof SortingCollection.KeyedComparator) {
+            return (SortingCollection.KeyedComparator<SAMRecord>) comparator;
+        }
+        return null;
+    }
+
     /** Returns the merged header that the merging iterator is working from. */
     public SAMFileHeader getMergedHeader() {
         return this.samHeaderMerger.getMergedHeader();
     }
 
     /**
-     * Ugh.  Basically does a regular coordinate compare, but looks up the sequence indices in the merged
-     * sequence dictionary.  I hate the fact that this extends SAMRecordCoordinateComparator, but it avoids
-     * more copy & paste.
+     * Ugh.  Basically does a regular coordinate compare, but for unplaced records falls back to the mate's
+     * sequence index.  Records are translated to the merged sequence dictionary as they are read, so the
+     * sequence indices compared are those of the merged dictionary.  I hate the fact that this extends
+     * SAMRecordCoordinateComparator, but it avoids more copy & paste.
      */
     private class MergedSequenceDictionaryCoordinateOrderComparator extends SAMRecordCoordinateComparator {
 
@@ -232,14 +448,194 @@ public class MergingSamRecordIterator implements CloseableIterator<SAMRecord> {
             return samRecord1.getAlignmentStart() - samRecord2.getAlignmentStart();
         }
 
+        /** As for SAMRecordCoordinateComparator, but using the same sequence index as fileOrderCompare(). */
+        @Override
+        public long getSortKey(final SAMRecord samRecord) {
+            final int refIndex = getReferenceIndex(samRecord);
+            final long key;
+            if (refIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                key = (long) Integer.MAX_VALUE << 32;
+            } else {
+                key = ((long) Math.max(refIndex, 0) << 32) | ((long) Math.max(samRecord.getAlignmentStart(), 0) << 1);
+            }
+            return samRecord.getReadNegativeStrandFlag() ? key | 1 : key;
+        }
+
         private int getReferenceIndex(final SAMRecord samRecord) {
             if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                return samHeaderMerger.getMergedSequenceIndex(samRecord.getHeader(), samRecord.getReferenceIndex());
+                return samRecord.getReferenceIndex();
+            }
+            return samRecord.getMateReferenceIndex();
+        }
+    }
+
+    /** A file to be merged by mergeFiles(), with the header it was read with, or null if it is a temporary file. */
+    private static class MergeInput {
+        private final File file;
+        private final SAMFileHeader header;
+
+        private MergeInput(final File file, final SAMFileHeader header) {
+            this.file = file;
+            this.header = header;
+        }
+    }
+
+    /**
+     * One input to the merge, which reads records ahead into a buffer and translates them to the merged header as
+     * they are read, so that the records compared in the loser tree are already in terms of the merged header.
+     */
+    private class MergeSource {
+        private final CloseableIterator<SAMRecord> iterator;
+        /** The header that records from this source were read with, or null if they need no translation. */
+        private final SAMFileHeader header;
+        /** Closed along with the iterator, if not null. */
+        private final SamReader reader;
+        private final IdTranslationCache readGroupIds;
+        private final IdTranslationCache programGroupIds;
+        /** Merged sequence index for each sequence index in the source's dictionary, or null if not merging dictionaries. */
+        private final int[] sequenceIndices;
+
+        private SAMRecord[] buffer;
+        private int bufferPosition = 0;
+        private int bufferSize = 0;
+        private boolean closed = false;
+
+        /** The next record from this source, or null if the source is exhausted. */
+        private SAMRecord head;
+        private long headKey;
+
+        private MergeSource(final CloseableIterator<SAMRecord> iterator, final SAMFileHeader header, final SamReader reader) {
+            this.iterator = iterator;
+            this.header = header;
+            this.reader = reader;
+            if (header != null && samHeaderMerger.hasReadGroupCollisions()) {
+                readGroupIds = new IdTranslationCache(header, true);
+            } else {
+                readGroupIds = null;
+            }
+            if (header != null && samHeaderMerger.hasProgramGroupCollisions()) {
+                programGroupIds = new IdTranslationCache(header, false);
+            } else {
+                programGroupIds = null;
+            }
+            if (header != null && samHeaderMerger.hasMergedSequenceDictionary()) {
+                sequenceIndices = new int[header.getSequenceDictionary().size()];
+                for (int i = 0; i < sequenceIndices.length; ++i) {
+                    sequenceIndices[i] = samHeaderMerger.getMergedSequenceIndex(header, i);
+                }
+            } else {
+                sequenceIndices = null;
+            }
+        }
+
+        /** Moves on to the next record, closing the source once it is exhausted. */
+        private void advance() {
+            if (bufferPosition == bufferSize && !fillBuffer()) {
+                head = null;
+                return;
+            }
+            head = buffer[bufferPosition];
+            buffer[bufferPosition++] = null;
+            if (keyedComparator != null) {
+                headKey = keyedComparator.getSortKey(head);
+            }
+        }
+
+        private boolean fillBuffer() {
+            if (buffer == null) {
+                buffer = new SAMRecord[readAheadRecords];
+            }
+            bufferPosition = 0;
+            bufferSize = 0;
+            while (bufferSize < buffer.length && !closed) {
+                if (iterator.hasNext()) {
+                    buffer[bufferSize++] = translate(iterator.next());
+                } else {
+                    close();
+                }
+            }
+            return bufferSize > 0;
+        }
+
+        private SAMRecord translate(final SAMRecord record) {
+            record.setHeader(samHeaderMerger.getMergedHeader());
+
+            // Fix the read group if needs be
+            if (readGroupIds != null) {
+                final String oldGroupId = (String) record.getAttribute(ReservedTagConstants.READ_GROUP_ID);
+                if (oldGroupId != null) {
+                    record.setAttribute(ReservedTagConstants.READ_GROUP_ID, readGroupIds.translate(oldGroupId));
+                }
+            }
+
+            // Fix the program group if needs be
+            if (programGroupIds != null) {
+                final String oldGroupId = (String) record.getAttribute(ReservedTagConstants.PROGRAM_GROUP_ID);
+                if (oldGroupId != null) {
+                    record.setAttribute(ReservedTagConstants.PROGRAM_GROUP_ID, programGroupIds.translate(oldGroupId));
+                }
+            }
+
+            // Fix up the sequence indexes if needs be
+            if (sequenceIndices != null) {
+                if (record.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    record.setReferenceIndex(getMergedSequenceIndex(record.getReferenceIndex()));
+                }
+
+                if (record.getReadPairedFlag() && record.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    record.setMateReferenceIndex(getMergedSequenceIndex(record.getMateReferenceIndex()));
+                }
+            }
+            return record;
+        }
+
+        private int getMergedSequenceIndex(final int sequenceIndex) {
+            if (sequenceIndex >= 0 && sequenceIndex < sequenceIndices.length) {
+                return sequenceIndices[sequenceIndex];
+            }
+            // Not in the dictionary, so let the header merger report it
+            return samHeaderMerger.getMergedSequenceIndex(header, sequenceIndex);
+        }
+
+        private void close() {
+            if (!closed) {
+                closed = true;
+                iterator.close();
+                CloserUtil.close(reader);
+            }
+        }
+    }
+
+    /**
+     * Read group or program group ID translations for one input.  Records tend to come in runs with the same ID,
+     * so the last translation is checked before the map of those already looked up.
+     */
+    private class IdTranslationCache {
+        private final SAMFileHeader header;
+        private final boolean readGroups;
+        private final Map<String, String> translations = new HashMap<String, String>();
+        private String lastId = null;
+        private String lastTranslation = null;
+
+        private IdTranslationCache(final SAMFileHeader header, final boolean readGroups) {
+            this.header = header;
+            this.readGroups = readGroups;
+        }
+
+        private String translate(final String id) {
+            if (id.equals(lastId)) {
+                return lastTranslation;
             }
-            if (samRecord.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                return samHeaderMerger.getMergedSequenceIndex(samRecord.getHeader(), samRecord.getMateReferenceIndex());
+            final String translation;
+            if (translations.containsKey(id)) {
+                translation = translations.get(id);
+            } else {
+                translation = readGroups ? samHeaderMerger.getReadGroupId(header, id) : samHeaderMerger.getProgramGroupId(header, id);
+                translations.put(id, translation);
             }
-            return SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+            lastId = id;
+            lastTranslation = translation;
+            return translation;
         }
     }
 }
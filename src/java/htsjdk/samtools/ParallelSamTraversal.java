@@ -0,0 +1,367 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.DaemonThreadFactory;
+import htsjdk.samtools.util.PeekableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traverses all the records of an indexed, coordinate-sorted BAM or CRAM file on several threads at once.
+ *
+ * The file is partitioned, using its index, into work units: one per reference sequence that has records, or one
+ * per window of {@link #setRegionSize(int)} bases, followed by a final unit for the unmapped reads that have no
+ * position (see {@link SamReader#queryUnmapped()}).  Each worker thread opens its own {@link SamReader} on the
+ * resource, so the resource (and its index, if given) must be a file or URL, which can be opened more than once.
+ *
+ * Every record is delivered exactly once: a record belongs to the work unit containing its alignment start,
+ * even if it extends into the next one.  Records within a work unit are delivered in coordinate order, but
+ * work units are processed concurrently and complete in no particular order.
+ */
+public class ParallelSamTraversal {
+
+    /**
+     * Receives every record of the file.  Called concurrently from all the worker threads, so implementations
+     * must be thread-safe.
+     */
+    public interface RecordConsumer {
+        public void consume(SAMRecord record);
+    }
+
+    /**
+     * Computes a result from the records of one work unit.  Called concurrently from all the worker threads, but
+     * each call sees only the records of its own work unit.
+     */
+    public interface WorkUnitMapper<T> {
+        public T map(WorkUnit workUnit, Iterator<SAMRecord> records);
+    }
+
+    /** Combines the results of the work units, in work-unit order, on the thread that started the traversal. */
+    public interface Reducer<T, R> {
+        public R reduce(R accumulated, T workUnitResult);
+    }
+
+    /** A range of positions on one reference sequence, or the unmapped reads without a position. */
+    public static class WorkUnit {
+        private final int referenceIndex;
+        private final String referenceName;
+        private final int start;
+        private final int end;
+
+        /**
+         * @param start 1-based start of the range, inclusive
+         * @param end 1-based end of the range, inclusive, or 0 for the end of the reference sequence
+         */
+        WorkUnit(final int referenceIndex, final String referenceName, final int start, final int end) {
+            this.referenceIndex = referenceIndex;
+            this.referenceName = referenceName;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** @return the reference index, or {@link SAMRecord#NO_ALIGNMENT_REFERENCE_INDEX} for unmapped reads */
+        public int getReferenceIndex() { return referenceIndex; }
+
+        /** @return the reference name, or {@link SAMRecord#NO_ALIGNMENT_REFERENCE_NAME} for unmapped reads */
+        public String getReferenceName() { return referenceName; }
+
+        public int getStart() { return start; }
+
+        /** @return the 1-based inclusive end, or 0 for the end of the reference sequence */
+        public int getEnd() { return end; }
+
+        public boolean isUnmapped() { return referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX; }
+
+        @Override
+        public String toString() {
+            if (isUnmapped()) return "unmapped";
+            return referenceName + ":" + start + "-" + (end <= 0 ? "end" : String.valueOf(end));
+        }
+    }
+
+    private static ExecutorService traversalService = null;
+
+    private static synchronized ExecutorService getTraversalService() {
+        if (traversalService == null) {
+            traversalService = DaemonThreadFactory.newCachedDaemonThreadPool("ParallelSamTraversal worker ");
+        }
+        return traversalService;
+    }
+
+    private final SamReaderFactory readerFactory;
+    private final SamInputResource resource;
+    private final int numThreads;
+    private int regionSize = 0;
+
+    /**
+     * @param readerFactory used to open the reader of each worker
+     * @param resource an indexed, coordinate-sorted BAM or CRAM file or URL
+     * @param numThreads number of worker threads, and so of readers open at once
+     */
+    public ParallelSamTraversal(final SamReaderFactory readerFactory, final SamInputResource resource, final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        }
+        if (!isReopenable(resource.data()) || (resource.indexMaybe() != null && !isReopenable(resource.indexMaybe()))) {
+            throw new IllegalArgumentException("Parallel traversal requires a file or URL: " + resource);
+        }
+        this.readerFactory = readerFactory;
+        this.resource = resource;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param regionSize Maximum number of bases in a work unit, so that long reference sequences are shared
+     *                   between several workers.  0, the default, makes one work unit per reference sequence.
+     */
+    public void setRegionSize(final int regionSize) {
+        if (regionSize < 0) {
+            throw new IllegalArgumentException("regionSize must not be negative: " + regionSize);
+        }
+        this.regionSize = regionSize;
+    }
+
+    public int getRegionSize() { return regionSize; }
+
+    private static boolean isReopenable(final InputResource inputResource) {
+        return inputResource.type() == InputResource.Type.FILE || inputResource.type() == InputResource.Type.URL;
+    }
+
+    /** Opens a new reader, on streams of its own, since a SamInputResource holds on to the streams it opens. */
+    private SamReader openReader() {
+        final InputResource data = resource.data();
+        final SamInputResource fresh = (data.type() == InputResource.Type.FILE) ? SamInputResource.of(data.asFile())
+                : SamInputResource.of(data.asUrl());
+        final InputResource index = resource.indexMaybe();
+        if (index != null) {
+            if (index.type() == InputResource.Type.FILE) fresh.index(index.asFile());
+            else fresh.index(index.asUrl());
+        }
+        return readerFactory.open(fresh);
+    }
+
+    /**
+     * Partitions the file into work units, leaving out the ranges in which the index shows no records.
+     *
+     * @return The work units in coordinate order, ending with the unit for unmapped reads without a position.
+     */
+    public List<WorkUnit> getWorkUnits() {
+        final SamReader reader = openReader();
+        try {
+            if (reader.type() != SamReader.Type.BAM_TYPE && reader.type() != SamReader.Type.CRAM_TYPE) {
+                throw new SAMException("Parallel traversal requires a BAM or CRAM file: " + reader.getResourceDescription());
+            }
+            if (!reader.hasIndex()) {
+                throw new SAMException("Parallel traversal requires an index: " + reader.getResourceDescription());
+            }
+            if (reader.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                throw new SAMException("Parallel traversal requires a coordinate-sorted file: " + reader.getResourceDescription());
+            }
+            final BAMIndex index = reader.indexing().getIndex();
+            final List<WorkUnit> workUnits = new ArrayList<WorkUnit>();
+            for (final SAMSequenceRecord sequence : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+                final int length = sequence.getSequenceLength();
+                final int step = (regionSize == 0 || length <= 0) ? Integer.MAX_VALUE : regionSize;
+                for (long start = 1; start == 1 || start <= length; start += step) {
+                    // The last unit is unbounded, in case records lie beyond the declared length
+                    final int end = (start + step > length) ? 0 : (int) (start + step - 1);
+                    final BAMFileSpan span = index.getSpanOverlapping(sequence.getSequenceIndex(), (int) start, end);
+                    if (span != null && !span.isEmpty()) {
+                        workUnits.add(new WorkUnit(sequence.getSequenceIndex(), sequence.getSequenceName(), (int) start, end));
+                    }
+                }
+            }
+            workUnits.add(new WorkUnit(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, 0, 0));
+            return workUnits;
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+
+    /**
+     * Passes every record of the file to the consumer, from all the worker threads at once.
+     */
+    public void traverse(final RecordConsumer consumer) {
+        map(new WorkUnitMapper<Void>() {
+            @Override
+            public Void map(final WorkUnit workUnit, final Iterator<SAMRecord> records) {
+                while (records.hasNext()) {
+                    consumer.consume(records.next());
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Applies the mapper to every work unit, on the worker threads, and folds the results in work-unit order.
+     *
+     * @param initial value to reduce the first work-unit result into
+     * @return the result of reducing all the work units
+     */
+    public <T, R> R mapReduce(final WorkUnitMapper<T> mapper, final R initial, final Reducer<T, R> reducer) {
+        R accumulated = initial;
+        for (final T result : map(mapper)) {
+            accumulated = reducer.reduce(accumulated, result);
+        }
+        return accumulated;
+    }
+
+    /**
+     * Applies the mapper to every work unit, on the worker threads.
+     *
+     * @return the result of each work unit, in the order of {@link #getWorkUnits()}
+     */
+    public <T> List<T> map(final WorkUnitMapper<T> mapper) {
+        final List<WorkUnit> workUnits = getWorkUnits();
+        final Object[] results = new Object[workUnits.size()];
+        final AtomicInteger nextWorkUnit = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        final List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int i = 0; i < Math.min(numThreads, workUnits.size()); ++i) {
+            workers.add(getTraversalService().submit(new Worker<T>(mapper, workUnits, results, nextWorkUnit, failed)));
+        }
+        RuntimeException failure = null;
+        for (final Future<Void> worker : workers) {
+            try {
+                worker.get();
+            } catch (final ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause()
+                            : new SAMException("Exception in parallel traversal of " + resource, e.getCause());
+                }
+            } catch (final InterruptedException e) {
+                failed.set(true);
+                Thread.currentThread().interrupt();
+                throw new SAMException("Interrupted during parallel traversal of " + resource, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        @SuppressWarnings("unchecked")
+        final List<T> resultList = (List<T>) Arrays.asList(results);
+        return Collections.unmodifiableList(resultList);
+    }
+
+    /**
+     * Takes work units from the shared list until there are none left, reading them all with one reader.
+     */
+    private class Worker<T> implements Callable<Void> {
+        private final WorkUnitMapper<T> mapper;
+        private final List<WorkUnit> workUnits;
+        private final Object[] results;
+        private final AtomicInteger nextWorkUnit;
+        private final AtomicBoolean failed;
+
+        Worker(final WorkUnitMapper<T> mapper, final List<WorkUnit> workUnits, final Object[] results,
+               final AtomicInteger nextWorkUnit, final AtomicBoolean failed) {
+            this.mapper = mapper;
+            this.workUnits = workUnits;
+            this.results = results;
+            this.nextWorkUnit = nextWorkUnit;
+            this.failed = failed;
+        }
+
+        @Override
+        public Void call() {
+            final SamReader reader = openReader();
+            try {
+                int i;
+                while (!failed.get() && (i = nextWorkUnit.getAndIncrement()) < workUnits.size()) {
+                    final WorkUnit workUnit = workUnits.get(i);
+                    final SAMRecordIterator iterator = workUnit.isUnmapped() ? reader.queryUnmapped()
+                            : reader.queryOverlapping(workUnit.getReferenceName(), workUnit.getStart(), workUnit.getEnd());
+                    try {
+                        results[i] = mapper.map(workUnit, new StartingInRangeIterator(iterator, workUnit.getStart()));
+                    } finally {
+                        iterator.close();
+                    }
+                }
+                return null;
+            } catch (final RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } catch (final Error e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                CloserUtil.close(reader);
+            }
+        }
+    }
+
+    /**
+     * Skips the records of an overlapping query that start before the work unit, since they belong to the
+     * previous one.
+     */
+    private static class StartingInRangeIterator implements CloseableIterator<SAMRecord> {
+        private final PeekableIterator<SAMRecord> iterator;
+        private final int start;
+
+        StartingInRangeIterator(final SAMRecordIterator iterator, final int start) {
+            this.iterator = new PeekableIterator<SAMRecord>(iterator);
+            this.start = start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (iterator.hasNext() && iterator.peek().getAlignmentStart() < start) {
+                iterator.next();
+            }
+            return iterator.hasNext();
+        }
+
+        @Override
+        public SAMRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported: remove");
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A sidecar index of a BAM file that maps read names to the virtual file offsets of their records, so that all the
+ * alignments of a read can be found without scanning the file.  Create one with {@link ReadNameIndexer}, or while
+ * writing with {@link SAMFileWriterFactory#setCreateReadNameIndex(boolean)}.
+ *
+ * The file holds 64-bit hashes of the read names, each with the offset of a record, sorted by hash and then offset,
+ * preceded by a table of where each value of the top {@link #BUCKET_BITS} bits of the hash starts.  A lookup reads
+ * only the few entries that a binary search within one bucket touches.  Different names can share a hash, so the
+ * records found are checked against the name.
+ *
+ * Format (little-endian): magic, number of entries (long), 2^BUCKET_BITS + 1 bucket starts (long), then the entries
+ * as pairs of hash and virtual file offset (long).
+ */
+public class ReadNameIndex {
+    public static final String READ_NAME_INDEX_EXTENSION = ".rni";
+    static final byte[] MAGIC = {'R', 'N', 'I', 1};
+    static final int BUCKET_BITS = 16;
+    static final int ENTRY_BYTES = 16;
+    static final long HEADER_BYTES = MAGIC.length + 8 + 8L * ((1 << BUCKET_BITS) + 1);
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long numEntries;
+    private final long[] bucketStarts;
+
+    public ReadNameIndex(final File file) {
+        this.file = file;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate((int) HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            final byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new SAMFormatException("Invalid read name index file header in " + file);
+            }
+            numEntries = header.getLong();
+            bucketStarts = new long[(1 << BUCKET_BITS) + 1];
+            for (int i = 0; i < bucketStarts.length; ++i) {
+                bucketStarts[i] = header.getLong();
+            }
+            if (channel.size() != HEADER_BYTES + numEntries * ENTRY_BYTES) {
+                throw new SAMFormatException("Read name index " + file + " is truncated");
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error opening read name index " + file, e);
+        }
+    }
+
+    /**
+     * @return the read name index file that {@link SAMFileWriterFactory} writes alongside the given BAM file.
+     */
+    public static File getDefaultIndexFile(final File bamFile) {
+        final String path = bamFile.getPath();
+        final String base = path.endsWith(BamFileIoUtils.BAM_FILE_EXTENSION) ? path.substring(0, path.lastIndexOf('.')) : path;
+        return new File(base + READ_NAME_INDEX_EXTENSION);
+    }
+
+    /**
+     * @return a 64-bit hash of the read name, which is FNV-1a followed by the finalizer of MurmurHash3 so that
+     * the top bits, which pick the bucket, are well mixed.
+     */
+    static long hashReadName(final String readName) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < readName.length(); ++i) {
+            hash ^= readName.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /** Compares hashes as unsigned values, which is the order of their buckets. */
+    static int compareHashes(final long a, final long b) {
+        if (a == b) return 0;
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE) ? -1 : 1;
+    }
+
+    static int getBucket(final long hash) {
+        return (int) (hash >>> (64 - BUCKET_BITS));
+    }
+
+    public long getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * @return the virtual file offsets, in ascending order, of the records whose names hash as the given name does.
+     * These normally all have the given name, but may include records of other names.
+     */
+    public long[] getFilePointers(final String readName) {
+        final long hash = hashReadName(readName);
+        final int bucket = getBucket(hash);
+        final ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        // Binary search for the first entry with this hash
+        long low = bucketStarts[bucket];
+        long high = bucketStarts[bucket + 1];
+        while (low < high) {
+            final long mid = (low + high) >>> 1;
+            if (compareHashes(readEntry(entry, mid), hash) < 0) low = mid + 1;
+            else high = mid;
+        }
+        long[] filePointers = new long[4];
+        int count = 0;
+        for (long i = low; i < bucketStarts[bucket + 1] && readEntry(entry, i) == hash; ++i) {
+            if (count == filePointers.length) {
+                filePointers = Arrays.copyOf(filePointers, 2 * count);
+            }
+            filePointers[count++] = entry.getLong(8);
+        }
+        return Arrays.copyOf(filePointers, count);
+    }
+
+    /** Reads the given entry into the buffer and returns its hash. */
+    private long readEntry(final ByteBuffer entry, final long index) {
+        entry.clear();
+        readFully(entry, HEADER_BYTES + index * ENTRY_BYTES);
+        return entry.getLong(0);
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) {
+        try {
+            long filePosition = position;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, filePosition);
+                if (read < 0) {
+                    throw new SAMFormatException("Premature end of read name index " + file);
+                }
+                filePosition += read;
+            }
+            buffer.flip();
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error reading read name index " + file, e);
+        }
+    }
+
+    /**
+     * Finds all the records with the given read name.
+     *
+     * @param reader the BAM file that this index was built from
+     * @return the records, in file order.  As with other queries, only one iterator may be open on the reader at once.
+     */
+    public SAMRecordIterator query(final SamReader reader, final String readName) {
+        final long[] filePointers = getFilePointers(readName);
+        // Each chunk ends just after the start of its record, so the iterator reads exactly that record
+        final BAMFileSpan span = new BAMFileSpan();
+        for (final long filePointer : filePointers) {
+            span.add(new Chunk(filePointer, filePointer + 1));
+        }
+        return new NameFilteringIterator(reader.indexing().iterator(span), readName);
+    }
+
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error closing read name index " + file, e);
+        }
+    }
+
+    /** Drops the records of other names that share the hash of the name being looked up. */
+    private static class NameFilteringIterator implements SAMRecordIterator {
+        private final SAMRecordIterator iterator;
+        private final String readName;
+        private SAMRecord next = null;
+
+        NameFilteringIterator(final SAMRecordIterator iterator, final String readName) {
+            this.iterator = iterator;
+            this.readName = readName;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && iterator.hasNext()) {
+                final SAMRecord record = iterator.next();
+                if (readName.equals(record.getReadName())) {
+                    next = record;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public SAMRecord next() {
+            if (next == null) throw new NoSuchElementException();
+            final SAMRecord record = next;
+            advance();
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported: remove");
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+
+        @Override
+        public SAMRecordIterator assertSorted(final SAMFileHeader.SortOrder sortOrder) {
+            iterator.assertSorted(sortOrder);
+            return this;
+        }
+    }
+}
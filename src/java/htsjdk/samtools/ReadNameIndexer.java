@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+
+/**
+ * Builds a {@link ReadNameIndex} in one pass over a BAM file, either from an existing file or while it is being
+ * written.  As with {@link BAMIndexer}, processAlignment is called for each record and finish() at the end.
+ * Records may be in any order; the entries are sorted with a {@link SortingCollection}, so that at most
+ * maxRecordsInRam of them are held in memory.
+ */
+public class ReadNameIndexer {
+    /** Entries are small, so many more of them than of records fit in a given amount of memory. */
+    public static final int DEFAULT_MAX_RECORDS_IN_RAM = 2000000;
+
+    private final File output;
+    private final SortingCollection<Entry> entries;
+    private final long[] bucketCounts = new long[1 << ReadNameIndex.BUCKET_BITS];
+    private long numEntries = 0;
+
+    /**
+     * @param output read name index file to write
+     * @param maxRecordsInRam number of entries to hold in memory before spilling to temporary files
+     * @param tmpDir directory for temporary files, or null for the default
+     */
+    public ReadNameIndexer(final File output, final int maxRecordsInRam, final File tmpDir) {
+        this.output = output;
+        final File directory = (tmpDir != null) ? tmpDir : new File(System.getProperty("java.io.tmpdir"));
+        this.entries = SortingCollection.newInstance(Entry.class, new EntryCodec(), new EntryComparator(), maxRecordsInRam, directory);
+    }
+
+    public ReadNameIndexer(final File output) {
+        this(output, DEFAULT_MAX_RECORDS_IN_RAM, null);
+    }
+
+    /**
+     * Records the read name and start of the record.  Requires a non-null value for rec.getFileSource().
+     */
+    public void processAlignment(final SAMRecord rec) {
+        final SAMFileSource source = rec.getFileSource();
+        if (source == null) {
+            throw new SAMException("No source (reader) for SAMRecord " + rec + ". Read name indexing requires the file offsets of records.");
+        }
+        addRecord(rec.getReadName(), ((BAMFileSpan) source.getFilePointer()).getFirstOffset());
+    }
+
+    /**
+     * Records that a record with the given name starts at the given virtual file offset.
+     */
+    public void addRecord(final String readName, final long filePointer) {
+        final Entry entry = new Entry(ReadNameIndex.hashReadName(readName), filePointer);
+        ++bucketCounts[ReadNameIndex.getBucket(entry.hash)];
+        ++numEntries;
+        entries.add(entry);
+    }
+
+    /**
+     * Sorts the entries and writes the index.
+     */
+    public void finish() {
+        final BinaryCodec codec = new BinaryCodec(new BufferedOutputStream(openOutput(), 1024 * 1024));
+        codec.setOutputFileName(output.getAbsolutePath());
+        codec.writeBytes(ReadNameIndex.MAGIC);
+        codec.writeLong(numEntries);
+        long bucketStart = 0;
+        for (final long count : bucketCounts) {
+            codec.writeLong(bucketStart);
+            bucketStart += count;
+        }
+        codec.writeLong(bucketStart);
+
+        final CloseableIterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            codec.writeLong(entry.hash);
+            codec.writeLong(entry.filePointer);
+        }
+        iterator.close();
+        entries.cleanup();
+        codec.close();
+    }
+
+    private OutputStream openOutput() {
+        try {
+            return new FileOutputStream(output);
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error opening read name index file " + output + " for writing", e);
+        }
+    }
+
+    /**
+     * Generates a read name index file from an existing BAM file.
+     *
+     * @param reader reader for the BAM file, which must be created with
+     *               {@link SamReaderFactory.Option#INCLUDE_SOURCE_IN_RECORDS} so that records have file offsets
+     * @param output read name index file to write
+     */
+    public static void createIndex(final SamReader reader, final File output, final Log log) {
+        final ReadNameIndexer indexer = new ReadNameIndexer(output);
+        long totalRecords = 0;
+        // Every record is indexed, even if the reader was opened with a record predicate
+        final SAMRecordIterator iterator = SamReader.PrimitiveSamReaderToSamReaderAdapter.iterateAllRecords(reader);
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                if (++totalRecords % 1000000 == 0) {
+                    if (null != log) log.info(totalRecords + " reads processed ...");
+                }
+                indexer.processAlignment(rec);
+            }
+        } finally {
+            iterator.close();
+        }
+        indexer.finish();
+    }
+
+    public static void createIndex(final SamReader reader, final File output) {
+        createIndex(reader, output, null);
+    }
+
+    static class Entry {
+        final long hash;
+        final long filePointer;
+
+        Entry(final long hash, final long filePointer) {
+            this.hash = hash;
+            this.filePointer = filePointer;
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry> {
+        @Override
+        public int compare(final Entry a, final Entry b) {
+            if (a.hash != b.hash) return ReadNameIndex.compareHashes(a.hash, b.hash);
+            if (a.filePointer != b.filePointer) return a.filePointer < b.filePointer ? -1 : 1;
+            return 0;
+        }
+    }
+
+    private static class EntryCodec implements SortingCollection.Codec<Entry> {
+        private DataOutputStream outputStream;
+        private DataInputStream inputStream;
+
+        @Override
+        public void setOutputStream(final OutputStream os) {
+            outputStream = new DataOutputStream(os);
+        }
+
+        @Override
+        public void setInputStream(final InputStream is) {
+            inputStream = new DataInputStream(is);
+        }
+
+        @Override
+        public void encode(final Entry entry) {
+            try {
+                outputStream.writeLong(entry.hash);
+                outputStream.writeLong(entry.filePointer);
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+
+        @Override
+        public Entry decode() {
+            final long hash;
+            try {
+                hash = inputStream.readLong();
+            } catch (final EOFException e) {
+                return null;
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+            try {
+                return new Entry(hash, inputStream.readLong());
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+
+        @Override
+        public EntryCodec clone() {
+            return new EntryCodec();
+        }
+    }
+}
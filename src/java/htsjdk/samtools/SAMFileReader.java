@@ -51,7 +51,7 @@ import java.util.zip.GZIPInputStream;
  * @see SamReaderFactory
  */
 @Deprecated
-public class SAMFileReader implements SamReader, SamReader.Indexing {
+public class SAMFileReader implements SamReader, SamReader.Indexing, SamReader.RecordAccess {
 
     private static ValidationStringency defaultValidationStringency = ValidationStringency.DEFAULT_STRINGENCY;
 
@@ -359,6 +359,21 @@ public class SAMFileReader implements SamReader, SamReader.Indexing {
         return new AssertingIterator(mReader.getIterator(chunks));
     }
 
+    @Override
+    public SAMRecordIterator iteratorReusingRecords() {
+        return new AssertingIterator(mReader.getIteratorReusingRecords());
+    }
+
+    @Override
+    public CloseableIterator<BAMRawRecord> rawIterator() {
+        return mReader.getRawIterator();
+    }
+
+    @Override
+    public CloseableIterator<BAMRawRecord> queryRaw(final QueryInterval[] intervals, final boolean contained) {
+        return mReader.queryRaw(intervals, contained);
+    }
+
     /**
      * Gets a pointer spanning all reads in the BAM file.
      *
@@ -43,13 +43,18 @@ public class SAMFileWriterFactory {
     private boolean createIndex = defaultCreateIndexWhileWriting;
     private static boolean defaultCreateMd5File = Defaults.CREATE_MD5;
     private boolean createMd5File = defaultCreateMd5File;
+    private boolean createReadNameIndex = false;
     private boolean useAsyncIo = Defaults.USE_ASYNC_IO;
     private int asyncOutputBufferSize = AsyncSAMFileWriter.DEFAULT_QUEUE_SIZE;
     private int bufferSize = Defaults.BUFFER_SIZE;
+    private int encoderThreads = Defaults.ENCODER_THREADS;
+    private int deflaterThreads = Defaults.DEFLATER_THREADS;
+    private int sortThreads = Defaults.SORT_THREADS;
     private File tmpDir;
 
 
     private Integer maxRecordsInRam;
+    private Long maxBytesInRam;
 
     /** Sets the default for whether to create md5Files for BAM files this factory. */
     public static void setDefaultCreateMd5File(final boolean createMd5File) {
@@ -88,6 +93,18 @@ public class SAMFileWriterFactory {
         return this;
     }
 
+    /**
+     * Sets whether to write a read name index (see {@link ReadNameIndex}) along with each BAM file created by this
+     * factory.  Unlike the BAM index, the read name index can be created for BAM files in any sort order.
+     *
+     * @param setting whether to create a read name index while creating the BAM file.
+     * @return this factory object
+     */
+    public SAMFileWriterFactory setCreateReadNameIndex(final boolean setting) {
+        this.createReadNameIndex = setting;
+        return this;
+    }
+
     /**
      * Before creating a writer that is not presorted, this method may be called in order to override
      * the default number of SAMRecords stored in RAM before spilling to disk
@@ -104,6 +121,23 @@ public class SAMFileWriterFactory {
         return this;
     }
 
+    /**
+     * Before creating a writer that is not presorted, this method may be called in order to hold SAMRecords in
+     * RAM in their serialized BAM form, which takes several times less memory than SAMRecord objects, and to spill
+     * them to disk once they take up the given number of bytes, rather than once a number of records is reached.
+     * This takes precedence over setMaxRecordsInRam().
+     *
+     * @param maxBytesInRam Number of bytes of serialized records to store in RAM before spilling to temporary file
+     *                      when creating a sorted SAM or BAM file.
+     */
+    public SAMFileWriterFactory setMaxBytesInRam(final long maxBytesInRam) {
+        if (maxBytesInRam <= 0) {
+            throw new IllegalArgumentException("Invalid number of bytes in RAM: " + maxBytesInRam);
+        }
+        this.maxBytesInRam = maxBytesInRam;
+        return this;
+    }
+
     /**
      * Turn on or off the use of asynchronous IO for writing output SAM and BAM files.  If true then
      * each SAMFileWriter creates a dedicated thread which is used for compression and IO activities.
@@ -131,6 +165,52 @@ public class SAMFileWriterFactory {
         return this;
     }
 
+    /**
+     * Sets the number of threads on which BAM writers encode batches of records in the background, on a pool shared by
+     * all writers that has as many threads as the largest number given to any of them.  Records are still written in
+     * the order they are added, with any index and MD5 file, and are copied so that they may be reused once added.
+     * Default value: [[htsjdk.samtools.Defaults#ENCODER_THREADS]]
+     *
+     * @param encoderThreads number of batches of records to encode concurrently; 0 encodes each record as it is added.
+     */
+    public SAMFileWriterFactory setEncoderThreads(final int encoderThreads) {
+        if (encoderThreads < 0) {
+            throw new IllegalArgumentException("Invalid number of encoder threads: " + encoderThreads);
+        }
+        this.encoderThreads = encoderThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads on which BAM writers compress BGZF blocks in the background.
+     * Default value: [[htsjdk.samtools.Defaults#DEFLATER_THREADS]]
+     *
+     * @param deflaterThreads number of blocks to compress concurrently; 0 compresses each block as it is filled.
+     */
+    public SAMFileWriterFactory setDeflaterThreads(final int deflaterThreads) {
+        if (deflaterThreads < 0) {
+            throw new IllegalArgumentException("Invalid number of deflater threads: " + deflaterThreads);
+        }
+        this.deflaterThreads = deflaterThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads on which writers that are not presorted sort records, and spill them to and
+     * merge them from temporary files in the background.  While records are spilled, up to twice the number of
+     * records set by setMaxRecordsInRam() may be held in RAM.
+     * Default value: [[htsjdk.samtools.Defaults#SORT_THREADS]]
+     *
+     * @param sortThreads number of threads; 0 sorts on the thread adding records.
+     */
+    public SAMFileWriterFactory setSortThreads(final int sortThreads) {
+        if (sortThreads < 0) {
+            throw new IllegalArgumentException("Invalid number of sort threads: " + sortThreads);
+        }
+        this.sortThreads = sortThreads;
+        return this;
+    }
+
     /**
      * Set the temporary directory to use when sort data.
      *
@@ -170,12 +250,19 @@ public class SAMFileWriterFactory {
             OutputStream os = IOUtil.maybeBufferOutputStream(new FileOutputStream(outputFile, false), bufferSize);
             if (createMd5File) os = new Md5CalculatingOutputStream(os, new File(outputFile.getAbsolutePath() + ".md5"));
             final BAMFileWriter ret = new BAMFileWriter(os, outputFile, compressionLevel);
+            ret.setEncoderThreads(this.encoderThreads);
+            ret.setDeflaterThreads(this.deflaterThreads);
             final boolean createIndex = this.createIndex && IOUtil.isRegularPath(outputFile);
             if (this.createIndex && !createIndex) {
                 System.err.println("Cannot create index for BAM because output file is not a regular file: " + outputFile.getAbsolutePath());
             }
             if (this.tmpDir != null) ret.setTempDirectory(this.tmpDir);
             initializeBAMWriter(ret, header, presorted, createIndex);
+            final boolean createReadNameIndex = this.createReadNameIndex && IOUtil.isRegularPath(outputFile);
+            if (this.createReadNameIndex && !createReadNameIndex) {
+                System.err.println("Cannot create read name index for BAM because output file is not a regular file: " + outputFile.getAbsolutePath());
+            }
+            if (createReadNameIndex) ret.enableReadNameIndexConstruction(this.tmpDir);
 
             if (this.useAsyncIo) return new AsyncSAMFileWriter(ret, this.asyncOutputBufferSize);
             else return ret;
@@ -189,6 +276,10 @@ public class SAMFileWriterFactory {
         if (maxRecordsInRam != null) {
             writer.setMaxRecordsInRam(maxRecordsInRam);
         }
+        writer.setSortThreads(sortThreads);
+        if (maxBytesInRam != null) {
+            writer.setMaxBytesInRam(maxBytesInRam);
+        }
         writer.setHeader(header);
         if (createIndex && writer.getSortOrder().equals(SAMFileHeader.SortOrder.coordinate)) {
             writer.enableBamIndexConstruction();
@@ -212,6 +303,10 @@ public class SAMFileWriterFactory {
             if (maxRecordsInRam != null) {
                 ret.setMaxRecordsInRam(maxRecordsInRam);
             }
+            ret.setSortThreads(sortThreads);
+            if (maxBytesInRam != null) {
+                ret.setMaxBytesInRam(maxBytesInRam);
+            }
             ret.setHeader(header);
 
             if (this.useAsyncIo) return new AsyncSAMFileWriter(ret, this.asyncOutputBufferSize);
@@ -245,7 +340,10 @@ public class SAMFileWriterFactory {
      */
 
     public SAMFileWriter makeBAMWriter(final SAMFileHeader header, final boolean presorted, final OutputStream stream) {
-        return initWriter(header, presorted, true, new BAMFileWriter(stream, null));
+        final BAMFileWriter ret = new BAMFileWriter(stream, null);
+        ret.setEncoderThreads(this.encoderThreads);
+        ret.setDeflaterThreads(this.deflaterThreads);
+        return initWriter(header, presorted, true, ret);
     }
 
     /**
@@ -263,6 +361,10 @@ public class SAMFileWriterFactory {
         if (maxRecordsInRam != null) {
             writer.setMaxRecordsInRam(maxRecordsInRam);
         }
+        writer.setSortThreads(sortThreads);
+        if (maxBytesInRam != null) {
+            writer.setMaxBytesInRam(maxBytesInRam);
+        }
         writer.setHeader(header);
 
         if (this.useAsyncIo) return new AsyncSAMFileWriter(writer, this.asyncOutputBufferSize);
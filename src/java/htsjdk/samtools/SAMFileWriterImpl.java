@@ -39,6 +39,8 @@ public abstract class SAMFileWriterImpl implements SAMFileWriter
 {
     private static int DEAFULT_MAX_RECORDS_IN_RAM = 500000;      
     private int maxRecordsInRam = DEAFULT_MAX_RECORDS_IN_RAM;
+    private int sortThreads = Defaults.SORT_THREADS;
+    private long maxBytesInRam = 0;
     private SAMFileHeader.SortOrder sortOrder;
     private SAMFileHeader header;
     private SortingCollection<SAMRecord> alignmentSorter;
@@ -111,6 +113,31 @@ public abstract class SAMFileWriterImpl implements SAMFileWriter
         this.maxRecordsInRam = maxRecordsInRam;
     }
     
+    /**
+     * When writing records that are not presorted, hold them in RAM in serialized form, and spill them to disk
+     * once they take up this many bytes rather than once maxRecordsInRam records are held (see
+     * SortingCollection.newSerializedInstance()).  Must be called before setHeader().
+     * @param maxBytesInRam number of bytes, or 0 to hold records as objects
+     */
+    void setMaxBytesInRam(final long maxBytesInRam) {
+        if (this.header != null) {
+            throw new IllegalStateException("setMaxBytesInRam must be called before setHeader()");
+        }
+        this.maxBytesInRam = maxBytesInRam;
+    }
+
+    /**
+     * When writing records that are not presorted, specify the number of threads on which to sort them
+     * (see SortingCollection.setSortThreads()).  Must be called before setHeader().
+     * @param sortThreads number of threads, or 0 to sort on the writing thread
+     */
+    void setSortThreads(final int sortThreads) {
+        if (this.header != null) {
+            throw new IllegalStateException("setSortThreads must be called before setHeader()");
+        }
+        this.sortThreads = sortThreads;
+    }
+
     /**
      * When writing records that are not presorted, specify the path of the temporary directory 
      * for spilling to disk.  Must be called before setHeader().
@@ -145,8 +172,14 @@ public abstract class SAMFileWriterImpl implements SAMFileWriter
                 sortOrderChecker = new SAMSortOrderChecker(sortOrder);
             }
         } else if (!sortOrder.equals(SAMFileHeader.SortOrder.unsorted)) {
-            alignmentSorter = SortingCollection.newInstance(SAMRecord.class,
-                    new BAMRecordCodec(header), makeComparator(), maxRecordsInRam, tmpDir);
+            if (maxBytesInRam > 0) {
+                alignmentSorter = SortingCollection.newSerializedInstance(SAMRecord.class,
+                        new BAMRecordCodec(header), makeComparator(), maxBytesInRam, false, tmpDir);
+            } else {
+                alignmentSorter = SortingCollection.newInstance(SAMRecord.class,
+                        new BAMRecordCodec(header), makeComparator(), maxRecordsInRam, tmpDir);
+            }
+            alignmentSorter.setSortThreads(sortThreads);
         }
     }
 
@@ -181,6 +214,25 @@ public abstract class SAMFileWriterImpl implements SAMFileWriter
         }
     }
 
+    /**
+     * Adds a record in its BAM form, such as one read with SamRecordAccess.rawIterator(),
+     * whose reference indices must refer to this writer's sequence dictionary.  If this writer can write raw records
+     * (as BAMFileWriter does) and does not have to sort them, the record is written without being decoded or
+     * re-encoded, so must not be modified after being added.  Otherwise it is decoded and added with addAlignment().
+     */
+    public void addRawAlignment(final BAMRawRecord alignment) {
+        if (!canWriteRawAlignments() || !(sortOrder.equals(SAMFileHeader.SortOrder.unsorted) || presorted)) {
+            addAlignment(alignment.toSAMRecord(header));
+            return;
+        }
+        if (presorted) {
+            assertPresorted(alignment.toSAMRecord(header));
+        } else if (!header.getGroupOrder().equals(SAMFileHeader.GroupOrder.none)) {
+            throw new UnsupportedOperationException("GroupOrder " + header.getGroupOrder() + " is not supported");
+        }
+        writeRawAlignment(alignment);
+    }
+
     private void assertPresorted(final SAMRecord alignment) {
         final SAMRecord prev = sortOrderChecker.getPreviousRecord();
         if (!sortOrderChecker.isSorted(alignment)) {
@@ -216,6 +268,21 @@ public abstract class SAMFileWriterImpl implements SAMFileWriter
      */
     abstract protected void writeAlignment(SAMRecord alignment);
 
+    /**
+     * @return whether this writer implements writeRawAlignment().
+     */
+    protected boolean canWriteRawAlignments() {
+        return false;
+    }
+
+    /**
+     * Writes a record in its BAM form to disk.  Sort order has been taken care of by the time this method is called.
+     * Only called if canWriteRawAlignments() is true.
+     */
+    protected void writeRawAlignment(final BAMRawRecord alignment) {
+        throw new UnsupportedOperationException("Raw records cannot be written to " + getFilename());
+    }
+
     /**
      * Write the header to disk.  Header object is available via getHeader().
      * @param textHeader for convenience if the implementation needs it.
@@ -23,6 +23,8 @@
  */
 package htsjdk.samtools;
 
+import htsjdk.samtools.util.SortingCollection;
+
 /**
  * Comparator for sorting SAMRecords by coordinate.  Note that the header is required because
  * the order of sequences in the header defines the major sort order.
@@ -37,8 +39,10 @@ package htsjdk.samtools;
  * if A < B, then B > A
  * if A < B && B < C, then A < C
  *
+ * The sort key packs reference index, alignment start and strand into a long, so that SortingCollection only
+ * needs to call compare() for records at the same position on the same strand.
  */
-public class SAMRecordCoordinateComparator implements SAMRecordComparator {
+public class SAMRecordCoordinateComparator implements SAMRecordComparator, SortingCollection.KeyedComparator<SAMRecord> {
     public int compare(final SAMRecord samRecord1, final SAMRecord samRecord2) {
         int cmp = fileOrderCompare(samRecord1, samRecord2);
         if (cmp != 0) {
@@ -65,6 +69,23 @@ public class SAMRecordCoordinateComparator implements SAMRecordComparator {
         else return (samRecord1.getReadNegativeStrandFlag()? 1: -1);
     }
 
+    /**
+     * @return reference index, with unmapped records last, in bits 32-62, alignment start in bits 1-31, and
+     * 1 in bit 0 if the read is on the negative strand.
+     */
+    public long getSortKey(final SAMRecord samRecord) {
+        final int refIndex = samRecord.getReferenceIndex();
+        final long key;
+        if (refIndex == -1) {
+            // As in fileOrderCompare(), the alignment start of unplaced records is ignored
+            key = (long) Integer.MAX_VALUE << 32;
+        } else {
+            // Invalid negative values are clamped, which keeps the keys consistent with compare()
+            key = ((long) Math.max(refIndex, 0) << 32) | ((long) Math.max(samRecord.getAlignmentStart(), 0) << 1);
+        }
+        return samRecord.getReadNegativeStrandFlag() ? key | 1 : key;
+    }
+
     private int compareInts(int i1, int i2) {
         if (i1 < i2) return -1;
         else if (i1 > i2) return 1;
@@ -23,10 +23,17 @@
  */
 package htsjdk.samtools;
 
+import htsjdk.samtools.util.SortingCollection;
+
 /**
  * Comparator for "queryname" ordering of SAMRecords.
+ *
+ * The sort key packs the first characters of the read name into a long, so that SortingCollection only needs to
+ * call compare() for records whose names share a prefix.
  */
-public class SAMRecordQueryNameComparator implements SAMRecordComparator {
+public class SAMRecordQueryNameComparator implements SAMRecordComparator, SortingCollection.KeyedComparator<SAMRecord> {
+    /** Number of characters of the read name, of 7 bits each, in the sort key. */
+    private static final int SORT_KEY_CHARACTERS = 9;
 
     public int compare(final SAMRecord samRecord1, final SAMRecord samRecord2) {
         int cmp = fileOrderCompare(samRecord1, samRecord2);
@@ -65,6 +72,20 @@ public class SAMRecordQueryNameComparator implements SAMRecordComparator {
         return 0;
     }
 
+    /**
+     * @return the first 9 characters of the read name, 7 bits each, padded with zeros.  Characters beyond 127
+     * are clamped to 127, and read names are ASCII in any case, so that the key is consistent with compareReadNames().
+     */
+    public long getSortKey(final SAMRecord samRecord) {
+        final String readName = samRecord.getReadName();
+        final int length = Math.min(readName.length(), SORT_KEY_CHARACTERS);
+        long key = 0;
+        for (int i = 0; i < SORT_KEY_CHARACTERS; ++i) {
+            key = (key << 7) | (i < length ? Math.min(readName.charAt(i), 127) : 0);
+        }
+        return key;
+    }
+
     /**
      * Less stringent compare method than the regular compare.  If the two records
      * are equal enough that their ordering in a sorted SAM file would be arbitrary,
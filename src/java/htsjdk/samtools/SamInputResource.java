@@ -1,13 +1,13 @@
 package htsjdk.samtools;
 
-import htsjdk.samtools.seekablestream.SeekableFileStream;
 import htsjdk.samtools.seekablestream.SeekableHTTPStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
 import htsjdk.samtools.util.Lazy;
 import htsjdk.samtools.util.RuntimeIOException;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -163,8 +163,8 @@ class FileInputResource extends InputResource {
         @Override
         public SeekableStream make() {
             try {
-                return new SeekableFileStream(fileResource);
-            } catch (final FileNotFoundException e) {
+                return SeekableStreamFactory.getFileStream(fileResource);
+            } catch (final IOException e) {
                 throw new RuntimeIOException(e);
             }
         }
@@ -1,5 +1,7 @@
 package htsjdk.samtools;
 
+import htsjdk.samtools.filter.FilteringIterator;
+import htsjdk.samtools.filter.SamRecordPredicate;
 import htsjdk.samtools.util.CloseableIterator;
 
 import java.io.Closeable;
@@ -62,6 +64,43 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
         public static Type SAM_TYPE = new TypeImpl("SAM", "sam", null);
     }
 
+    /**
+     * Facet for iterators that avoid making a new SAMRecord for each record, for scans over many records.  Readers
+     * need not implement it; use the static methods of {@link SamRecordAccess}, which fall back to the ordinary
+     * iterators for readers that do not.
+     */
+    public interface RecordAccess {
+        /**
+         * Iterate through file in order, like iterator(), but for a BAM file, rather than creating a new SAMRecord for
+         * each record, overwrite the same few records and return them over and over, along with their Cigars and
+         * variable-length data, so that a scan need not allocate anything for records whose contents it doesn't ask
+         * for.  A record returned by next(), and anything obtained from it, may only be used until the following call
+         * to next(); clone it to keep it for longer.  Reused records have no file source (see
+         * SAMRecord.getFileSource()), even if the reader includes sources in records.  Records are still validated
+         * unless the validation stringency is SILENT, and validating a record decodes all of it, so a scan only avoids
+         * allocating at SILENT.  Other types of file return new records as iterator() does.
+         */
+        public SAMRecordIterator iteratorReusingRecords();
+
+        /**
+         * Iterate through file in order, like iterator(), but return each record in its BAM form, as a slice of a
+         * byte array, for tools that only select, reorder or copy records.  For a BAM file, records are read without
+         * being decoded, validated or made into SAMRecords; other types of file have each record encoded.  Raw
+         * records can be written to a BAM file without being re-encoded with SAMFileWriterImpl.addRawAlignment().
+         */
+        public CloseableIterator<BAMRawRecord> rawIterator();
+
+        /**
+         * Query the records overlapping or contained in the intervals, like query(), returning them in their BAM
+         * form as rawIterator() does.
+         *
+         * @param intervals Intervals to be queried.  Must be optimized.
+         * @param contained If true, each record must be contained in one of the intervals rather than just overlap it.
+         * @see QueryInterval#optimizeIntervals(QueryInterval[])
+         */
+        public CloseableIterator<BAMRawRecord> queryRaw(final QueryInterval[] intervals, final boolean contained);
+    }
+
     /**
      * Facet for index-related operations.
      */
@@ -347,9 +386,11 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
      * the two are always implemented by the same class.
      *
      */
-    class PrimitiveSamReaderToSamReaderAdapter implements SamReader, Indexing {
+    class PrimitiveSamReaderToSamReaderAdapter implements SamReader, Indexing, RecordAccess {
         final PrimitiveSamReader p;
         final SamInputResource resource;
+        // If non-null, records that the underlying reader returns must satisfy this, as it does not apply it itself.
+        private SamRecordPredicate recordPredicate = null;
 
         public PrimitiveSamReaderToSamReaderAdapter(final PrimitiveSamReader p, final SamInputResource resource) {
             this.p = p;
@@ -360,6 +401,55 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
             return p;
         }
 
+        /**
+         * Sets a predicate that records must satisfy to be returned by iterators created afterwards.  A BAM reader
+         * evaluates it on records before decoding them; the records of other readers are filtered as they are
+         * returned.  queryMate() and index builders ignore it.
+         * @param predicate null to return all records.
+         */
+        void setRecordPredicate(final SamRecordPredicate predicate) {
+            if (p instanceof BAMFileReader) {
+                ((BAMFileReader) p).setRecordPredicate(predicate);
+            } else {
+                this.recordPredicate = predicate;
+            }
+        }
+
+        /** @return the predicate that records must satisfy to be returned by new iterators, or null if there is none. */
+        SamRecordPredicate getRecordPredicate() {
+            return p instanceof BAMFileReader ? ((BAMFileReader) p).getRecordPredicate() : recordPredicate;
+        }
+
+        /**
+         * Iterate through all the records in the file, whether or not they satisfy the record predicate, for callers
+         * such as index builders that must see every record.
+         */
+        SAMRecordIterator iteratorIgnoringRecordPredicate() {
+            final SamRecordPredicate predicate = getRecordPredicate();
+            setRecordPredicate(null);
+            try {
+                return iterator();
+            } finally {
+                setRecordPredicate(predicate);
+            }
+        }
+
+        /**
+         * @return an iterator over all the records read by the reader, ignoring any record predicate it was opened
+         * with.
+         */
+        static SAMRecordIterator iterateAllRecords(final SamReader reader) {
+            if (reader instanceof PrimitiveSamReaderToSamReaderAdapter) {
+                return ((PrimitiveSamReaderToSamReaderAdapter) reader).iteratorIgnoringRecordPredicate();
+            }
+            return reader.iterator();
+        }
+
+        /** @return the iterator, filtered by the record predicate if the underlying reader does not apply it. */
+        private CloseableIterator<SAMRecord> filter(final CloseableIterator<SAMRecord> iterator) {
+            return recordPredicate == null ? iterator : new FilteringIterator(iterator, recordPredicate);
+        }
+
         @Override
         public SAMRecordIterator queryOverlapping(final String sequence, final int start, final int end) {
             return query(sequence, start, end, false);
@@ -395,11 +485,18 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
                 throw new IllegalArgumentException("SAMRecord must be either first and second of pair, but not both.");
             }
             final boolean firstOfPair = rec.getFirstOfPairFlag();
+            // The mate is returned whether or not it satisfies the record predicate
+            final SamRecordPredicate predicate = getRecordPredicate();
             final CloseableIterator<SAMRecord> it;
-            if (rec.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                it = queryUnmapped();
-            } else {
-                it = queryAlignmentStart(rec.getMateReferenceName(), rec.getMateAlignmentStart());
+            setRecordPredicate(null);
+            try {
+                if (rec.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    it = queryUnmapped();
+                } else {
+                    it = queryAlignmentStart(rec.getMateReferenceName(), rec.getMateAlignmentStart());
+                }
+            } finally {
+                setRecordPredicate(predicate);
             }
             try {
                 SAMRecord mateRec = null;
@@ -445,12 +542,36 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
 
         @Override
         public SAMRecordIterator iterator() {
-            return new AssertingIterator(p.getIterator());
+            return new AssertingIterator(filter(p.getIterator()));
         }
 
         @Override
         public SAMRecordIterator iterator(final SAMFileSpan chunks) {
-            return new AssertingIterator(p.getIterator(chunks));
+            return new AssertingIterator(filter(p.getIterator(chunks)));
+        }
+
+        @Override
+        public SAMRecordIterator iteratorReusingRecords() {
+            if (p instanceof ReaderImplementation) {
+                return new AssertingIterator(filter(((ReaderImplementation) p).getIteratorReusingRecords()));
+            }
+            return iterator();
+        }
+
+        @Override
+        public CloseableIterator<BAMRawRecord> rawIterator() {
+            if (p instanceof ReaderImplementation && recordPredicate == null) {
+                return ((ReaderImplementation) p).getRawIterator();
+            }
+            return new BAMRawRecord.EncodingIterator(filter(p.getIterator()), getFileHeader());
+        }
+
+        @Override
+        public CloseableIterator<BAMRawRecord> queryRaw(final QueryInterval[] intervals, final boolean contained) {
+            if (p instanceof ReaderImplementation && recordPredicate == null) {
+                return ((ReaderImplementation) p).queryRaw(intervals, contained);
+            }
+            return new BAMRawRecord.EncodingIterator(filter(p.query(intervals, contained)), getFileHeader());
         }
 
         @Override
@@ -495,7 +616,7 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
 
         @Override
         public SAMRecordIterator query(final QueryInterval[] intervals, final boolean contained) {
-            return AssertingIterator.of(p.query(intervals, contained));
+            return AssertingIterator.of(filter(p.query(intervals, contained)));
         }
 
         @Override
@@ -505,12 +626,12 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
 
         @Override
         public SAMRecordIterator queryUnmapped() {
-            return AssertingIterator.of(p.queryUnmapped());
+            return AssertingIterator.of(filter(p.queryUnmapped()));
         }
 
         @Override
         public SAMRecordIterator queryAlignmentStart(final String sequence, final int start) {
-            return AssertingIterator.of(p.queryAlignmentStart(sequence, start));
+            return AssertingIterator.of(filter(p.queryAlignmentStart(sequence, start)));
         }
 
     }
@@ -592,5 +713,26 @@ public interface SamReader extends Iterable<SAMRecord>, Closeable {
         abstract void setSAMRecordFactory(final SAMRecordFactory factory);
 
         abstract void setValidationStringency(final ValidationStringency validationStringency);
+
+        /**
+         * @return an iterator like getIterator(), except that it may overwrite and return the same records repeatedly.
+         */
+        CloseableIterator<SAMRecord> getIteratorReusingRecords() {
+            return getIterator();
+        }
+
+        /**
+         * @return an iterator over the records of getIterator() in their BAM form.
+         */
+        CloseableIterator<BAMRawRecord> getRawIterator() {
+            return new BAMRawRecord.EncodingIterator(getIterator(), getFileHeader());
+        }
+
+        /**
+         * @return an iterator over the records of query() in their BAM form.
+         */
+        CloseableIterator<BAMRawRecord> queryRaw(final QueryInterval[] intervals, final boolean contained) {
+            return new BAMRawRecord.EncodingIterator(query(intervals, contained), getFileHeader());
+        }
     }
 }
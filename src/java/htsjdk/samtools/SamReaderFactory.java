@@ -1,11 +1,13 @@
 package htsjdk.samtools;
 
 import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.filter.SamRecordPredicate;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.InflatedBlockCache;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeIOException;
 
@@ -85,6 +87,70 @@ public abstract class SamReaderFactory {
     /** Set this factory's {@link ValidationStringency} to the provided one, then returns itself. */
     abstract public SamReaderFactory validationStringency(final ValidationStringency validationStringency);
 
+    /**
+     * Sets the number of inflater threads for readers from this factory, then returns itself.  Each reader reads that
+     * many BGZF blocks ahead of the iterating thread and inflates them on a pool shared by all readers, which has as
+     * many threads as the largest number any reader has been given.  0 inflates on the iterating thread.  Defaults
+     * to {@link Defaults#INFLATER_THREADS}.
+     */
+    abstract public SamReaderFactory inflaterThreads(final int inflaterThreads);
+
+    /** Returns the number of inflater threads for readers from this factory. */
+    abstract public int inflaterThreads();
+
+    /**
+     * Sets the number of batches of records that BAM readers from this factory decode in the background, ahead of the
+     * iterating thread, then returns itself.  Batches are decoded on a pool shared by all readers, which has as many
+     * threads as the largest number given to any reader.  Records are still returned in file order.  The {@link SAMRecordFactory}
+     * must be thread-safe if this is non-zero.  0 decodes on the iterating thread.  Defaults to {@link Defaults#DECODER_THREADS}.
+     */
+    abstract public SamReaderFactory decoderThreads(final int decoderThreads);
+
+    /** Returns the number of batches of records that BAM readers from this factory decode in the background. */
+    abstract public int decoderThreads();
+
+    /**
+     * Sets the number of bytes of inflated BGZF blocks that indexed queries on BAM readers from this factory may read
+     * in the background, ahead of the iterating thread, from the chunks of the query that it is yet to reach, then
+     * returns itself.  0 reads each chunk when it is reached.  Defaults to {@link Defaults#QUERY_PREFETCH_BYTES}.
+     */
+    abstract public SamReaderFactory queryPrefetchBytes(final int queryPrefetchBytes);
+
+    /** Returns the number of bytes that indexed queries on BAM readers from this factory may prefetch. */
+    abstract public int queryPrefetchBytes();
+
+    /**
+     * Sets a cache of inflated BGZF blocks to be shared by the BAM readers from this factory, then returns itself.
+     * Repeated random-access queries on the same files then avoid re-reading and re-inflating blocks.  Null, the
+     * default, disables caching.
+     */
+    abstract public SamReaderFactory blockCache(final InflatedBlockCache blockCache);
+
+    /** Returns the cache of inflated BGZF blocks shared by the BAM readers from this factory, or null if there is none. */
+    abstract public InflatedBlockCache blockCache();
+
+    /**
+     * Sets a cache of parsed index content to be shared by the BAM and CRAM readers from this factory when
+     * {@link Option#CACHE_FILE_BASED_INDEXES} is enabled, then returns itself.  Readers opened for each query then
+     * avoid re-parsing the index file.  Null caches index content only within each reader.  Defaults to
+     * {@link BAMIndexContentCache#getSharedCache()}.
+     */
+    abstract public SamReaderFactory indexCache(final BAMIndexContentCache indexCache);
+
+    /** Returns the cache of index content shared by the readers from this factory, or null if there is none. */
+    abstract public BAMIndexContentCache indexCache();
+
+    /**
+     * Sets a predicate that records must satisfy to be returned by the iterators of readers from this factory, then
+     * returns itself.  BAM readers evaluate it on each record before decoding it, so rejected records are skipped
+     * without being decoded, validated or made into {@link SAMRecord}s; other readers filter the records they make.
+     * Null, the default, returns all records.
+     */
+    abstract public SamReaderFactory recordPredicate(final SamRecordPredicate recordPredicate);
+
+    /** Returns the predicate that records read by readers from this factory must satisfy, or null if there is none. */
+    abstract public SamRecordPredicate recordPredicate();
+
     private static SamReaderFactoryImpl DEFAULT =
             new SamReaderFactoryImpl(Option.DEFAULTS, defaultValidationStringency, DefaultSAMRecordFactory.getInstance());
 
@@ -114,6 +180,12 @@ public abstract class SamReaderFactory {
         private SAMRecordFactory samRecordFactory;
         private CustomReaderFactory customReaderFactory;
         private File referenceSequence;
+        private int inflaterThreads = Defaults.INFLATER_THREADS;
+        private int decoderThreads = Defaults.DECODER_THREADS;
+        private int queryPrefetchBytes = Defaults.QUERY_PREFETCH_BYTES;
+        private InflatedBlockCache blockCache = null;
+        private BAMIndexContentCache indexCache = BAMIndexContentCache.getSharedCache();
+        private SamRecordPredicate recordPredicate = null;
 
         private SamReaderFactoryImpl(final EnumSet<Option> enabledOptions, final ValidationStringency validationStringency, final SAMRecordFactory samRecordFactory) {
             this.enabledOptions = EnumSet.copyOf(enabledOptions);
@@ -197,6 +269,81 @@ public abstract class SamReaderFactory {
             return this;
         }
 
+        @Override
+        public SamReaderFactory inflaterThreads(final int inflaterThreads) {
+            if (inflaterThreads < 0) {
+                throw new IllegalArgumentException("Invalid number of inflater threads: " + inflaterThreads);
+            }
+            this.inflaterThreads = inflaterThreads;
+            return this;
+        }
+
+        @Override
+        public int inflaterThreads() {
+            return inflaterThreads;
+        }
+
+        @Override
+        public SamReaderFactory decoderThreads(final int decoderThreads) {
+            if (decoderThreads < 0) {
+                throw new IllegalArgumentException("Invalid number of decoder threads: " + decoderThreads);
+            }
+            this.decoderThreads = decoderThreads;
+            return this;
+        }
+
+        @Override
+        public int decoderThreads() {
+            return decoderThreads;
+        }
+
+        @Override
+        public SamReaderFactory queryPrefetchBytes(final int queryPrefetchBytes) {
+            if (queryPrefetchBytes < 0) {
+                throw new IllegalArgumentException("Invalid number of query prefetch bytes: " + queryPrefetchBytes);
+            }
+            this.queryPrefetchBytes = queryPrefetchBytes;
+            return this;
+        }
+
+        @Override
+        public int queryPrefetchBytes() {
+            return queryPrefetchBytes;
+        }
+
+        @Override
+        public SamReaderFactory blockCache(final InflatedBlockCache blockCache) {
+            this.blockCache = blockCache;
+            return this;
+        }
+
+        @Override
+        public InflatedBlockCache blockCache() {
+            return blockCache;
+        }
+
+        @Override
+        public SamReaderFactory indexCache(final BAMIndexContentCache indexCache) {
+            this.indexCache = indexCache;
+            return this;
+        }
+
+        @Override
+        public BAMIndexContentCache indexCache() {
+            return indexCache;
+        }
+
+        @Override
+        public SamReaderFactory recordPredicate(final SamRecordPredicate recordPredicate) {
+            this.recordPredicate = recordPredicate;
+            return this;
+        }
+
+        @Override
+        public SamRecordPredicate recordPredicate() {
+            return recordPredicate;
+        }
+
         @Override
         public SamReader open(final SamInputResource resource) {
             final SamReader.PrimitiveSamReader primitiveSamReader;
@@ -249,7 +396,9 @@ public abstract class SamReaderFactory {
                             primitiveSamReader = new BAMFileReader(sourceFile, indexFile, false, validationStringency, this.samRecordFactory);
                         }
                     } else if (BlockCompressedInputStream.isValidFile(bufferedStream)) {
-                        primitiveSamReader = new SAMTextReader(new BlockCompressedInputStream(bufferedStream), validationStringency, this.samRecordFactory);
+                        final BlockCompressedInputStream bgzfStream = new BlockCompressedInputStream(bufferedStream);
+                        bgzfStream.setInflaterThreads(inflaterThreads);
+                        primitiveSamReader = new SAMTextReader(bgzfStream, validationStringency, this.samRecordFactory);
                     } else if (SamStreams.isGzippedSAMFile(bufferedStream)) {
                         primitiveSamReader = new SAMTextReader(new GZIPInputStream(bufferedStream), validationStringency, this.samRecordFactory);
                     } else if (SamStreams.isCRAMFile(bufferedStream)) {
@@ -274,9 +423,20 @@ public abstract class SamReaderFactory {
                     }
                 }
 
+                if (primitiveSamReader instanceof BAMFileReader) {
+                    ((BAMFileReader) primitiveSamReader).setInflaterThreads(inflaterThreads);
+                    ((BAMFileReader) primitiveSamReader).setDecoderThreads(decoderThreads);
+                    ((BAMFileReader) primitiveSamReader).setQueryPrefetchBytes(queryPrefetchBytes);
+                    ((BAMFileReader) primitiveSamReader).setBlockCache(blockCache);
+                    ((BAMFileReader) primitiveSamReader).setIndexCache(indexCache);
+                } else if (primitiveSamReader instanceof CRAMFileReader) {
+                    ((CRAMFileReader) primitiveSamReader).setIndexCache(indexCache);
+                }
+
                 // Apply the options defined by this factory to this reader
                 final SamReader.PrimitiveSamReaderToSamReaderAdapter reader =
                         new SamReader.PrimitiveSamReaderToSamReaderAdapter(primitiveSamReader, resource);
+                reader.setRecordPredicate(recordPredicate);
 
                 for (final Option option : enabledOptions) {
                     option.applyTo(reader);
@@ -289,7 +449,14 @@ public abstract class SamReaderFactory {
         }
 
         public static SamReaderFactory copyOf(final SamReaderFactoryImpl target) {
-            return new SamReaderFactoryImpl(target.enabledOptions, target.validationStringency, target.samRecordFactory);
+            final SamReaderFactoryImpl copy = new SamReaderFactoryImpl(target.enabledOptions, target.validationStringency, target.samRecordFactory);
+            copy.inflaterThreads = target.inflaterThreads;
+            copy.decoderThreads = target.decoderThreads;
+            copy.queryPrefetchBytes = target.queryPrefetchBytes;
+            copy.blockCache = target.blockCache;
+            copy.indexCache = target.indexCache;
+            copy.recordPredicate = target.recordPredicate;
+            return copy;
         }
     }
 
@@ -341,6 +508,32 @@ public abstract class SamReaderFactory {
             }
         },
 
+        /**
+         * The factory's {@link SamReader}s' {@link SamReader#indexing()}'s calls to {@link SamReader.Indexing#getIndex()} will produce
+         * {@link BAMIndex}es that memory-map the index file and keep each reference's bins, once queried, in packed primitive arrays.
+         * This needs much less heap than {@link #CACHE_FILE_BASED_INDEXES} for large indexes, and takes precedence over it and over
+         * {@link #DONT_MEMORY_MAP_INDEX}.  The index is not browseable.
+         *
+         * @see SamReader#indexing()
+         * @see htsjdk.samtools.SamReader.Indexing#getIndex()
+         */
+        COMPACT_FILE_BASED_INDEXES {
+            @Override
+            void applyTo(final BAMFileReader underlyingReader, final SamReader reader) {
+                underlyingReader.enableCompactIndex(true);
+            }
+
+            @Override
+            void applyTo(final SAMTextReader underlyingReader, final SamReader reader) {
+                logDebugIgnoringOption(reader, this);
+            }
+
+            @Override
+            void applyTo(final CRAMFileReader underlyingReader, final SamReader reader) {
+                underlyingReader.enableCompactIndex(true);
+            }
+        },
+
         /**
          * The factory's {@link SamReader}s' will not use memory mapping for accessing index files (which is used by default).  This is
          * slower but more scalable when accessing large numbers of BAM files sequentially.
@@ -386,6 +579,32 @@ public abstract class SamReaderFactory {
             }
         },
 
+        /**
+         * Have BAM {@link htsjdk.samtools.SamReader}s return {@link htsjdk.samtools.BAMRecord}s whose variable-length data
+         * are slices of buffers shared with neighbouring records, rather than copies, which greatly reduces allocation
+         * when scanning large files.  A record that is retained after its iterator has read another 1000 records, or been
+         * closed, is given a copy of its own data before its buffer is reused, as is a record that is modified.
+         * Records must be detached with {@link htsjdk.samtools.BAMRecord#detachBinaryData()} before being handed to
+         * another thread.
+         * This has no effect when records are decoded in the background (see {@link SamReaderFactory#decoderThreads(int)}).
+         */
+        SHARE_RECORD_BUFFERS {
+            @Override
+            void applyTo(final BAMFileReader underlyingReader, final SamReader reader) {
+                underlyingReader.setShareRecordBuffers(true);
+            }
+
+            @Override
+            void applyTo(final SAMTextReader underlyingReader, final SamReader reader) {
+                logDebugIgnoringOption(reader, this);
+            }
+
+            @Override
+            void applyTo(final CRAMFileReader underlyingReader, final SamReader reader) {
+                logDebugIgnoringOption(reader, this);
+            }
+        },
+
         /**
          * For {@link htsjdk.samtools.SamReader}s backed by block-compressed streams, enable CRC validation of those streams.  This is an
          * expensive operation, but serves to ensure validity of the stream.
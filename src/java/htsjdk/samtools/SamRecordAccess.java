@@ -0,0 +1,45 @@
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloseableIterator;
+
+/**
+ * Entry points for the {@link SamReader.RecordAccess} facet, which is optional so that existing {@link SamReader}
+ * implementations need not provide it.  Readers that implement it, as those from {@link SamReaderFactory} do, are
+ * called directly; other readers fall back to their ordinary iterators, with each record encoded if its BAM form
+ * is asked for.
+ */
+public class SamRecordAccess {
+    /**
+     * @return an iterator that may reuse the records it returns, as {@link SamReader.RecordAccess#iteratorReusingRecords()}
+     * does, or the reader's ordinary iterator if it does not implement that facet.
+     */
+    public static SAMRecordIterator iteratorReusingRecords(final SamReader reader) {
+        if (reader instanceof SamReader.RecordAccess) {
+            return ((SamReader.RecordAccess) reader).iteratorReusingRecords();
+        }
+        return reader.iterator();
+    }
+
+    /**
+     * @return an iterator over the records of the file in their BAM form, as
+     * {@link SamReader.RecordAccess#rawIterator()} returns.
+     */
+    public static CloseableIterator<BAMRawRecord> rawIterator(final SamReader reader) {
+        if (reader instanceof SamReader.RecordAccess) {
+            return ((SamReader.RecordAccess) reader).rawIterator();
+        }
+        return new BAMRawRecord.EncodingIterator(reader.iterator(), reader.getFileHeader());
+    }
+
+    /**
+     * @return an iterator over the records overlapping or contained in the intervals in their BAM form, as
+     * {@link SamReader.RecordAccess#queryRaw(QueryInterval[], boolean)} returns.
+     */
+    public static CloseableIterator<BAMRawRecord> queryRaw(final SamReader reader, final QueryInterval[] intervals,
+                                                           final boolean contained) {
+        if (reader instanceof SamReader.RecordAccess) {
+            return ((SamReader.RecordAccess) reader).queryRaw(intervals, contained);
+        }
+        return new BAMRawRecord.EncodingIterator(reader.query(intervals, contained), reader.getFileHeader());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted buffer holding the variable-length parts of many consecutive BAMRecords, which refer to their
+ * slices of it rather than to copies.  The buffer is returned to the pool it came from when the last reference to it
+ * is released, and is refilled once it is next obtained from the pool.  Before that, any of its records that are still
+ * reachable, i.e. that have been retained by the caller after being released, are given copies of their own slices.
+ */
+final class SharedRecordBuffer {
+    static final int DEFAULT_SIZE = 256 * 1024;
+
+    private final byte[] data;
+    private final Queue<SharedRecordBuffer> pool;
+    private final AtomicInteger refCount = new AtomicInteger(0);
+    private final List<WeakReference<BAMRecord>> views = new ArrayList<WeakReference<BAMRecord>>();
+    private int used = 0;
+
+    private SharedRecordBuffer(final int size, final Queue<SharedRecordBuffer> pool) {
+        this.data = new byte[size];
+        this.pool = pool;
+    }
+
+    /**
+     * @return an empty buffer from the pool with room for at least minSize bytes, or a new buffer if there is none.
+     * The buffer is released to the pool when its reference count next drops to zero.
+     */
+    static SharedRecordBuffer obtain(final Queue<SharedRecordBuffer> pool, final int minSize) {
+        final SharedRecordBuffer buffer = pool.poll();
+        if (buffer != null && buffer.data.length >= minSize) {
+            buffer.detachViews();
+            return buffer;
+        }
+        // Buffers too small for this record are dropped; records of this size are rare.
+        return new SharedRecordBuffer(Math.max(DEFAULT_SIZE, minSize), pool);
+    }
+
+    /**
+     * Reserves space for a slice of the given length at the end of the buffer.
+     * @return the offset of the slice, or -1 if there is not enough space left.
+     */
+    int reserve(final int length) {
+        if (used + length > data.length) {
+            return -1;
+        }
+        final int offset = used;
+        used += length;
+        return offset;
+    }
+
+    byte[] getData() { return data; }
+
+    /**
+     * Records that the given record is a view of a slice of this buffer, so that it can be detached before the buffer
+     * is refilled if it is still reachable then.
+     */
+    void addView(final BAMRecord record) {
+        views.add(new WeakReference<BAMRecord>(record));
+    }
+
+    /**
+     * Gives every record that is still a view of this buffer a copy of its own slice, and empties the buffer.
+     * Only called once all references to the buffer have been released.
+     */
+    private void detachViews() {
+        for (final WeakReference<BAMRecord> view : views) {
+            final BAMRecord record = view.get();
+            if (record != null) {
+                record.detachBinaryData(this);
+            }
+        }
+        views.clear();
+        used = 0;
+    }
+
+    void retain() {
+        refCount.incrementAndGet();
+    }
+
+    void release() {
+        final int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.offer(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("SharedRecordBuffer released more times than it was retained");
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.filter;
+
+import htsjdk.samtools.BAMRawRecord;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+
+/**
+ * A filter built from simple predicates on the fields of a record: its flags, mapping quality, position and read
+ * group.  As well as filtering SAMRecords, as any SamRecordFilter does, a predicate can be evaluated on a record in
+ * its BAM form (see BAMRawRecord) without decoding it.  BAM readers given a predicate (see
+ * SamReaderFactory.recordPredicate()) use this to skip the records that it rejects before making SAMRecords of them,
+ * which for most predicates looks only at the fixed-length fields at the start of each record.
+ *
+ * Predicates are combined with and(), or() and not(), e.g. to keep primary, non-duplicate alignments with a mapping
+ * quality of at least 20:
+ * <pre>
+ *     SamRecordPredicate.flagsUnset(0x4 | 0x100 | 0x400).and(SamRecordPredicate.minMappingQuality(20))
+ * </pre>
+ * The same predicate can be given to any number of readers, and used by any number of threads.
+ *
+ * @see DuplicateReadFilter
+ * @see AlignedFilter
+ * @see NotPrimaryAlignmentFilter
+ * @see IntervalFilter
+ */
+public abstract class SamRecordPredicate implements SamRecordFilter {
+
+    /** @return true if the record satisfies this predicate. */
+    public abstract boolean matches(SAMRecord record);
+
+    /** @return true if the record satisfies this predicate.  Evaluated on the record's bytes, creating nothing. */
+    public abstract boolean matches(BAMRawRecord record);
+
+    /**
+     * Determines whether a SAMRecord matches this filter
+     *
+     * @param record the SAMRecord to evaluate
+     * @return true if the SAMRecord does not satisfy this predicate, otherwise false
+     */
+    public boolean filterOut(final SAMRecord record) {
+        return !matches(record);
+    }
+
+    /**
+     * Determines whether a pair of SAMRecord matches this filter
+     *
+     * @param first  the first SAMRecord to evaluate
+     * @param second the second SAMRecord to evaluate
+     * @return true if either SAMRecord does not satisfy this predicate, otherwise false
+     */
+    public boolean filterOut(final SAMRecord first, final SAMRecord second) {
+        // if either fails, exclude them both
+        return !matches(first) || !matches(second);
+    }
+
+    /** @return a predicate satisfied by records satisfying both this predicate and the other. */
+    public SamRecordPredicate and(final SamRecordPredicate other) {
+        final SamRecordPredicate first = this;
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return first.matches(record) && other.matches(record);
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return first.matches(record) && other.matches(record);
+            }
+        };
+    }
+
+    /** @return a predicate satisfied by records satisfying either this predicate or the other. */
+    public SamRecordPredicate or(final SamRecordPredicate other) {
+        final SamRecordPredicate first = this;
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return first.matches(record) || other.matches(record);
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return first.matches(record) || other.matches(record);
+            }
+        };
+    }
+
+    /** @return a predicate satisfied by records not satisfying this predicate. */
+    public SamRecordPredicate not() {
+        final SamRecordPredicate predicate = this;
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return !predicate.matches(record);
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return !predicate.matches(record);
+            }
+        };
+    }
+
+    /** @return a predicate satisfied by records with all of the given flag bits set. */
+    public static SamRecordPredicate flagsSet(final int flags) {
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return (record.getFlags() & flags) == flags;
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return (record.getFlags() & flags) == flags;
+            }
+        };
+    }
+
+    /** @return a predicate satisfied by records with none of the given flag bits set. */
+    public static SamRecordPredicate flagsUnset(final int flags) {
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return (record.getFlags() & flags) == 0;
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return (record.getFlags() & flags) == 0;
+            }
+        };
+    }
+
+    /** @return a predicate satisfied by records with at least the given mapping quality. */
+    public static SamRecordPredicate minMappingQuality(final int mappingQuality) {
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                return record.getMappingQuality() >= mappingQuality;
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                return record.getMappingQuality() >= mappingQuality;
+            }
+        };
+    }
+
+    /**
+     * @return a predicate satisfied by records overlapping any of the given intervals, as in a query of an indexed
+     * file.  As in a query, an unmapped read placed with its mate overlaps the intervals holding its position.
+     */
+    public static SamRecordPredicate overlapping(final QueryInterval... intervals) {
+        return new IntervalPredicate(intervals, false);
+    }
+
+    /**
+     * @return a predicate satisfied by records contained in any of the given intervals, as in a query of an indexed
+     * file.
+     */
+    public static SamRecordPredicate containedIn(final QueryInterval... intervals) {
+        return new IntervalPredicate(intervals, true);
+    }
+
+    /** @return a predicate satisfied by records in any of the given read groups. */
+    public static SamRecordPredicate readGroup(final String... readGroupIds) {
+        final String[] ids = readGroupIds.clone();
+        return new SamRecordPredicate() {
+            @Override
+            public boolean matches(final SAMRecord record) {
+                final Object readGroup = record.getAttribute(SAMTag.RG.name());
+                for (final String id : ids) {
+                    if (id.equals(readGroup)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean matches(final BAMRawRecord record) {
+                for (final String id : ids) {
+                    if (record.attributeEquals(SAMTag.RG.name(), id)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Finds the interval that may hold a record by binary search of the optimized intervals. */
+    private static class IntervalPredicate extends SamRecordPredicate {
+        private final QueryInterval[] intervals;
+        private final boolean contained;
+
+        IntervalPredicate(final QueryInterval[] intervals, final boolean contained) {
+            this.intervals = QueryInterval.optimizeIntervals(intervals.clone());
+            this.contained = contained;
+        }
+
+        @Override
+        public boolean matches(final SAMRecord record) {
+            // An unmapped read with the coordinate of its mate
+            final int end = record.getReadUnmappedFlag() ? record.getAlignmentStart() : record.getAlignmentEnd();
+            return matches(record.getReferenceIndex(), record.getAlignmentStart(), end);
+        }
+
+        @Override
+        public boolean matches(final BAMRawRecord record) {
+            final int end = record.getReadUnmappedFlag() ? record.getAlignmentStart() : record.getAlignmentEnd();
+            return matches(record.getReferenceIndex(), record.getAlignmentStart(), end);
+        }
+
+        private boolean matches(final int referenceIndex, final int start, final int end) {
+            if (referenceIndex < 0 || start <= 0) {
+                return false;
+            }
+            // The last interval starting at or before the position that any interval holding the record must hold.
+            // The intervals don't overlap, so none before it can reach any further.
+            final int position = contained ? start : end;
+            int low = 0;
+            int high = intervals.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final QueryInterval interval = intervals[mid];
+                if (interval.referenceIndex < referenceIndex ||
+                        (interval.referenceIndex == referenceIndex && interval.start <= position)) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (high < 0 || intervals[high].referenceIndex != referenceIndex) {
+                return false;
+            }
+            final QueryInterval interval = intervals[high];
+            return interval.end <= 0 || interval.end >= (contained ? end : start);
+        }
+    }
+}
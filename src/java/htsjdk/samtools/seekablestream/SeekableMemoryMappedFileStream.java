@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SeekableStream over a local file that is memory-mapped, so that reads are copies out of the page cache rather
+ * than system calls.  This is much cheaper than SeekableFileStream for many small random reads, and the stream
+ * needs no further buffering.
+ *
+ * A single mapping is limited to 2GB, so larger files are mapped as a series of segments.
+ *
+ * close() unmaps the segments, where the JVM allows it, rather than leaving them mapped until they are garbage
+ * collected, which on Windows would prevent the file from being deleted.  The stream must therefore not be read
+ * by one thread while another closes it.
+ */
+public class SeekableMemoryMappedFileStream extends SeekableStream {
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private final File file;
+    private final FileInputStream fileInputStream;
+    private final long length;
+    private final long segmentSize;
+    // Null once the stream has been closed.
+    private MappedByteBuffer[] segments;
+    private long position = 0;
+
+    public SeekableMemoryMappedFileStream(final File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of each segment but the last.  Only tests need to set this.
+     */
+    SeekableMemoryMappedFileStream(final File file, final int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.fileInputStream = new FileInputStream(file);
+        try {
+            final FileChannel channel = fileInputStream.getChannel();
+            this.length = channel.size();
+            final int numSegments = (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+            segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; ++i) {
+                final long start = i * this.segmentSize;
+                final long size = Math.min(this.segmentSize, length - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        } catch (final IOException e) {
+            fileInputStream.close();
+            throw e;
+        }
+    }
+
+    /** @return a view of the segment containing the given position, positioned there. */
+    private ByteBuffer segmentAt(final long position) throws IOException {
+        if (segments == null) {
+            throw new IOException("Stream is closed: " + file);
+        }
+        final int segmentIndex = (int) Math.min(position / segmentSize, segments.length - 1);
+        final ByteBuffer view = segments[segmentIndex].asReadOnlyBuffer();
+        view.position((int) (position - segmentIndex * segmentSize));
+        return view;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(final long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Cannot seek to negative position " + position + " in " + file);
+        }
+        this.position = position;
+    }
+
+    @Override
+    public long skip(final long n) {
+        final long skipped = Math.max(0, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= this.length) {
+            return -1;
+        }
+        int n = 0;
+        while (n < length && position < this.length) {
+            final ByteBuffer view = segmentAt(position);
+            final int count = (int) Math.min(length - n, Math.min(view.remaining(), this.length - position));
+            view.get(buffer, offset + n, count);
+            n += count;
+            position += count;
+        }
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        final ByteBuffer view = segmentAt(position);
+        ++position;
+        return view.get() & 0xFF;
+    }
+
+    @Override
+    public boolean eof() {
+        return position >= length;
+    }
+
+    @Override
+    public String getSource() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (segments != null) {
+            for (final MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+            segments = null;
+        }
+        fileInputStream.close();
+    }
+
+    /**
+     * Releases a mapping immediately, through the JVM's internal API for doing so.  If that is not accessible, the
+     * mapping is left to be released when it is garbage collected.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (final Exception e) {
+            // Fall through to the older API
+        }
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            // The mapping will be released by the garbage collector
+        }
+    }
+}
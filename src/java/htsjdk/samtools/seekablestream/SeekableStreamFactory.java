@@ -23,6 +23,8 @@
  */
 package htsjdk.samtools.seekablestream;
 
+import htsjdk.samtools.Defaults;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -62,6 +64,17 @@ public class SeekableStreamFactory{
         return ! ( path.startsWith("http:") || path.startsWith("https:") || path.startsWith("ftp:") );
     }
 
+    /**
+     * Opens a local file, memory-mapped if Defaults.USE_MEMORY_MAPPED_FILES is set.
+     * @return a SeekableMemoryMappedFileStream or a SeekableFileStream.
+     */
+    public static SeekableStream getFileStream(final File file) throws IOException {
+        if (Defaults.USE_MEMORY_MAPPED_FILES) {
+            return new SeekableMemoryMappedFileStream(file);
+        }
+        return new SeekableFileStream(file);
+    }
+
     private static class DefaultSeekableStreamFactory implements ISeekableStreamFactory {
 
         public SeekableStream getStreamFor(final URL url) throws IOException {
@@ -77,7 +90,7 @@ public class SeekableStreamFactory{
             } else if (path.startsWith("ftp:")) {
                 return new SeekableFTPStream(new URL(path));
             } else {
-                return new SeekableFileStream(new File(path));
+                return SeekableStreamFactory.getFileStream(new File(path));
             }
         }
 
@@ -86,7 +99,8 @@ public class SeekableStreamFactory{
         }
 
         public SeekableStream getBufferedStream(SeekableStream stream, int bufferSize){
-            if (bufferSize == 0) return stream;
+            // Memory-mapped streams are as cheap to read from as a buffer
+            if (bufferSize == 0 || stream instanceof SeekableMemoryMappedFileStream) return stream;
             else return new SeekableBufferedStream(stream, bufferSize);
         }
 
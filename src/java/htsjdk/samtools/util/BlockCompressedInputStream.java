@@ -24,10 +24,11 @@
 package htsjdk.samtools.util;
 
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.FileTruncatedException;
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.seekablestream.SeekableBufferedStream;
-import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
 import htsjdk.samtools.seekablestream.SeekableHTTPStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
 
@@ -39,7 +40,13 @@ import java.io.RandomAccessFile;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /*
  * Utility class for reading BGZF block compressed files.  The caller can treat this file like any other InputStream.
@@ -47,6 +54,21 @@ import java.util.Arrays;
  * The advantage of BGZF over conventional GZip format is that BGZF allows for seeking without having to read the
  * entire file up to the location being sought.  Note that seeking is only possible if the ctor(File) is used.
  *
+ * If the number of inflater threads is greater than zero (see setInflaterThreads() and Defaults.INFLATER_THREADS),
+ * that many compressed blocks are read ahead sequentially and inflated in the background by a pool of worker
+ * threads shared by all streams, which has as many threads as the largest number any stream has been given.  Inflated blocks are still consumed strictly in file order, so getFilePointer() and seek() behave
+ * exactly as they do when blocks are inflated on the calling thread.
+ *
+ * If an InflatedBlockCache is set (see setBlockCache()), blocks are looked up in the cache before being read from
+ * the underlying stream, and blocks that are reached by seek() are added to it.  This avoids re-reading and
+ * re-inflating blocks that are visited repeatedly by random-access queries, including queries made through other
+ * streams that share the same cache.  Blocks reached by reading sequentially are not added, so that scanning a file
+ * does not evict the blocks that random-access readers are using.
+ *
+ * If prefetch() is called with the chunks that are about to be read, as by an indexed query, the blocks they span are
+ * read and inflated on a background thread while the caller consumes the preceding ones.  Seeking or reading outside
+ * those chunks stops the prefetching, and the stream reverts to reading blocks as they are needed.
+ *
  * c.f. http://samtools.sourceforge.net/SAM1.pdf for details of BGZF format
  */
 public class BlockCompressedInputStream extends InputStream implements LocationAware {
@@ -58,7 +80,28 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
     private long mBlockAddress = 0;
     private int mLastBlockLength = 0;
     private final BlockGunzipper blockGunzipper = new BlockGunzipper();
-
+    private boolean mCheckCrcs = false;
+
+    // Read-ahead state.  Blocks in mReadAheadQueue have been read from the underlying stream and
+    // handed to the inflater pool, but not yet consumed.  mReadAheadAddress is the compressed address
+    // of the next block to be read from the underlying stream.
+    private int mInflaterThreads = Defaults.INFLATER_THREADS;
+    private final Deque<ReadAheadBlock> mReadAheadQueue = new ArrayDeque<ReadAheadBlock>();
+    private final Deque<byte[]> mSpareCompressedBuffers = new ArrayDeque<byte[]>();
+    private long mReadAheadAddress = 0;
+    private boolean mReadAheadEof = false;
+
+    // Block cache state.  When the current block came from the cache, the underlying stream has not been
+    // moved, and must be repositioned to mReadAheadAddress before it is next read from.
+    private InflatedBlockCache mBlockCache = null;
+    private String mBlockCacheSource = null;
+    private boolean mCurrentBlockShared = false;
+    private boolean mStreamNeedsSeek = false;
+    // True while seek() is reading the block sought, which is the only kind of block added to the cache.
+    private boolean mSeeking = false;
+
+    // If non-null, blocks are taken from the prefetcher, which has exclusive use of mFile until it is stopped.
+    private BlockCompressedPrefetcher mPrefetcher = null;
 
     /**
      * Note that seek() is not supported if this ctor is used.
@@ -82,11 +125,11 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
     }
 
     /**
-     * Use this ctor if you wish to call seek()
+     * Use this ctor if you wish to call seek().  The file is memory-mapped if Defaults.USE_MEMORY_MAPPED_FILES is set.
      */
     public BlockCompressedInputStream(final File file)
         throws IOException {
-        mFile = new SeekableFileStream(file);
+        mFile = SeekableStreamFactory.getFileStream(file);
         mStream = null;
 
     }
@@ -112,9 +155,89 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
      * operation and should be used accordingly.
      */
     public void setCheckCrcs(final boolean check) {
+        this.mCheckCrcs = check;
         this.blockGunzipper.setCheckCrcs(check);
     }
 
+    /**
+     * Sets the number of inflater threads.  The stream reads this many blocks ahead of the caller and inflates them
+     * on a pool shared by all streams, which is grown to this many threads if it has fewer.  If zero, each block
+     * is read and inflated on the calling thread when it is needed.  Blocks that have already been read ahead are
+     * still returned if this is lowered, so this may be called at any time.
+     * @param threads number of blocks to read ahead and of threads the shared inflater pool needs; 0 disables read-ahead.
+     */
+    public void setInflaterThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid number of inflater threads: " + threads);
+        }
+        this.mInflaterThreads = threads;
+    }
+
+    /**
+     * @return the number of inflater threads, which is also the number of blocks read ahead of the caller.
+     */
+    public int getInflaterThreads() {
+        return mInflaterThreads;
+    }
+
+    /**
+     * Sets a cache of inflated blocks to be consulted before reading blocks, and populated with blocks reached by seek().
+     * The cache is only used if this stream supports seek() and its source has a name, because blocks are
+     * identified by the name of the source and their compressed address.
+     * @param cache the cache to use, which may be shared with other streams, or null to stop using one.
+     */
+    public void setBlockCache(final InflatedBlockCache cache) {
+        if (cache != null && mFile != null && mFile.getSource() != null) {
+            mBlockCache = cache;
+            mBlockCacheSource = mFile.getSource();
+        } else {
+            mBlockCache = null;
+            mBlockCacheSource = null;
+        }
+    }
+
+    /**
+     * @return the cache of inflated blocks in use by this stream, or null if there is none.
+     */
+    public InflatedBlockCache getBlockCache() {
+        return mBlockCache;
+    }
+
+    /**
+     * Starts reading and inflating, on a background thread, the blocks spanned by the given chunks, which the caller
+     * is about to read in the given order by seeking to the start of each chunk and reading to its end.  The caller
+     * then does not wait for I/O as it moves from one chunk to the next, as long as it keeps within the budget.
+     * Seeking to or reading a block outside the chunks, or after those that have been skipped over, stops prefetching.
+     * This has no effect if the stream is not seekable.
+     * @param filePointers pairs of virtual file pointers, each the start (inclusive) and end (exclusive) of a chunk,
+     *                     in increasing order, as returned by BAMFileSpan.toCoordinateArray().
+     * @param byteBudget maximum number of inflated bytes to hold ahead of the caller.
+     */
+    public void prefetch(final long[] filePointers, final long byteBudget) {
+        stopPrefetching();
+        if (mFile == null || filePointers == null || filePointers.length == 0 || byteBudget <= 0) {
+            return;
+        }
+        // Blocks that have been read ahead will be prefetched again if they are needed
+        clearReadAheadQueue();
+        mReadAheadAddress = mBlockAddress + mLastBlockLength;
+        mReadAheadEof = false;
+        mStreamNeedsSeek = true;
+        mPrefetcher = new BlockCompressedPrefetcher(mFile, filePointers, byteBudget, mCheckCrcs);
+        mPrefetcher.start();
+    }
+
+    /**
+     * Stops any prefetching started by prefetch(), discarding blocks that have been prefetched but not yet read.
+     */
+    public void stopPrefetching() {
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+            mPrefetcher = null;
+            mStreamNeedsSeek = true;
+        }
+    }
+
     /**
      * @return the number of bytes that can be read (or skipped over) from this input stream without blocking by the
      * next caller of a method for this input stream. The next caller might be the same thread or another thread.
@@ -137,6 +260,8 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
      */
     public void close()
         throws IOException {
+        stopPrefetching();
+        clearReadAheadQueue();
         if (mFile != null) {
             mFile.close();
             mFile = null;
@@ -283,14 +408,11 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         final long compressedOffset = BlockCompressedFilePointerUtil.getBlockAddress(pos);
         final int uncompressedOffset = BlockCompressedFilePointerUtil.getBlockOffset(pos);
         final int available;
-        if (mBlockAddress == compressedOffset && mCurrentBlock != null) {
-            available = mCurrentBlock.length;
-        } else {
-            mFile.seek(compressedOffset);
-            mBlockAddress = compressedOffset;
-            mLastBlockLength = 0;
-            readBlock();
-            available = available();
+        mSeeking = true;
+        try {
+            available = seekBlock(compressedOffset);
+        } finally {
+            mSeeking = false;
         }
         if (uncompressedOffset > available ||
                 (uncompressedOffset == available && !eof())) {
@@ -299,9 +421,53 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         mCurrentOffset = uncompressedOffset;
     }
 
+    /**
+     * Makes the block at the given address the current block.
+     * @return the number of bytes available in the block.
+     */
+    private int seekBlock(final long compressedOffset) throws IOException {
+        if (mBlockAddress == compressedOffset && mCurrentBlock != null) {
+            return mCurrentBlock.length;
+        }
+        if (mPrefetcher != null && usePrefetchedBlock(compressedOffset)) {
+            return available();
+        }
+        if (mBlockCache != null && !readAheadQueueContains(compressedOffset) && useCachedBlock(compressedOffset)) {
+            clearReadAheadQueue();
+            return available();
+        }
+        // Discard read-ahead blocks preceding the one sought.  If it has already been read ahead,
+        // the underlying stream is left where it is so that reading ahead can continue.
+        while (!mReadAheadQueue.isEmpty() && mReadAheadQueue.peek().address != compressedOffset) {
+            discard(mReadAheadQueue.poll());
+        }
+        if (mReadAheadQueue.isEmpty()) {
+            mFile.seek(compressedOffset);
+            mReadAheadAddress = compressedOffset;
+            mReadAheadEof = false;
+            mStreamNeedsSeek = false;
+        }
+        mBlockAddress = compressedOffset;
+        mLastBlockLength = 0;
+        // The cache has already been consulted for this block
+        readBlock(false);
+        return available();
+    }
+
     private boolean eof() throws IOException {
-        if (mFile.eof()) {
-            return true;
+        // The underlying stream can't be examined while it is in use by the prefetcher
+        stopPrefetching();
+        if (mInflaterThreads > 0 || !mReadAheadQueue.isEmpty()) {
+            // The underlying stream is positioned after the read-ahead blocks, so work out whether the current block
+            // is the last one from its position in the file instead.
+            if (mFile.length() <= mBlockAddress + mLastBlockLength) {
+                return true;
+            }
+        } else {
+            syncStreamPosition();
+            if (mFile.eof()) {
+                return true;
+            }
         }
         // If the last remaining block is the size of the EMPTY_GZIP_BLOCK, this is the same as being at EOF.
         return (mFile.length() - (mBlockAddress + mLastBlockLength) == BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
@@ -357,10 +523,26 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
 
     private void readBlock()
         throws IOException {
+        readBlock(true);
+    }
+
+    private void readBlock(final boolean consultCache)
+        throws IOException {
 
+        if (mPrefetcher != null && usePrefetchedBlock(mBlockAddress + mLastBlockLength)) {
+            return;
+        }
+        if (mInflaterThreads > 0 || !mReadAheadQueue.isEmpty()) {
+            readBlockAhead();
+            return;
+        }
+        if (consultCache && mBlockCache != null && useCachedBlock(mReadAheadAddress)) {
+            return;
+        }
         if (mFileBuffer == null) {
             mFileBuffer = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
         }
+        syncStreamPosition();
         int count = readBytes(mFileBuffer, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
         if (count == 0) {
             // Handle case where there is no empty gzip block at end.
@@ -385,13 +567,186 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         mCurrentOffset = 0;
         mBlockAddress += mLastBlockLength;
         mLastBlockLength = blockLength;
+        mReadAheadAddress = mBlockAddress + mLastBlockLength;
+        cacheCurrentBlock();
+    }
+
+    /**
+     * If the block at the given address is in the block cache, makes it the current block without reading from
+     * the underlying stream, which is then repositioned lazily if the following block is not also cached.
+     * @return true if the block was found in the cache.
+     */
+    private boolean useCachedBlock(final long blockAddress) {
+        final InflatedBlockCache.Block block = mBlockCache.get(mBlockCacheSource, blockAddress);
+        if (block == null) {
+            return false;
+        }
+        mCurrentBlock = block.getInflated();
+        mCurrentBlockShared = true;
+        mCurrentOffset = 0;
+        mBlockAddress = blockAddress;
+        mLastBlockLength = block.getCompressedLength();
+        mReadAheadAddress = mBlockAddress + mLastBlockLength;
+        mReadAheadEof = false;
+        mStreamNeedsSeek = true;
+        return true;
+    }
+
+    /**
+     * Makes the block at the given address, which the prefetcher has read, the current block.  If the prefetcher
+     * does not have the block, prefetching is stopped, so that the block can be read from the underlying stream.
+     * @return true if the block was prefetched.
+     */
+    private boolean usePrefetchedBlock(final long blockAddress) {
+        final BlockCompressedPrefetcher.Block block = mPrefetcher.take(blockAddress);
+        if (block == null) {
+            stopPrefetching();
+            return false;
+        }
+        mCurrentBlock = block.inflated;
+        mCurrentBlockShared = false;
+        mCurrentOffset = 0;
+        mBlockAddress = blockAddress;
+        mLastBlockLength = block.compressedLength;
+        mReadAheadAddress = mBlockAddress + mLastBlockLength;
+        mReadAheadEof = false;
+        cacheCurrentBlock();
+        return true;
+    }
+
+    private void cacheCurrentBlock() {
+        if (mBlockCache != null && mSeeking) {
+            mBlockCache.put(mBlockCacheSource, mBlockAddress, mCurrentBlock, mLastBlockLength);
+            mCurrentBlockShared = true;
+        }
+    }
+
+    /** Moves the underlying stream to mReadAheadAddress if the current block did not come from it. */
+    private void syncStreamPosition() throws IOException {
+        if (mStreamNeedsSeek) {
+            mFile.seek(mReadAheadAddress);
+            mStreamNeedsSeek = false;
+        }
+    }
+
+    private boolean readAheadQueueContains(final long blockAddress) {
+        for (final ReadAheadBlock block : mReadAheadQueue) {
+            if (block.address == blockAddress) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the next block from the read-ahead queue, waiting for it to be inflated if necessary, and makes
+     * it the current block.  Errors encountered while reading ahead are only reported when the block that
+     * could not be read is reached.
+     */
+    private void readBlockAhead()
+        throws IOException {
+        fillReadAheadQueue();
+        final ReadAheadBlock block = mReadAheadQueue.poll();
+        if (block == null) {
+            // Handle case where there is no empty gzip block at end.
+            mCurrentOffset = 0;
+            mBlockAddress += mLastBlockLength;
+            mCurrentBlock = new byte[0];
+            return;
+        }
+        if (block.error != null) {
+            if (block.error instanceof IOException) throw (IOException) block.error;
+            throw (RuntimeException) block.error;
+        }
+        final byte[] inflated;
+        try {
+            inflated = block.inflated.get();
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for block to be inflated", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            mSpareCompressedBuffers.push(block.compressed);
+        }
+        mCurrentBlock = inflated;
+        mCurrentBlockShared = false;
+        mCurrentOffset = 0;
+        mBlockAddress = block.address;
+        mLastBlockLength = block.compressedLength;
+        cacheCurrentBlock();
+        // Keep the pipeline full while the caller consumes this block.
+        fillReadAheadQueue();
+    }
+
+    /**
+     * Reads compressed blocks from the underlying stream and submits them for inflation until either
+     * mInflaterThreads blocks are pending or the end of the stream is reached.
+     */
+    private void fillReadAheadQueue() {
+        while (mReadAheadQueue.size() < mInflaterThreads && !mReadAheadEof) {
+            final long address = mReadAheadAddress;
+            final byte[] compressed = mSpareCompressedBuffers.isEmpty() ?
+                    new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE] : mSpareCompressedBuffers.pop();
+            try {
+                syncStreamPosition();
+                int count = readBytes(compressed, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+                if (count == 0) {
+                    mReadAheadEof = true;
+                    mSpareCompressedBuffers.push(compressed);
+                    return;
+                }
+                if (count != BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH) {
+                    throw new IOException("Premature end of file");
+                }
+                final int blockLength = unpackInt16(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+                if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH || blockLength > compressed.length) {
+                    throw new IOException("Unexpected compressed block length: " + blockLength);
+                }
+                final int remaining = blockLength - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+                count = readBytes(compressed, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, remaining);
+                if (count != remaining) {
+                    throw new FileTruncatedException("Premature end of file");
+                }
+                final int uncompressedLength = unpackInt32(compressed, blockLength - 4);
+                if (uncompressedLength < 0) {
+                    throw new RuntimeException("BGZF file has invalid uncompressedLength: " + uncompressedLength);
+                }
+                mReadAheadQueue.add(new ReadAheadBlock(address, compressed, blockLength,
+                        getInflaterService(mInflaterThreads).submit(new InflateTask(compressed, blockLength, uncompressedLength, mCheckCrcs))));
+                mReadAheadAddress += blockLength;
+            } catch (final IOException e) {
+                mReadAheadQueue.add(new ReadAheadBlock(address, compressed, e));
+                mReadAheadEof = true;
+            } catch (final RuntimeException e) {
+                mReadAheadQueue.add(new ReadAheadBlock(address, compressed, e));
+                mReadAheadEof = true;
+            }
+        }
+    }
+
+    private void clearReadAheadQueue() {
+        while (!mReadAheadQueue.isEmpty()) {
+            discard(mReadAheadQueue.poll());
+        }
+    }
+
+    private void discard(final ReadAheadBlock block) {
+        if (block.inflated != null) {
+            block.inflated.cancel(false);
+        }
+        // The buffer may still be in use by an inflater that could not be cancelled, so don't recycle it.
     }
 
     private void inflateBlock(final byte[] compressedBlock, final int compressedLength)
         throws IOException {
         final int uncompressedLength = unpackInt32(compressedBlock, compressedLength-4);
-        byte[] buffer = mCurrentBlock;
+        // A block that is shared with the cache must not be overwritten
+        byte[] buffer = mCurrentBlockShared ? null : mCurrentBlock;
         mCurrentBlock = null;
+        mCurrentBlockShared = false;
         if (buffer == null || buffer.length != uncompressedLength) {
             try {
                 buffer = new byte[uncompressedLength];
@@ -452,6 +807,81 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
                 ((buffer[offset+3] & 0xFF) << 24));
     }
 
+    /**
+     * A compressed block that has been read ahead of the caller, and the pending result of inflating it.
+     * If reading the block failed, error is set and the exception is thrown when the block is consumed.
+     */
+    private static class ReadAheadBlock {
+        final long address;
+        final byte[] compressed;
+        final int compressedLength;
+        final Future<byte[]> inflated;
+        final Exception error;
+
+        ReadAheadBlock(final long address, final byte[] compressed, final int compressedLength, final Future<byte[]> inflated) {
+            this.address = address;
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+            this.inflated = inflated;
+            this.error = null;
+        }
+
+        ReadAheadBlock(final long address, final byte[] compressed, final Exception error) {
+            this.address = address;
+            this.compressed = compressed;
+            this.compressedLength = 0;
+            this.inflated = null;
+            this.error = error;
+        }
+    }
+
+    /** Inflates a single block on a pool thread, using a BlockGunzipper owned by that thread. */
+    private static class InflateTask implements Callable<byte[]> {
+        private final byte[] compressed;
+        private final int compressedLength;
+        private final int uncompressedLength;
+        private final boolean checkCrcs;
+
+        InflateTask(final byte[] compressed, final int compressedLength, final int uncompressedLength, final boolean checkCrcs) {
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = uncompressedLength;
+            this.checkCrcs = checkCrcs;
+        }
+
+        @Override
+        public byte[] call() {
+            final byte[] uncompressed = new byte[uncompressedLength];
+            final BlockGunzipper gunzipper = threadGunzipper.get();
+            gunzipper.setCheckCrcs(checkCrcs);
+            gunzipper.unzipBlock(uncompressed, compressed, compressedLength);
+            return uncompressed;
+        }
+    }
+
+    private static final ThreadLocal<BlockGunzipper> threadGunzipper = new ThreadLocal<BlockGunzipper>() {
+        @Override
+        protected BlockGunzipper initialValue() {
+            return new BlockGunzipper();
+        }
+    };
+
+    private static ExecutorService inflaterService = null;
+
+    /**
+     * The pool is shared by all streams, and has as many threads as the largest number of inflater threads that any
+     * stream has been given, so that many streams reading at once do not each add their own threads.  Each stream
+     * bounds the number of its blocks waiting to be inflated by its number of inflater threads.
+     */
+    private static synchronized ExecutorService getInflaterService(final int threads) {
+        if (inflaterService == null) {
+            inflaterService = DaemonThreadFactory.newFixedDaemonThreadPool("BlockCompressedInputStream inflater ", threads);
+        } else {
+            DaemonThreadFactory.ensurePoolSize(inflaterService, threads);
+        }
+        return inflaterService;
+    }
+
     public enum FileTermination {HAS_TERMINATOR_BLOCK, HAS_HEALTHY_LAST_BLOCK, DEFECTIVE}
 
     public static FileTermination checkTermination(final File file)
@@ -23,11 +23,18 @@
  */
 package htsjdk.samtools.util;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.zip.DeflaterFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
@@ -44,6 +51,12 @@ import java.util.zip.Deflater;
  * number of buffered bytes has not reached threshold.  close(), on the other hand, must be called
  * when done writing in order to force the last gzip block to be written.
  *
+ * If the number of deflater threads is greater than zero (see setDeflaterThreads() and Defaults.DEFLATER_THREADS),
+ * filled blocks are compressed in the background by a shared pool of worker threads, each using its own
+ * Deflater, and written to the underlying stream in the order they were filled.  getFilePointer() remains exact,
+ * but must wait for blocks still being compressed.  Callers that need a file pointer for every record, such as
+ * BAMFileWriter when indexing, should use getUnresolvedFilePointer() and resolveFilePointer() instead.
+ *
  * c.f. http://samtools.sourceforge.net/SAM1.pdf for details of BGZF file format.
  */
 public class BlockCompressedOutputStream
@@ -69,11 +82,12 @@ public class BlockCompressedOutputStream
     }
 
     private final BinaryCodec codec;
-    private final byte[] uncompressedBuffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private byte[] uncompressedBuffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
     private int numUncompressedBytes = 0;
     private final byte[] compressedBuffer =
             new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
                     BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+    private final int compressionLevel;
     private final Deflater deflater;
 
     // A second deflater is created for the very unlikely case where the regular deflation actually makes
@@ -93,6 +107,21 @@ public class BlockCompressedOutputStream
     private File file = null;
     private long mBlockAddress = 0;
 
+    // Parallel deflation state.  Blocks in mPendingBlocks have been handed to the deflater pool but not yet
+    // written; they are written in the order they were submitted.  Block sequence numbers count the gzip
+    // blocks containing data, starting at 0.
+    private int mDeflaterThreads = Defaults.DEFLATER_THREADS;
+    private final Deque<DeflateJob> mPendingBlocks = new ArrayDeque<DeflateJob>();
+    private final Deque<DeflateJob> mSpareJobs = new ArrayDeque<DeflateJob>();
+    private long mBlocksSubmitted = 0;
+    private long mBlocksWritten = 0;
+
+    // Addresses of written blocks, starting with block number mFirstRetainedBlock, kept so that
+    // unresolved file pointers can be resolved.  Only retained once getUnresolvedFilePointer() has been called.
+    private boolean mRetainBlockAddresses = false;
+    private final Deque<Long> mRetainedBlockAddresses = new ArrayDeque<Long>();
+    private long mFirstRetainedBlock = 0;
+
 
     // Really a local variable, but allocate once to reduce GC burden.
     private final byte[] singleByteArray = new byte[1];
@@ -126,6 +155,7 @@ public class BlockCompressedOutputStream
     public BlockCompressedOutputStream(final File file, final int compressionLevel) {
         this.file = file;
         codec = new BinaryCodec(file, true);
+        this.compressionLevel = compressionLevel;
         deflater = DeflaterFactory.makeDeflater(compressionLevel, true);
     }
 
@@ -143,9 +173,32 @@ public class BlockCompressedOutputStream
         if (file != null) {
             codec.setOutputFileName(file.getAbsolutePath());
         }
+        this.compressionLevel = compressionLevel;
         deflater = DeflaterFactory.makeDeflater(compressionLevel, true);
     }
 
+    /**
+     * Sets the number of deflater threads: up to this many blocks are compressed in the background at once, on a
+     * pool shared by all streams that has as many threads as the largest number given to any of them.  If zero,
+     * each block is compressed and written on the calling thread as soon as it is filled.  Blocks already submitted
+     * for compression are written before this takes effect, so this may be called at any time.
+     * @param threads number of blocks to compress concurrently on the shared deflater pool; 0 disables it.
+     */
+    public void setDeflaterThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid number of deflater threads: " + threads);
+        }
+        writePendingBlocks();
+        this.mDeflaterThreads = threads;
+    }
+
+    /**
+     * @return the number of blocks that may be compressed in the background.
+     */
+    public int getDeflaterThreads() {
+        return mDeflaterThreads;
+    }
+
     /**
      *
      * @param location May be null.  Used for error messages, and for checking file termination.
@@ -207,6 +260,7 @@ public class BlockCompressedOutputStream
         while (numUncompressedBytes > 0) {
             deflateBlock();
         }
+        writePendingBlocks();
         codec.getOutputStream().flush();
     }
 
@@ -225,6 +279,9 @@ public class BlockCompressedOutputStream
         // }
         codec.writeBytes(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
         codec.close();
+        while (!mSpareJobs.isEmpty()) {
+            mSpareJobs.pop().end();
+        }
         // Can't re-open something that is not a regular file, e.g. a named pipe or an output stream
         if (this.file == null || !this.file.isFile()) return;
         if (BlockCompressedInputStream.checkTermination(this.file) !=
@@ -250,9 +307,51 @@ public class BlockCompressedOutputStream
      * Lower 16 bits is the byte offset into the uncompressed stream inside the block.
      */
     public long getFilePointer(){
+        writePendingBlocks();
         return BlockCompressedFilePointerUtil.makeFilePointer(mBlockAddress, numUncompressedBytes);
     }
 
+    /**
+     * Returns the position of the next byte to be written as an unresolved file pointer, which has the same layout
+     * as a virtual file pointer except that the upper 48 bits hold the sequence number of the block rather than
+     * its address.  Unlike getFilePointer(), this never waits for blocks that are being compressed.
+     * Use resolveFilePointer() to convert it to a virtual file pointer once its block has been written.
+     */
+    public long getUnresolvedFilePointer() {
+        if (!mRetainBlockAddresses) {
+            mRetainBlockAddresses = true;
+            mFirstRetainedBlock = mBlocksWritten;
+        }
+        return BlockCompressedFilePointerUtil.makeFilePointer(mBlocksSubmitted, numUncompressedBytes);
+    }
+
+    /**
+     * Converts a pointer returned by getUnresolvedFilePointer() into a virtual file pointer.  Unresolved pointers
+     * must be resolved in the order in which they were obtained, because resolving a pointer releases the
+     * addresses of all earlier blocks.
+     * @return the virtual file pointer, or -1 if the blocks preceding the pointer have not all been written yet.
+     */
+    public long resolveFilePointer(final long unresolvedFilePointer) {
+        final long blockNumber = BlockCompressedFilePointerUtil.getBlockAddress(unresolvedFilePointer);
+        final int blockOffset = BlockCompressedFilePointerUtil.getBlockOffset(unresolvedFilePointer);
+        if (blockNumber > mBlocksWritten) {
+            return -1;
+        }
+        if (blockNumber == mBlocksWritten) {
+            // All preceding blocks have been written, so this block will start at the current address
+            return BlockCompressedFilePointerUtil.makeFilePointer(mBlockAddress, blockOffset);
+        }
+        if (blockNumber < mFirstRetainedBlock) {
+            throw new IllegalArgumentException("File pointer has already been released: " +
+                    BlockCompressedFilePointerUtil.asString(unresolvedFilePointer));
+        }
+        while (mFirstRetainedBlock < blockNumber) {
+            mRetainedBlockAddresses.pop();
+            ++mFirstRetainedBlock;
+        }
+        return BlockCompressedFilePointerUtil.makeFilePointer(mRetainedBlockAddresses.peek(), blockOffset);
+    }
+
     @Override
     public long getPosition() {
         return getFilePointer();
@@ -263,14 +362,49 @@ public class BlockCompressedOutputStream
      * If the entire uncompressedBuffer does not fit in the maximum allowed size, reduce the amount
      * of data to be compressed, and slide the excess down in uncompressedBuffer so it can be picked
      * up in the next deflate event.
-     * @return size of gzip block that was written.
+     * If deflating in the background, the block is handed to the deflater pool instead, and any
+     * blocks that have finished compressing are written.
+     * @return size of gzip block that was written, or 0 if the block is being compressed in the background.
      */
     private int deflateBlock() {
         if (numUncompressedBytes == 0) {
             return 0;
         }
+        if (mDeflaterThreads > 0) {
+            submitBlock();
+            return 0;
+        }
         final int bytesToCompress = numUncompressedBytes;
         // Compress the input
+        final int compressedSize = compressBlock(deflater, noCompressionDeflater, uncompressedBuffer, bytesToCompress, compressedBuffer);
+        // Data compressed small enough, so write it out.
+        crc32.reset();
+        crc32.update(uncompressedBuffer, 0, bytesToCompress);
+
+        final int totalBlockSize = writeGzipBlock(compressedBuffer, compressedSize, bytesToCompress, crc32.getValue());
+        assert(bytesToCompress <= numUncompressedBytes);
+
+        // Clear out from uncompressedBuffer the data that was written
+        if (bytesToCompress == numUncompressedBytes) {
+            numUncompressedBytes = 0;
+        } else {
+            System.arraycopy(uncompressedBuffer, bytesToCompress, uncompressedBuffer, 0,
+                    numUncompressedBytes - bytesToCompress);
+            numUncompressedBytes -= bytesToCompress;
+        }
+        ++mBlocksSubmitted;
+        blockWritten(totalBlockSize);
+        return totalBlockSize;
+    }
+
+    /**
+     * Compresses the input with the given deflater.  If it didn't all fit in the output buffer, compresses
+     * at NO_COMPRESSION level instead, which always fits.
+     * @return number of bytes of compressed data in compressedBuffer.
+     */
+    private static int compressBlock(final Deflater deflater, final Deflater noCompressionDeflater,
+                                     final byte[] uncompressedBuffer, final int bytesToCompress,
+                                     final byte[] compressedBuffer) {
         deflater.reset();
         deflater.setInput(uncompressedBuffer, 0, bytesToCompress);
         deflater.finish();
@@ -287,30 +421,74 @@ public class BlockCompressedOutputStream
                 throw new IllegalStateException("unpossible");
             }
         }
-        // Data compressed small enough, so write it out.
-        crc32.reset();
-        crc32.update(uncompressedBuffer, 0, bytesToCompress);
+        return compressedSize;
+    }
 
-        final int totalBlockSize = writeGzipBlock(compressedSize, bytesToCompress, crc32.getValue());
-        assert(bytesToCompress <= numUncompressedBytes);
+    /**
+     * Hands the contents of uncompressedBuffer to the deflater pool, first waiting for the oldest pending
+     * block to be written if mDeflaterThreads blocks are already pending.
+     */
+    private void submitBlock() {
+        while (mPendingBlocks.size() >= mDeflaterThreads) {
+            writeNextPendingBlock();
+        }
+        final DeflateJob job = mSpareJobs.isEmpty() ? new DeflateJob(compressionLevel) : mSpareJobs.pop();
+        // Swap buffers rather than copying the data
+        final byte[] filledBuffer = uncompressedBuffer;
+        uncompressedBuffer = job.uncompressedBuffer;
+        job.uncompressedBuffer = filledBuffer;
+        job.numUncompressedBytes = numUncompressedBytes;
+        numUncompressedBytes = 0;
+        job.result = getDeflaterService(mDeflaterThreads).submit(job);
+        mPendingBlocks.add(job);
+        ++mBlocksSubmitted;
+        // Write whatever has already finished, without waiting
+        while (!mPendingBlocks.isEmpty() && mPendingBlocks.peek().result.isDone()) {
+            writeNextPendingBlock();
+        }
+    }
 
-        // Clear out from uncompressedBuffer the data that was written
-        if (bytesToCompress == numUncompressedBytes) {
-            numUncompressedBytes = 0;
+    /** Waits for all blocks being compressed in the background, and writes them. */
+    private void writePendingBlocks() {
+        while (!mPendingBlocks.isEmpty()) {
+            writeNextPendingBlock();
+        }
+    }
+
+    private void writeNextPendingBlock() {
+        final DeflateJob job = mPendingBlocks.poll();
+        try {
+            job.result.get();
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for block to be compressed", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        final int totalBlockSize = writeGzipBlock(job.compressedBuffer, job.compressedSize, job.numUncompressedBytes, job.crc);
+        job.result = null;
+        mSpareJobs.push(job);
+        blockWritten(totalBlockSize);
+    }
+
+    /** Advances the block address past a block that has just been written. */
+    private void blockWritten(final int totalBlockSize) {
+        if (mRetainBlockAddresses) {
+            mRetainedBlockAddresses.add(mBlockAddress);
         } else {
-            System.arraycopy(uncompressedBuffer, bytesToCompress, uncompressedBuffer, 0,
-                    numUncompressedBytes - bytesToCompress);
-            numUncompressedBytes -= bytesToCompress;
+            mFirstRetainedBlock = mBlocksWritten + 1;
         }
+        ++mBlocksWritten;
         mBlockAddress += totalBlockSize;
-        return totalBlockSize;
     }
 
     /**
      * Writes the entire gzip block, assuming the compressed data is stored in compressedBuffer
      * @return  size of gzip block that was written.
      */
-    private int writeGzipBlock(final int compressedSize, final int uncompressedSize, final long crc) {
+    private int writeGzipBlock(final byte[] compressedBuffer, final int compressedSize, final int uncompressedSize, final long crc) {
         // Init gzip header
         codec.writeByte(BlockCompressedStreamConstants.GZIP_ID1);
         codec.writeByte(BlockCompressedStreamConstants.GZIP_ID2);
@@ -333,4 +511,57 @@ public class BlockCompressedOutputStream
         codec.writeInt(uncompressedSize);
         return totalBlockSize;
     }
+
+    /**
+     * A block to be compressed on a pool thread, along with the Deflaters and buffers used to do so.
+     * Jobs are recycled once their block has been written, so each stream creates at most
+     * mDeflaterThreads + 1 of them.
+     */
+    private static class DeflateJob implements Callable<DeflateJob> {
+        private final Deflater deflater;
+        private final Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+        private final CRC32 crc32 = new CRC32();
+        private byte[] uncompressedBuffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        private final byte[] compressedBuffer =
+                new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
+                        BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        private int numUncompressedBytes;
+        private int compressedSize;
+        private long crc;
+        private Future<DeflateJob> result;
+
+        DeflateJob(final int compressionLevel) {
+            deflater = DeflaterFactory.makeDeflater(compressionLevel, true);
+        }
+
+        @Override
+        public DeflateJob call() {
+            compressedSize = compressBlock(deflater, noCompressionDeflater, uncompressedBuffer, numUncompressedBytes, compressedBuffer);
+            crc32.reset();
+            crc32.update(uncompressedBuffer, 0, numUncompressedBytes);
+            crc = crc32.getValue();
+            return this;
+        }
+
+        void end() {
+            deflater.end();
+            noCompressionDeflater.end();
+        }
+    }
+
+    private static ExecutorService deflaterService = null;
+
+    /**
+     * The pool is shared by all streams, and has as many threads as the largest number of deflater threads that any
+     * stream has been given, so that many streams compressing at once do not each add their own threads.  Each
+     * stream bounds the number of its blocks waiting to be compressed by its number of deflater threads.
+     */
+    private static synchronized ExecutorService getDeflaterService(final int threads) {
+        if (deflaterService == null) {
+            deflaterService = DaemonThreadFactory.newFixedDaemonThreadPool("BlockCompressedOutputStream deflater ", threads);
+        } else {
+            DaemonThreadFactory.ensurePoolSize(deflaterService, threads);
+        }
+        return deflaterService;
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads and inflates, on a background thread, the BGZF blocks spanned by a list of chunks that a
+ * BlockCompressedInputStream is about to read, so that the caller does not stall on I/O for each chunk in turn.
+ * While it is running, the prefetcher has exclusive use of the underlying stream.  Blocks are handed to the caller
+ * in the order in which they were read, and reading pauses whenever the blocks the caller has not yet taken
+ * amount to more than the byte budget.
+ *
+ * Errors are not reported by the prefetcher: it simply stops, and the caller encounters the error when it reads the
+ * block that could not be prefetched for itself.
+ */
+class BlockCompressedPrefetcher implements Runnable {
+
+    /** An inflated block, and the address and length of its compressed form. */
+    static class Block {
+        final long address;
+        final int compressedLength;
+        final byte[] inflated;
+
+        Block(final long address, final int compressedLength, final byte[] inflated) {
+            this.address = address;
+            this.compressedLength = compressedLength;
+            this.inflated = inflated;
+        }
+    }
+
+    private final SeekableStream file;
+    private final long[] filePointers;
+    private final long byteBudget;
+    private final boolean checkCrcs;
+
+    // Guarded by this.
+    private final Deque<Block> blocks = new ArrayDeque<Block>();
+    private long bufferedBytes = 0;
+    private boolean cancelled = false;
+    private boolean done = false;
+
+    /**
+     * @param file the stream to read, which must not be used by anything else until cancel() has returned.
+     * @param filePointers pairs of virtual file pointers, each the start (inclusive) and end (exclusive) of a chunk,
+     *                     in increasing order.
+     * @param byteBudget maximum number of inflated bytes to hold that have not been taken by the caller, though at
+     *                   least one block is always held.
+     */
+    BlockCompressedPrefetcher(final SeekableStream file, final long[] filePointers, final long byteBudget,
+                              final boolean checkCrcs) {
+        this.file = file;
+        this.filePointers = filePointers;
+        this.byteBudget = byteBudget;
+        this.checkCrcs = checkCrcs;
+    }
+
+    void start() {
+        getPrefetchService().execute(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            final BlockGunzipper gunzipper = new BlockGunzipper();
+            gunzipper.setCheckCrcs(checkCrcs);
+            final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+            long lastAddress = -1;
+            long position = -1;
+            for (int i = 0; i + 1 < filePointers.length; i += 2) {
+                long address = BlockCompressedFilePointerUtil.getBlockAddress(filePointers[i]);
+                if (address == lastAddress) {
+                    // The previous chunk ended in the block this one starts in, which has already been read.
+                    address = position;
+                }
+                final long endAddress = BlockCompressedFilePointerUtil.getBlockAddress(filePointers[i + 1]);
+                final boolean endsInBlock = BlockCompressedFilePointerUtil.getBlockOffset(filePointers[i + 1]) > 0;
+                while (address < endAddress || (address == endAddress && endsInBlock)) {
+                    if (position != address) {
+                        file.seek(address);
+                    }
+                    final int compressedLength = readBlock(compressed);
+                    if (compressedLength == 0) {
+                        break;
+                    }
+                    final int uncompressedLength = unpackInt32(compressed, compressedLength - 4);
+                    if (uncompressedLength < 0) {
+                        return;
+                    }
+                    final byte[] inflated = new byte[uncompressedLength];
+                    gunzipper.unzipBlock(inflated, compressed, compressedLength);
+                    if (!offer(new Block(address, compressedLength, inflated))) {
+                        return;
+                    }
+                    lastAddress = address;
+                    address += compressedLength;
+                    position = address;
+                }
+            }
+        } catch (final IOException e) {
+            // Left for the caller to encounter.
+        } catch (final RuntimeException e) {
+            // Left for the caller to encounter.
+        } finally {
+            synchronized (this) {
+                done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the block at the given address, discarding any blocks before it, which the caller has skipped.
+     * @return the block, or null if it is not one of the blocks that will be prefetched, or could not be read.
+     */
+    synchronized Block take(final long address) {
+        while (true) {
+            while (!blocks.isEmpty() && blocks.peek().address < address) {
+                remove();
+            }
+            if (!blocks.isEmpty()) {
+                return blocks.peek().address == address ? remove() : null;
+            }
+            if (done) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException("Interrupted waiting for block to be prefetched", e);
+            }
+        }
+    }
+
+    /**
+     * Stops prefetching, and waits for the underlying stream to be released.  The stream is left at an arbitrary
+     * position.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        blocks.clear();
+        bufferedBytes = 0;
+        notifyAll();
+        while (!done) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException("Interrupted waiting for prefetching to stop", e);
+            }
+        }
+    }
+
+    /**
+     * Adds a block for the caller, first waiting until it fits within the budget.
+     * @return false if prefetching has been cancelled.
+     */
+    private synchronized boolean offer(final Block block) {
+        while (!cancelled && !blocks.isEmpty() && bufferedBytes + block.inflated.length > byteBudget) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                return false;
+            }
+        }
+        if (cancelled) {
+            return false;
+        }
+        blocks.add(block);
+        bufferedBytes += block.inflated.length;
+        notifyAll();
+        return true;
+    }
+
+    private Block remove() {
+        final Block block = blocks.poll();
+        bufferedBytes -= block.inflated.length;
+        notifyAll();
+        return block;
+    }
+
+    /**
+     * Reads a compressed block from the current position of the stream.
+     * @return the length of the block, or 0 at end of file.
+     */
+    private int readBlock(final byte[] buffer) throws IOException {
+        int count = readBytes(buffer, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        if (count == 0) {
+            return 0;
+        }
+        if (count != BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH) {
+            throw new IOException("Premature end of file");
+        }
+        final int blockLength = unpackInt16(buffer, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+        if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH || blockLength > buffer.length) {
+            throw new IOException("Unexpected compressed block length: " + blockLength);
+        }
+        final int remaining = blockLength - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        count = readBytes(buffer, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, remaining);
+        if (count != remaining) {
+            throw new IOException("Premature end of file");
+        }
+        return blockLength;
+    }
+
+    private int readBytes(final byte[] buffer, final int offset, final int length) throws IOException {
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            final int count = file.read(buffer, offset + bytesRead, length - bytesRead);
+            if (count <= 0) {
+                break;
+            }
+            bytesRead += count;
+        }
+        return bytesRead;
+    }
+
+    private static int unpackInt16(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) |
+                ((buffer[offset+1] & 0xFF) << 8));
+    }
+
+    private static int unpackInt32(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) |
+                ((buffer[offset+1] & 0xFF) << 8) |
+                ((buffer[offset+2] & 0xFF) << 16) |
+                ((buffer[offset+3] & 0xFF) << 24));
+    }
+
+    private static ExecutorService prefetchService = null;
+
+    /** The pool is shared by all streams, each of which uses one thread while it is prefetching. */
+    private static synchronized ExecutorService getPrefetchService() {
+        if (prefetchService == null) {
+            prefetchService = DaemonThreadFactory.newCachedDaemonThreadPool("BlockCompressedInputStream prefetcher ");
+        }
+        return prefetchService;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import java.io.Serializable;
+
+/**
+ * A portion of a BGZF file that can be processed independently of the rest of it, e.g. on another thread or another
+ * machine.  It comprises the records that start at or after its start, and before its end, both of which are
+ * virtual file pointers, and the start of which is the start of a record.
+ *
+ * @see BlockCompressedSplitPlanner
+ */
+public class BlockCompressedSplit implements Serializable, Comparable<BlockCompressedSplit> {
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final long start;
+    private final long end;
+
+    /**
+     * @param path the file of which this is a split.
+     * @param start virtual file pointer of the first record in the split.
+     * @param end virtual file pointer of the end of the split (exclusive).
+     */
+    public BlockCompressedSplit(final String path, final long start, final long end) {
+        if (BlockCompressedFilePointerUtil.compare(start, end) > 0) {
+            throw new IllegalArgumentException("Split ends before it starts: " + BlockCompressedFilePointerUtil.asString(start) +
+                    " > " + BlockCompressedFilePointerUtil.asString(end));
+        }
+        this.path = path;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /** @return virtual file pointer of the first record in the split. */
+    public long getStart() {
+        return start;
+    }
+
+    /** @return virtual file pointer of the end of the split (exclusive). */
+    public long getEnd() {
+        return end;
+    }
+
+    /** @return the approximate compressed size of the split. */
+    public long getCompressedSize() {
+        return BlockCompressedFilePointerUtil.getBlockAddress(end) - BlockCompressedFilePointerUtil.getBlockAddress(start);
+    }
+
+    @Override
+    public int compareTo(final BlockCompressedSplit other) {
+        int result = path.compareTo(other.path);
+        if (result == 0) {
+            result = BlockCompressedFilePointerUtil.compare(start, other.start);
+        }
+        if (result == 0) {
+            result = BlockCompressedFilePointerUtil.compare(end, other.end);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final BlockCompressedSplit that = (BlockCompressedSplit) o;
+        return start == that.start && end == that.end && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (start ^ (start >>> 32));
+        result = 31 * result + (int) (end ^ (end >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return path + ":" + BlockCompressedFilePointerUtil.getBlockAddress(start) + "/" + BlockCompressedFilePointerUtil.getBlockOffset(start) +
+                "-" + BlockCompressedFilePointerUtil.getBlockAddress(end) + "/" + BlockCompressedFilePointerUtil.getBlockOffset(end);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Divides a BGZF file into splits (see BlockCompressedSplit) of roughly equal compressed size, each of which starts at
+ * the start of a record, so that the file can be processed in parallel without first reading it from the start.
+ *
+ * The start of each split is found by looking for the first BGZF block that starts at or after the desired
+ * position, which is identified by the magic numbers in its header and by the header of the block that follows it,
+ * and then for the first record that starts at or after the start of that block, which is format-specific.
+ *
+ * Planning splits reads little of the file, but not nothing, so the splits can be saved in a small "splitting index"
+ * file alongside the file (see writeSplittingIndex()) for reuse.
+ */
+public abstract class BlockCompressedSplitPlanner {
+    /** Extension appended to the name of a file to make the name of its splitting index. */
+    public static final String SPLITTING_INDEX_EXTENSION = ".splitting-index";
+
+    private static final byte[] SPLITTING_INDEX_MAGIC = {'B', 'G', 'S', 1};
+
+    protected final File file;
+
+    protected BlockCompressedSplitPlanner(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Virtual file pointer of the first record in the file, after any header.  If the file has no records,
+     * this may be the end of the file.
+     */
+    protected abstract long getFirstRecordStart(final BlockCompressedInputStream stream) throws IOException;
+
+    /**
+     * Finds the first record that starts at or after the start of the BGZF block at the given address, which is not
+     * the first block in the file.
+     * @param stream stream on the file, which may be left at any position.
+     * @return virtual file pointer of the start of the record, or -1 if no record starts in the block, in which
+     * case the following block will be examined.
+     */
+    protected abstract long findRecordStart(final BlockCompressedInputStream stream, final long blockAddress) throws IOException;
+
+    /**
+     * Plans the given number of splits, or fewer if the file is too small to have that many.
+     * @return splits in file order, which cover all of the records in the file.
+     */
+    public List<BlockCompressedSplit> planSplits(final int numSplits) {
+        if (numSplits < 1) {
+            throw new IllegalArgumentException("Invalid number of splits: " + numSplits);
+        }
+        final long length = file.length();
+        final long[] targets = new long[numSplits - 1];
+        for (int i = 1; i < numSplits; ++i) {
+            targets[i - 1] = (long) (length * ((double) i / numSplits));
+        }
+        return planSplitsAt(targets);
+    }
+
+    /**
+     * Plans splits of about the given compressed size.
+     * @return splits in file order, which cover all of the records in the file.
+     */
+    public List<BlockCompressedSplit> planSplitsOfSize(final long splitSize) {
+        if (splitSize < 1) {
+            throw new IllegalArgumentException("Invalid split size: " + splitSize);
+        }
+        final long length = file.length();
+        final long[] targets = new long[(int) Math.max(0, (length - 1) / splitSize)];
+        for (int i = 0; i < targets.length; ++i) {
+            targets[i] = (i + 1) * splitSize;
+        }
+        return planSplitsAt(targets);
+    }
+
+    /**
+     * @param targets compressed file offsets, in increasing order, at or after which splits should start.
+     */
+    private List<BlockCompressedSplit> planSplitsAt(final long[] targets) {
+        final long length = file.length();
+        final long end = makeFilePointer(length, 0);
+        final List<Long> starts = new ArrayList<Long>();
+        SeekableStream raw = null;
+        BlockCompressedInputStream stream = null;
+        try {
+            raw = SeekableStreamFactory.getFileStream(file);
+            stream = new BlockCompressedInputStream(file);
+            final long first = getFirstRecordStart(stream);
+            if (BlockCompressedFilePointerUtil.compare(first, end) >= 0) {
+                return Collections.emptyList();
+            }
+            starts.add(first);
+            for (final long target : targets) {
+                final long lastStart = starts.get(starts.size() - 1);
+                if (target <= BlockCompressedFilePointerUtil.getBlockAddress(lastStart)) {
+                    continue;
+                }
+                long blockAddress = findBlockStart(raw, target, length);
+                long recordStart = -1;
+                while (blockAddress >= 0 && recordStart < 0) {
+                    recordStart = findRecordStart(stream, blockAddress);
+                    if (recordStart < 0) {
+                        blockAddress = getNextBlockAddress(raw, blockAddress, length);
+                    }
+                }
+                if (recordStart < 0) {
+                    // No records in the rest of the file
+                    break;
+                }
+                if (BlockCompressedFilePointerUtil.compare(recordStart, lastStart) > 0 &&
+                        BlockCompressedFilePointerUtil.compare(recordStart, end) < 0) {
+                    starts.add(recordStart);
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error planning splits of " + file, e);
+        } finally {
+            CloserUtil.close(raw);
+            CloserUtil.close(stream);
+        }
+        final List<BlockCompressedSplit> splits = new ArrayList<BlockCompressedSplit>(starts.size());
+        for (int i = 0; i < starts.size(); ++i) {
+            splits.add(new BlockCompressedSplit(file.getPath(), starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : end));
+        }
+        return splits;
+    }
+
+    /**
+     * @return the address of the first BGZF block at or after the given offset, or -1 if there is none.
+     */
+    private static long findBlockStart(final SeekableStream raw, final long offset, final long length) throws IOException {
+        final byte[] buffer = new byte[2 * BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        final int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        long position = offset;
+        while (position + headerLength <= length) {
+            raw.seek(position);
+            final int count = readBytes(raw, buffer, 0, buffer.length);
+            if (count < headerLength) {
+                return -1;
+            }
+            for (int i = 0; i + headerLength <= count; ++i) {
+                if (isBlockHeader(buffer, i)) {
+                    final long address = position + i;
+                    final long next = address + unpackInt16(buffer, i + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+                    // The magic numbers could occur by chance within compressed data, but not twice in the right places.
+                    if (next == length || (next < length && isBlockHeaderAt(raw, next))) {
+                        return address;
+                    }
+                }
+            }
+            position += count - headerLength + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the address of the block that follows the one at the given address, or -1 if it is the last block.
+     */
+    private static long getNextBlockAddress(final SeekableStream raw, final long blockAddress, final long length) throws IOException {
+        final byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        raw.seek(blockAddress);
+        if (readBytes(raw, header, 0, header.length) != header.length || !isBlockHeader(header, 0)) {
+            throw new SAMException("Invalid BGZF block at " + blockAddress);
+        }
+        final long next = blockAddress + unpackInt16(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+        return next < length ? next : -1;
+    }
+
+    private static boolean isBlockHeaderAt(final SeekableStream raw, final long address) throws IOException {
+        final byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        raw.seek(address);
+        return readBytes(raw, header, 0, header.length) == header.length && isBlockHeader(header, 0);
+    }
+
+    private static boolean isBlockHeader(final byte[] buffer, final int offset) {
+        return buffer[offset] == BlockCompressedStreamConstants.GZIP_ID1 &&
+                (buffer[offset + 1] & 0xFF) == BlockCompressedStreamConstants.GZIP_ID2 &&
+                buffer[offset + 2] == BlockCompressedStreamConstants.GZIP_CM_DEFLATE &&
+                (buffer[offset + 3] & BlockCompressedStreamConstants.GZIP_FLG) != 0 &&
+                unpackInt16(buffer, offset + 10) == BlockCompressedStreamConstants.GZIP_XLEN &&
+                buffer[offset + 12] == BlockCompressedStreamConstants.BGZF_ID1 &&
+                buffer[offset + 13] == BlockCompressedStreamConstants.BGZF_ID2 &&
+                unpackInt16(buffer, offset + 14) == BlockCompressedStreamConstants.BGZF_LEN;
+    }
+
+    private static int readBytes(final SeekableStream raw, final byte[] buffer, final int offset, final int length) throws IOException {
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            final int count = raw.read(buffer, offset + bytesRead, length - bytesRead);
+            if (count <= 0) {
+                break;
+            }
+            bytesRead += count;
+        }
+        return bytesRead;
+    }
+
+    private static int unpackInt16(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFF) |
+                ((buffer[offset+1] & 0xFF) << 8));
+    }
+
+    /** Makes a virtual file pointer, for subclasses outside this package. */
+    protected static long makeFilePointer(final long blockAddress, final int blockOffset) {
+        return BlockCompressedFilePointerUtil.makeFilePointer(blockAddress, blockOffset);
+    }
+
+    /**
+     * @return the file in which the splitting index of the given file is kept.
+     */
+    public static File getSplittingIndexFile(final File file) {
+        return new File(file.getPath() + SPLITTING_INDEX_EXTENSION);
+    }
+
+    /**
+     * Saves the boundaries of the given splits, which must be of the same file, be in file order, and adjoin one
+     * another, as returned by planSplits(), so that they can be reused without planning them again.
+     */
+    public static void writeSplittingIndex(final List<BlockCompressedSplit> splits, final File output) {
+        final BinaryCodec codec = new BinaryCodec(output, true);
+        try {
+            codec.writeBytes(SPLITTING_INDEX_MAGIC);
+            codec.writeInt(splits.size());
+            for (int i = 0; i < splits.size(); ++i) {
+                if (i > 0 && splits.get(i).getStart() != splits.get(i - 1).getEnd()) {
+                    throw new IllegalArgumentException("Splits do not adjoin: " + splits.get(i - 1) + ", " + splits.get(i));
+                }
+                codec.writeLong(splits.get(i).getStart());
+            }
+            if (!splits.isEmpty()) {
+                codec.writeLong(splits.get(splits.size() - 1).getEnd());
+            }
+        } finally {
+            codec.close();
+        }
+    }
+
+    /**
+     * Reads splits saved by writeSplittingIndex().
+     * @param path the path to be given to the splits.
+     */
+    public static List<BlockCompressedSplit> readSplittingIndex(final File input, final String path) {
+        final BinaryCodec codec = new BinaryCodec(input, false);
+        try {
+            final byte[] magic = new byte[SPLITTING_INDEX_MAGIC.length];
+            codec.readBytes(magic);
+            if (!Arrays.equals(magic, SPLITTING_INDEX_MAGIC)) {
+                throw new SAMException("Invalid splitting index file: " + input);
+            }
+            final int numSplits = codec.readInt();
+            final List<BlockCompressedSplit> splits = new ArrayList<BlockCompressedSplit>(numSplits);
+            if (numSplits > 0) {
+                long start = codec.readLong();
+                for (int i = 0; i < numSplits; ++i) {
+                    final long end = codec.readLong();
+                    splits.add(new BlockCompressedSplit(path, start, end));
+                    start = end;
+                }
+            }
+            return splits;
+        } finally {
+            codec.close();
+        }
+    }
+}
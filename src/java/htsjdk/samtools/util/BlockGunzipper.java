@@ -24,6 +24,7 @@
 package htsjdk.samtools.util;
 
 import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.util.zip.InflaterPool;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -40,13 +41,25 @@ import java.util.zip.Inflater;
  * This code requires that the GZIP header conform to the GZIP blocks written to BAM files, with
  * a specific subfield and no other optional stuff.
  *
+ * Rather than owning an Inflater, a BlockGunzipper borrows one from an InflaterPool for each block, so
+ * Inflaters are shared by all readers and short-lived readers don't each construct their own.
+ *
  * @author alecw@broadinstitute.org
  */
 public class BlockGunzipper {
-    private final Inflater inflater = new Inflater(true); // GZIP mode
+    private final InflaterPool inflaterPool;
     private final CRC32 crc32 = new CRC32();
     private boolean checkCrcs = false;
 
+    /** Borrows Inflaters from the default, shared pool. */
+    public BlockGunzipper() {
+        this(InflaterPool.getDefault());
+    }
+
+    public BlockGunzipper(final InflaterPool inflaterPool) {
+        this.inflaterPool = inflaterPool;
+    }
+
     /** Allows the caller to decide whether or not to check CRCs on when uncompressing blocks. */
     public void setCheckCrcs(final boolean check) {
         this.checkCrcs = check;
@@ -89,11 +102,16 @@ public class BlockGunzipper {
             byteBuffer.position(byteBuffer.position() + deflatedSize);
             int expectedCrc = byteBuffer.getInt();
             int uncompressedSize = byteBuffer.getInt();
-            inflater.reset();
 
             // Decompress
-            inflater.setInput(compressedBlock, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflatedSize);
-            final int inflatedBytes = inflater.inflate(uncompressedBlock, 0, uncompressedSize);
+            final int inflatedBytes;
+            final Inflater inflater = inflaterPool.acquire();
+            try {
+                inflater.setInput(compressedBlock, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflatedSize);
+                inflatedBytes = inflater.inflate(uncompressedBlock, 0, uncompressedSize);
+            } finally {
+                inflaterPool.release(inflater);
+            }
             if (inflatedBytes != uncompressedSize) {
                 throw new SAMFormatException("Did not inflate expected amount");
             }
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadFactory for the background worker pools used by readers and writers.  Threads are daemons, so that
+ * an unclosed reader or writer does not prevent the JVM from exiting, and are numbered for easier debugging.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private final String threadNamePrefix;
+    private final AtomicInteger threadsCreated = new AtomicInteger(0);
+
+    public DaemonThreadFactory(final String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, threadNamePrefix + threadsCreated.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Creates a cached thread pool of daemon threads.  A cached pool only grows to the number of tasks running
+     * at once, so it is suitable for sharing between streams that each bound their own number of outstanding tasks.
+     */
+    public static ExecutorService newCachedDaemonThreadPool(final String threadNamePrefix) {
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(threadNamePrefix));
+    }
+
+    /**
+     * Creates a pool of at most the given number of daemon threads, suitable for sharing between streams whose total
+     * number of outstanding tasks is unbounded.  Threads are only started when there is work for them, and exit
+     * after being idle for a minute.
+     */
+    public static ExecutorService newFixedDaemonThreadPool(final String threadNamePrefix, final int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Grows a pool created by newFixedDaemonThreadPool() to at least the given number of threads.  A pool shared by
+     * several streams that are each given a number of threads thus has as many as the largest of those numbers,
+     * however many streams there are.
+     */
+    public static void ensurePoolSize(final ExecutorService pool, final int threads) {
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+        synchronized (executor) {
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            }
+        }
+    }
+}
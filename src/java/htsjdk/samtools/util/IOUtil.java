@@ -27,9 +27,10 @@ package htsjdk.samtools.util;
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.seekablestream.SeekableBufferedStream;
-import htsjdk.samtools.seekablestream.SeekableFileStream;
 import htsjdk.samtools.seekablestream.SeekableHTTPStream;
+import htsjdk.samtools.seekablestream.SeekableMemoryMappedFileStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -135,7 +136,9 @@ public class IOUtil {
     }
 
     public static SeekableStream maybeBufferedSeekableStream(final SeekableStream stream, final int bufferSize) {
-        return bufferSize > 0 ? new SeekableBufferedStream(stream, bufferSize) : stream; 
+        // Memory-mapped streams are as cheap to read from as a buffer
+        return bufferSize > 0 && !(stream instanceof SeekableMemoryMappedFileStream) ?
+                new SeekableBufferedStream(stream, bufferSize) : stream;
     }
     
     public static SeekableStream maybeBufferedSeekableStream(final SeekableStream stream) {
@@ -144,8 +147,8 @@ public class IOUtil {
     
     public static SeekableStream maybeBufferedSeekableStream(final File file) {
         try {
-            return maybeBufferedSeekableStream(new SeekableFileStream(file));
-        } catch (final FileNotFoundException e) {
+            return maybeBufferedSeekableStream(SeekableStreamFactory.getFileStream(file));
+        } catch (final IOException e) {
             throw new RuntimeIOException(e);
         }
     }
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-bounded, least-recently-used cache of inflated BGZF blocks, keyed by the source of the compressed data
+ * (as reported by SeekableStream.getSource()) and the compressed address of the block.  A single cache may be
+ * shared by any number of BlockCompressedInputStreams, on any number of threads, so that random-access queries
+ * that repeatedly hit the same blocks don't re-read and re-inflate them.
+ *
+ * Cached blocks are shared, and must never be modified.  Note that the cache has no way of knowing whether a
+ * source has changed, so it should not be used for files that are rewritten while being read.
+ */
+public class InflatedBlockCache {
+    /** Approximate per-entry overhead of the map, key and block objects, counted against the size limit. */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private long sizeInBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // Access-ordered, so that iteration starts with the least recently used block
+    private final LinkedHashMap<Key, Block> blocks = new LinkedHashMap<Key, Block>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes the maximum total size of the inflated blocks held by the cache, including a small
+     *                 per-block overhead.
+     */
+    public InflatedBlockCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached block starting at the given compressed address of the given source, or null if it is not cached.
+     */
+    public synchronized Block get(final String source, final long blockAddress) {
+        final Block block = blocks.get(new Key(source, blockAddress));
+        if (block == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return block;
+    }
+
+    /**
+     * Adds an inflated block to the cache, evicting the least recently used blocks if necessary.
+     * @param inflated the inflated contents of the block.  The caller must not modify it afterwards.
+     * @param compressedLength the size of the compressed block, including the gzip header and footer.
+     */
+    public synchronized void put(final String source, final long blockAddress, final byte[] inflated, final int compressedLength) {
+        final long entrySize = entrySize(inflated);
+        if (entrySize > maxBytes) {
+            return;
+        }
+        final Block previous = blocks.put(new Key(source, blockAddress), new Block(inflated, compressedLength));
+        if (previous != null) {
+            sizeInBytes -= entrySize(previous.inflated);
+        }
+        sizeInBytes += entrySize;
+        final Iterator<Block> it = blocks.values().iterator();
+        while (sizeInBytes > maxBytes) {
+            sizeInBytes -= entrySize(it.next().inflated);
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    private static long entrySize(final byte[] inflated) {
+        return inflated.length + ENTRY_OVERHEAD_BYTES;
+    }
+
+    /** Removes all blocks from the cache.  Statistics are not reset. */
+    public synchronized void clear() {
+        blocks.clear();
+        sizeInBytes = 0;
+    }
+
+    public long getMaxBytes() { return maxBytes; }
+
+    public synchronized long getSizeInBytes() { return sizeInBytes; }
+
+    public synchronized int getNumBlocks() { return blocks.size(); }
+
+    /** @return number of calls to get() that found the block. */
+    public synchronized long getHits() { return hits; }
+
+    /** @return number of calls to get() that did not find the block. */
+    public synchronized long getMisses() { return misses; }
+
+    /** @return number of blocks removed to stay within the size limit. */
+    public synchronized long getEvictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("InflatedBlockCache: %d blocks, %d of %d bytes, %d hits, %d misses, %d evictions",
+                blocks.size(), sizeInBytes, maxBytes, hits, misses, evictions);
+    }
+
+    /** An inflated block and the length of the compressed block it came from. */
+    public static class Block {
+        private final byte[] inflated;
+        private final int compressedLength;
+
+        Block(final byte[] inflated, final int compressedLength) {
+            this.inflated = inflated;
+            this.compressedLength = compressedLength;
+        }
+
+        /** @return the inflated contents of the block, which must not be modified. */
+        public byte[] getInflated() { return inflated; }
+
+        public int getCompressedLength() { return compressedLength; }
+    }
+
+    private static class Key {
+        private final String source;
+        private final long blockAddress;
+
+        Key(final String source, final long blockAddress) {
+            this.source = source;
+            this.blockAddress = blockAddress;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return blockAddress == that.blockAddress && source.equals(that.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source.hashCode() + (int) (blockAddress ^ (blockAddress >>> 32));
+        }
+    }
+}
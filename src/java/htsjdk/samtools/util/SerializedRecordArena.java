@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.Defaults;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Holds serialized records, each a run of bytes, in large chunks of memory that are either on the Java heap or
+ * allocated directly (off-heap), with an index of where each record starts.  Used by SortingCollection to hold
+ * records in memory as bytes rather than as objects.  Chunks are returned to a process-wide pool when the arena is
+ * released, so that other arenas can reuse the same memory, up to Defaults.SORT_ARENA_POOL_BYTES of each of heap
+ * and off-heap chunks.  The pool is emptied when the last arena in use is released.
+ *
+ * An arena is used by one thread at a time, except that records may be read concurrently.
+ */
+class SerializedRecordArena {
+    /** Size of the chunks that records are stored in.  A larger record gets a chunk of its own. */
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** Memory used by the index, in addition to the record itself, for each record. */
+    static final int BYTES_PER_RECORD_OVERHEAD = 12;
+
+    private static final Deque<ByteBuffer> heapChunkPool = new ArrayDeque<ByteBuffer>();
+    private static final Deque<ByteBuffer> directChunkPool = new ArrayDeque<ByteBuffer>();
+    // The number of arenas that have been created and not yet released.
+    private static int arenasInUse = 0;
+
+    private final boolean offHeap;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private int currentChunk = -1;
+    // For each record, (chunk number << 32 | offset in chunk), and its length.
+    private long[] addresses = new long[1024];
+    private int[] lengths = new int[1024];
+    private int numRecords = 0;
+    private long bytesUsed = 0;
+    private boolean released = false;
+
+    /**
+     * @param offHeap if true, records are stored in direct ByteBuffers rather than on the Java heap
+     */
+    SerializedRecordArena(final boolean offHeap) {
+        this.offHeap = offHeap;
+        synchronized (SerializedRecordArena.class) {
+            ++arenasInUse;
+        }
+    }
+
+    /** @return the number of records in the arena. */
+    int size() {
+        return numRecords;
+    }
+
+    /** @return the number of bytes taken by the records and their index entries. */
+    long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Adds a record.
+     * @return the number of the record, which is the number of records added before it
+     */
+    int add(final byte[] data, final int offset, final int length) {
+        if (currentChunk < 0 || chunks.get(currentChunk).remaining() < length) {
+            nextChunk(length);
+        }
+        final ByteBuffer chunk = chunks.get(currentChunk);
+        if (numRecords == addresses.length) {
+            addresses = Arrays.copyOf(addresses, numRecords * 2);
+            lengths = Arrays.copyOf(lengths, numRecords * 2);
+        }
+        addresses[numRecords] = ((long) currentChunk << 32) | chunk.position();
+        lengths[numRecords] = length;
+        chunk.put(data, offset, length);
+        bytesUsed += length + BYTES_PER_RECORD_OVERHEAD;
+        return numRecords++;
+    }
+
+    /** Moves on to the next chunk with at least minimumSize bytes free, taking one from the pool if possible. */
+    private void nextChunk(final int minimumSize) {
+        ++currentChunk;
+        if (currentChunk < chunks.size() && chunks.get(currentChunk).capacity() >= minimumSize) {
+            chunks.get(currentChunk).clear();
+            return;
+        }
+        final ByteBuffer chunk = (minimumSize <= CHUNK_SIZE) ? allocateChunk(offHeap) :
+                (offHeap ? ByteBuffer.allocateDirect(minimumSize) : ByteBuffer.allocate(minimumSize));
+        if (currentChunk < chunks.size()) {
+            // Keep the reused chunks in order; the one that was too small goes back to the pool
+            releaseChunk(chunks.set(currentChunk, chunk));
+        } else {
+            chunks.add(chunk);
+        }
+    }
+
+    /** @return the length of the given record. */
+    int getLength(final int record) {
+        return lengths[record];
+    }
+
+    /** @return a stream of the bytes of the given record, and no more. */
+    InputStream openRecord(final int record) {
+        final ByteBuffer view = chunks.get((int) (addresses[record] >>> 32)).duplicate();
+        final int offset = (int) addresses[record];
+        view.limit(offset + lengths[record]);
+        view.position(offset);
+        return new ByteBufferInputStream(view);
+    }
+
+    /**
+     * Writes the bytes of the given record.
+     * @param buffer scratch space for copying records from off-heap memory
+     */
+    void writeRecord(final int record, final OutputStream os, final byte[] buffer) throws IOException {
+        final ByteBuffer chunk = chunks.get((int) (addresses[record] >>> 32));
+        final int offset = (int) addresses[record];
+        final int length = lengths[record];
+        if (chunk.hasArray()) {
+            os.write(chunk.array(), chunk.arrayOffset() + offset, length);
+        } else {
+            final ByteBuffer view = chunk.duplicate();
+            view.limit(offset + length);
+            view.position(offset);
+            while (view.hasRemaining()) {
+                final int n = Math.min(view.remaining(), buffer.length);
+                view.get(buffer, 0, n);
+                os.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /** Removes all records, keeping the chunks for reuse. */
+    void clear() {
+        numRecords = 0;
+        bytesUsed = 0;
+        currentChunk = -1;
+    }
+
+    /**
+     * Removes all records and returns the chunks to the pool, or, if no other arena is in use, frees them and empties
+     * the pool.
+     */
+    void release() {
+        clear();
+        for (final ByteBuffer chunk : chunks) {
+            releaseChunk(chunk);
+        }
+        chunks.clear();
+        addresses = new long[1024];
+        lengths = new int[1024];
+        if (!released) {
+            released = true;
+            synchronized (SerializedRecordArena.class) {
+                if (--arenasInUse == 0) {
+                    heapChunkPool.clear();
+                    directChunkPool.clear();
+                }
+            }
+        }
+    }
+
+    /** @return the number of bytes of free chunks in the pool, of both heap and off-heap memory. */
+    static synchronized long getPooledBytes() {
+        return (long) (heapChunkPool.size() + directChunkPool.size()) * CHUNK_SIZE;
+    }
+
+    private static ByteBuffer allocateChunk(final boolean offHeap) {
+        synchronized (SerializedRecordArena.class) {
+            final ByteBuffer pooled = (offHeap ? directChunkPool : heapChunkPool).poll();
+            if (pooled != null) {
+                pooled.clear();
+                return pooled;
+            }
+        }
+        return offHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    private static void releaseChunk(final ByteBuffer chunk) {
+        // Only standard chunks are pooled; oversized ones are left to the garbage collector
+        if (chunk.capacity() != CHUNK_SIZE) {
+            return;
+        }
+        synchronized (SerializedRecordArena.class) {
+            final Deque<ByteBuffer> pool = chunk.isDirect() ? directChunkPool : heapChunkPool;
+            if ((long) (pool.size() + 1) * CHUNK_SIZE <= Defaults.SORT_ARENA_POOL_BYTES) {
+                pool.add(chunk);
+            }
+        }
+    }
+
+    /** Reads the remaining bytes of a ByteBuffer, without changing the original. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -25,6 +25,7 @@ package htsjdk.samtools.util;
 
 import htsjdk.samtools.Defaults;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -36,11 +37,21 @@ import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Collection to which many records can be added.  After all records are added, the collection can be
@@ -54,6 +65,23 @@ import java.util.TreeSet;
  *
  * If Snappy DLL is available and snappy.disable system property is not set to true, then Snappy is used
  * to compress temporary files.
+ *
+ * If sort threads are enabled (see setSortThreads()), records are sorted on several threads, and add() does not
+ * wait while records are written to file: a full buffer is sorted and written in the background while records
+ * are added to a second buffer, so that up to twice maxRecordsInRam records may be held in memory.  When iterating,
+ * groups of files are merged in the background.  The codec and comparator must then be usable from any thread,
+ * although no instance is used by more than one thread at once, and the comparator is shared by the sorting threads.
+ *
+ * A collection created by newSerializedInstance() holds records in memory as bytes encoded by the codec, rather than
+ * as objects, in a SerializedRecordArena that may be on or off the Java heap, and spills when a number of bytes
+ * rather than of records is reached.  Records are decoded to be sorted, a run of them at a time, and an index of
+ * them rather than the records is then merge sorted, so the records are spilled to file by copying their bytes.
+ * As decoding records may be cheaper than holding them (e.g. BAMRecords are decoded lazily), this lets many more
+ * records be held in a given amount of memory.  add() then waits while records are spilled, but runs are still
+ * sorted concurrently if sort threads are enabled.
+ *
+ * If the comparator is a KeyedComparator, records are sorted in memory by radix sorting their keys, and only
+ * compared with the comparator when their keys are equal.
  */
 public class SortingCollection<T> implements Iterable<T> {
 
@@ -94,6 +122,19 @@ public class SortingCollection<T> implements Iterable<T> {
         Codec<T> clone();
     }
 
+    /**
+     * A comparator that can also summarize each record as a primitive sort key, which a client may implement so
+     * that records are sorted mostly by comparing keys, with radix sorting where possible, and only compared with
+     * compare() when their keys are equal.  Keys must be non-negative, and consistent with compare(): if the key of
+     * a is less than that of b, compare(a, b) must be negative.  Records with equal keys may be in any order.
+     */
+    public interface KeyedComparator<T> extends Comparator<T> {
+        /**
+         * @return a non-negative key, which must be cheap to compute, as it is computed once per record sorted.
+         */
+        long getSortKey(T record);
+    }
+
     /** Directories where files of sorted records go. */
     private final File[] tmpDirs;
 
@@ -109,9 +150,23 @@ public class SortingCollection<T> implements Iterable<T> {
      * For sorting, both when spilling records to file, and merge sorting.
      */
     private final Comparator<T> comparator;
+    /** The comparator, if it provides sort keys, else null. */
+    private final KeyedComparator<T> keyedComparator;
+    private final Class<T> componentType;
     private final int maxRecordsInRam;
     private int numRecordsInRam = 0;
     private T[] ramRecords;
+
+    /** Number of threads on which to sort and merge, or 0 to do everything on the calling thread. */
+    private int sortThreads = 0;
+    /** Records being sorted and written in the background, which returns the emptied buffer for reuse. */
+    private Future<T[]> pendingSpill = null;
+    private T[] spareRamRecords = null;
+
+    /** If non-zero, records are held as bytes in arena, which is spilled when it holds this many bytes. */
+    private final long maxBytesInRam;
+    private SerializedRecordArena arena = null;
+    private SerializedRecordBuffer encodeBuffer = null;
     private boolean iterationStarted = false;
     private boolean doneAdding = false;
 
@@ -150,8 +205,69 @@ public class SortingCollection<T> implements Iterable<T> {
         this.tmpDirs = tmpDir;
         this.codec = codec;
         this.comparator = comparator;
+        this.keyedComparator = (comparator instanceof KeyedComparator) ? (KeyedComparator<T>) comparator : null;
+        this.componentType = componentType;
         this.maxRecordsInRam = maxRecordsInRam;
-        this.ramRecords = (T[])Array.newInstance(componentType, maxRecordsInRam);
+        this.ramRecords = newArray(maxRecordsInRam);
+        this.maxBytesInRam = 0;
+    }
+
+    /**
+     * Prepare to accumulate records to be sorted, holding them in memory as serialized bytes.
+     * @param componentType Class of the record to be sorted.  Necessary because of Java generic lameness.
+     * @param codec For serializing records in memory, writing them to file and reading them back
+     * @param comparator Defines output sort order
+     * @param maxBytesInRam how many bytes of serialized records to accumulate before spilling to disk
+     * @param offHeap whether to hold the serialized records in direct memory rather than on the Java heap
+     * @param tmpDir Where to write files of records that will not fit in RAM
+     */
+    private SortingCollection(final Class<T> componentType, final SortingCollection.Codec<T> codec,
+                              final Comparator<T> comparator, final long maxBytesInRam, final boolean offHeap,
+                              final File... tmpDir) {
+        if (maxBytesInRam <= 0) {
+            throw new IllegalArgumentException("maxBytesInRam must be > 0");
+        }
+
+        if (tmpDir == null || tmpDir.length == 0) {
+            throw new IllegalArgumentException("At least one temp directory must be provided.");
+        }
+
+        this.tmpDirs = tmpDir;
+        this.codec = codec;
+        this.comparator = comparator;
+        this.keyedComparator = (comparator instanceof KeyedComparator) ? (KeyedComparator<T>) comparator : null;
+        this.componentType = componentType;
+        this.maxRecordsInRam = Integer.MAX_VALUE;
+        this.maxBytesInRam = maxBytesInRam;
+        this.arena = new SerializedRecordArena(offHeap);
+        this.encodeBuffer = new SerializedRecordBuffer();
+        // The codec only ever writes to this buffer; spilling copies the serialized records to file.
+        this.codec.setOutputStream(this.encodeBuffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] newArray(final int length) {
+        return (T[])Array.newInstance(componentType, length);
+    }
+
+    /**
+     * Sets the number of threads on which records are sorted and spilled to disk, and on which files are merged
+     * during iteration.  If zero (the default), all of this is done on the calling thread, and add() waits while
+     * records are spilled.  The threads belong to a pool shared by all collections, which has as many threads as the
+     * largest number given to any collection.  Must be called before any records are added.
+     */
+    public void setSortThreads(final int sortThreads) {
+        if (sortThreads < 0) {
+            throw new IllegalArgumentException("Invalid number of sort threads: " + sortThreads);
+        }
+        if (numRecordsInRam > 0 || (arena != null && arena.size() > 0) || !files.isEmpty() || iterationStarted) {
+            throw new IllegalStateException("setSortThreads must be called before records are added");
+        }
+        this.sortThreads = sortThreads;
+    }
+
+    public int getSortThreads() {
+        return sortThreads;
     }
 
     public void add(final T rec) {
@@ -161,8 +277,16 @@ public class SortingCollection<T> implements Iterable<T> {
         if (iterationStarted) {
             throw new IllegalStateException("Cannot add after calling iterator()");
         }
+        if (arena != null) {
+            addSerialized(rec);
+            return;
+        }
         if (numRecordsInRam == maxRecordsInRam) {
-            spillToDisk();
+            if (sortThreads > 0) {
+                spillInBackground();
+            } else {
+                spillToDisk();
+            }
         }
         ramRecords[numRecordsInRam++] = rec;
     }
@@ -186,12 +310,23 @@ public class SortingCollection<T> implements Iterable<T> {
             return;
         }
 
+        if (this.arena != null) {
+            if (this.arena.size() > 0) {
+                spillArena();
+            }
+            this.arena.release();
+            this.arena = null;
+            return;
+        }
+
+        waitForSpill();
         if (this.numRecordsInRam > 0) {
             spillToDisk();
         }
 
         // Facilitate GC
         this.ramRecords = null;
+        this.spareRamRecords = null;
     }
 
     /**
@@ -214,17 +349,61 @@ public class SortingCollection<T> implements Iterable<T> {
      * Sort the records in memory, write them to a file, and clear the buffer of records in memory.
      */
     private void spillToDisk() {
+        final File f = newTempFile();
+        sortRecords(this.ramRecords, this.numRecordsInRam);
+        writeRecords(this.ramRecords, this.numRecordsInRam, f);
+        this.numRecordsInRam = 0;
+        this.files.add(f);
+    }
+
+    /**
+     * Hand the records in memory to a background thread to be sorted and written to a file, and continue adding
+     * records to a second buffer.  Only one spill is in progress at a time, so this waits for the previous one.
+     */
+    private void spillInBackground() {
+        waitForSpill();
+        final T[] records = this.ramRecords;
+        final int numRecords = this.numRecordsInRam;
+        final File f = newTempFile();
+        // The file is listed now, so that it is deleted by cleanup() even if writing it fails.
+        this.files.add(f);
+        this.pendingSpill = submitSortTask(new Callable<T[]>() {
+            @Override
+            public T[] call() {
+                sortRecords(records, numRecords);
+                writeRecords(records, numRecords, f);
+                return records;
+            }
+        });
+        this.ramRecords = (spareRamRecords != null) ? spareRamRecords : newArray(maxRecordsInRam);
+        this.spareRamRecords = null;
+        this.numRecordsInRam = 0;
+    }
+
+    /**
+     * Wait for any spill in progress to finish, throwing any exception that it threw.
+     */
+    private void waitForSpill() {
+        if (pendingSpill != null) {
+            final Future<T[]> spill = pendingSpill;
+            pendingSpill = null;
+            spareRamRecords = getResult(spill);
+        }
+    }
+
+    /**
+     * Write sorted records to a file, clearing them from the array.
+     */
+    private void writeRecords(final T[] records, final int numRecords, final File f) {
         try {
-            Arrays.sort(this.ramRecords, 0, this.numRecordsInRam, this.comparator);
-            final File f = newTempFile();
             OutputStream os = null;
             try {
                 os = tempStreamFactory.wrapTempOutputStream(new FileOutputStream(f), Defaults.BUFFER_SIZE);
                 this.codec.setOutputStream(os);
-                for (int i = 0; i < this.numRecordsInRam; ++i) {
-                    this.codec.encode(ramRecords[i]);
+                for (int i = 0; i < numRecords; ++i) {
+                    this.codec.encode(records[i]);
                     // Facilitate GC
-                    this.ramRecords[i] = null;
+                    records[i] = null;
                 }
 
                 os.flush();
@@ -236,22 +415,459 @@ public class SortingCollection<T> implements Iterable<T> {
                     os.close();
                 }
             }
+        }
+        catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
 
-            this.numRecordsInRam = 0;
-            this.files.add(f);
+    /**
+     * Serialize a record into the arena, first spilling the arena if the record would take it over maxBytesInRam.
+     */
+    private void addSerialized(final T rec) {
+        encodeBuffer.reset();
+        this.codec.encode(rec);
+        final int length = encodeBuffer.size();
+        if (arena.size() > 0 &&
+                arena.getBytesUsed() + length + SerializedRecordArena.BYTES_PER_RECORD_OVERHEAD > maxBytesInRam) {
+            spillArena();
+        }
+        arena.add(encodeBuffer.getBuffer(), 0, length);
+    }
 
+    /**
+     * Write the records in the arena to a file in sorted order, by copying their serialized bytes, and empty it.
+     */
+    private void spillArena() {
+        final File f = newTempFile();
+        final int[] order = sortArena();
+        try {
+            OutputStream os = null;
+            try {
+                os = tempStreamFactory.wrapTempOutputStream(new FileOutputStream(f), Defaults.BUFFER_SIZE);
+                final byte[] buffer = new byte[64 * 1024];
+                for (final int record : order) {
+                    this.arena.writeRecord(record, os, buffer);
+                }
+                os.flush();
+            } catch (RuntimeIOException ex) {
+                throw new RuntimeIOException("Problem writing temporary file " + f.getAbsolutePath() +
+                        ".  Try setting TMP_DIR to a file system with lots of space.", ex);
+            } finally {
+                if (os != null) {
+                    os.close();
+                }
+            }
         }
         catch (IOException e) {
             throw new RuntimeIOException(e);
         }
+        this.arena.clear();
+        this.files.add(f);
+    }
+
+    /** Number of records in the arena that are decoded and sorted at once. */
+    private static final int SERIALIZED_SORT_RUN_SIZE = 16384;
+
+    /**
+     * Sort the records in the arena.  Runs of records are decoded and sorted, with sort threads concurrently, and
+     * the sorted runs are then merged, decoding each record once more.  Ties are broken by the order in which
+     * records were added, as Arrays.sort() would.
+     * @return the numbers of the records in sorted order.
+     */
+    private int[] sortArena() {
+        final int numRecords = arena.size();
+        final int[] runOrder = new int[numRecords];
+        final List<Future<T[]>> tasks = new ArrayList<Future<T[]>>();
+        for (int start = 0; start < numRecords; start += SERIALIZED_SORT_RUN_SIZE) {
+            final int from = start;
+            final int to = (int) Math.min((long) start + SERIALIZED_SORT_RUN_SIZE, numRecords);
+            if (sortThreads <= 1) {
+                sortArenaRun(from, to, runOrder);
+            } else {
+                tasks.add(submitSortTask(new Callable<T[]>() {
+                    @Override
+                    public T[] call() {
+                        sortArenaRun(from, to, runOrder);
+                        return null;
+                    }
+                }));
+                // Bound the number of runs decoded at once
+                if (tasks.size() == sortThreads) {
+                    waitForAll(tasks);
+                }
+            }
+        }
+        waitForAll(tasks);
+        if (numRecords <= SERIALIZED_SORT_RUN_SIZE) {
+            return runOrder;
+        }
+
+        final int[] order = new int[numRecords];
+        final Codec<T> decoder = this.codec.clone();
+        final PollableTreeSet<SortedRun> queue = new PollableTreeSet<SortedRun>(new Comparator<SortedRun>() {
+            public int compare(final SortedRun lhs, final SortedRun rhs) {
+                final int result = compareRecords(lhs.head, rhs.head);
+                if (result == 0) return lhs.position - rhs.position;
+                else return result;
+            }
+        });
+        for (int start = 0; start < numRecords; start += SERIALIZED_SORT_RUN_SIZE) {
+            final SortedRun run = new SortedRun(start, (int) Math.min((long) start + SERIALIZED_SORT_RUN_SIZE, numRecords));
+            run.head = decodeFromArena(decoder, runOrder[start]);
+            queue.add(run);
+        }
+        int n = 0;
+        while (!queue.isEmpty()) {
+            final SortedRun run = queue.poll();
+            order[n++] = runOrder[run.position++];
+            if (run.position < run.end) {
+                run.head = decodeFromArena(decoder, runOrder[run.position]);
+                queue.add(run);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Decode records [from, to) of the arena and store their numbers in sorted order in order[from, to).
+     */
+    private void sortArenaRun(final int from, final int to, final int[] order) {
+        final Codec<T> decoder = this.codec.clone();
+        final T[] records = newArray(to - from);
+        for (int i = from; i < to; ++i) {
+            records[i - from] = decodeFromArena(decoder, i);
+        }
+        if (keyedComparator != null) {
+            // Records are radix sorted by key, and only compared if their keys are equal
+            final long[] keys = new long[records.length];
+            final int[] indices = new int[records.length];
+            for (int i = 0; i < records.length; ++i) {
+                keys[i] = keyedComparator.getSortKey(records[i]);
+                indices[i] = i;
+            }
+            final long[] sortedKeys = radixSort(keys, indices);
+            int start = 0;
+            for (int i = 1; i <= records.length; ++i) {
+                if (i == records.length || sortedKeys[i] != sortedKeys[start]) {
+                    if (i - start > 1) {
+                        sortIndices(records, indices, start, i);
+                    }
+                    start = i;
+                }
+            }
+            for (int i = from; i < to; ++i) {
+                order[i] = from + indices[i - from];
+            }
+            return;
+        }
+        final List<ArenaRecord<T>> numbered = new ArrayList<ArenaRecord<T>>(records.length);
+        for (int i = 0; i < records.length; ++i) {
+            numbered.add(new ArenaRecord<T>(records[i], from + i));
+        }
+        // Collections.sort() is stable, so equal records stay in the order they were added
+        Collections.sort(numbered, new Comparator<ArenaRecord<T>>() {
+            public int compare(final ArenaRecord<T> lhs, final ArenaRecord<T> rhs) {
+                return comparator.compare(lhs.record, rhs.record);
+            }
+        });
+        for (int i = from; i < to; ++i) {
+            order[i] = numbered.get(i - from).number;
+        }
+    }
+
+    /**
+     * Stable sort of indices[from, to) by comparing the records they index.
+     */
+    private void sortIndices(final T[] records, final int[] indices, final int from, final int to) {
+        final List<ArenaRecord<T>> numbered = new ArrayList<ArenaRecord<T>>(to - from);
+        for (int i = from; i < to; ++i) {
+            numbered.add(new ArenaRecord<T>(records[indices[i]], indices[i]));
+        }
+        Collections.sort(numbered, new Comparator<ArenaRecord<T>>() {
+            public int compare(final ArenaRecord<T> lhs, final ArenaRecord<T> rhs) {
+                return comparator.compare(lhs.record, rhs.record);
+            }
+        });
+        for (int i = from; i < to; ++i) {
+            indices[i] = numbered.get(i - from).number;
+        }
+    }
+
+    private T decodeFromArena(final Codec<T> decoder, final int record) {
+        decoder.setInputStream(arena.openRecord(record));
+        final T ret = decoder.decode();
+        if (ret == null) {
+            throw new IllegalStateException("Codec could not decode a record that it encoded");
+        }
+        return ret;
+    }
+
+    /** A record decoded from the arena, with its number there. */
+    private static class ArenaRecord<T> {
+        final T record;
+        final int number;
+
+        ArenaRecord(final T record, final int number) {
+            this.record = record;
+            this.number = number;
+        }
+    }
+
+    /**
+     * A run of sorted record numbers being merged, of which the one at position has been decoded into head.
+     * Runs do not overlap, so position also breaks ties between runs in the order records were added.
+     */
+    private class SortedRun {
+        int position;
+        final int end;
+        T head;
+
+        SortedRun(final int position, final int end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    /** A ByteArrayOutputStream whose buffer can be read without copying it. */
+    private static class SerializedRecordBuffer extends ByteArrayOutputStream {
+        SerializedRecordBuffer() {
+            super(1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /** Below this many records, sorting on several threads is not worth the overhead. */
+    private static final int MIN_RECORDS_TO_SORT_IN_PARALLEL = 8192;
+
+    /**
+     * Sort the first numRecords records.  With sort threads, runs of the array are sorted concurrently, and then
+     * merged pairwise, each level of merges also running concurrently.  Both the sort and the merges are stable, so
+     * the result is the same as that of Arrays.sort().
+     */
+    private void sortRecords(final T[] records, final int numRecords) {
+        if (sortThreads <= 1 || numRecords < MIN_RECORDS_TO_SORT_IN_PARALLEL) {
+            sortRange(records, 0, numRecords);
+            return;
+        }
+        final int runLength = (numRecords + sortThreads - 1) / sortThreads;
+        final List<Future<T[]>> tasks = new ArrayList<Future<T[]>>();
+        for (int start = 0; start < numRecords; start += runLength) {
+            final int from = start;
+            final int to = Math.min(start + runLength, numRecords);
+            tasks.add(submitSortTask(new Callable<T[]>() {
+                @Override
+                public T[] call() {
+                    sortRange(records, from, to);
+                    return records;
+                }
+            }));
+        }
+        waitForAll(tasks);
+
+        T[] source = records;
+        T[] destination = newArray(numRecords);
+        for (int width = runLength; width < numRecords; width *= 2) {
+            for (int start = 0; start < numRecords; start += 2 * width) {
+                final T[] from = source;
+                final T[] to = destination;
+                final int low = start;
+                final int middle = Math.min(start + width, numRecords);
+                final int high = Math.min(start + 2 * width, numRecords);
+                tasks.add(submitSortTask(new Callable<T[]>() {
+                    @Override
+                    public T[] call() {
+                        mergeRuns(from, to, low, middle, high);
+                        return to;
+                    }
+                }));
+            }
+            waitForAll(tasks);
+            final T[] merged = destination;
+            destination = source;
+            source = merged;
+        }
+        if (source != records) {
+            System.arraycopy(source, 0, records, 0, numRecords);
+        }
+    }
+
+    /**
+     * Merge the sorted runs source[low, middle) and source[middle, high) into destination[low, high), taking
+     * records from the first run when they are equal.
+     */
+    private void mergeRuns(final T[] source, final T[] destination, final int low, final int middle, final int high) {
+        int i = low;
+        int j = middle;
+        for (int k = low; k < high; ++k) {
+            if (j >= high || (i < middle && compareRecords(source[i], source[j]) <= 0)) {
+                destination[k] = source[i++];
+            } else {
+                destination[k] = source[j++];
+            }
+        }
+    }
+
+    /**
+     * Compare records by key, if the comparator provides keys, and otherwise or if their keys are equal, with the
+     * comparator.
+     */
+    private int compareRecords(final T lhs, final T rhs) {
+        if (keyedComparator != null) {
+            final long lhsKey = keyedComparator.getSortKey(lhs);
+            final long rhsKey = keyedComparator.getSortKey(rhs);
+            if (lhsKey != rhsKey) {
+                return lhsKey < rhsKey ? -1 : 1;
+            }
+        }
+        return comparator.compare(lhs, rhs);
+    }
+
+    /**
+     * Stable sort of records[from, to).  If the comparator provides keys, the records are radix sorted by key, and
+     * only records with equal keys are compared with the comparator.
+     */
+    private void sortRange(final T[] records, final int from, final int to) {
+        if (keyedComparator == null || to - from < 2) {
+            Arrays.sort(records, from, to, comparator);
+            return;
+        }
+        final int numRecords = to - from;
+        long[] keys = new long[numRecords];
+        int[] indices = new int[numRecords];
+        for (int i = 0; i < numRecords; ++i) {
+            keys[i] = keyedComparator.getSortKey(records[from + i]);
+            indices[i] = i;
+        }
+        final long[] sortedKeys = radixSort(keys, indices);
+        final T[] sorted = newArray(numRecords);
+        for (int i = 0; i < numRecords; ++i) {
+            sorted[i] = records[from + indices[i]];
+        }
+        // The radix sort is stable, and so is Arrays.sort(), so equal records stay in the order they were added
+        int start = 0;
+        for (int i = 1; i <= numRecords; ++i) {
+            if (i == numRecords || sortedKeys[i] != sortedKeys[start]) {
+                if (i - start > 1) {
+                    Arrays.sort(sorted, start, i, comparator);
+                }
+                start = i;
+            }
+        }
+        System.arraycopy(sorted, 0, records, from, numRecords);
+    }
+
+    /**
+     * Stable least-significant-digit radix sort of non-negative keys, a byte at a time, skipping bytes that are the
+     * same in every key.  The indices are permuted along with the keys.
+     * @return the sorted keys, which may be either array passed in; the sorted indices are left in indices.
+     */
+    static long[] radixSort(final long[] keys, final int[] indices) {
+        final int n = keys.length;
+        if (n == 0) {
+            return keys;
+        }
+        long[] sourceKeys = keys;
+        int[] sourceIndices = indices;
+        long[] destinationKeys = new long[n];
+        int[] destinationIndices = new int[n];
+        final int[] counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; ++i) {
+                ++counts[(int) ((sourceKeys[i] >>> shift) & 0xff) + 1];
+            }
+            if (counts[(int) ((sourceKeys[0] >>> shift) & 0xff) + 1] == n) {
+                // Every key has the same byte here
+                continue;
+            }
+            for (int i = 1; i < counts.length; ++i) {
+                counts[i] += counts[i - 1];
+            }
+            for (int i = 0; i < n; ++i) {
+                final int position = counts[(int) ((sourceKeys[i] >>> shift) & 0xff)]++;
+                destinationKeys[position] = sourceKeys[i];
+                destinationIndices[position] = sourceIndices[i];
+            }
+            final long[] tmpKeys = sourceKeys;
+            sourceKeys = destinationKeys;
+            destinationKeys = tmpKeys;
+            final int[] tmpIndices = sourceIndices;
+            sourceIndices = destinationIndices;
+            destinationIndices = tmpIndices;
+        }
+        if (sourceIndices != indices) {
+            System.arraycopy(sourceIndices, 0, indices, 0, n);
+        }
+        return sourceKeys;
+    }
+
+    private static <R> void waitForAll(final List<Future<R>> tasks) {
+        try {
+            for (final Future<R> task : tasks) {
+                getResult(task);
+            }
+        } finally {
+            tasks.clear();
+        }
+    }
+
+    private static <R> R getResult(final Future<R> task) {
+        if (task instanceof FutureTask) {
+            // Run the task here if no pool thread has started it, which does nothing if one has
+            ((FutureTask<R>) task).run();
+        }
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for records to be sorted", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static ExecutorService sortService = null;
+
+    /**
+     * The pool is shared by all collections, and has as many threads as the largest number of sort threads that any
+     * collection has been given, so that many collections sorting at once do not each add their own threads.
+     */
+    private static synchronized ExecutorService getSortService(final int threads) {
+        if (sortService == null) {
+            sortService = DaemonThreadFactory.newFixedDaemonThreadPool("SortingCollection sorter ", threads);
+        } else {
+            DaemonThreadFactory.ensurePoolSize(sortService, threads);
+        }
+        return sortService;
+    }
+
+    /**
+     * Runs the task on the shared sort pool.  Whoever waits for it with getResult() runs it if no pool thread has
+     * started it yet, so tasks that wait for other tasks, as spills wait for the runs they sort, cannot exhaust the
+     * bounded pool.
+     */
+    private <R> Future<R> submitSortTask(final Callable<R> task) {
+        final FutureTask<R> future = new FutureTask<R>(task);
+        getSortService(sortThreads).execute(future);
+        return future;
     }
 
     /**
      * Creates a new tmp file on one of the available temp filesystems, registers it for deletion
      * on JVM exit and then returns it.
      */
-    private File newTempFile() throws IOException {
-        return IOUtil.newTempFile("sortingcollection.", ".tmp", this.tmpDirs, TMP_SPACE_FREE);
+    private File newTempFile() {
+        try {
+            return IOUtil.newTempFile("sortingcollection.", ".tmp", this.tmpDirs, TMP_SPACE_FREE);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
     }
 
     /**
@@ -266,10 +882,26 @@ public class SortingCollection<T> implements Iterable<T> {
 
         this.iterationStarted = true;
         if (this.files.isEmpty()) {
-            return new InMemoryIterator();
-        } else {
-            return new MergingIterator();
+            return (this.arena != null) ? new SerializedIterator() : new InMemoryIterator();
         }
+        final List<CloseableIterator<T>> fileIterators = new ArrayList<CloseableIterator<T>>();
+        for (final File f : this.files) {
+            fileIterators.add(new FileRecordIterator(f));
+        }
+        // With sort threads, merge groups of at least two files in the background, and merge the groups here.
+        final int numGroups = Math.min(this.sortThreads, this.files.size() / 2);
+        if (numGroups < 2) {
+            return new MergingIterator(fileIterators);
+        }
+        final List<CloseableIterator<T>> groupIterators = new ArrayList<CloseableIterator<T>>();
+        for (int group = 0; group < numGroups; ++group) {
+            // Groups are contiguous, so that records that compare equal are still returned in order of file
+            final int from = group * fileIterators.size() / numGroups;
+            final int to = (group + 1) * fileIterators.size() / numGroups;
+            groupIterators.add(new BackgroundMergingIterator(
+                    new MergingIterator(new ArrayList<CloseableIterator<T>>(fileIterators.subList(from, to)))));
+        }
+        return new MergingIterator(groupIterators);
     }
 
     /**
@@ -279,6 +911,20 @@ public class SortingCollection<T> implements Iterable<T> {
         this.iterationStarted = true;
         this.cleanedUp = true;
 
+        if (this.pendingSpill != null) {
+            // Don't delete a file while it is being written; any error is of no interest now.
+            try {
+                this.pendingSpill.get();
+            } catch (final Exception e) {
+                // ignore
+            }
+            this.pendingSpill = null;
+        }
+        if (this.arena != null) {
+            this.arena.release();
+            this.arena = null;
+        }
+
         IOUtil.deleteFiles(this.files);
     }
 
@@ -323,6 +969,26 @@ public class SortingCollection<T> implements Iterable<T> {
     }
 
 
+    /**
+     * Creates a collection that holds records in memory as bytes encoded by the codec, and spills them to disk
+     * once they take up maxBytesInRam.
+     *
+     * @param componentType Class of the record to be sorted.  Necessary because of Java generic lameness.
+     * @param codec For serializing records in memory, writing them to file and reading them back
+     * @param comparator Defines output sort order
+     * @param maxBytesInRam how many bytes of serialized records to accumulate in memory before spilling to disk
+     * @param offHeap whether to hold the serialized records in direct memory rather than on the Java heap
+     * @param tmpDir Where to write files of records that will not fit in RAM
+     */
+    public static <T> SortingCollection<T> newSerializedInstance(final Class<T> componentType,
+                                                                 final SortingCollection.Codec<T> codec,
+                                                                 final Comparator<T> comparator,
+                                                                 final long maxBytesInRam,
+                                                                 final boolean offHeap,
+                                                                 final File... tmpDir) {
+        return new SortingCollection<T>(componentType, codec, comparator, maxBytesInRam, offHeap, tmpDir);
+    }
+
     /**
      * Syntactic sugar around the ctor, to save some typing of type parameters.  Writes files to java.io.tmpdir
      *
@@ -347,10 +1013,7 @@ public class SortingCollection<T> implements Iterable<T> {
         private int iterationIndex = 0;
 
         InMemoryIterator() {
-            Arrays.sort(SortingCollection.this.ramRecords,
-                        0,
-                        SortingCollection.this.numRecordsInRam,
-                        SortingCollection.this.comparator);
+            sortRecords(SortingCollection.this.ramRecords, SortingCollection.this.numRecordsInRam);
         }
 
         public void close() {
@@ -376,9 +1039,42 @@ public class SortingCollection<T> implements Iterable<T> {
         }
     }
 
+    /**
+     * For iteration over serialized records when the number added is less than the threshold for spilling to disk.
+     */
+    class SerializedIterator implements CloseableIterator<T> {
+        private final int[] order;
+        private final Codec<T> decoder = SortingCollection.this.codec.clone();
+        private int iterationIndex = 0;
+
+        SerializedIterator() {
+            this.order = sortArena();
+        }
+
+        public void close() {
+            // nothing to do
+        }
+
+        public boolean hasNext() {
+            return this.iterationIndex < this.order.length;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return decodeFromArena(decoder, this.order[iterationIndex++]);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * For iteration when spilling to disk has occurred.
-     * Each file is has records in sort order within the file.
+     * Each file is has records in sort order within the file, and is read by a FileRecordIterator, or, when
+     * merging in the background, groups of files are read by BackgroundMergingIterators.
      * This iterator automatically closes when it iterates to the end, but if not iterating
      * to the end it is a good idea to call close().
      *
@@ -394,11 +1090,10 @@ public class SortingCollection<T> implements Iterable<T> {
     class MergingIterator implements CloseableIterator<T> {
         private final PollableTreeSet<PeekFileRecordIterator> queue;
 
-        MergingIterator() {
+        MergingIterator(final List<CloseableIterator<T>> iterators) {
             this.queue = new PollableTreeSet<PeekFileRecordIterator>(new PeekFileRecordIteratorComparator());
             int n = 0;
-            for (final File f : SortingCollection.this.files) {
-                final FileRecordIterator it = new FileRecordIterator(f);
+            for (final CloseableIterator<T> it : iterators) {
                 if (it.hasNext()) {
                     this.queue.add(new PeekFileRecordIterator(it, n++));
                 }
@@ -441,6 +1136,168 @@ public class SortingCollection<T> implements Iterable<T> {
         }
     }
 
+    /** Number of records passed at a time from a BackgroundMergingIterator's thread to the iterating thread. */
+    private static final int MERGE_BATCH_SIZE = 1024;
+
+    /** How long a BackgroundMergingIterator waits for a pool thread to start merging before merging itself. */
+    private static final long MERGER_START_TIMEOUT_MS = 100;
+
+    /**
+     * Runs a MergingIterator on a thread of the sort pool, which stays a few batches of records ahead of this
+     * iterator.  If no pool thread is free to start the merge soon after it is needed, the merge is done on the
+     * iterating thread instead, because the merge waits for this iterator, so must not wait for the pool.
+     */
+    class BackgroundMergingIterator implements CloseableIterator<T> {
+        private final MergingIterator iterator;
+        private final BlockingQueue<MergedBatch> batches = new ArrayBlockingQueue<MergedBatch>(4);
+        private final Future<?> merger;
+        // Set by whichever of the pool thread and the iterating thread is to do the merge
+        private final AtomicBoolean mergeStarted = new AtomicBoolean(false);
+        private boolean mergingHere = false;
+        private volatile boolean closed = false;
+        private MergedBatch currentBatch = null;
+        private int currentIndex = 0;
+
+        BackgroundMergingIterator(final MergingIterator iterator) {
+            this.iterator = iterator;
+            this.merger = getSortService(sortThreads).submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mergeStarted.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        MergedBatch batch;
+                        do {
+                            batch = nextBatch();
+                            put(batch);
+                        } while (batch.records != null && !closed);
+                    } finally {
+                        iterator.close();
+                    }
+                }
+            });
+            advance();
+        }
+
+        /** Merges the next batch of records, returning the end of the records or an error if there are no more. */
+        private MergedBatch nextBatch() {
+            try {
+                if (!iterator.hasNext()) {
+                    return new MergedBatch(null, 0, null);
+                }
+                final T[] records = newArray(MERGE_BATCH_SIZE);
+                int count = 0;
+                while (count < records.length && iterator.hasNext()) {
+                    records[count++] = iterator.next();
+                }
+                return new MergedBatch(records, count, null);
+            } catch (final RuntimeException e) {
+                return new MergedBatch(null, 0, e);
+            } catch (final Error e) {
+                return new MergedBatch(null, 0, new RuntimeException(e));
+            }
+        }
+
+        /** Waits for the next batch from the pool thread, or merges it here if the merge has not been started. */
+        private MergedBatch takeBatch() throws InterruptedException {
+            if (mergingHere) {
+                return nextBatch();
+            }
+            if (!mergeStarted.get()) {
+                final MergedBatch batch = batches.poll(MERGER_START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    return batch;
+                }
+                if (mergeStarted.compareAndSet(false, true)) {
+                    mergingHere = true;
+                    return nextBatch();
+                }
+            }
+            return batches.take();
+        }
+
+        /** Waits for room in the queue, giving up if this iterator is closed. */
+        private void put(final MergedBatch batch) {
+            try {
+                while (!closed && !batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {}
+            } catch (final InterruptedException e) {
+                closed = true;
+            }
+        }
+
+        private void advance() {
+            if (currentBatch != null && currentIndex < currentBatch.count) {
+                return;
+            }
+            try {
+                currentBatch = takeBatch();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException("Interrupted waiting for records to be merged", e);
+            }
+            currentIndex = 0;
+            if (currentBatch.error != null) {
+                final RuntimeException error = currentBatch.error;
+                currentBatch = null;
+                closed = true;
+                throw error;
+            }
+            if (currentBatch.records == null) {
+                currentBatch = null;
+                if (mergingHere) {
+                    iterator.close();
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return currentBatch != null;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final T ret = currentBatch.records[currentIndex];
+            currentBatch.records[currentIndex++] = null;
+            advance();
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            closed = true;
+            currentBatch = null;
+            batches.clear();
+            if (mergingHere || mergeStarted.compareAndSet(false, true)) {
+                iterator.close();
+                return;
+            }
+            // Wait for the merge thread to close its files
+            try {
+                merger.get();
+            } catch (final Exception e) {
+                // Any error is of no interest once closed
+            }
+        }
+    }
+
+    /** Records merged in the background, or the end of the records if records is null, or an error. */
+    private class MergedBatch {
+        final T[] records;
+        final int count;
+        final RuntimeException error;
+
+        MergedBatch(final T[] records, final int count, final RuntimeException error) {
+            this.records = records;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
     /**
      * Read a file of records in format defined by the codec
      */
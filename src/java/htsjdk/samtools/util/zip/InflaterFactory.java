@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.zip;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMException;
+
+import java.util.zip.Inflater;
+
+/**
+ * Counterpart of DeflaterFactory for decompression.  By default this creates standard JDK Inflaters, but a
+ * faster implementation can be plugged in either by calling setInstance() with a subclass that overrides
+ * newInflater(), or by naming such a subclass (with a public no-arg constructor) in the inflater_factory
+ * property (see Defaults).
+ *
+ * BGZF readers don't call this directly, but borrow Inflaters from InflaterPool, which uses this to create them.
+ */
+public class InflaterFactory {
+
+    private static InflaterFactory instance = createDefaultInstance();
+
+    private static InflaterFactory createDefaultInstance() {
+        if (Defaults.INFLATER_FACTORY.isEmpty()) {
+            return new InflaterFactory();
+        }
+        try {
+            return (InflaterFactory) Class.forName(Defaults.INFLATER_FACTORY).newInstance();
+        } catch (final Exception e) {
+            throw new SAMException("Exception constructing InflaterFactory " + Defaults.INFLATER_FACTORY, e);
+        }
+    }
+
+    /** Replaces the factory used by makeInflater(). */
+    public static void setInstance(final InflaterFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("InflaterFactory may not be null");
+        }
+        instance = factory;
+    }
+
+    public static InflaterFactory getInstance() {
+        return instance;
+    }
+
+    public static Inflater makeInflater(final boolean nowrap) {
+        return instance.newInflater(nowrap);
+    }
+
+    /**
+     * Override to provide a different Inflater implementation.
+     * @param nowrap if true, the Inflater expects raw deflate data, as in GZIP and BGZF blocks.
+     */
+    public Inflater newInflater(final boolean nowrap) {
+        return new Inflater(nowrap);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.zip;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Thread-safe pool of reusable Inflaters in GZIP (nowrap) mode.  Constructing an Inflater allocates native zlib
+ * state that is only released by end() or finalization, which is expensive when many short-lived readers are
+ * opened, so BlockGunzipper borrows an Inflater from the shared pool for each block instead of owning one.
+ * At most maxIdle Inflaters are kept; any more that are released are ended immediately.
+ */
+public class InflaterPool {
+    /** Enough for several busy readers per core. */
+    public static final int DEFAULT_MAX_IDLE = 4 * Runtime.getRuntime().availableProcessors();
+
+    private static final InflaterPool DEFAULT_POOL = new InflaterPool(DEFAULT_MAX_IDLE);
+
+    private final Queue<Inflater> idle = new ConcurrentLinkedQueue<Inflater>();
+    private final AtomicInteger numIdle = new AtomicInteger(0);
+    private final int maxIdle;
+
+    /** The pool shared by all BlockCompressedInputStreams. */
+    public static InflaterPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * @param maxIdle maximum number of released Inflaters to keep for reuse.
+     */
+    public InflaterPool(final int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid maxIdle: " + maxIdle);
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return an Inflater in GZIP mode, ready for use.  The caller must pass it to release() when done with it.
+     */
+    public Inflater acquire() {
+        final Inflater inflater = idle.poll();
+        if (inflater == null) {
+            return InflaterFactory.makeInflater(true);
+        }
+        numIdle.decrementAndGet();
+        inflater.reset();
+        return inflater;
+    }
+
+    /**
+     * Returns an Inflater obtained from acquire() to the pool.  The caller must not use it afterwards.
+     */
+    public void release(final Inflater inflater) {
+        if (numIdle.incrementAndGet() <= maxIdle) {
+            idle.offer(inflater);
+        } else {
+            numIdle.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /** @return the number of Inflaters currently available for reuse. */
+    public int getNumIdle() {
+        return numIdle.get();
+    }
+
+    /** Ends and discards all idle Inflaters, e.g. after InflaterFactory has been replaced. */
+    public void clear() {
+        Inflater inflater;
+        while ((inflater = idle.poll()) != null) {
+            numIdle.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import htsjdk.samtools.seekablestream.ISeekableStreamFactory;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.seekablestream.SeekableStreamFactory;
 import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.InflatedBlockCache;
 import htsjdk.tribble.util.ParsingUtils;
 import htsjdk.tribble.util.TabixUtils;
 
@@ -134,6 +135,14 @@ public class TabixReader {
         readIndex();
     }
 
+    /**
+     * Sets a cache of inflated blocks, possibly shared with other readers, to be consulted by queries.
+     * @param cache null to disable caching.
+     */
+    public void setBlockCache(final InflatedBlockCache cache) {
+        mFp.setBlockCache(cache);
+    }
+
     /** return the source (filename/URL) of that reader */
     public String getSource()
         {
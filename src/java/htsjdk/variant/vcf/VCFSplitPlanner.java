@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.variant.vcf;
+
+import htsjdk.samtools.util.AbstractIterator;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedSplit;
+import htsjdk.samtools.util.BlockCompressedSplitPlanner;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.readers.AsciiLineReader;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plans record-aligned splits of a block-compressed VCF file, which can then be read independently with iterator().
+ *
+ * Records are lines, so the first record in a BGZF block is the line that follows the first newline in the block,
+ * which is then checked by decoding it.  A record that starts exactly at the start of a block is thus left to the
+ * preceding split, which reads every record that starts before the end of the split.
+ */
+public class VCFSplitPlanner extends BlockCompressedSplitPlanner {
+    private final VCFCodec codec;
+
+    public VCFSplitPlanner(final File vcf) {
+        super(vcf);
+        codec = readHeader(vcf);
+    }
+
+    /**
+     * Iterates over the records in the given split of a block-compressed VCF file.
+     */
+    public static CloseableIterator<VariantContext> iterator(final BlockCompressedSplit split) {
+        return new VCFSplitIterator(split);
+    }
+
+    @Override
+    protected long getFirstRecordStart(final BlockCompressedInputStream stream) throws IOException {
+        stream.seek(0);
+        while (true) {
+            final long position = stream.getFilePointer();
+            final String line = stream.readLine();
+            if (line == null || !line.startsWith(VCFHeader.HEADER_INDICATOR)) {
+                return position;
+            }
+        }
+    }
+
+    @Override
+    protected long findRecordStart(final BlockCompressedInputStream stream, final long blockAddress) throws IOException {
+        stream.seek(makeFilePointer(blockAddress, 0));
+        int b;
+        while ((b = stream.read()) != -1 && b != '\n') {
+        }
+        if (b == -1) {
+            return -1;
+        }
+        final long position = stream.getFilePointer();
+        final String line = stream.readLine();
+        if (line == null) {
+            return -1;
+        }
+        // Throws if the file is corrupt, in which case reading the split would fail anyway
+        codec.decode(line);
+        return position;
+    }
+
+    private static VCFCodec readHeader(final File vcf) {
+        final VCFCodec codec = new VCFCodec();
+        LineIteratorImpl lines = null;
+        try {
+            lines = new LineIteratorImpl(new AsciiLineReader(new BlockCompressedInputStream(vcf)));
+            codec.readActualHeader(lines);
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error reading header of " + vcf, e);
+        } finally {
+            CloserUtil.close(lines);
+        }
+        return codec;
+    }
+
+    /** Decodes the lines that start within a split. */
+    private static class VCFSplitIterator extends AbstractIterator<VariantContext> implements CloseableIterator<VariantContext> {
+        private final VCFCodec codec;
+        private final BlockCompressedInputStream stream;
+        private final long end;
+
+        VCFSplitIterator(final BlockCompressedSplit split) {
+            final File file = new File(split.getPath());
+            this.codec = readHeader(file);
+            this.end = split.getEnd();
+            try {
+                this.stream = new BlockCompressedInputStream(file);
+                stream.seek(split.getStart());
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Error opening split " + split, e);
+            }
+        }
+
+        @Override
+        protected VariantContext advance() {
+            try {
+                while (BlockCompressedFilePointerUtil.compare(stream.getFilePointer(), end) < 0) {
+                    final String line = stream.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                    final VariantContext variant = codec.decode(line);
+                    if (variant != null) {
+                        return variant;
+                    }
+                }
+                return null;
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            CloserUtil.close(stream);
+        }
+    }
+}
@@ -269,6 +269,52 @@ public class BAMFileIndexTest {
         return new Object[][]{{true}, {false}};
     }
 
+    /**
+     * Queries that prefetch their chunks must return the same records, in the same order, whatever the budget, and
+     * whether or not they are abandoned part way through.
+     */
+    @Test(dataProvider = "testQueryPrefetchDataProvider")
+    public void testQueryPrefetch(final int prefetchBytes) {
+        final List<String> referenceNames = getReferenceNames(BAM_FILE);
+        final QueryInterval[] intervals = QueryInterval.optimizeIntervals(generateRandomIntervals(referenceNames.size(), 200, new Random(5)));
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SamReader prefetchingReader = SamReaderFactory.makeDefault().queryPrefetchBytes(prefetchBytes).open(BAM_FILE);
+        for (final boolean contained : new boolean[]{true, false}) {
+            final List<String> expected = new ArrayList<String>();
+            final List<String> actual = new ArrayList<String>();
+            consumeAllSAMStrings(expected, reader.query(intervals, contained), Integer.MAX_VALUE);
+            consumeAllSAMStrings(actual, prefetchingReader.query(intervals, contained), Integer.MAX_VALUE);
+            Assert.assertEquals(actual, expected);
+            Assert.assertTrue(expected.size() > 0);
+
+            final int partial = expected.size() / 2;
+            actual.clear();
+            consumeAllSAMStrings(actual, prefetchingReader.query(intervals, contained), partial);
+            Assert.assertEquals(actual, expected.subList(0, partial));
+        }
+        for (final String referenceName : referenceNames) {
+            final List<String> expected = new ArrayList<String>();
+            final List<String> actual = new ArrayList<String>();
+            consumeAllSAMStrings(expected, reader.queryOverlapping(referenceName, 0, 0), Integer.MAX_VALUE);
+            consumeAllSAMStrings(actual, prefetchingReader.queryOverlapping(referenceName, 0, 0), Integer.MAX_VALUE);
+            Assert.assertEquals(actual, expected);
+        }
+        CloserUtil.close(reader);
+        CloserUtil.close(prefetchingReader);
+    }
+
+    @DataProvider(name = "testQueryPrefetchDataProvider")
+    private Object[][] testQueryPrefetchDataProvider() {
+        return new Object[][]{{1}, {256 * 1024}, {64 * 1024 * 1024}};
+    }
+
+    private void consumeAllSAMStrings(final List<String> strings, final CloseableIterator<SAMRecord> iterator, final int max) {
+        while (strings.size() < max && iterator.hasNext()) {
+            strings.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+    }
+
     @Test
     public void testUnmappedMateWithCoordinate() throws Exception {
         // TODO: Use SAMRecordSetBuilder when it is able to create a pair with one end unmapped
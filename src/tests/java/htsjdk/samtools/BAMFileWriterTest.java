@@ -25,11 +25,15 @@ package htsjdk.samtools;
 
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 
 /**
  * Test that BAM writing doesn't blow up.  For presorted writing, the resulting BAM file is read and contents are
@@ -114,6 +118,165 @@ public class BAMFileWriterTest {
         testHelper(samRecordSetBuilder, order, presorted);
     }
 
+    private static byte[] readBytes(final File file) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(file);
+        IOUtil.copyStream(in, bytes);
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    /** How writeWithThreads() passes the records to the writer. */
+    private enum CopyMode {
+        /** addAlignment() with a new record each time */
+        RECORDS,
+        /** addAlignment() with records that the reader overwrites once the writer has them */
+        REUSED_RECORDS,
+        /** SAMFileWriterImpl.addRawAlignment() */
+        RAW_RECORDS
+    }
+
+    /** Writes index_test.bam with the given settings, returning the BAM, BAM index, read name index and MD5 files. */
+    private File[] writeWithThreads(final int encoderThreads, final int deflaterThreads) throws Exception {
+        return writeWithThreads(encoderThreads, deflaterThreads, CopyMode.RECORDS);
+    }
+
+    /**
+     * Writes index_test.bam with the given settings, returning the BAM, BAM index, read name index and MD5 files.
+     */
+    private File[] writeWithThreads(final int encoderThreads, final int deflaterThreads, final CopyMode mode) throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam"));
+        final File bamFile = File.createTempFile("test.", BamFileIoUtils.BAM_FILE_EXTENSION);
+        final File indexFile = new File(bamFile.getPath().replaceAll("\\.bam$", BAMIndex.BAMIndexSuffix));
+        final File readNameIndexFile = ReadNameIndex.getDefaultIndexFile(bamFile);
+        final File md5File = new File(bamFile.getAbsolutePath() + ".md5");
+        bamFile.deleteOnExit();
+        indexFile.deleteOnExit();
+        readNameIndexFile.deleteOnExit();
+        md5File.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).setCreateReadNameIndex(true)
+                .setCreateMd5File(true).setEncoderThreads(encoderThreads).setDeflaterThreads(deflaterThreads)
+                .makeBAMWriter(reader.getFileHeader(), true, bamFile);
+        if (mode == CopyMode.RAW_RECORDS) {
+            final CloseableIterator<BAMRawRecord> it = SamRecordAccess.rawIterator(reader);
+            while (it.hasNext()) {
+                ((SAMFileWriterImpl) writer).addRawAlignment(it.next());
+            }
+            it.close();
+        } else {
+            final SAMRecordIterator it = mode == CopyMode.REUSED_RECORDS ?
+                    SamRecordAccess.iteratorReusingRecords(reader) : reader.iterator();
+            while (it.hasNext()) {
+                writer.addAlignment(it.next());
+            }
+            it.close();
+        }
+        writer.close();
+        CloserUtil.close(reader);
+        return new File[]{bamFile, indexFile, readNameIndexFile, md5File};
+    }
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][]{{1, 0}, {4, 0}, {0, 2}, {2, 2}, {4, 4}};
+    }
+
+    /**
+     * Encoding and compressing in the background must produce exactly the same BAM, index and MD5 as doing so
+     * on the writing thread.
+     */
+    @Test(dataProvider = "threads")
+    public void testParallelEncoding(final int encoderThreads, final int deflaterThreads) throws Exception {
+        final File[] expected = writeWithThreads(0, 0);
+        final File[] actual = writeWithThreads(encoderThreads, deflaterThreads);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertTrue(actual[i].exists(), actual[i].getName());
+            Assert.assertEquals(readBytes(actual[i]), readBytes(expected[i]), actual[i].getName());
+        }
+    }
+
+    /**
+     * Copying raw records must produce exactly the same BAM, index and MD5 as re-encoding the records, whether or
+     * not blocks are compressed in the background.
+     */
+    @Test(dataProvider = "threads")
+    public void testRawRecordPassThrough(final int encoderThreads, final int deflaterThreads) throws Exception {
+        final File[] expected = writeWithThreads(0, 0);
+        final File[] actual = writeWithThreads(encoderThreads, deflaterThreads, CopyMode.RAW_RECORDS);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertTrue(actual[i].exists(), actual[i].getName());
+            Assert.assertEquals(readBytes(actual[i]), readBytes(expected[i]), actual[i].getName());
+        }
+    }
+
+    /**
+     * Records encoded or compressed in the background must be written and indexed as they were added, even if the
+     * caller overwrites them afterwards.
+     */
+    @Test(dataProvider = "threads")
+    public void testReusedRecords(final int encoderThreads, final int deflaterThreads) throws Exception {
+        final File[] expected = writeWithThreads(0, 0);
+        final File[] actual = writeWithThreads(encoderThreads, deflaterThreads, CopyMode.REUSED_RECORDS);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertTrue(actual[i].exists(), actual[i].getName());
+            Assert.assertEquals(readBytes(actual[i]), readBytes(expected[i]), actual[i].getName());
+        }
+    }
+
+    /** Writes index_test.bam in queryname order, sorting it with the given number of threads. */
+    private File writeSortedWithThreads(final int sortThreads) throws Exception {
+        return writeSorted(new SAMFileWriterFactory().setMaxRecordsInRam(700).setSortThreads(sortThreads));
+    }
+
+    private File writeSorted(final SAMFileWriterFactory factory) throws Exception {
+        return writeSorted(factory, false);
+    }
+
+    private File writeSorted(final SAMFileWriterFactory factory, final boolean raw) throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam"));
+        final File bamFile = File.createTempFile("test.", BamFileIoUtils.BAM_FILE_EXTENSION);
+        bamFile.deleteOnExit();
+        final SAMFileHeader header = reader.getFileHeader().clone();
+        header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final SAMFileWriter writer = factory.makeBAMWriter(header, false, bamFile);
+        if (raw) {
+            final CloseableIterator<BAMRawRecord> it = SamRecordAccess.rawIterator(reader);
+            while (it.hasNext()) {
+                ((SAMFileWriterImpl) writer).addRawAlignment(it.next());
+            }
+            it.close();
+        } else {
+            for (final SAMRecord rec : reader) {
+                writer.addAlignment(rec);
+            }
+        }
+        writer.close();
+        CloserUtil.close(reader);
+        return bamFile;
+    }
+
+    @Test
+    public void testParallelSorting() throws Exception {
+        Assert.assertEquals(readBytes(writeSortedWithThreads(4)), readBytes(writeSortedWithThreads(0)));
+    }
+
+    /** Raw records given to a writer that has to sort them are decoded and sorted like any others. */
+    @Test
+    public void testSortingRawRecords() throws Exception {
+        Assert.assertEquals(readBytes(writeSorted(new SAMFileWriterFactory().setMaxRecordsInRam(700), true)),
+                readBytes(writeSortedWithThreads(0)));
+    }
+
+    @Test
+    public void testSortingSerializedRecords() throws Exception {
+        final byte[] expected = readBytes(writeSortedWithThreads(0));
+        // Small enough to spill several times
+        Assert.assertEquals(readBytes(writeSorted(new SAMFileWriterFactory().setMaxBytesInRam(300000))), expected);
+        Assert.assertEquals(readBytes(writeSorted(new SAMFileWriterFactory().setMaxBytesInRam(300000).setSortThreads(2))), expected);
+        // Large enough to hold every record
+        Assert.assertEquals(readBytes(writeSorted(new SAMFileWriterFactory().setMaxBytesInRam(100000000))), expected);
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void testNegativePresorted() throws Exception {
 
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BAMIndexContentCacheTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+    private static final File INDEX_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam.bai");
+    private static final String[] QUERIES = {"chr1", "chr2", "chr3", "chrX", "chr1"};
+
+    private List<String> query(final SamReaderFactory factory, final File bam, final File index) {
+        final SamReader reader = factory.open(SamInputResource.of(bam).index(index));
+        final List<String> records = new ArrayList<String>();
+        for (final String contig : QUERIES) {
+            final SAMRecordIterator iterator = reader.queryOverlapping(contig, 1000000, 20000000);
+            while (iterator.hasNext()) {
+                records.add(iterator.next().getSAMString());
+            }
+            iterator.close();
+        }
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    @Test
+    public void testSharedBetweenReaders() {
+        final List<String> expected = query(SamReaderFactory.makeDefault().indexCache(null), BAM_FILE, INDEX_FILE);
+        final BAMIndexContentCache cache = new BAMIndexContentCache(64 * 1024 * 1024);
+        final SamReaderFactory factory = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES)
+                .indexCache(cache);
+
+        Assert.assertEquals(query(factory, BAM_FILE, INDEX_FILE), expected);
+        Assert.assertEquals(cache.getNumEntries(), 4);
+        Assert.assertEquals(cache.getHits(), 0);
+        Assert.assertEquals(query(factory, BAM_FILE, INDEX_FILE), expected);
+        Assert.assertEquals(cache.getNumEntries(), 4);
+        Assert.assertTrue(cache.getHits() >= 4);
+        Assert.assertEquals(cache.getEvictions(), 0);
+        Assert.assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void testNotUsedWithoutIndexCaching() {
+        final BAMIndexContentCache cache = new BAMIndexContentCache(64 * 1024 * 1024);
+        query(SamReaderFactory.makeDefault().indexCache(cache), BAM_FILE, INDEX_FILE);
+        Assert.assertEquals(cache.getNumEntries(), 0);
+        Assert.assertEquals(cache.getMisses(), 0);
+    }
+
+    @Test
+    public void testEviction() {
+        final List<String> expected = query(SamReaderFactory.makeDefault().indexCache(null), BAM_FILE, INDEX_FILE);
+        // Only room for about one reference
+        final BAMIndexContentCache cache = new BAMIndexContentCache(200 * 1024);
+        final SamReaderFactory factory = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES)
+                .indexCache(cache);
+        Assert.assertEquals(query(factory, BAM_FILE, INDEX_FILE), expected);
+        Assert.assertEquals(query(factory, BAM_FILE, INDEX_FILE), expected);
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void testModifiedIndexIsReloaded() throws Exception {
+        final File index = File.createTempFile("BAMIndexContentCacheTest.", ".bai");
+        index.deleteOnExit();
+        IOUtil.copyFile(INDEX_FILE, index);
+        final BAMIndexContentCache cache = new BAMIndexContentCache(64 * 1024 * 1024);
+        final SamReaderFactory factory = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES)
+                .indexCache(cache);
+        query(factory, BAM_FILE, index);
+        final long misses = cache.getMisses();
+
+        Assert.assertTrue(index.setLastModified(index.lastModified() - 10000));
+        query(factory, BAM_FILE, index);
+        Assert.assertEquals(cache.getMisses(), 2 * misses);
+        Assert.assertEquals(cache.getNumEntries(), 8);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BAMRawRecordTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+    private static final File SAM_FILE = new File("testdata/htsjdk/samtools/coordinate_sorted.sam");
+
+    private static void assertSameRecord(final BAMRawRecord raw, final SAMRecord rec) {
+        Assert.assertEquals(raw.getReadName(), rec.getReadName());
+        Assert.assertEquals(raw.getReadNameLength(), rec.getReadNameLength());
+        Assert.assertEquals(raw.getReferenceIndex(), rec.getReferenceIndex().intValue());
+        Assert.assertEquals(raw.getAlignmentStart(), rec.getAlignmentStart());
+        Assert.assertEquals(raw.getAlignmentEnd(), rec.getAlignmentEnd(), rec.getReadName());
+        Assert.assertEquals(raw.getMappingQuality(), rec.getMappingQuality());
+        Assert.assertEquals(raw.getCigarLength(), rec.getCigarLength());
+        Assert.assertEquals(raw.getFlags(), rec.getFlags());
+        Assert.assertEquals(raw.getReadUnmappedFlag(), rec.getReadUnmappedFlag());
+        Assert.assertEquals(raw.getReadLength(), rec.getReadLength());
+        Assert.assertEquals(raw.getMateReferenceIndex(), rec.getMateReferenceIndex().intValue());
+        Assert.assertEquals(raw.getMateAlignmentStart(), rec.getMateAlignmentStart());
+        Assert.assertEquals(raw.getInferredInsertSize(), rec.getInferredInsertSize());
+        Assert.assertEquals(raw.getAttribute("RG"), rec.getAttribute("RG"));
+        Assert.assertEquals(raw.getAttribute("NM"), rec.getAttribute("NM"));
+        Assert.assertNull(raw.getAttribute("XX"));
+    }
+
+    @DataProvider(name = "files")
+    public Object[][] files() {
+        return new Object[][]{{BAM_FILE}, {SAM_FILE}};
+    }
+
+    /** Raw records must have the same fields as the SAMRecords read from the same file, for BAM and other files. */
+    @Test(dataProvider = "files")
+    public void testRawIterator(final File file) throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(file);
+        final SamReader rawReader = SamReaderFactory.makeDefault().open(file);
+        final CloseableIterator<BAMRawRecord> rawIterator = SamRecordAccess.rawIterator(rawReader);
+        // Keep every raw record, which must remain valid after later ones have been read
+        final List<BAMRawRecord> rawRecords = new ArrayList<BAMRawRecord>();
+        while (rawIterator.hasNext()) {
+            rawRecords.add(rawIterator.next());
+        }
+        rawIterator.close();
+        int i = 0;
+        for (final SAMRecord rec : reader) {
+            final BAMRawRecord raw = rawRecords.get(i++);
+            assertSameRecord(raw, rec);
+            assertSameRecord(raw.copy(), rec);
+            Assert.assertEquals(raw.toSAMRecord(reader.getFileHeader()).getSAMString(), rec.getSAMString());
+        }
+        Assert.assertEquals(i, rawRecords.size());
+        Assert.assertTrue(i > 0);
+        CloserUtil.close(reader);
+        CloserUtil.close(rawReader);
+    }
+
+    @DataProvider(name = "queries")
+    public Object[][] queries() {
+        return new Object[][]{
+                {new QueryInterval[]{new QueryInterval(0, 1000, 2000)}, false},
+                {new QueryInterval[]{new QueryInterval(0, 1000, 2000)}, true},
+                {new QueryInterval[]{new QueryInterval(1, 1, 500000), new QueryInterval(3, 10000, 0)}, false},
+                {new QueryInterval[]{new QueryInterval(1, 1, 500000), new QueryInterval(3, 10000, 0)}, true},
+                {new QueryInterval[0], false},
+        };
+    }
+
+    /** A raw query must return the same records as the corresponding SAMRecord query. */
+    @Test(dataProvider = "queries")
+    public void testQueryRaw(final QueryInterval[] intervals, final boolean contained) throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final List<String> expected = new ArrayList<String>();
+        final SAMRecordIterator it = reader.query(intervals, contained);
+        while (it.hasNext()) {
+            expected.add(it.next().getSAMString());
+        }
+        it.close();
+
+        final List<String> actual = new ArrayList<String>();
+        final CloseableIterator<BAMRawRecord> rawIterator = SamRecordAccess.queryRaw(reader, intervals, contained);
+        while (rawIterator.hasNext()) {
+            actual.add(rawIterator.next().toSAMRecord(reader.getFileHeader()).getSAMString());
+        }
+        rawIterator.close();
+        Assert.assertEquals(actual, expected);
+        CloserUtil.close(reader);
+    }
+
+    /** Wraps a reader in one that only implements SamReader, as other implementations of it may. */
+    private static SamReader withoutRecordAccess(final SamReader reader) {
+        return (SamReader) Proxy.newProxyInstance(SamReader.class.getClassLoader(), new Class<?>[]{SamReader.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(reader, args);
+                        } catch (final InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /** Readers that do not implement RecordAccess must still be usable through SamRecordAccess. */
+    @Test
+    public void testWithoutRecordAccess() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final List<String> expected = new ArrayList<String>();
+        final SAMRecordIterator iterator = reader.iterator();
+        while (iterator.hasNext()) {
+            expected.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+
+        final SamReader plainReader = withoutRecordAccess(reader);
+        Assert.assertFalse(plainReader instanceof SamReader.RecordAccess);
+        final List<String> actual = new ArrayList<String>();
+        final CloseableIterator<BAMRawRecord> rawIterator = SamRecordAccess.rawIterator(plainReader);
+        while (rawIterator.hasNext()) {
+            actual.add(rawIterator.next().toSAMRecord(reader.getFileHeader()).getSAMString());
+        }
+        rawIterator.close();
+        Assert.assertEquals(actual, expected);
+
+        actual.clear();
+        final SAMRecordIterator reusingIterator = SamRecordAccess.iteratorReusingRecords(plainReader);
+        while (reusingIterator.hasNext()) {
+            actual.add(reusingIterator.next().getSAMString());
+        }
+        reusingIterator.close();
+        Assert.assertEquals(actual, expected);
+
+        final QueryInterval[] intervals = new QueryInterval[]{new QueryInterval(0, 1000, 2000)};
+        expected.clear();
+        final SAMRecordIterator it = reader.query(intervals, false);
+        while (it.hasNext()) {
+            expected.add(it.next().getSAMString());
+        }
+        it.close();
+        actual.clear();
+        final CloseableIterator<BAMRawRecord> queryIterator = SamRecordAccess.queryRaw(plainReader, intervals, false);
+        while (queryIterator.hasNext()) {
+            actual.add(queryIterator.next().toSAMRecord(reader.getFileHeader()).getSAMString());
+        }
+        queryIterator.close();
+        Assert.assertEquals(actual, expected);
+        Assert.assertTrue(expected.size() > 0);
+        CloserUtil.close(reader);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testOneIteratorAtATime() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        try {
+            SamRecordAccess.rawIterator(reader);
+            reader.iterator();
+        } finally {
+            CloserUtil.close(reader);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Attributes looked up individually in the binary block of a BAMRecord must match those decoded all at once.
+ */
+public class BAMRecordAttributeTest {
+    private File bamFile;
+
+    @BeforeClass
+    public void writeBam() throws Exception {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.unsorted);
+        builder.addFrag("readA", 20, 140, false);
+        final SAMRecord rec = builder.iterator().next();
+        rec.setAttribute("ZA", "string value");
+        rec.setAttribute("CA", 'x');
+        rec.setAttribute("BY", (byte) -3);
+        rec.setAttribute("UB", 200);
+        rec.setAttribute("SH", (short) -300);
+        rec.setAttribute("US", 60000);
+        rec.setAttribute("IN", -100000);
+        rec.setAttribute("FL", 1.5f);
+        rec.setAttribute("HX", new byte[]{1, 2, 3});
+        rec.setAttribute("BA", new byte[]{4, 5, 6, 7});
+        rec.setAttribute("SA", new short[]{-1, 2});
+        rec.setAttribute("IA", new int[]{1, -2, 3});
+        rec.setAttribute("FA", new float[]{0.5f});
+        rec.setUnsignedArrayAttribute("UA", new short[]{9, 8});
+        rec.setAttribute("ZZ", "last");
+
+        bamFile = File.createTempFile("BAMRecordAttributeTest.", BamFileIoUtils.BAM_FILE_EXTENSION);
+        bamFile.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(rec.getHeader(), false, bamFile);
+        writer.addAlignment(rec);
+        writer.close();
+    }
+
+    private SAMRecord readRecord() {
+        final SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+        final SAMRecord rec = reader.iterator().next();
+        CloserUtil.close(reader);
+        return rec;
+    }
+
+    @Test
+    public void testLookupMatchesFullDecoding() {
+        final List<SAMRecord.SAMTagAndValue> decoded = readRecord().getAttributes();
+        // The builder also adds a read group
+        Assert.assertEquals(decoded.size(), 16);
+        for (final SAMRecord.SAMTagAndValue attribute : decoded) {
+            // A fresh record for each tag, so that each lookup starts from the undecoded binary block
+            final SAMRecord rec = readRecord();
+            // deepEquals compares array values by content
+            Assert.assertTrue(Arrays.deepEquals(new Object[]{rec.getAttribute(attribute.tag)}, new Object[]{attribute.value}), attribute.tag);
+            Assert.assertEquals(rec.getAttribute(attribute.tag).getClass(), attribute.value.getClass(), attribute.tag);
+        }
+        Assert.assertNull(readRecord().getAttribute("XX"));
+    }
+
+    @Test
+    public void testModifyAfterLookup() {
+        final SAMRecord rec = readRecord();
+        Assert.assertEquals(rec.getIntegerAttribute("IN").intValue(), -100000);
+        rec.setAttribute("IN", 7);
+        Assert.assertEquals(rec.getIntegerAttribute("IN").intValue(), 7);
+        Assert.assertEquals(rec.getAttribute("ZA"), "string value");
+        rec.setAttribute("ZA", null);
+        Assert.assertNull(rec.getAttribute("ZA"));
+
+        final List<String> tags = new ArrayList<String>();
+        for (final SAMRecord.SAMTagAndValue attribute : rec.getAttributes()) {
+            tags.add(attribute.tag);
+        }
+        Assert.assertEquals(tags.size(), 15);
+        Assert.assertFalse(tags.contains("ZA"));
+        Assert.assertTrue(rec.isUnsignedArrayAttribute("UA"));
+        Assert.assertFalse(rec.isUnsignedArrayAttribute("SA"));
+    }
+
+    /**
+     * Scalar values looked up individually are equal, but not necessarily identical, from one lookup to the next.
+     * Array values are the same array every time, so changes made to them are kept, as they are by SAMRecord.
+     */
+    @Test
+    public void testRepeatedLookups() {
+        final SAMRecord rec = readRecord();
+        Assert.assertEquals(rec.getAttribute("ZA"), rec.getAttribute("ZA"));
+        Assert.assertEquals(rec.getAttribute("IN"), rec.getAttribute("IN"));
+
+        final byte[] bytes = (byte[]) rec.getAttribute("BA");
+        Assert.assertSame(rec.getAttribute("BA"), bytes);
+        bytes[0] = 42;
+        Assert.assertEquals(((byte[]) rec.getAttribute("BA"))[0], 42);
+        final short[] shorts = (short[]) rec.getAttribute("UA");
+        shorts[1] = 11;
+        Assert.assertSame(rec.getAttribute("UA"), shorts);
+        Assert.assertTrue(rec.isUnsignedArrayAttribute("UA"));
+
+        // The changes survive decoding of the other attributes, and are written out
+        rec.setAttribute("IN", 8);
+        Assert.assertEquals(((byte[]) rec.getAttribute("BA"))[0], 42);
+        Assert.assertTrue(rec.getSAMString().contains("BA:B:c,42,5,6,7"));
+        Assert.assertTrue(rec.getSAMString().contains("UA:B:S,9,11"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.filter.SamRecordPredicate;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class BAMRegionStatisticsTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private static long countByQuery(final SamReader reader, final QueryInterval[] intervals) {
+        long count = 0;
+        final SAMRecordIterator iterator = reader.queryOverlapping(intervals);
+        while (iterator.hasNext()) {
+            iterator.next();
+            ++count;
+        }
+        iterator.close();
+        return count;
+    }
+
+    @DataProvider(name = "intervals")
+    public Object[][] intervals() {
+        return new Object[][]{
+                {new QueryInterval[]{new QueryInterval(0, 1, 0)}},
+                {new QueryInterval[]{new QueryInterval(1, 1, 0)}},
+                {new QueryInterval[]{new QueryInterval(1, 1000000, 1000200)}},
+                {new QueryInterval[]{new QueryInterval(1, 1000000, 5000000), new QueryInterval(1, 9000000, 9000500),
+                        new QueryInterval(2, 1, 10000000), new QueryInterval(23, 1, 0)}},
+                {new QueryInterval[]{new QueryInterval(40, 1, 0)}},
+                {new QueryInterval[0]},
+        };
+    }
+
+    @Test(dataProvider = "intervals")
+    public void testCountRecordsOverlapping(final QueryInterval[] intervals) {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final long expected = countByQuery(reader, intervals);
+        Assert.assertEquals(BAMRegionStatistics.countRecordsOverlapping(reader, intervals), expected);
+        // The reader must still be usable afterwards
+        Assert.assertEquals(countByQuery(reader, intervals), expected);
+        CloserUtil.close(reader);
+    }
+
+    /** Records that the reader's record predicate rejects must not be counted, as they are not returned by queries. */
+    @Test(dataProvider = "intervals")
+    public void testCountRecordsOverlappingWithPredicate(final QueryInterval[] intervals) {
+        final SamReader reader = SamReaderFactory.makeDefault()
+                .recordPredicate(SamRecordPredicate.flagsUnset(0x10)).open(BAM_FILE);
+        final long expected = countByQuery(reader, intervals);
+        Assert.assertEquals(BAMRegionStatistics.countRecordsOverlapping(reader, intervals), expected);
+        final SamReader unfilteredReader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final long unfiltered = countByQuery(unfilteredReader, intervals);
+        Assert.assertTrue(unfiltered == 0 || expected < unfiltered);
+        CloserUtil.close(reader);
+        CloserUtil.close(unfilteredReader);
+    }
+
+    @Test
+    public void testRegionStatistics() {
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES).open(BAM_FILE);
+        final BrowseableBAMIndex index = reader.indexing().getBrowseableIndex();
+        for (final SAMSequenceRecord sequence : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+            final int ref = sequence.getSequenceIndex();
+            final BAMRegionStatistics whole = index.getRegionStatistics(ref, 1, 0);
+            final BAMIndexMetaData metaData = index.getMetaData(ref);
+            final long records = metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+            Assert.assertEquals(whole.getEstimatedRecordCount(), records, sequence.getSequenceName());
+            Assert.assertEquals(whole.getNumChunks() > 0, records > 0, sequence.getSequenceName());
+
+            // A part of the reference is no larger than the whole
+            final BAMRegionStatistics part = index.getRegionStatistics(ref, 1, sequence.getSequenceLength() / 4);
+            Assert.assertTrue(part.getCompressedBytes() <= whole.getCompressedBytes());
+            Assert.assertTrue(part.getEstimatedRecordCount() <= whole.getEstimatedRecordCount());
+
+            long binChunks = 0;
+            for (final Bin bin : index.getBinsOverlapping(ref, 1, sequence.getSequenceLength())) {
+                final BAMRegionStatistics binStatistics = index.getBinStatistics(bin);
+                Assert.assertEquals(binStatistics.getStart(), index.getFirstLocusInBin(bin));
+                Assert.assertEquals(binStatistics.getEnd(), index.getLastLocusInBin(bin));
+                Assert.assertTrue(binStatistics.getCompressedBytes() >= 0);
+                binChunks += binStatistics.getNumChunks();
+            }
+            Assert.assertEquals(binChunks > 0, records > 0);
+        }
+        CloserUtil.close(reader);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedSplit;
+import htsjdk.samtools.util.BlockCompressedSplitPlanner;
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BAMSplitPlannerTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private List<String> readAll() {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final List<String> records = new ArrayList<String>();
+        for (final SAMRecord record : reader) {
+            records.add(record.getSAMString());
+        }
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    private List<String> readSplits(final List<BlockCompressedSplit> splits) {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final List<String> records = new ArrayList<String>();
+        for (final BlockCompressedSplit split : splits) {
+            final SAMRecordIterator iterator = BAMSplitPlanner.iterator(reader, split);
+            while (iterator.hasNext()) {
+                records.add(iterator.next().getSAMString());
+            }
+            iterator.close();
+        }
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    @DataProvider(name = "numSplits")
+    public Object[][] numSplits() {
+        return new Object[][]{{1}, {2}, {7}, {50}};
+    }
+
+    @Test(dataProvider = "numSplits")
+    public void testPlanSplits(final int numSplits) {
+        final List<BlockCompressedSplit> splits = new BAMSplitPlanner(BAM_FILE).planSplits(numSplits);
+        Assert.assertTrue(splits.size() <= numSplits);
+        Assert.assertTrue(splits.size() >= Math.min(numSplits, 2));
+        for (int i = 1; i < splits.size(); ++i) {
+            Assert.assertEquals(splits.get(i).getStart(), splits.get(i - 1).getEnd());
+        }
+        Assert.assertEquals(readSplits(splits), readAll());
+    }
+
+    @Test
+    public void testPlanSplitsOfSize() {
+        final List<BlockCompressedSplit> splits = new BAMSplitPlanner(BAM_FILE).planSplitsOfSize(100000);
+        Assert.assertTrue(splits.size() > 3);
+        Assert.assertEquals(readSplits(splits), readAll());
+    }
+
+    @Test
+    public void testSplittingIndex() throws Exception {
+        final List<BlockCompressedSplit> splits = new BAMSplitPlanner(BAM_FILE).planSplits(5);
+        final File index = File.createTempFile("BAMSplitPlannerTest.", BlockCompressedSplitPlanner.SPLITTING_INDEX_EXTENSION);
+        index.deleteOnExit();
+        BlockCompressedSplitPlanner.writeSplittingIndex(splits, index);
+        Assert.assertEquals(BlockCompressedSplitPlanner.readSplittingIndex(index, BAM_FILE.getPath()), splits);
+
+        // Splits are sent to other machines
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(splits.get(1));
+        out.close();
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(in.readObject(), splits.get(1));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BamFileIoUtilsTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    /** Shard boundaries, by record number, including a shard of one record and shards that split a reference */
+    private static final int[] SHARD_STARTS = {0, 1, 3000, 7000};
+
+    private File tmpDir;
+    private final List<File> shards = new ArrayList<File>();
+
+    @BeforeClass
+    public void writeShards() {
+        tmpDir = IOUtil.createTempDir("BamFileIoUtilsTest", ".tmp");
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SAMFileWriterFactory factory = new SAMFileWriterFactory().setCreateIndex(true);
+        SAMFileWriter writer = null;
+        int count = 0;
+        for (final SAMRecord rec : reader) {
+            final int shard = Arrays.binarySearch(SHARD_STARTS, count++);
+            if (shard >= 0) {
+                if (writer != null) writer.close();
+                final File shardFile = new File(tmpDir, "shard" + shard + ".bam");
+                shards.add(shardFile);
+                writer = factory.makeBAMWriter(reader.getFileHeader(), true, shardFile);
+            }
+            writer.addAlignment(rec);
+        }
+        writer.close();
+        CloserUtil.close(reader);
+    }
+
+    @AfterClass
+    public void deleteShards() {
+        IOUtil.deleteFiles(tmpDir.listFiles());
+        IOUtil.deleteFiles(tmpDir);
+    }
+
+    private static byte[] readBytes(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /** Checks that the gathered file has all the records, and an index identical to one made by BAMIndexer. */
+    private void checkGatheredFile(final File output) throws IOException {
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        final SamReader original = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SAMRecordIterator expected = original.iterator();
+        for (final SAMRecord rec : reader) {
+            Assert.assertEquals(rec.getSAMString(), expected.next().getSAMString());
+        }
+        Assert.assertFalse(expected.hasNext());
+        CloserUtil.close(original);
+
+        final File expectedIndex = new File(tmpDir, "expected.bai");
+        BAMIndexer.createIndex(SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(output),
+                expectedIndex);
+        final File index = SamFiles.findIndex(output);
+        Assert.assertNotNull(index);
+        Assert.assertEquals(readBytes(index), readBytes(expectedIndex));
+        CloserUtil.close(reader);
+    }
+
+    @Test
+    public void testGatherMergesIndexes() throws IOException {
+        final File output = new File(tmpDir, "gathered.bam");
+        BamFileIoUtils.gatherWithBlockCopying(shards, output, true, false);
+        checkGatheredFile(output);
+    }
+
+    /** Without an index for every input, the gathered file is indexed as it is written. */
+    @Test
+    public void testGatherWithoutInputIndexes() throws IOException {
+        final List<File> inputs = new ArrayList<File>(shards);
+        final File unindexed = new File(tmpDir, "unindexed.bam");
+        IOUtil.copyFile(shards.get(2), unindexed);
+        inputs.set(2, unindexed);
+        final File output = new File(tmpDir, "gathered_unindexed.bam");
+        BamFileIoUtils.gatherWithBlockCopying(inputs, output, true, false);
+        checkGatheredFile(output);
+    }
+
+    private static List<String> query(final SamReader reader, final QueryInterval[] intervals, final boolean contained) {
+        final List<String> records = new ArrayList<String>();
+        final SAMRecordIterator iterator = reader.query(intervals, contained);
+        while (iterator.hasNext()) {
+            records.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+        return records;
+    }
+
+    @DataProvider(name = "regions")
+    public Object[][] regions() {
+        return new Object[][]{
+                {new QueryInterval[]{new QueryInterval(1, 1, 0)}, false},
+                {new QueryInterval[]{new QueryInterval(1, 5000000, 200000000)}, false},
+                {new QueryInterval[]{new QueryInterval(1, 5000000, 200000000)}, true},
+                // Spanning many blocks, from the middle of one reference to the middle of another
+                {new QueryInterval[]{new QueryInterval(1, 100000000, 0), new QueryInterval(2, 1, 0), new QueryInterval(3, 1, 0),
+                        new QueryInterval(4, 1, 0), new QueryInterval(5, 1, 90000000)}, false},
+                {new QueryInterval[]{new QueryInterval(1, 100000000, 0), new QueryInterval(2, 1, 0), new QueryInterval(3, 1, 0),
+                        new QueryInterval(4, 1, 0), new QueryInterval(5, 1, 90000000)}, true},
+                // Unsorted, overlapping and abutting intervals, and intervals close enough to share records
+                {new QueryInterval[]{new QueryInterval(3, 60000000, 70000000), new QueryInterval(3, 1000000, 50000000),
+                        new QueryInterval(3, 50000001, 50001000), new QueryInterval(3, 40000000, 45000000),
+                        new QueryInterval(3, 50001050, 50002000), new QueryInterval(0, 1, 0)}, false},
+                {new QueryInterval[]{new QueryInterval(3, 60000000, 70000000), new QueryInterval(3, 1000000, 50000000),
+                        new QueryInterval(3, 50000001, 50001000), new QueryInterval(3, 40000000, 45000000),
+                        new QueryInterval(3, 50001050, 50002000), new QueryInterval(0, 1, 0)}, true},
+                // Every mapped record
+                {new QueryInterval[]{new QueryInterval(0, 1, 0), new QueryInterval(1, 1, 0), new QueryInterval(2, 1, 0),
+                        new QueryInterval(3, 1, 0), new QueryInterval(4, 1, 0), new QueryInterval(5, 1, 0),
+                        new QueryInterval(6, 1, 0), new QueryInterval(7, 1, 0), new QueryInterval(8, 1, 0),
+                        new QueryInterval(9, 1, 0), new QueryInterval(10, 1, 0), new QueryInterval(11, 1, 0),
+                        new QueryInterval(12, 1, 0), new QueryInterval(13, 1, 0), new QueryInterval(14, 1, 0),
+                        new QueryInterval(15, 1, 0), new QueryInterval(16, 1, 0), new QueryInterval(17, 1, 0),
+                        new QueryInterval(18, 1, 0), new QueryInterval(19, 1, 0), new QueryInterval(20, 1, 0),
+                        new QueryInterval(21, 1, 0), new QueryInterval(22, 1, 0), new QueryInterval(23, 1, 0),
+                        new QueryInterval(24, 1, 0)}, false},
+                // A single position, and a region with no records
+                {new QueryInterval[]{new QueryInterval(1, 470535, 470535)}, false},
+                {new QueryInterval[]{new QueryInterval(1, 1, 1000)}, false},
+                {new QueryInterval[0], false},
+        };
+    }
+
+    /** The extracted file must have the records a query returns, and an index giving the same results. */
+    @Test(dataProvider = "regions")
+    public void testExtractRegions(final QueryInterval[] intervals, final boolean contained) throws IOException {
+        final File output = new File(tmpDir, "extracted.bam");
+        BamFileIoUtils.extractRegionsWithBlockCopying(BAM_FILE, intervals, contained, output, true, true);
+
+        final SamReader original = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        final List<String> records = new ArrayList<String>();
+        final SAMRecordIterator iterator = reader.iterator();
+        while (iterator.hasNext()) {
+            records.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+        final QueryInterval[] optimized = QueryInterval.optimizeIntervals(intervals.clone());
+        Assert.assertEquals(records, query(original, optimized, contained));
+        Assert.assertEquals(reader.getFileHeader(), original.getFileHeader());
+
+        Assert.assertTrue(reader.hasIndex());
+        for (final QueryInterval interval : optimized) {
+            final QueryInterval[] query = {interval};
+            Assert.assertEquals(query(reader, query, contained), query(original, query, contained));
+        }
+        Assert.assertTrue(new File(output.getAbsolutePath() + ".md5").exists());
+        CloserUtil.close(reader);
+        CloserUtil.close(original);
+    }
+
+    /** The blocks between the ends of a region are copied rather than recompressed, even across intervals. */
+    @Test
+    public void testExtractRegionsCopiesBlocks() throws IOException {
+        final SamReader original = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final QueryInterval[] intervals = {new QueryInterval(1, 100000000, 0), new QueryInterval(2, 1, 0),
+                new QueryInterval(3, 1, 0), new QueryInterval(4, 1, 0), new QueryInterval(5, 1, 90000000)};
+        final BAMRegionExtractor extractor = new BAMRegionExtractor(BAM_FILE, original.getFileHeader().getSequenceDictionary());
+        try {
+            extractor.extract(intervals, false, new ByteArrayOutputStream());
+        } finally {
+            extractor.close();
+        }
+        // The region covers about a third of the file
+        Assert.assertTrue(extractor.getBytesCopied() > BAM_FILE.length() / 5);
+        Assert.assertTrue(extractor.getBytesRecompressed() < 2 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE);
+        CloserUtil.close(original);
+    }
+}
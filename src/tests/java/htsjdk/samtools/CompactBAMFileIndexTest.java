@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class CompactBAMFileIndexTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+    private static final File INDEX_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam.bai");
+
+    private static List<Chunk> chunks(final BAMFileSpan span) {
+        return span == null ? Collections.<Chunk>emptyList() : span.getChunks();
+    }
+
+    @Test
+    public void testSameAsDiskBasedIndex() {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+        CloserUtil.close(reader);
+
+        final DiskBasedBAMFileIndex expected = new DiskBasedBAMFileIndex(INDEX_FILE, dictionary);
+        final CompactBAMFileIndex actual = new CompactBAMFileIndex(INDEX_FILE);
+        Assert.assertEquals(actual.getNumberOfReferences(), expected.getNumberOfReferences());
+        Assert.assertEquals(actual.getStartOfLastLinearBin(), expected.getStartOfLastLinearBin());
+        Assert.assertEquals(actual.getNoCoordinateCount(), expected.getNoCoordinateCount());
+
+        final Random random = new Random(17);
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            final int ref = sequence.getSequenceIndex();
+            final BAMIndexMetaData expectedMetaData = expected.getMetaData(ref);
+            final BAMIndexMetaData actualMetaData = actual.getMetaData(ref);
+            Assert.assertEquals(actualMetaData.getAlignedRecordCount(), expectedMetaData.getAlignedRecordCount());
+            Assert.assertEquals(actualMetaData.getUnalignedRecordCount(), expectedMetaData.getUnalignedRecordCount());
+
+            Assert.assertEquals(chunks(actual.getSpanOverlapping(ref, 0, 0)), chunks(expected.getSpanOverlapping(ref, 0, 0)));
+            for (int i = 0; i < 50; ++i) {
+                final int start = 1 + random.nextInt(sequence.getSequenceLength());
+                final int end = start + random.nextInt(i < 25 ? 100000 : 20000000);
+                Assert.assertEquals(chunks(actual.getSpanOverlapping(ref, start, end)), chunks(expected.getSpanOverlapping(ref, start, end)),
+                        sequence.getSequenceName() + ":" + start + "-" + end);
+            }
+        }
+        Assert.assertNull(actual.getSpanOverlapping(dictionary.size(), 1, 100));
+        expected.close();
+        actual.close();
+    }
+
+    @Test
+    public void testSortChunks() {
+        final Random random = new Random(5);
+        for (final int n : new int[]{0, 1, 2, 3, 17, 64, 1000, 40000}) {
+            final long[] chunks = new long[2 * n];
+            final List<Chunk> expected = new ArrayList<Chunk>();
+            for (int i = 0; i < n; ++i) {
+                // Few distinct starts, so that there are many ties broken by the end
+                chunks[2 * i] = random.nextInt(Math.max(1, n / 4)) * 65536L;
+                chunks[2 * i + 1] = chunks[2 * i] + random.nextInt(1000000);
+                expected.add(new Chunk(chunks[2 * i], chunks[2 * i + 1]));
+            }
+            Collections.sort(expected);
+            CompactBAMFileIndex.sortChunks(chunks);
+            final List<Chunk> actual = new ArrayList<Chunk>();
+            for (int i = 0; i < n; ++i) {
+                actual.add(new Chunk(chunks[2 * i], chunks[2 * i + 1]));
+            }
+            Assert.assertEquals(actual, expected);
+        }
+    }
+
+    private List<String> query(final SamReaderFactory factory) {
+        final SamReader reader = factory.open(BAM_FILE);
+        final List<String> records = new ArrayList<String>();
+        final SAMRecordIterator iterator = reader.query(new QueryInterval[]{
+                new QueryInterval(1, 1000000, 5000000), new QueryInterval(2, 100000, 0), new QueryInterval(23, 1, 1000)}, false);
+        while (iterator.hasNext()) {
+            records.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+        final SAMRecordIterator unmapped = reader.queryUnmapped();
+        while (unmapped.hasNext()) {
+            records.add(unmapped.next().getSAMString());
+        }
+        unmapped.close();
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    @Test
+    public void testQueryWithCompactIndex() {
+        final SamReaderFactory compact = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.COMPACT_FILE_BASED_INDEXES);
+        final List<String> records = query(compact);
+        Assert.assertFalse(records.isEmpty());
+        Assert.assertEquals(records, query(SamReaderFactory.makeDefault()));
+
+        final SamReader reader = compact.open(BAM_FILE);
+        Assert.assertTrue(reader.indexing().getIndex() instanceof CompactBAMFileIndex);
+        Assert.assertFalse(reader.indexing().hasBrowseableIndex());
+        CloserUtil.close(reader);
+    }
+}
@@ -23,14 +23,19 @@
  */
 package htsjdk.samtools;
 
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.SequenceUtil;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -268,4 +273,159 @@ public class MergingSamRecordIteratorTest {
         builder1.getSamReader().close();
         builder2.getSamReader().close();
     }
+
+    /**
+     * Makes coordinate sorted inputs whose read groups all have the same ID but different samples, so that the
+     * read group IDs collide.  Each read's name starts with the index of its input.
+     */
+    private List<SAMRecordSetBuilder> makeCollidingInputs(final int numInputs) {
+        final Random random = new Random(numInputs);
+        final List<SAMRecordSetBuilder> builders = new ArrayList<SAMRecordSetBuilder>();
+        for (int i = 0; i < numInputs; ++i) {
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+            builder.getHeader().getReadGroups().get(0).setSample("sample" + i);
+            final int numReads = random.nextInt(50);
+            for (int j = 0; j < numReads; ++j) {
+                builder.addFrag(i + "_" + j, random.nextInt(4), 1 + random.nextInt(500), random.nextBoolean());
+            }
+            builder.addUnmappedFragment(i + "_unmapped");
+            builders.add(builder);
+        }
+        return builders;
+    }
+
+    /** Checks that the records are in coordinate order and that their read groups were translated correctly. */
+    private List<String> checkMergedRecords(final MergingSamRecordIterator iterator, final int expectedCount) {
+        final SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+        final List<String> records = new ArrayList<String>();
+        SAMRecord previous = null;
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            if (previous != null) {
+                Assert.assertTrue(comparator.compare(previous, rec) < 0, previous.getSAMString() + rec.getSAMString());
+            }
+            final String input = rec.getReadName().substring(0, rec.getReadName().indexOf('_'));
+            Assert.assertEquals(iterator.getMergedHeader().getReadGroup(rec.getReadGroup().getId()).getSample(), "sample" + input);
+            records.add(rec.getSAMString());
+            previous = rec;
+        }
+        iterator.close();
+        Assert.assertEquals(records.size(), expectedCount);
+        return records;
+    }
+
+    @DataProvider(name = "readAheadRecords")
+    public Object[][] readAheadRecords() {
+        return new Object[][]{{1}, {7}, {1000}};
+    }
+
+    @Test(dataProvider = "readAheadRecords")
+    public void testManyWayMerge(final int readAheadRecords) throws Exception {
+        final List<SAMRecordSetBuilder> builders = makeCollidingInputs(37);
+        final List<SamReader> readers = new ArrayList<SamReader>();
+        final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>();
+        int count = 0;
+        for (final SAMRecordSetBuilder builder : builders) {
+            final SamReader reader = builder.getSamReader();
+            readers.add(reader);
+            headers.add(reader.getFileHeader());
+            count += builder.size();
+        }
+        final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(SAMFileHeader.SortOrder.coordinate, headers, false);
+        Assert.assertTrue(headerMerger.hasReadGroupCollisions());
+        final MergingSamRecordIterator iterator = new MergingSamRecordIterator(headerMerger, readers, false);
+        iterator.setReadAheadRecords(readAheadRecords);
+        checkMergedRecords(iterator, count);
+        CloserUtil.close(readers);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSetReadAheadAfterStarting() throws Exception {
+        final SamReader reader = makeCollidingInputs(1).get(0).getSamReader();
+        final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(SAMFileHeader.SortOrder.coordinate,
+                Arrays.asList(reader.getFileHeader()), false);
+        final MergingSamRecordIterator iterator = new MergingSamRecordIterator(headerMerger, Arrays.asList(reader), false);
+        try {
+            iterator.hasNext();
+            iterator.setReadAheadRecords(10);
+        } finally {
+            iterator.close();
+            reader.close();
+        }
+    }
+
+    /** Merging in stages, with few files open at a time, must give the same result as merging all files at once. */
+    @Test
+    public void testMergeFilesWithFewOpenFiles() throws Exception {
+        final File tmpDir = IOUtil.createTempDir("MergingSamRecordIteratorTest", ".tmp");
+        final List<SAMRecordSetBuilder> builders = makeCollidingInputs(23);
+        final List<File> inputs = new ArrayList<File>();
+        int count = 0;
+        for (int i = 0; i < builders.size(); ++i) {
+            final File input = new File(tmpDir, "input" + i + ".bam");
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builders.get(i).getHeader(), true, input);
+            for (final SAMRecord rec : builders.get(i).getRecords()) {
+                writer.addAlignment(rec);
+            }
+            writer.close();
+            inputs.add(input);
+            count += builders.get(i).size();
+        }
+        try {
+            final SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
+            final List<String> expected = checkMergedRecords(MergingSamRecordIterator.mergeFiles(readerFactory, inputs,
+                    SAMFileHeader.SortOrder.coordinate, false, inputs.size(), 1, tmpDir), count);
+            for (final int maxOpenFiles : new int[]{2, 4, 22}) {
+                final MergingSamRecordIterator iterator = MergingSamRecordIterator.mergeFiles(readerFactory, inputs,
+                        SAMFileHeader.SortOrder.coordinate, false, maxOpenFiles, 16, tmpDir);
+                Assert.assertEquals(checkMergedRecords(iterator, count), expected);
+                // Temporary files are deleted when the iterator is closed
+                Assert.assertEquals(tmpDir.listFiles().length, inputs.size());
+            }
+        } finally {
+            IOUtil.deleteFiles(tmpDir.listFiles());
+            IOUtil.deleteFiles(tmpDir);
+        }
+    }
+
+    /** Records equal in sort order must come out in the order of their files, however many files may be open. */
+    @Test
+    public void testMergeFilesKeepsTiesInInputOrder() throws Exception {
+        final File tmpDir = IOUtil.createTempDir("MergingSamRecordIteratorTest", ".tmp");
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < 11; ++i) {
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+            for (int start = 1; start <= 3; ++start) {
+                builder.addFrag("tied", 0, start * 100, false, false, "36M", null, 30).setAttribute("XI", i);
+            }
+            final File input = new File(tmpDir, "input" + i + ".bam");
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, input);
+            for (final SAMRecord rec : builder.getRecords()) {
+                writer.addAlignment(rec);
+            }
+            writer.close();
+            inputs.add(input);
+        }
+        try {
+            final SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
+            for (final int maxOpenFiles : new int[]{2, 3, 4, 10, 11}) {
+                final MergingSamRecordIterator iterator = MergingSamRecordIterator.mergeFiles(readerFactory, inputs,
+                        SAMFileHeader.SortOrder.coordinate, false, maxOpenFiles, 1, tmpDir);
+                final List<Integer> order = new ArrayList<Integer>();
+                while (iterator.hasNext()) {
+                    final SAMRecord rec = iterator.next();
+                    Assert.assertEquals(rec.getAlignmentStart(), 100 * (1 + order.size() / inputs.size()));
+                    order.add(rec.getIntegerAttribute("XI"));
+                }
+                iterator.close();
+                Assert.assertEquals(order.size(), 3 * inputs.size());
+                for (int i = 0; i < order.size(); ++i) {
+                    Assert.assertEquals(order.get(i).intValue(), i % inputs.size(), "maxOpenFiles " + maxOpenFiles);
+                }
+            }
+        } finally {
+            IOUtil.deleteFiles(tmpDir.listFiles());
+            IOUtil.deleteFiles(tmpDir);
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class ParallelSamTraversalTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private List<String> readAll() {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final List<String> records = new ArrayList<String>();
+        for (final SAMRecord record : reader) {
+            records.add(record.getSAMString());
+        }
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    private ParallelSamTraversal makeTraversal(final int regionSize, final int numThreads) {
+        final ParallelSamTraversal traversal = new ParallelSamTraversal(SamReaderFactory.makeDefault(), SamInputResource.of(BAM_FILE), numThreads);
+        traversal.setRegionSize(regionSize);
+        return traversal;
+    }
+
+    @DataProvider(name = "traversals")
+    public Object[][] traversals() {
+        return new Object[][]{
+                {0, 1},
+                {0, 4},
+                {10000000, 4},
+                {1000000, 3},
+        };
+    }
+
+    @Test(dataProvider = "traversals")
+    public void testMap(final int regionSize, final int numThreads) {
+        final List<List<String>> results = makeTraversal(regionSize, numThreads).map(new ParallelSamTraversal.WorkUnitMapper<List<String>>() {
+            @Override
+            public List<String> map(final ParallelSamTraversal.WorkUnit workUnit, final Iterator<SAMRecord> records) {
+                final List<String> strings = new ArrayList<String>();
+                while (records.hasNext()) {
+                    strings.add(records.next().getSAMString());
+                }
+                return strings;
+            }
+        });
+        // Work units are in coordinate order, so their concatenation is the whole file
+        final List<String> concatenated = new ArrayList<String>();
+        for (final List<String> result : results) {
+            concatenated.addAll(result);
+        }
+        Assert.assertEquals(concatenated, readAll());
+    }
+
+    @Test(dataProvider = "traversals")
+    public void testTraverse(final int regionSize, final int numThreads) {
+        final List<String> records = Collections.synchronizedList(new ArrayList<String>());
+        makeTraversal(regionSize, numThreads).traverse(new ParallelSamTraversal.RecordConsumer() {
+            @Override
+            public void consume(final SAMRecord record) {
+                records.add(record.getSAMString());
+            }
+        });
+        final List<String> expected = readAll();
+        Collections.sort(expected);
+        Collections.sort(records);
+        Assert.assertEquals(records, expected);
+    }
+
+    @Test
+    public void testMapReduce() {
+        final int unmapped = makeTraversal(0, 4).mapReduce(new ParallelSamTraversal.WorkUnitMapper<Integer>() {
+            @Override
+            public Integer map(final ParallelSamTraversal.WorkUnit workUnit, final Iterator<SAMRecord> records) {
+                int count = 0;
+                while (records.hasNext()) {
+                    if (records.next().getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) ++count;
+                }
+                return count;
+            }
+        }, 0, new ParallelSamTraversal.Reducer<Integer, Integer>() {
+            @Override
+            public Integer reduce(final Integer accumulated, final Integer workUnitResult) {
+                return accumulated + workUnitResult;
+            }
+        });
+        Assert.assertEquals(unmapped, 279);
+    }
+
+    @Test
+    public void testWorkUnits() {
+        final List<ParallelSamTraversal.WorkUnit> wholeReferences = makeTraversal(0, 1).getWorkUnits();
+        final List<ParallelSamTraversal.WorkUnit> regions = makeTraversal(1000000, 1).getWorkUnits();
+        Assert.assertTrue(regions.size() > wholeReferences.size());
+        Assert.assertTrue(wholeReferences.get(wholeReferences.size() - 1).isUnmapped());
+        Assert.assertTrue(regions.get(regions.size() - 1).isUnmapped());
+    }
+
+    @Test(expectedExceptions = RuntimeException.class)
+    public void testMapperException() {
+        makeTraversal(0, 2).map(new ParallelSamTraversal.WorkUnitMapper<Object>() {
+            @Override
+            public Object map(final ParallelSamTraversal.WorkUnit workUnit, final Iterator<SAMRecord> records) {
+                throw new IllegalStateException("failed on " + workUnit);
+            }
+        });
+    }
+}
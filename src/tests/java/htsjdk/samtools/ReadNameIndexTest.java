@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ReadNameIndexTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private final Map<String, List<String>> recordsByName = new HashMap<String, List<String>>();
+
+    @BeforeClass
+    public void readRecords() {
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        for (final SAMRecord rec : reader) {
+            List<String> records = recordsByName.get(rec.getReadName());
+            if (records == null) {
+                records = new ArrayList<String>();
+                recordsByName.put(rec.getReadName(), records);
+            }
+            records.add(rec.getSAMString());
+        }
+        CloserUtil.close(reader);
+    }
+
+    private void checkQueries(final File bamFile, final File indexFile) {
+        final ReadNameIndex index = new ReadNameIndex(indexFile);
+        Assert.assertEquals(index.getNumEntries(), 10000);
+        final SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+        int checked = 0;
+        for (final Map.Entry<String, List<String>> entry : recordsByName.entrySet()) {
+            // Every name in a small file, and every tenth name thereafter
+            if (checked++ > 100 && checked % 10 != 0) continue;
+            final List<String> found = new ArrayList<String>();
+            final SAMRecordIterator iterator = index.query(reader, entry.getKey());
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                Assert.assertEquals(rec.getReadName(), entry.getKey());
+                found.add(rec.getSAMString());
+            }
+            iterator.close();
+            // The file may have been re-sorted, which can reorder the records of a name
+            final List<String> expected = new ArrayList<String>(entry.getValue());
+            Collections.sort(expected);
+            Collections.sort(found);
+            Assert.assertEquals(found, expected, entry.getKey());
+        }
+        Assert.assertEquals(index.getFilePointers("no such read").length, 0);
+        Assert.assertFalse(index.query(reader, "no such read").hasNext());
+        CloserUtil.close(reader);
+        index.close();
+    }
+
+    @Test
+    public void testCreateIndexFromFile() throws Exception {
+        final File indexFile = File.createTempFile("ReadNameIndexTest.", ReadNameIndex.READ_NAME_INDEX_EXTENSION);
+        indexFile.deleteOnExit();
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(BAM_FILE);
+        ReadNameIndexer.createIndex(reader, indexFile);
+        CloserUtil.close(reader);
+        checkQueries(BAM_FILE, indexFile);
+    }
+
+    @Test
+    public void testCreateIndexWithSpilling() throws Exception {
+        final File indexFile = File.createTempFile("ReadNameIndexTest.", ReadNameIndex.READ_NAME_INDEX_EXTENSION);
+        indexFile.deleteOnExit();
+        final ReadNameIndexer indexer = new ReadNameIndexer(indexFile, 1000, null);
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(BAM_FILE);
+        for (final SAMRecord rec : reader) {
+            indexer.processAlignment(rec);
+        }
+        CloserUtil.close(reader);
+        indexer.finish();
+        checkQueries(BAM_FILE, indexFile);
+    }
+
+    @Test
+    public void testCreateIndexWhileWriting() throws Exception {
+        final File bamFile = File.createTempFile("ReadNameIndexTest.", BamFileIoUtils.BAM_FILE_EXTENSION);
+        bamFile.deleteOnExit();
+        final File indexFile = ReadNameIndex.getDefaultIndexFile(bamFile);
+        indexFile.deleteOnExit();
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        // Write in queryname order to check that the index does not depend on coordinate sorting
+        final SAMFileHeader header = reader.getFileHeader().clone();
+        header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateReadNameIndex(true).makeBAMWriter(header, false, bamFile);
+        for (final SAMRecord rec : reader) {
+            writer.addAlignment(rec);
+        }
+        writer.close();
+        CloserUtil.close(reader);
+
+        Assert.assertTrue(indexFile.exists());
+        checkQueries(bamFile, indexFile);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.SortingCollection;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The sort keys of the coordinate and queryname comparators must be consistent with compare(), so that sorting by
+ * key gives exactly the same order as sorting with the comparator alone.
+ */
+public class SAMRecordSortKeyTest {
+    private final List<SAMRecord> records = new ArrayList<SAMRecord>();
+    private File tmpDir;
+
+    @BeforeClass
+    public void readRecords() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam"));
+        for (final SAMRecord rec : reader) {
+            records.add(rec);
+        }
+        CloserUtil.close(reader);
+        // Shuffle so that the sort has some work to do
+        Collections.shuffle(records, new Random(1));
+        tmpDir = File.createTempFile("SAMRecordSortKeyTest.", ".tmp");
+        tmpDir.delete();
+        tmpDir.mkdir();
+        tmpDir.deleteOnExit();
+    }
+
+    @DataProvider(name = "comparators")
+    public Object[][] comparators() {
+        return new Object[][]{{new SAMRecordCoordinateComparator()}, {new SAMRecordQueryNameComparator()}};
+    }
+
+    private static int signum(final long value) {
+        return value < 0 ? -1 : (value > 0 ? 1 : 0);
+    }
+
+    @Test(dataProvider = "comparators")
+    public void testKeysConsistentWithCompare(final SortingCollection.KeyedComparator<SAMRecord> comparator) {
+        for (int i = 0; i + 1 < records.size(); ++i) {
+            final SAMRecord a = records.get(i);
+            final SAMRecord b = records.get(i + 1);
+            final long keyA = comparator.getSortKey(a);
+            final long keyB = comparator.getSortKey(b);
+            Assert.assertTrue(keyA >= 0 && keyB >= 0);
+            if (keyA != keyB) {
+                Assert.assertEquals(signum(comparator.compare(a, b)), signum(keyA - keyB), a.getSAMString() + b.getSAMString());
+            }
+        }
+    }
+
+    @Test(dataProvider = "comparators")
+    public void testSortingCollectionOrder(final SortingCollection.KeyedComparator<SAMRecord> comparator) {
+        final SAMRecord[] expected = records.toArray(new SAMRecord[records.size()]);
+        Arrays.sort(expected, comparator);
+        for (final int maxRecordsInRam : new int[]{records.size(), 1000}) {
+            final SortingCollection<SAMRecord> sorter = SortingCollection.newInstance(SAMRecord.class,
+                    new BAMRecordCodec(records.get(0).getHeader()), comparator, maxRecordsInRam, tmpDir);
+            for (final SAMRecord rec : records) {
+                sorter.add(rec);
+            }
+            final Iterator<SAMRecord> iterator = sorter.iterator();
+            for (final SAMRecord rec : expected) {
+                Assert.assertEquals(iterator.next().getSAMString(), rec.getSAMString());
+            }
+            Assert.assertFalse(iterator.hasNext());
+            sorter.cleanup();
+        }
+    }
+
+    @Test
+    public void testCoordinateKeyFields() {
+        final SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.unsorted);
+        final SAMRecord forward = builder.addFrag("a", 3, 1000, false, false, null, null, -1);
+        final SAMRecord reverse = builder.addFrag("b", 3, 1000, true, false, null, null, -1);
+        final SAMRecord later = builder.addFrag("c", 3, 1001, false, false, null, null, -1);
+        final SAMRecord nextReference = builder.addFrag("d", 4, 1, false, false, null, null, -1);
+        builder.addUnmappedFragment("e");
+        SAMRecord unmapped = null;
+        for (final SAMRecord rec : builder.getRecords()) {
+            if (rec.getReadName().equals("e")) unmapped = rec;
+        }
+        Assert.assertTrue(comparator.getSortKey(forward) < comparator.getSortKey(reverse));
+        Assert.assertTrue(comparator.getSortKey(reverse) < comparator.getSortKey(later));
+        Assert.assertTrue(comparator.getSortKey(later) < comparator.getSortKey(nextReference));
+        Assert.assertTrue(comparator.getSortKey(nextReference) < comparator.getSortKey(unmapped));
+    }
+}
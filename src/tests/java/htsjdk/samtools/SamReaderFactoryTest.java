@@ -14,10 +14,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -254,6 +257,242 @@ public class SamReaderFactoryTest {
       }
     }
     
+    private List<String> readAll(final SAMRecordIterator records) {
+        final List<String> result = new ArrayList<String>();
+        while (records.hasNext()) {
+            final SAMRecord record = records.next();
+            result.add(record.getSAMString() + record.getFileSource().getFilePointer());
+        }
+        records.close();
+        return result;
+    }
+
+    /**
+     * Decoding records in the background must not change the records returned by iteration or queries, or their order.
+     */
+    @Test(dataProvider = "decoderThreadsTestCases")
+    public void decoderThreadsTest(final int decoderThreads, final boolean eagerDecode) throws IOException {
+        final SamReaderFactory serialFactory = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).validationStringency(ValidationStringency.STRICT)
+                .decoderThreads(0);
+        final SamReaderFactory parallelFactory = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).validationStringency(ValidationStringency.STRICT)
+                .decoderThreads(decoderThreads);
+        if (eagerDecode) {
+            parallelFactory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
+        }
+        Assert.assertEquals(parallelFactory.decoderThreads(), decoderThreads);
+
+        final SamReader serial = serialFactory.open(localBam);
+        final SamReader parallel = parallelFactory.open(localBam);
+        final List<String> expected = readAll(serial.iterator());
+        Assert.assertTrue(expected.size() > 0);
+        Assert.assertEquals(readAll(parallel.iterator()), expected);
+
+        for (final String contig : new String[]{"chrM", "chr1", "chr2"}) {
+            final List<String> expectedQuery = readAll(serial.queryOverlapping(contig, 1, 10000000));
+            Assert.assertEquals(readAll(parallel.queryOverlapping(contig, 1, 10000000)), expectedQuery);
+        }
+
+        // Closing an iterator part way through must leave the reader usable
+        final SAMRecordIterator partial = parallel.iterator();
+        partial.next();
+        partial.close();
+        Assert.assertEquals(readAll(parallel.queryUnmapped()), readAll(serial.queryUnmapped()));
+        serial.close();
+        parallel.close();
+    }
+
+    @DataProvider(name = "decoderThreadsTestCases")
+    public Object[][] decoderThreadsTestCases() {
+        return new Object[][]{
+                {1, false},
+                {4, false},
+                {4, true},
+        };
+    }
+
+    @Test
+    public void shareRecordBuffersTest() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(localBam);
+        final List<String> expected = new ArrayList<String>();
+        for (final SAMRecord record : reader) {
+            expected.add(record.getSAMString());
+        }
+        reader.close();
+
+        final File output = File.createTempFile("shareRecordBuffersTest.", ".bam");
+        output.deleteOnExit();
+        final SamReader sharingReader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.SHARE_RECORD_BUFFERS).open(localBam);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(sharingReader.getFileHeader(), true, output);
+        final List<SAMRecord> detached = new ArrayList<SAMRecord>();
+        final List<String> actual = new ArrayList<String>();
+        SAMRecord retained = null;
+        for (final SAMRecord record : sharingReader) {
+            Assert.assertTrue(((BAMRecord) record).isSharedBufferView());
+            if (retained == null) {
+                // Look at a clone, which has its own copy, so that this record is not decoded
+                retained = record;
+                actual.add(((SAMRecord) record.clone()).getSAMString());
+                writer.addAlignment(record);
+                continue;
+            }
+            if (actual.size() % 1000 == 1) {
+                ((BAMRecord) record).detachBinaryData();
+                Assert.assertFalse(((BAMRecord) record).isSharedBufferView());
+                detached.add(record);
+            }
+            actual.add(record.getSAMString());
+            writer.addAlignment(record);
+        }
+        sharingReader.close();
+        writer.close();
+        Assert.assertEquals(actual, expected);
+
+        // Detached records remain usable, and so do records retained without being detached, which are given copies
+        // of their data before their buffers are reused
+        for (int i = 0; i < detached.size(); ++i) {
+            Assert.assertEquals(detached.get(i).getSAMString(), expected.get(i * 1000 + 1));
+        }
+        Assert.assertTrue(expected.size() > 2 * BAMFileReader.SHARED_RECORD_WINDOW);
+        Assert.assertFalse(((BAMRecord) retained).isSharedBufferView());
+        Assert.assertEquals(retained.getSAMString(), expected.get(0));
+
+        // Records written from shared buffers must be unchanged
+        final SamReader outputReader = SamReaderFactory.makeDefault().open(output);
+        final List<String> written = new ArrayList<String>();
+        for (final SAMRecord record : outputReader) {
+            written.add(record.getSAMString());
+        }
+        outputReader.close();
+        Assert.assertEquals(written, expected);
+    }
+
+    @Test
+    public void iteratorReusingRecordsTest() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(localBam);
+        final List<String> expected = new ArrayList<String>();
+        for (final SAMRecord record : reader) {
+            expected.add(record.getSAMString());
+        }
+        reader.close();
+
+        final File output = File.createTempFile("iteratorReusingRecordsTest.", ".bam");
+        output.deleteOnExit();
+        final SamReader reusingReader = SamReaderFactory.makeDefault().open(localBam);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reusingReader.getFileHeader(), true, output);
+        final SAMRecordIterator iterator = SamRecordAccess.iteratorReusingRecords(reusingReader)
+                .assertSorted(SAMFileHeader.SortOrder.coordinate);
+        final Set<SAMRecord> distinctRecords = Collections.newSetFromMap(new IdentityHashMap<SAMRecord, Boolean>());
+        final List<SAMRecord> clones = new ArrayList<SAMRecord>();
+        final List<String> actual = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            final SAMRecord record = iterator.next();
+            distinctRecords.add(record);
+            // Write before decoding anything, so that the reused binary data is written as is
+            writer.addAlignment(record);
+            if (actual.size() % 1000 == 0) {
+                record.getCigar();
+                clones.add((SAMRecord) record.clone());
+            }
+            actual.add(record.getSAMString());
+        }
+        iterator.close();
+        reusingReader.close();
+        writer.close();
+        Assert.assertEquals(actual, expected);
+        Assert.assertTrue(distinctRecords.size() <= 3);
+
+        // Clones are unaffected by the record they were cloned from being reused
+        for (int i = 0; i < clones.size(); ++i) {
+            Assert.assertEquals(clones.get(i).getSAMString(), expected.get(i * 1000));
+        }
+
+        final SamReader outputReader = SamReaderFactory.makeDefault().open(output);
+        final List<String> written = new ArrayList<String>();
+        for (final SAMRecord record : outputReader) {
+            written.add(record.getSAMString());
+        }
+        outputReader.close();
+        Assert.assertEquals(written, expected);
+    }
+
+    /** Returns the number of bytes allocated by the current thread while scanning the records of the BAM file. */
+    private static long bytesAllocatedByScan(final File bam, final boolean reuseRecords) throws IOException {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(bam);
+        final SAMRecordIterator iterator = reuseRecords ? SamRecordAccess.iteratorReusingRecords(reader) : reader.iterator();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        long total = 0;
+        while (iterator.hasNext()) {
+            final SAMRecord record = iterator.next();
+            total += record.getAlignmentStart() + record.getFlags() + record.getMappingQuality();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        iterator.close();
+        reader.close();
+        Assert.assertTrue(total != 0);
+        return allocated;
+    }
+
+    @Test
+    public void iteratorReusingRecordsAllocationTest() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) ||
+                !((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemoryEnabled()) {
+            LOG.info("Skipping allocation test: allocated memory is not measured by this JVM.");
+            return;
+        }
+        int records = 0;
+        final SamReader reader = SamReaderFactory.makeDefault().open(localBam);
+        for (final SAMRecord ignored : reader) {
+            ++records;
+        }
+        reader.close();
+        // Warm up both scans before measuring them
+        for (int i = 0; i < 3; ++i) {
+            bytesAllocatedByScan(localBam, true);
+            bytesAllocatedByScan(localBam, false);
+        }
+        // What remains is allocated per block rather than per record
+        final long reusing = bytesAllocatedByScan(localBam, true);
+        Assert.assertTrue(reusing < records * 32L, reusing + " bytes allocated reusing " + records + " records");
+        final long notReusing = bytesAllocatedByScan(localBam, false);
+        Assert.assertTrue(reusing * 10 < notReusing, reusing + " bytes allocated reusing records, " + notReusing + " not");
+    }
+
+    @Test
+    public void shareRecordBuffersRetainAllTest() throws Exception {
+        final SamReader reader = SamReaderFactory.makeDefault().open(localBam);
+        final List<SAMRecord> expected = new ArrayList<SAMRecord>();
+        for (final SAMRecord record : reader) {
+            expected.add(record);
+        }
+        reader.close();
+
+        // Collecting every record, as a sort would, must not lose any of them when their buffers are reused
+        final SamReader sharingReader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.SHARE_RECORD_BUFFERS).open(localBam);
+        final List<SAMRecord> actual = new ArrayList<SAMRecord>();
+        for (final SAMRecord record : sharingReader) {
+            actual.add(record);
+        }
+        sharingReader.close();
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); ++i) {
+            final BAMRecord record = (BAMRecord) actual.get(i);
+            if (i % 2 == 0) {
+                // A modified record copies only its own data
+                record.setAttribute("XX", i);
+                expected.get(i).setAttribute("XX", i);
+            } else {
+                Assert.assertEquals(record.getVariableBinaryRepresentation(), expected.get(i).getVariableBinaryRepresentation());
+            }
+            Assert.assertFalse(record.isSharedBufferView());
+            Assert.assertEquals(record.getSAMString(), expected.get(i).getSAMString());
+        }
+    }
+
     @Test
     public void inputResourceFromStringTest() throws IOException {
       Assert.assertEquals(SamInputResource.of("http://test.url").data().type(),
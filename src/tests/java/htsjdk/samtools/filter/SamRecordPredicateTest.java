@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.filter;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRawRecord;
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.ReadNameIndexer;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.SamRecordAccess;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SamRecordPredicateTest {
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private File tmpDir;
+    private File bam;
+    private File sam;
+
+    /** Writes a copy of BAM_FILE with a mix of read groups, mapping qualities and duplicates, and other tags before RG. */
+    @BeforeClass
+    public void writeFiles() {
+        tmpDir = IOUtil.createTempDir("SamRecordPredicateTest", ".tmp");
+        bam = new File(tmpDir, "predicates.bam");
+        sam = new File(tmpDir, "predicates.sam");
+        final SamReader reader = SamReaderFactory.makeDefault().open(BAM_FILE);
+        final SAMFileHeader header = reader.getFileHeader().clone();
+        for (int i = 0; i < 3; ++i) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("rg" + i);
+            readGroup.setSample("sample");
+            header.addReadGroup(readGroup);
+        }
+        final SAMFileWriterFactory factory = new SAMFileWriterFactory().setCreateIndex(true);
+        final SAMFileWriter bamWriter = factory.makeBAMWriter(header, true, bam);
+        final SAMFileWriter samWriter = factory.makeSAMWriter(header, true, sam);
+        int count = 0;
+        for (final SAMRecord rec : reader) {
+            rec.setHeader(header);
+            rec.setAttribute("RG", null);
+            rec.setAttribute("XB", new short[1 + count % 4]);
+            rec.setAttribute("XZ", "rg" + (count % 3));
+            if (count % 5 != 0) {
+                rec.setAttribute("RG", "rg" + (count % 3));
+            }
+            rec.setAttribute("XI", count);
+            rec.setDuplicateReadFlag(count % 7 == 0);
+            rec.setMappingQuality(rec.getReadUnmappedFlag() ? 0 : count % 61);
+            bamWriter.addAlignment(rec);
+            samWriter.addAlignment(rec);
+            ++count;
+        }
+        bamWriter.close();
+        samWriter.close();
+        CloserUtil.close(reader);
+    }
+
+    @AfterClass
+    public void deleteFiles() {
+        IOUtil.deleteFiles(tmpDir.listFiles());
+        IOUtil.deleteFiles(tmpDir);
+    }
+
+    @DataProvider(name = "predicates")
+    public Object[][] predicates() {
+        final QueryInterval[] intervals = {new QueryInterval(3, 50000000, 100000000), new QueryInterval(1, 1, 50000000),
+                new QueryInterval(1, 40000000, 60000000), new QueryInterval(10, 1, 0)};
+        return new Object[][]{
+                {SamRecordPredicate.flagsUnset(0x400)},
+                {SamRecordPredicate.flagsSet(0x1 | 0x40)},
+                {SamRecordPredicate.flagsUnset(0x4 | 0x100 | 0x400).and(SamRecordPredicate.minMappingQuality(20))},
+                {SamRecordPredicate.minMappingQuality(60)},
+                {SamRecordPredicate.overlapping(intervals)},
+                {SamRecordPredicate.containedIn(intervals)},
+                {SamRecordPredicate.overlapping(new QueryInterval(0, 1, 0)).not()},
+                {SamRecordPredicate.readGroup("rg1", "rg2")},
+                {SamRecordPredicate.readGroup("rg").or(SamRecordPredicate.readGroup("rg0").not())},
+                {SamRecordPredicate.readGroup("rg0").and(SamRecordPredicate.flagsSet(0x80)).or(SamRecordPredicate.minMappingQuality(58))},
+        };
+    }
+
+    /** Counts the BAMRecords that are made, to show that rejected records are never made into SAMRecords. */
+    private static class CountingRecordFactory extends DefaultSAMRecordFactory {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public BAMRecord createBAMRecord(final SAMFileHeader header, final int referenceSequenceIndex, final int alignmentStart,
+                                         final short readNameLength, final short mappingQuality, final int indexingBin,
+                                         final int cigarLen, final int flags, final int readLen, final int mateReferenceSequenceIndex,
+                                         final int mateAlignmentStart, final int insertSize, final byte[] variableLengthBlock) {
+            count.incrementAndGet();
+            return super.createBAMRecord(header, referenceSequenceIndex, alignmentStart, readNameLength, mappingQuality,
+                    indexingBin, cigarLen, flags, readLen, mateReferenceSequenceIndex, mateAlignmentStart, insertSize,
+                    variableLengthBlock);
+        }
+    }
+
+    private static List<String> toStrings(final CloseableIterator<SAMRecord> iterator) {
+        final List<String> records = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            records.add(rec.getSAMString() + (rec.getFileSource() == null ? "" : rec.getFileSource().getFilePointer().toString()));
+        }
+        iterator.close();
+        return records;
+    }
+
+    /** The records of the file that the predicate keeps, filtered after being read. */
+    private static List<String> expected(final File file, final SamRecordPredicate predicate, final QueryInterval[] query) {
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(file);
+        final List<String> records = toStrings(new FilteringIterator(
+                query == null ? reader.iterator() : reader.query(query, false), predicate));
+        CloserUtil.close(reader);
+        return records;
+    }
+
+    @Test(dataProvider = "predicates")
+    public void testPushdown(final SamRecordPredicate predicate) {
+        final List<String> expected = expected(bam, predicate, null);
+        Assert.assertFalse(expected.isEmpty());
+        for (final int decoderThreads : new int[]{0, 2}) {
+            final CountingRecordFactory factory = new CountingRecordFactory();
+            final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                    .samRecordFactory(factory).decoderThreads(decoderThreads).recordPredicate(predicate).open(bam);
+            Assert.assertEquals(toStrings(reader.iterator()), expected);
+            Assert.assertEquals(factory.count.get(), expected.size());
+            CloserUtil.close(reader);
+        }
+    }
+
+    @Test(dataProvider = "predicates")
+    public void testPushdownWithQuery(final SamRecordPredicate predicate) {
+        final QueryInterval[] query = {new QueryInterval(1, 1, 100000000), new QueryInterval(3, 1, 0)};
+        final List<String> expected = expected(bam, predicate, query);
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .recordPredicate(predicate).open(bam);
+        Assert.assertEquals(toStrings(reader.query(query, false)), expected);
+        CloserUtil.close(reader);
+    }
+
+    @Test(dataProvider = "predicates")
+    public void testPushdownToRawRecords(final SamRecordPredicate predicate) {
+        final List<String> expected = expected(bam, predicate, null);
+        for (final File file : new File[]{bam, sam}) {
+            final SamReader reader = SamReaderFactory.makeDefault().recordPredicate(predicate).open(file);
+            final CloseableIterator<BAMRawRecord> iterator = SamRecordAccess.rawIterator(reader);
+            final List<String> records = new ArrayList<String>();
+            while (iterator.hasNext()) {
+                final BAMRawRecord raw = iterator.next();
+                Assert.assertTrue(predicate.matches(raw));
+                records.add(raw.toSAMRecord(reader.getFileHeader()).getSAMString());
+            }
+            iterator.close();
+            Assert.assertEquals(records.size(), expected.size());
+            for (int i = 0; i < records.size(); ++i) {
+                Assert.assertTrue(expected.get(i).startsWith(records.get(i)));
+            }
+            CloserUtil.close(reader);
+        }
+    }
+
+    /** Readers of other formats filter the SAMRecords they make. */
+    @Test(dataProvider = "predicates")
+    public void testSamFile(final SamRecordPredicate predicate) {
+        final SamReader reader = SamReaderFactory.makeDefault().recordPredicate(predicate).open(sam);
+        final List<String> records = toStrings(reader.iterator());
+        final SamReader bamReader = SamReaderFactory.makeDefault().recordPredicate(predicate).open(bam);
+        Assert.assertEquals(records, toStrings(bamReader.iterator()));
+        CloserUtil.close(reader);
+        CloserUtil.close(bamReader);
+    }
+
+    /** queryMate() finds mates whether or not they satisfy the predicate. */
+    @Test
+    public void testQueryMateIgnoresPredicate() {
+        final SamRecordPredicate predicate = SamRecordPredicate.flagsSet(0x40);
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .recordPredicate(predicate).open(bam);
+        final SamReader unfilteredReader = SamReaderFactory.makeDefault().open(bam);
+        final List<SAMRecord> records = new ArrayList<SAMRecord>();
+        final SAMRecordIterator iterator = reader.iterator();
+        while (iterator.hasNext() && records.size() < 100) {
+            records.add(iterator.next());
+        }
+        iterator.close();
+        int matesFound = 0;
+        for (final SAMRecord rec : records) {
+            final SAMRecord mate = reader.queryMate(rec);
+            final SAMRecord expected = unfilteredReader.queryMate(rec);
+            if (expected == null) {
+                Assert.assertNull(mate);
+            } else {
+                Assert.assertFalse(predicate.matches(mate));
+                Assert.assertEquals(mate.getSAMString(), expected.getSAMString());
+                ++matesFound;
+            }
+        }
+        Assert.assertTrue(matesFound > 0);
+        // The predicate still applies to iterators created afterwards
+        Assert.assertEquals(toStrings(reader.iterator()), expected(bam, predicate, null));
+        CloserUtil.close(reader);
+        CloserUtil.close(unfilteredReader);
+    }
+
+    /** Indexes built from a reader with a predicate cover all the records. */
+    @Test
+    public void testIndexersIgnorePredicate() {
+        final SamRecordPredicate predicate = SamRecordPredicate.minMappingQuality(60);
+        final File[] bamIndexes = {new File(tmpDir, "filtered.bai"), new File(tmpDir, "unfiltered.bai")};
+        final File[] readNameIndexes = {new File(tmpDir, "filtered.rni"), new File(tmpDir, "unfiltered.rni")};
+        for (int i = 0; i < 2; ++i) {
+            final SamReaderFactory factory = SamReaderFactory.makeDefault()
+                    .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).recordPredicate(i == 0 ? predicate : null);
+            final SamReader reader = factory.open(bam);
+            BAMIndexer.createIndex(reader, bamIndexes[i]);
+            ReadNameIndexer.createIndex(reader, readNameIndexes[i]);
+            CloserUtil.close(reader);
+        }
+        IOUtil.assertFilesEqual(bamIndexes[0], bamIndexes[1]);
+        IOUtil.assertFilesEqual(readNameIndexes[0], readNameIndexes[1]);
+    }
+
+    /** Every predicate gives the same answer for a record and its BAM form. */
+    @Test(dataProvider = "predicates")
+    public void testRawAndDecodedAgree(final SamRecordPredicate predicate) {
+        final SamReader reader = SamReaderFactory.makeDefault().open(bam);
+        final SamReader rawReader = SamReaderFactory.makeDefault().open(bam);
+        final CloseableIterator<BAMRawRecord> rawIterator = SamRecordAccess.rawIterator(rawReader);
+        final SAMRecordIterator iterator = reader.iterator();
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            Assert.assertEquals(predicate.matches(rawIterator.next()), predicate.matches(rec), rec.getSAMString());
+            Assert.assertEquals(predicate.filterOut(rec), !predicate.matches(rec));
+        }
+        Assert.assertFalse(rawIterator.hasNext());
+        iterator.close();
+        rawIterator.close();
+        CloserUtil.close(reader);
+        CloserUtil.close(rawReader);
+    }
+}
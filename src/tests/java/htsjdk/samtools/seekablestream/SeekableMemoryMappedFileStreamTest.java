@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class SeekableMemoryMappedFileStreamTest {
+    // Small enough that the test file is split into several segments
+    private static final int SEGMENT_SIZE = 100000;
+
+    private File testFile;
+    private byte[] contents;
+
+    @BeforeClass
+    public void writeTestFile() throws Exception {
+        contents = new byte[SEGMENT_SIZE * 5 + 1234];
+        new Random(11).nextBytes(contents);
+        testFile = File.createTempFile("SMMFST.", ".bin");
+        testFile.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(testFile);
+        out.write(contents);
+        out.close();
+    }
+
+    @Test
+    public void testSeekAndRead() throws Exception {
+        final SeekableMemoryMappedFileStream stream = new SeekableMemoryMappedFileStream(testFile, SEGMENT_SIZE);
+        Assert.assertEquals(stream.length(), contents.length);
+        final Random random = new Random(3);
+        for (int i = 0; i < 500; ++i) {
+            final int position = random.nextInt(contents.length);
+            final byte[] buffer = new byte[random.nextInt(3 * SEGMENT_SIZE)];
+            stream.seek(position);
+            final int count = stream.read(buffer, 0, buffer.length);
+            Assert.assertEquals(count, Math.min(buffer.length, contents.length - position));
+            for (int j = 0; j < count; ++j) {
+                Assert.assertEquals(buffer[j], contents[position + j]);
+            }
+            Assert.assertEquals(stream.position(), position + count);
+        }
+        stream.seek(contents.length - 1);
+        Assert.assertFalse(stream.eof());
+        Assert.assertEquals(stream.read(), contents[contents.length - 1] & 0xFF);
+        Assert.assertTrue(stream.eof());
+        Assert.assertEquals(stream.read(), -1);
+        Assert.assertEquals(stream.read(new byte[10], 0, 10), -1);
+        stream.close();
+    }
+
+    @Test
+    public void testReadAfterClose() throws Exception {
+        final File copy = File.createTempFile("SMMFST.", ".bin");
+        copy.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(copy);
+        out.write(contents);
+        out.close();
+
+        final SeekableMemoryMappedFileStream stream = new SeekableMemoryMappedFileStream(copy, SEGMENT_SIZE);
+        stream.seek(SEGMENT_SIZE - 10);
+        Assert.assertEquals(stream.read(), contents[SEGMENT_SIZE - 10] & 0xFF);
+        stream.close();
+        try {
+            stream.read(new byte[10], 0, 10);
+            Assert.fail("Read from closed stream");
+        } catch (final IOException e) {
+            // expected
+        }
+        // The mappings have been released, so the file can be deleted on any platform
+        Assert.assertTrue(copy.delete());
+    }
+
+    @Test
+    public void testBlockCompressedInputStream() throws Exception {
+        final File bgzfFile = File.createTempFile("SMMFST.", ".gz");
+        bgzfFile.deleteOnExit();
+        final BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(bgzfFile);
+        bcos.write(contents);
+        bcos.close();
+
+        final BlockCompressedInputStream bcis =
+                new BlockCompressedInputStream(new SeekableMemoryMappedFileStream(bgzfFile, SEGMENT_SIZE));
+        final byte[] buffer = new byte[contents.length];
+        Assert.assertEquals(bcis.read(buffer), contents.length);
+        Assert.assertEquals(buffer, contents);
+        Assert.assertEquals(bcis.read(), -1);
+        bcis.close();
+    }
+}
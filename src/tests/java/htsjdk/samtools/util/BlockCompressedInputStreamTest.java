@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class BlockCompressedInputStreamTest {
+    private File bgzfFile;
+    private final List<String> linesWritten = new ArrayList<String>();
+
+    @BeforeClass
+    public void writeTestFile() throws Exception {
+        bgzfFile = File.createTempFile("BCIST.", ".gz");
+        bgzfFile.deleteOnExit();
+        final BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(bgzfFile);
+        final Random random = new Random(42);
+        // Enough lines to span a couple dozen blocks
+        for (int i = 0; i < 20000; ++i) {
+            final String line = i + "\t" + random.nextInt() + "\t" + Long.toHexString(random.nextLong()) + "\n";
+            bcos.write(line.getBytes());
+            linesWritten.add(line);
+        }
+        bcos.close();
+    }
+
+    @DataProvider(name = "inflaterThreads")
+    public Object[][] inflaterThreads() {
+        return new Object[][]{{0}, {1}, {4}};
+    }
+
+    @Test(dataProvider = "inflaterThreads")
+    public void testSequentialRead(final int threads) throws Exception {
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.setInflaterThreads(threads);
+        for (final String expected : linesWritten) {
+            Assert.assertEquals(bcis.readLine() + "\n", expected);
+        }
+        Assert.assertNull(bcis.readLine());
+        bcis.close();
+    }
+
+    @Test(dataProvider = "inflaterThreads")
+    public void testUnseekableStream(final int threads) throws Exception {
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(new FileInputStream(bgzfFile));
+        bcis.setInflaterThreads(threads);
+        for (final String expected : linesWritten) {
+            Assert.assertEquals(bcis.readLine() + "\n", expected);
+        }
+        Assert.assertNull(bcis.readLine());
+        bcis.close();
+    }
+
+    /**
+     * File pointers obtained with read-ahead enabled must be identical to those obtained without it, and seeking
+     * to them in any order must return the same data.
+     */
+    @Test(dataProvider = "inflaterThreads")
+    public void testFilePointersAndSeek(final int threads) throws Exception {
+        final List<Long> expectedPointers = new ArrayList<Long>();
+        final BlockCompressedInputStream serial = new BlockCompressedInputStream(bgzfFile);
+        serial.available();
+        for (int i = 0; i < linesWritten.size(); ++i) {
+            expectedPointers.add(serial.getFilePointer());
+            serial.readLine();
+        }
+        serial.close();
+
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.setInflaterThreads(threads);
+        bcis.available();
+        for (int i = 0; i < linesWritten.size(); ++i) {
+            Assert.assertEquals(bcis.getFilePointer(), expectedPointers.get(i).longValue());
+            bcis.readLine();
+        }
+
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < linesWritten.size(); i += 97) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+        for (final int i : order) {
+            bcis.seek(expectedPointers.get(i));
+            Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i));
+            Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i + 1));
+        }
+        bcis.close();
+    }
+
+    /**
+     * Seeking to the end of the last block of data is the same as seeking to the end of the file, whether or not the
+     * terminator block has been read ahead.
+     */
+    @Test(dataProvider = "inflaterThreads")
+    public void testSeekToEndOfLastBlock(final int threads) throws Exception {
+        final List<Long> pointers = getLinePointers();
+        final long lastBlockAddress = BlockCompressedFilePointerUtil.getBlockAddress(pointers.get(pointers.size() - 1));
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.setInflaterThreads(threads);
+        bcis.seek(BlockCompressedFilePointerUtil.makeFilePointer(lastBlockAddress, 0));
+        final int lastBlockLength = bcis.available();
+        bcis.seek(pointers.get(0));
+        bcis.seek(BlockCompressedFilePointerUtil.makeFilePointer(lastBlockAddress, lastBlockLength));
+        Assert.assertEquals(bcis.read(), -1);
+        try {
+            bcis.seek(BlockCompressedFilePointerUtil.makeFilePointer(lastBlockAddress, lastBlockLength + 1));
+            Assert.fail("Seek past the end of the last block should fail");
+        } catch (final IOException e) {
+            // expected
+        }
+        bcis.close();
+    }
+
+    private List<Long> getLinePointers() throws Exception {
+        final List<Long> pointers = new ArrayList<Long>();
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.available();
+        for (int i = 0; i < linesWritten.size(); ++i) {
+            pointers.add(bcis.getFilePointer());
+            bcis.readLine();
+        }
+        bcis.close();
+        return pointers;
+    }
+
+    /**
+     * Streams sharing a block cache must return the same data as uncached streams, whether the blocks they seek to
+     * were inflated by themselves or by another stream.
+     */
+    @Test(dataProvider = "inflaterThreads")
+    public void testSharedBlockCache(final int threads) throws Exception {
+        final List<Long> pointers = getLinePointers();
+        final InflatedBlockCache cache = new InflatedBlockCache(64 * 1024 * 1024);
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < linesWritten.size() - 1; i += 31) {
+            order.add(i);
+        }
+        for (int pass = 0; pass < 2; ++pass) {
+            final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+            bcis.setInflaterThreads(threads);
+            bcis.setBlockCache(cache);
+            Collections.shuffle(order, new Random(pass));
+            for (final int i : order) {
+                bcis.seek(pointers.get(i));
+                Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i));
+                Assert.assertEquals(bcis.getFilePointer(), pointers.get(i + 1).longValue());
+                Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i + 1));
+            }
+            // Reading sequentially from the last position must also pick up where the cached block left off
+            bcis.seek(pointers.get(0));
+            for (final String expected : linesWritten) {
+                Assert.assertEquals(bcis.readLine() + "\n", expected);
+            }
+            Assert.assertNull(bcis.readLine());
+            bcis.close();
+        }
+        Assert.assertTrue(cache.getHits() > 0);
+        Assert.assertEquals(cache.getEvictions(), 0);
+        Assert.assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+
+    /**
+     * Only blocks reached by seek() are added to the cache, so that sequential scans do not evict them.
+     */
+    @Test(dataProvider = "inflaterThreads")
+    public void testSequentialReadsAreNotCached(final int threads) throws Exception {
+        final List<Long> pointers = getLinePointers();
+        final InflatedBlockCache cache = new InflatedBlockCache(64 * 1024 * 1024);
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.setInflaterThreads(threads);
+        bcis.setBlockCache(cache);
+        for (final String expected : linesWritten) {
+            Assert.assertEquals(bcis.readLine() + "\n", expected);
+        }
+        Assert.assertEquals(cache.getNumBlocks(), 0);
+
+        final int middle = linesWritten.size() / 2;
+        bcis.seek(pointers.get(middle));
+        for (int i = middle; i < linesWritten.size(); ++i) {
+            Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i));
+        }
+        Assert.assertNull(bcis.readLine());
+        bcis.close();
+        Assert.assertEquals(cache.getNumBlocks(), 1);
+    }
+
+    @Test
+    public void testBlockCacheEviction() throws Exception {
+        final List<Long> pointers = getLinePointers();
+        final InflatedBlockCache cache = new InflatedBlockCache(3 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE);
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(bgzfFile);
+        bcis.setBlockCache(cache);
+        for (int i = linesWritten.size() - 1; i >= 0; i -= 53) {
+            bcis.seek(pointers.get(i));
+            Assert.assertEquals(bcis.readLine() + "\n", linesWritten.get(i));
+        }
+        bcis.close();
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertTrue(cache.getNumBlocks() <= 3);
+        Assert.assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+}
@@ -27,8 +27,10 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -91,6 +93,54 @@ public class BlockCompressedOutputStreamTest {
         Assert.assertEquals(i, INPUT_SIZE);
     }
 
+    /**
+     * Compressing blocks in the background must produce exactly the same bytes, and the same file pointers,
+     * as compressing them on the calling thread.
+     */
+    @Test
+    public void testDeflaterThreads() throws Exception {
+        final Random r = new Random(1234);
+        final byte[][] chunks = new byte[5000][];
+        for (int i = 0; i < chunks.length; ++i) {
+            // Mix compressible and incompressible data of varying length
+            chunks[i] = new byte[r.nextInt(300)];
+            if (i % 3 == 0) r.nextBytes(chunks[i]);
+            else Arrays.fill(chunks[i], (byte) ('A' + i % 26));
+        }
+
+        final ByteArrayOutputStream serialBytes = new ByteArrayOutputStream();
+        final BlockCompressedOutputStream serial = new BlockCompressedOutputStream(serialBytes, null);
+        serial.setDeflaterThreads(0);
+        final long[] serialPointers = new long[chunks.length];
+        for (int i = 0; i < chunks.length; ++i) {
+            serialPointers[i] = serial.getFilePointer();
+            serial.write(chunks[i]);
+        }
+        serial.close();
+
+        final ByteArrayOutputStream parallelBytes = new ByteArrayOutputStream();
+        final BlockCompressedOutputStream parallel = new BlockCompressedOutputStream(parallelBytes, null);
+        parallel.setDeflaterThreads(4);
+        final long[] unresolvedPointers = new long[chunks.length];
+        int resolved = 0;
+        for (int i = 0; i < chunks.length; ++i) {
+            unresolvedPointers[i] = parallel.getUnresolvedFilePointer();
+            parallel.write(chunks[i]);
+            long pointer;
+            while (resolved <= i && (pointer = parallel.resolveFilePointer(unresolvedPointers[resolved])) != -1) {
+                Assert.assertEquals(pointer, serialPointers[resolved]);
+                ++resolved;
+            }
+        }
+        parallel.flush();
+        for (; resolved < chunks.length; ++resolved) {
+            Assert.assertEquals(parallel.resolveFilePointer(unresolvedPointers[resolved]), serialPointers[resolved]);
+        }
+        parallel.close();
+
+        Assert.assertEquals(parallelBytes.toByteArray(), serialBytes.toByteArray());
+    }
+
     // PIC-393 exception closing BGZF stream opened to /dev/null
     // I don't think this will work on Windows, because /dev/null doesn't work
     @Test(groups = "broken")
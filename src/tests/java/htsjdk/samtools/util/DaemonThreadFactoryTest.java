@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DaemonThreadFactoryTest {
+
+    /** Runs many tasks at once on the pool, returning the largest number that were running at the same time. */
+    private static int maxConcurrentTasks(final ExecutorService pool) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int i = 0; i < 32; ++i) {
+            tasks.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (final Future<?> task : tasks) {
+            task.get();
+        }
+        return maxRunning.get();
+    }
+
+    /** A shared pool has as many threads as the largest number asked for, not the total. */
+    @Test
+    public void testEnsurePoolSize() throws Exception {
+        final ExecutorService pool = DaemonThreadFactory.newFixedDaemonThreadPool("DaemonThreadFactoryTest ", 2);
+        try {
+            for (int i = 0; i < 4; ++i) {
+                DaemonThreadFactory.ensurePoolSize(pool, 2);
+            }
+            Assert.assertEquals(maxConcurrentTasks(pool), 2);
+            DaemonThreadFactory.ensurePoolSize(pool, 4);
+            DaemonThreadFactory.ensurePoolSize(pool, 3);
+            Assert.assertEquals(maxConcurrentTasks(pool), 4);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package htsjdk.samtools.util;
 
+import htsjdk.samtools.Defaults;
 import org.testng.Assert;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
@@ -34,9 +35,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 
 public class SortingCollectionTest {
@@ -108,6 +111,233 @@ public class SortingCollectionTest {
         Assert.assertEquals(tmpDir.list().length, 0);
     }
 
+    /**
+     * The same, with sorting, spilling and merging done on several threads.
+     */
+    @Test(dataProvider = "test1")
+    public void testPositiveWithSortThreads(final String testName, final int numStringsToGenerate, final int maxRecordsInRam) {
+        final String[] strings = new String[numStringsToGenerate];
+        int numStringsGenerated = 0;
+        final SortingCollection<String> sortingCollection = makeSortingCollection(maxRecordsInRam);
+        sortingCollection.setSortThreads(3);
+        for (final String s : new RandomStringGenerator(numStringsToGenerate)) {
+            sortingCollection.add(s);
+            strings[numStringsGenerated++] = s;
+        }
+        Arrays.sort(strings, new StringComparator());
+
+        sortingCollection.setDestructiveIteration(false);
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+
+        sortingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
+    @DataProvider(name = "sortThreads")
+    public Object[][] sortThreads() {
+        return new Object[][] {{0, 20000}, {1, 20000}, {4, 20000}, {4, 100000}, {8, 3000}};
+    }
+
+    /**
+     * Records that compare equal must come out in the order they were added, however they are sorted and merged.
+     */
+    @Test(dataProvider = "sortThreads")
+    public void testStableSortWithSortThreads(final int sortThreads, final int maxRecordsInRam) {
+        // Compare only the last digit, so that there are many ties
+        final Comparator<String> comparator = new Comparator<String>() {
+            public int compare(final String s, final String s1) {
+                return s.charAt(s.length() - 1) - s1.charAt(s1.length() - 1);
+            }
+        };
+        final SortingCollection<String> sortingCollection = SortingCollection.newInstance(String.class,
+                new StringCodec(), comparator, maxRecordsInRam, tmpDir);
+        sortingCollection.setSortThreads(sortThreads);
+        final String[] strings = new String[100000];
+        int i = 0;
+        for (final String s : new RandomStringGenerator(strings.length)) {
+            sortingCollection.add(s);
+            strings[i++] = s;
+        }
+        Arrays.sort(strings, comparator);
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        sortingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
+    @Test
+    public void testCloseWhileMerging() {
+        final SortingCollection<String> sortingCollection = makeSortingCollection(100);
+        sortingCollection.setSortThreads(2);
+        for (final String s : new RandomStringGenerator(20000)) {
+            sortingCollection.add(s);
+        }
+        final CloseableIterator<String> iterator = sortingCollection.iterator();
+        for (int i = 0; i < 10; ++i) {
+            iterator.next();
+        }
+        iterator.close();
+        sortingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
+    /**
+     * The sort pool is shared and bounded, so a collection must still sort and merge while every pool thread is held
+     * by the background merges of another collection whose iterator is not being read.
+     */
+    @Test(timeOut = 120000)
+    public void testSortWhilePoolIsBusy() {
+        final SortingCollection<String> blockingCollection = makeSortingCollection(4000);
+        blockingCollection.setSortThreads(16);
+        for (final String s : new RandomStringGenerator(128000)) {
+            blockingCollection.add(s);
+        }
+        // Each of the 16 background merges fills its queue and then waits for this iterator
+        final CloseableIterator<String> blockingIterator = blockingCollection.iterator();
+        blockingIterator.next();
+
+        final SortingCollection<String> sortingCollection = makeSortingCollection(1000);
+        sortingCollection.setSortThreads(2);
+        final String[] strings = new String[20000];
+        int i = 0;
+        for (final String s : new RandomStringGenerator(strings.length)) {
+            sortingCollection.add(s);
+            strings[i++] = s;
+        }
+        Arrays.sort(strings, new StringComparator());
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        sortingCollection.cleanup();
+
+        blockingIterator.close();
+        blockingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSetSortThreadsAfterAdding() {
+        final SortingCollection<String> sortingCollection = makeSortingCollection(100);
+        sortingCollection.add("a");
+        sortingCollection.setSortThreads(2);
+    }
+
+    @DataProvider(name = "serialized")
+    public Object[][] serialized() {
+        // Each string takes 4 bytes of length, up to 11 characters and 12 bytes of index
+        return new Object[][] {
+                {"empty", 0, 1000, false, 0},
+                {"singleton", 1, 1000, false, 0},
+                {"fits in memory", 1000, 100000, false, 0},
+                {"spills", 5000, 3000, false, 0},
+                {"spills off heap", 5000, 3000, true, 0},
+                {"multiple runs", 100000, 4000000, false, 0},
+                {"multiple runs with sort threads", 100000, 4000000, true, 4},
+                {"spills multiple runs with sort threads", 100000, 1000000, false, 3},
+        };
+    }
+
+    /**
+     * Records held in serialized form must come out the same, in the same order, as those held as objects.
+     */
+    @Test(dataProvider = "serialized")
+    public void testSerialized(final String testName, final int numStringsToGenerate, final long maxBytesInRam,
+                               final boolean offHeap, final int sortThreads) {
+        // Compare only the first character, so that there are ties, which must be broken by order of addition
+        final Comparator<String> comparator = new Comparator<String>() {
+            public int compare(final String s, final String s1) {
+                return s.charAt(0) - s1.charAt(0);
+            }
+        };
+        final SortingCollection<String> sortingCollection = SortingCollection.newSerializedInstance(String.class,
+                new StringCodec(), comparator, maxBytesInRam, offHeap, tmpDir);
+        sortingCollection.setSortThreads(sortThreads);
+        final String[] strings = new String[numStringsToGenerate];
+        int i = 0;
+        for (final String s : new RandomStringGenerator(numStringsToGenerate)) {
+            sortingCollection.add(s);
+            strings[i++] = s;
+        }
+        Arrays.sort(strings, comparator);
+
+        Assert.assertEquals(tmpDirIsEmpty(), (long) numStringsToGenerate * 27 <= maxBytesInRam);
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        sortingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
+    /**
+     * Memory freed by one serialized collection is kept for others while they are in use, but not afterwards.
+     */
+    @Test
+    public void testSerializedMemoryReleased() {
+        final List<SortingCollection<String>> collections = new ArrayList<SortingCollection<String>>();
+        for (int i = 0; i < 2; ++i) {
+            final SortingCollection<String> sortingCollection = SortingCollection.newSerializedInstance(String.class,
+                    new StringCodec(), new StringComparator(), 1000000, false, tmpDir);
+            for (final String s : new RandomStringGenerator(1000)) {
+                sortingCollection.add(s);
+            }
+            collections.add(sortingCollection);
+        }
+        collections.get(0).cleanup();
+        Assert.assertTrue(SerializedRecordArena.getPooledBytes() > 0);
+        Assert.assertTrue(SerializedRecordArena.getPooledBytes() <= 2 * Defaults.SORT_ARENA_POOL_BYTES);
+        collections.get(1).cleanup();
+        Assert.assertEquals(SerializedRecordArena.getPooledBytes(), 0);
+    }
+
+    @Test
+    public void testRadixSort() {
+        final Random random = new Random(5);
+        for (final int n : new int[]{0, 1, 2, 1000}) {
+            final long[] keys = new long[n];
+            final int[] indices = new int[n];
+            for (int i = 0; i < n; ++i) {
+                // Few distinct values, to check stability, spread over several bytes
+                keys[i] = (random.nextInt(50) * 0x10001000L) & Long.MAX_VALUE;
+                indices[i] = i;
+            }
+            final long[] original = keys.clone();
+            final long[] sorted = SortingCollection.radixSort(keys, indices);
+            for (int i = 0; i < n; ++i) {
+                Assert.assertEquals(sorted[i], original[indices[i]]);
+                if (i > 0) {
+                    Assert.assertTrue(sorted[i - 1] < sorted[i] || (sorted[i - 1] == sorted[i] && indices[i - 1] < indices[i]));
+                }
+            }
+        }
+    }
+
+    /** Sorts by the first character by key, and then by the whole string. */
+    static class KeyedStringComparator extends StringComparator implements SortingCollection.KeyedComparator<String> {
+        public long getSortKey(final String s) {
+            return s.charAt(0);
+        }
+    }
+
+    @DataProvider(name = "keyed")
+    public Object[][] keyed() {
+        return new Object[][] {{0, false}, {3, false}, {0, true}, {3, true}};
+    }
+
+    @Test(dataProvider = "keyed")
+    public void testKeyedComparator(final int sortThreads, final boolean serialized) {
+        final SortingCollection<String> sortingCollection = serialized ?
+                SortingCollection.newSerializedInstance(String.class, new StringCodec(), new KeyedStringComparator(), 500000, false, tmpDir) :
+                SortingCollection.newInstance(String.class, new StringCodec(), new KeyedStringComparator(), 20000, tmpDir);
+        sortingCollection.setSortThreads(sortThreads);
+        final String[] strings = new String[50000];
+        int i = 0;
+        for (final String s : new RandomStringGenerator(strings.length)) {
+            sortingCollection.add(s);
+            strings[i++] = s;
+        }
+        Arrays.sort(strings, new StringComparator());
+        assertIteratorEqualsList(strings, sortingCollection.iterator());
+        sortingCollection.cleanup();
+        Assert.assertEquals(tmpDir.list().length, 0);
+    }
+
     private void assertIteratorEqualsList(final String[] strings, final Iterator<String> sortingCollection) {
         int i = 0;
         while (sortingCollection.hasNext()) {
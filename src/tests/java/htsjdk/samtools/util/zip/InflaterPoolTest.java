@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.zip;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.zip.Inflater;
+
+public class InflaterPoolTest {
+
+    @Test
+    public void testReuse() {
+        final InflaterPool pool = new InflaterPool(1);
+        final Inflater first = pool.acquire();
+        final Inflater second = pool.acquire();
+        Assert.assertNotSame(first, second);
+        pool.release(first);
+        // Only one idle Inflater is kept
+        pool.release(second);
+        Assert.assertEquals(pool.getNumIdle(), 1);
+        Assert.assertSame(pool.acquire(), first);
+        Assert.assertEquals(pool.getNumIdle(), 0);
+    }
+
+    @Test
+    public void testCustomFactory() {
+        final int[] inflatersCreated = {0};
+        final InflaterFactory originalFactory = InflaterFactory.getInstance();
+        InflaterFactory.setInstance(new InflaterFactory() {
+            @Override
+            public Inflater newInflater(final boolean nowrap) {
+                ++inflatersCreated[0];
+                return super.newInflater(nowrap);
+            }
+        });
+        try {
+            // A pool that keeps nothing must go to the factory every time
+            final InflaterPool pool = new InflaterPool(0);
+            pool.release(pool.acquire());
+            pool.release(pool.acquire());
+            Assert.assertTrue(inflatersCreated[0] >= 2);
+            Assert.assertEquals(pool.getNumIdle(), 0);
+        } finally {
+            InflaterFactory.setInstance(originalFactory);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.variant.vcf;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedSplit;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.variant.VariantBaseTest;
+import htsjdk.variant.variantcontext.VariantContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class VCFSplitPlannerTest extends VariantBaseTest {
+    private static final File VCF_FILE = new File(variantTestDataRoot + "HiSeq.10000.vcf");
+    private File bgzippedVcf;
+    private final List<String> expected = new ArrayList<String>();
+
+    @BeforeClass
+    public void writeTestFile() throws Exception {
+        bgzippedVcf = File.createTempFile("VCFSplitPlannerTest.", ".vcf.gz");
+        bgzippedVcf.deleteOnExit();
+        final BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzippedVcf);
+        final FileInputStream in = new FileInputStream(VCF_FILE);
+        IOUtil.copyStream(in, out);
+        in.close();
+        out.close();
+
+        final VCFFileReader reader = new VCFFileReader(VCF_FILE, false);
+        for (final VariantContext variant : reader) {
+            expected.add(describe(variant));
+        }
+        reader.close();
+    }
+
+    private static String describe(final VariantContext variant) {
+        return variant.getChr() + ":" + variant.getStart() + ":" + variant.getID() + ":" + variant.getAlleles();
+    }
+
+    private List<String> readSplits(final List<BlockCompressedSplit> splits) {
+        final List<String> variants = new ArrayList<String>();
+        for (final BlockCompressedSplit split : splits) {
+            final CloseableIterator<VariantContext> iterator = VCFSplitPlanner.iterator(split);
+            while (iterator.hasNext()) {
+                variants.add(describe(iterator.next()));
+            }
+            iterator.close();
+        }
+        return variants;
+    }
+
+    @DataProvider(name = "numSplits")
+    public Object[][] numSplits() {
+        return new Object[][]{{1}, {3}, {16}};
+    }
+
+    @Test(dataProvider = "numSplits")
+    public void testPlanSplits(final int numSplits) {
+        final List<BlockCompressedSplit> splits = new VCFSplitPlanner(bgzippedVcf).planSplits(numSplits);
+        Assert.assertTrue(splits.size() <= numSplits);
+        Assert.assertTrue(splits.size() >= Math.min(numSplits, 2));
+        for (int i = 1; i < splits.size(); ++i) {
+            Assert.assertEquals(splits.get(i).getStart(), splits.get(i - 1).getEnd());
+        }
+        Assert.assertEquals(readSplits(splits), expected);
+    }
+}